@@ -0,0 +1,57 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.Main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of the benchmark profile: runs JMH with the given arguments.
+ * <p>
+ * The NetCDF benchmarks need NetCDF-4 sample files (see {@link S3ServerState}), which are not shipped.
+ * When none is found, they are excluded from the run, rather than failing it.
+ */
+public class BenchmarkMain {
+    private static final Logger LOGGER = Logger.getLogger(BenchmarkMain.class);
+
+    // Benchmarks which read the NetCDF sample files
+    private static final List<Class<?>> NETCDF_BENCHMARKS = Arrays.<Class<?>>asList(S3DatasetSourceBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+
+        File dataDirectory = S3ServerState.getDataDirectory();
+        if (S3ServerState.findNetcdfFiles(dataDirectory).isEmpty()) {
+            for (Class<?> benchmark : NETCDF_BENCHMARKS) {
+                LOGGER.warn(String.format("No NetCDF sample file found in %s: skipping %s. " +
+                        "Set -Dbenchmark.dataDirectory to a directory of NetCDF-4 files to run it.",
+                        dataDirectory.getAbsolutePath(), benchmark.getSimpleName()));
+                jmhArgs.add("-e");
+                jmhArgs.add(benchmark.getSimpleName());
+            }
+        }
+
+        Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal S3 compatible server, used to benchmark the S3 read path without
+ * depending on a real bucket.
+ * <p>
+ * Objects are held in memory and served with path style URLs
+ * (http://localhost:port/bucket/key). It supports the requests used by this plugin:
+ * HEAD and GET of objects (with Range and If-Match), HEAD of buckets and ListObjectsV2.
+ * <p>
+ * The latency (time before the response headers are sent) and the bandwidth
+ * (per connection) can be set, to simulate the round trips and the throughput of S3.
+ */
+public class LocalS3Server {
+    private static final Logger LOGGER = Logger.getLogger(LocalS3Server.class);
+
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Objects, by "bucket/key", sorted for listing
+    private final NavigableMap<String, S3TestObject> objects = new ConcurrentSkipListMap<String, S3TestObject>();
+
+    private volatile long latencyMs = 0;
+    private volatile long bytesPerSecond = 0;
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong getCount = new AtomicLong(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+
+    public LocalS3Server() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "local-s3-" + this.threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new S3Handler());
+    }
+
+    public void start() {
+        this.server.start();
+        LOGGER.info(String.format("Local S3 server started on %s", this.getEndpoint()));
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL to use as S3 endpoint, with path style access.
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * @param latencyMs time to wait before answering each request, in milliseconds
+     */
+    public void setLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * @param bytesPerSecond maximum throughput of each connection, or 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void putObject(String bucket, String key, byte[] content) {
+        this.objects.put(bucket + "/" + key, new S3TestObject(content));
+    }
+
+    public void putFile(String bucket, String key, File file) throws IOException {
+        this.putObject(bucket, key, Files.readAllBytes(file.toPath()));
+    }
+
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    public long getGetCount() {
+        return this.getCount.get();
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    public void resetCounters() {
+        this.requestCount.set(0);
+        this.getCount.set(0);
+        this.bytesSent.set(0);
+    }
+
+    private class S3Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            LocalS3Server.this.requestCount.incrementAndGet();
+            try {
+                LocalS3Server.this.simulateLatency();
+
+                String path = exchange.getRequestURI().getRawPath();
+                while (path.startsWith("/")) {
+                    path = path.substring(1);
+                }
+                int slash = path.indexOf('/');
+                String bucket = decode(slash < 0 ? path : path.substring(0, slash));
+                String key = slash < 0 ? "" : decode(path.substring(slash + 1));
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+                if (key.isEmpty()) {
+                    if ("HEAD".equals(exchange.getRequestMethod())) {
+                        LocalS3Server.this.headBucket(exchange, bucket);
+                    } else {
+                        LocalS3Server.this.listObjects(exchange, bucket, query);
+                    }
+                } else {
+                    LocalS3Server.this.getObject(exchange, bucket, key);
+                }
+            } catch (InterruptedIOException ex) {
+                LOGGER.debug("Local S3 server interrupted");
+            } catch (IOException ex) {
+                // Usually the client closing the connection (cancelled read)
+                LOGGER.debug(String.format("Local S3 server error: %s", ex.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private void headBucket(HttpExchange exchange, String bucket) throws IOException {
+        String prefix = bucket + "/";
+        String firstKey = this.objects.ceilingKey(prefix);
+        int status = firstKey != null && firstKey.startsWith(prefix) ? 200 : 404;
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private void getObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        S3TestObject object = this.objects.get(bucket + "/" + key);
+        if (object == null) {
+            this.sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String ifMatch = requestHeaders.getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.replace("\"", "").equals(object.eTag)) {
+            this.sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+
+        long length = object.content.length;
+        long start = 0;
+        long end = length - 1;
+        boolean ranged = false;
+        String range = requestHeaders.getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] rangeParts = range.substring("bytes=".length()).split("-", 2);
+            if (!rangeParts[0].isEmpty()) {
+                start = Long.parseLong(rangeParts[0]);
+                if (rangeParts.length > 1 && !rangeParts[1].isEmpty()) {
+                    end = Math.min(Long.parseLong(rangeParts[1]), length - 1);
+                }
+            } else {
+                start = Math.max(0, length - Long.parseLong(rangeParts[1]));
+            }
+            ranged = true;
+            if (start >= length) {
+                this.sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+        }
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("ETag", "\"" + object.eTag + "\"");
+        responseHeaders.set("Last-Modified", formatHttpDate(object.lastModified));
+        responseHeaders.set("Accept-Ranges", "bytes");
+        responseHeaders.set("Content-Type", "application/octet-stream");
+
+        long contentLength = end - start + 1;
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            responseHeaders.set("Content-Length", Long.toString(length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        this.getCount.incrementAndGet();
+        if (ranged) {
+            responseHeaders.set("Content-Range", String.format("bytes %d-%d/%d", start, end, length));
+        }
+        exchange.sendResponseHeaders(ranged ? 206 : 200, contentLength);
+        this.write(exchange.getResponseBody(), object.content, (int) start, (int) contentLength);
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String delimiter = query.get("delimiter");
+        String startAfter = query.containsKey("continuation-token") ? query.get("continuation-token") : query.get("start-after");
+        int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : 1000;
+        boolean urlEncoded = "url".equals(query.get("encoding-type"));
+
+        StringBuilder contents = new StringBuilder();
+        TreeSet<String> commonPrefixes = new TreeSet<String>();
+        String bucketPrefix = bucket + "/";
+        String fromKey = bucketPrefix + (startAfter != null && startAfter.compareTo(prefix) > 0 ? startAfter : prefix);
+        int keyCount = 0;
+        String lastKey = null;
+        boolean truncated = false;
+
+        for (Map.Entry<String, S3TestObject> entry : this.objects.tailMap(fromKey, startAfter == null).entrySet()) {
+            String fullKey = entry.getKey();
+            if (!fullKey.startsWith(bucketPrefix + prefix)) {
+                break;
+            }
+            String key = fullKey.substring(bucketPrefix.length());
+            if (keyCount >= maxKeys) {
+                truncated = true;
+                break;
+            }
+
+            if (delimiter != null && !delimiter.isEmpty()) {
+                int delimiterIndex = key.indexOf(delimiter, prefix.length());
+                if (delimiterIndex >= 0) {
+                    String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                    if (commonPrefixes.add(commonPrefix)) {
+                        keyCount++;
+                    }
+                    lastKey = key;
+                    continue;
+                }
+            }
+
+            S3TestObject object = entry.getValue();
+            contents.append("<Contents>")
+                    .append("<Key>").append(xmlKey(key, urlEncoded)).append("</Key>")
+                    .append("<LastModified>").append(formatIsoDate(object.lastModified)).append("</LastModified>")
+                    .append("<ETag>&quot;").append(object.eTag).append("&quot;</ETag>")
+                    .append("<Size>").append(object.content.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass>")
+                    .append("</Contents>");
+            keyCount++;
+            lastKey = key;
+        }
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+                .append("<Name>").append(escapeXml(bucket)).append("</Name>")
+                .append("<Prefix>").append(xmlKey(prefix, urlEncoded)).append("</Prefix>")
+                .append("<KeyCount>").append(keyCount).append("</KeyCount>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (delimiter != null) {
+            xml.append("<Delimiter>").append(xmlKey(delimiter, urlEncoded)).append("</Delimiter>");
+        }
+        if (urlEncoded) {
+            xml.append("<EncodingType>url</EncodingType>");
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated && lastKey != null) {
+            // The continuation token is the last returned key
+            xml.append("<NextContinuationToken>").append(escapeXml(lastKey)).append("</NextContinuationToken>");
+        }
+        xml.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(xmlKey(commonPrefix, urlEncoded)).append("</Prefix></CommonPrefixes>");
+        }
+        xml.append("</ListBucketResult>");
+
+        this.sendXml(exchange, 200, xml.toString());
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        this.sendXml(exchange, status, String.format(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>%s</Code><Message>%s</Message></Error>", code, message));
+    }
+
+    private void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        this.write(exchange.getResponseBody(), body, 0, body.length);
+    }
+
+    /**
+     * Write the response body, throttled to the configured bandwidth.
+     */
+    private void write(OutputStream outputStream, byte[] content, int offset, int length) throws IOException {
+        long startTime = System.nanoTime();
+        int written = 0;
+        while (written < length) {
+            int chunkLength = Math.min(WRITE_CHUNK_SIZE, length - written);
+            outputStream.write(content, offset + written, chunkLength);
+            written += chunkLength;
+            this.bytesSent.addAndGet(chunkLength);
+
+            long bandwidth = this.bytesPerSecond;
+            if (bandwidth > 0) {
+                long expectedNanos = written * 1000000000L / bandwidth;
+                long aheadNanos = expectedNanos - (System.nanoTime() - startTime);
+                if (aheadNanos > 0) {
+                    sleep(aheadNanos / 1000000L, (int) (aheadNanos % 1000000L));
+                }
+            }
+        }
+        outputStream.flush();
+    }
+
+    private void simulateLatency() throws InterruptedIOException {
+        long latency = this.latencyMs;
+        if (latency > 0) {
+            sleep(latency, 0);
+        }
+    }
+
+    private static void sleep(long millis, int nanos) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis, nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery != null && !rawQuery.isEmpty()) {
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    query.put(decode(parameter), "");
+                } else {
+                    query.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String xmlKey(String key, boolean urlEncoded) {
+        if (!urlEncoded) {
+            return escapeXml(key);
+        }
+        try {
+            return URLEncoder.encode(key, "UTF-8").replace("+", "%20").replace("%2F", "/");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String formatHttpDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
+    private static String formatIsoDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static class S3TestObject {
+        private final byte[] content;
+        private final String eTag;
+        private final Date lastModified;
+
+        public S3TestObject(byte[] content) {
+            this.content = content;
+            this.eTag = md5(content);
+            // S3 dates have a precision of 1 second
+            this.lastModified = new Date((System.currentTimeMillis() / 1000) * 1000);
+        }
+
+        private static String md5(byte[] content) {
+            try {
+                byte[] hash = MessageDigest.getInstance("MD5").digest(content);
+                StringBuilder sb = new StringBuilder();
+                for (byte b : hash) {
+                    sb.append(String.format("%02x", b));
+                }
+                return sb.toString();
+            } catch (NoSuchAlgorithmException ex) {
+                // MD5 is available in every JVM
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
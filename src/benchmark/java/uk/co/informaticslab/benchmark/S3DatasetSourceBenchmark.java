@@ -0,0 +1,136 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ucar.nc2.NetcdfFile;
+import uk.co.informaticslab.S3BlockCache;
+import uk.co.informaticslab.S3DatasetSource;
+import uk.co.informaticslab.S3MetadataCache;
+import uk.co.informaticslab.S3NetcdfFileCache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link S3DatasetSource#getNetcdfFile}: the time THREDDS waits
+ * before it can use a NetCDF file stored on S3 (metadata request, header parsing).
+ * <p>
+ * Needs NetCDF-4 sample files, see {@link S3ServerState}.
+ * <p>
+ * With a "cold" cache, the default caches used by the dataset source are cleared
+ * before each invocation, so every file header is read from S3.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class S3DatasetSourceBenchmark {
+    private static final int CONCURRENT_READERS = 8;
+
+    @State(Scope.Benchmark)
+    public static class DatasetSourceState {
+        @Param({"cold", "warm"})
+        public String cache;
+
+        private S3DatasetSource datasetSource;
+
+        @Setup(Level.Trial)
+        public void createDatasetSource(S3ServerState serverState) {
+            // Created once the local S3 server is started
+            this.datasetSource = new S3DatasetSource();
+        }
+
+        @Setup(Level.Invocation)
+        public void clearCaches() {
+            if ("cold".equals(this.cache)) {
+                clearDefaultCaches();
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedDatasetSourceState {
+        private S3DatasetSource datasetSource;
+
+        @Setup(Level.Trial)
+        public void createDatasetSource(S3ServerState serverState) {
+            this.datasetSource = new S3DatasetSource();
+        }
+
+        @Setup(Level.Iteration)
+        public void clearCaches() {
+            clearDefaultCaches();
+        }
+    }
+
+    /**
+     * Open every sample file, as THREDDS does to serve a request, then close it.
+     */
+    @Benchmark
+    public void headerOpen(S3ServerState serverState, DatasetSourceState datasetSourceState, Blackhole blackhole) throws IOException {
+        openAll(datasetSourceState.datasetSource, serverState, blackhole);
+    }
+
+    /**
+     * Several requests opening the same files at the same time.
+     */
+    @Benchmark
+    @Threads(CONCURRENT_READERS)
+    public void concurrentHeaderOpen(S3ServerState serverState, SharedDatasetSourceState datasetSourceState, Blackhole blackhole) throws IOException {
+        openAll(datasetSourceState.datasetSource, serverState, blackhole);
+    }
+
+    private static void openAll(S3DatasetSource datasetSource, S3ServerState serverState, Blackhole blackhole) throws IOException {
+        for (String key : serverState.getNetcdfKeys()) {
+            int[] status = new int[1];
+            NetcdfFile netcdfFile = datasetSource.getNetcdfFile(
+                    ServletStubs.request("GET", "/s3://" + S3ServerState.BUCKET + "/" + key),
+                    ServletStubs.response(new ServletStubs.DiscardingServletOutputStream(), status));
+            if (netcdfFile == null) {
+                throw new IOException(String.format("Could not open %s: HTTP status %d", key, status[0]));
+            }
+            try {
+                blackhole.consume(netcdfFile.getVariables().size());
+            } finally {
+                netcdfFile.close();
+            }
+        }
+    }
+
+    private static void clearDefaultCaches() {
+        S3NetcdfFileCache.getDefault().clear();
+        S3MetadataCache.getDefault().clear();
+        S3BlockCache.getDefault().clear();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import thredds.server.fileserver.S3FileServerController;
+import uk.co.informaticslab.Constants;
+import uk.co.informaticslab.S3BlockCache;
+import uk.co.informaticslab.S3MetadataCache;
+import uk.co.informaticslab.S3RandomAccessFile;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link S3FileServerController#returnS3RandomAccessFile}:
+ * download of the random binary object through the file server, to a discarding output stream.
+ * <p>
+ * With a "cold" cache, the caches are cleared before each invocation, so every byte is read from S3.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class S3FileServerBenchmark {
+    private static final int CONCURRENT_READERS = 8;
+
+    // Range request of 1 MB, in the middle of the object
+    private static final String RANGE = String.format("bytes=%d-%d", 4 * Constants.MEGABYTE, 5 * Constants.MEGABYTE - 1);
+
+    @State(Scope.Benchmark)
+    public static class FileServerState {
+        @Param({"cold", "warm"})
+        public String cache;
+
+        private AmazonS3 client;
+        private S3BlockCache blockCache;
+        private S3MetadataCache metadataCache;
+
+        @Setup(Level.Trial)
+        public void createCaches(S3ServerState serverState) {
+            // Created once the local S3 server is started
+            this.client = Constants.getS3Client();
+            this.blockCache = new S3BlockCache(2L * serverState.getObjectSize());
+            this.metadataCache = new S3MetadataCache(S3MetadataCache.DEFAULT_TTL,
+                    S3MetadataCache.DEFAULT_NEGATIVE_TTL, S3MetadataCache.DEFAULT_MAX_ENTRIES);
+        }
+
+        @Setup(Level.Invocation)
+        public void clearCaches() {
+            if ("cold".equals(this.cache)) {
+                this.blockCache.clear();
+                this.metadataCache.clear();
+            }
+        }
+
+        public long download(S3ServerState serverState, HttpServletRequest request) throws IOException {
+            ServletStubs.DiscardingServletOutputStream outputStream = new ServletStubs.DiscardingServletOutputStream();
+            int[] status = new int[1];
+            try (S3RandomAccessFile file = new S3RandomAccessFile(this.blockCache, this.metadataCache, this.client, serverState.getRandomObjectUrl())) {
+                S3FileServerController.returnS3RandomAccessFile(request, ServletStubs.response(outputStream, status), file, "application/octet-stream");
+            }
+            if (status[0] >= 400) {
+                throw new IOException(String.format("Download failed: HTTP status %d", status[0]));
+            }
+            return outputStream.getBytesWritten();
+        }
+    }
+
+    /**
+     * Caches shared by concurrent clients. They are only cleared before each iteration.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedFileServerState {
+        private final FileServerState state = new FileServerState();
+
+        @Setup(Level.Trial)
+        public void createCaches(S3ServerState serverState) {
+            this.state.createCaches(serverState);
+        }
+
+        @Setup(Level.Iteration)
+        public void clearCaches() {
+            this.state.blockCache.clear();
+            this.state.metadataCache.clear();
+        }
+    }
+
+    /**
+     * Download the whole object.
+     */
+    @Benchmark
+    public long download(S3ServerState serverState, FileServerState fileServerState) throws IOException {
+        return fileServerState.download(serverState, ServletStubs.request("GET", "/" + S3ServerState.RANDOM_OBJECT_KEY));
+    }
+
+    /**
+     * Download 1 MB with a range request.
+     */
+    @Benchmark
+    public long rangeDownload(S3ServerState serverState, FileServerState fileServerState) throws IOException {
+        return fileServerState.download(serverState, ServletStubs.request("GET", "/" + S3ServerState.RANDOM_OBJECT_KEY,
+                Collections.singletonMap("Range", RANGE)));
+    }
+
+    /**
+     * Several clients downloading the object at the same time.
+     */
+    @Benchmark
+    @Threads(CONCURRENT_READERS)
+    public long concurrentDownload(S3ServerState serverState, SharedFileServerState fileServerState) throws IOException {
+        return fileServerState.state.download(serverState, ServletStubs.request("GET", "/" + S3ServerState.RANDOM_OBJECT_KEY));
+    }
+}
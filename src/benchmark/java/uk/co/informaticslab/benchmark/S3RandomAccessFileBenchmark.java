@@ -0,0 +1,211 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.informaticslab.Constants;
+import uk.co.informaticslab.S3BlockCache;
+import uk.co.informaticslab.S3MetadataCache;
+import uk.co.informaticslab.S3RandomAccessFile;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw read benchmarks of the {@link S3RandomAccessFile}, on a random binary object.
+ * <p>
+ * With a "cold" cache, the caches are cleared before each invocation, so every read reaches S3.
+ * With a "warm" cache, the caches are kept, which measures the cache hit path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class S3RandomAccessFileBenchmark {
+    private static final int SEQUENTIAL_READ_SIZE = Constants.MEGABYTE;
+    private static final int RANDOM_READ_SIZE = 4 * 1024;
+    private static final int RANDOM_READ_COUNT = 100;
+    private static final int CONCURRENT_READERS = 8;
+
+    /**
+     * Caches used by the readers, shared by the benchmark threads.
+     */
+    public static class Caches {
+        private AmazonS3 client;
+        private S3BlockCache blockCache;
+        private S3MetadataCache metadataCache;
+
+        public void create(S3ServerState serverState) {
+            // Created once the local S3 server is started
+            this.client = Constants.getS3Client();
+            // Large enough to hold the whole object
+            this.blockCache = new S3BlockCache(2L * serverState.getObjectSize());
+            this.metadataCache = new S3MetadataCache(S3MetadataCache.DEFAULT_TTL,
+                    S3MetadataCache.DEFAULT_NEGATIVE_TTL, S3MetadataCache.DEFAULT_MAX_ENTRIES);
+        }
+
+        public void clear() {
+            this.blockCache.clear();
+            this.metadataCache.clear();
+        }
+
+        public S3RandomAccessFile open(S3ServerState serverState) throws IOException {
+            return new S3RandomAccessFile(this.blockCache, this.metadataCache, this.client, serverState.getRandomObjectUrl());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        @Param({"cold", "warm"})
+        public String cache;
+
+        private final Caches caches = new Caches();
+
+        @Setup(Level.Trial)
+        public void createCaches(S3ServerState serverState) {
+            this.caches.create(serverState);
+        }
+
+        @Setup(Level.Invocation)
+        public void clearCaches() {
+            if ("cold".equals(this.cache)) {
+                this.caches.clear();
+            }
+        }
+    }
+
+    /**
+     * Caches shared by concurrent readers. They can't be cleared while the readers are running,
+     * so they are only cleared before each iteration: the first reader of each block
+     * fetches it, the others wait for it (or find it in the cache).
+     */
+    @State(Scope.Benchmark)
+    public static class SharedCacheState {
+        private final Caches caches = new Caches();
+
+        @Setup(Level.Trial)
+        public void createCaches(S3ServerState serverState) {
+            this.caches.create(serverState);
+        }
+
+        @Setup(Level.Iteration)
+        public void clearCaches() {
+            this.caches.clear();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RandomState {
+        private final Random random = new Random(42);
+
+        public long nextPosition(int objectSize, int readSize) {
+            return (long) (this.random.nextDouble() * (objectSize - readSize));
+        }
+    }
+
+    /**
+     * Read the whole object, in 1 MB reads.
+     */
+    @Benchmark
+    public long sequentialDownload(S3ServerState serverState, CacheState cacheState, Blackhole blackhole) throws IOException {
+        try (S3RandomAccessFile file = cacheState.caches.open(serverState)) {
+            return readAll(file, blackhole);
+        }
+    }
+
+    /**
+     * Copy the whole object to a channel, like the file server does.
+     */
+    @Benchmark
+    public long channelDownload(S3ServerState serverState, CacheState cacheState) throws IOException {
+        try (S3RandomAccessFile file = cacheState.caches.open(serverState)) {
+            return file.readToByteChannel(new DiscardingByteChannel(), 0, file.length());
+        }
+    }
+
+    /**
+     * 100 reads of 4 KB at random positions, typical of subset requests.
+     */
+    @Benchmark
+    public void randomSmallReads(S3ServerState serverState, CacheState cacheState, RandomState randomState, Blackhole blackhole) throws IOException {
+        randomReads(cacheState.caches, serverState, randomState, blackhole);
+    }
+
+    private static void randomReads(Caches caches, S3ServerState serverState, RandomState randomState, Blackhole blackhole) throws IOException {
+        byte[] buffer = new byte[RANDOM_READ_SIZE];
+        try (S3RandomAccessFile file = caches.open(serverState)) {
+            for (int i = 0; i < RANDOM_READ_COUNT; i++) {
+                file.seek(randomState.nextPosition(serverState.getObjectSize(), RANDOM_READ_SIZE));
+                file.readFully(buffer);
+                blackhole.consume(buffer);
+            }
+        }
+    }
+
+    /**
+     * Several readers downloading the same object at the same time.
+     */
+    @Benchmark
+    @Threads(CONCURRENT_READERS)
+    public long concurrentSequentialDownload(S3ServerState serverState, SharedCacheState cacheState, Blackhole blackhole) throws IOException {
+        try (S3RandomAccessFile file = cacheState.caches.open(serverState)) {
+            return readAll(file, blackhole);
+        }
+    }
+
+    /**
+     * Several readers doing random reads on the same object at the same time.
+     */
+    @Benchmark
+    @Threads(CONCURRENT_READERS)
+    public void concurrentRandomSmallReads(S3ServerState serverState, SharedCacheState cacheState, RandomState randomState, Blackhole blackhole) throws IOException {
+        randomReads(cacheState.caches, serverState, randomState, blackhole);
+    }
+
+    private static long readAll(S3RandomAccessFile file, Blackhole blackhole) throws IOException {
+        byte[] buffer = new byte[SEQUENTIAL_READ_SIZE];
+        long length = file.length();
+        long total = 0;
+        while (total < length) {
+            int count = file.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+            if (count < 0) {
+                break;
+            }
+            blackhole.consume(buffer);
+            total += count;
+        }
+        return total;
+    }
+}
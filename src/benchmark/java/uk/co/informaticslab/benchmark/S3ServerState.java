@@ -0,0 +1,152 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.co.informaticslab.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * JMH state holding the local S3 server used by the benchmarks.
+ * <p>
+ * The server is loaded with a random binary object, used by the raw read benchmarks,
+ * and with the NetCDF files found in the directory given by the
+ * "benchmark.dataDirectory" system property (default: src/benchmark/resources/data),
+ * used by the NetCDF benchmarks. No sample file is shipped: without them,
+ * {@link BenchmarkMain} skips the NetCDF benchmarks.
+ * <p>
+ * The S3 client of the plugin is pointed to the local server
+ * with the "s3datasetsource.endpoint" system property.
+ */
+@State(Scope.Benchmark)
+public class S3ServerState {
+    private static final Logger LOGGER = Logger.getLogger(S3ServerState.class);
+
+    public static final String BUCKET = "benchmark";
+    public static final String RANDOM_OBJECT_KEY = "random.bin";
+
+    public static final String DEFAULT_DATA_DIRECTORY = "src/benchmark/resources/data";
+    public static final int DEFAULT_OBJECT_SIZE = 32 * Constants.MEGABYTE;
+
+    // Time to first byte of S3 requests, in milliseconds
+    @Param({"0", "20"})
+    public long latencyMs;
+
+    // Bandwidth of each S3 connection, in MB/s. 0 for unlimited.
+    @Param({"0", "50"})
+    public long bandwidthMBps;
+
+    private LocalS3Server server;
+    private int objectSize;
+    private List<String> netcdfKeys;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        this.server = new LocalS3Server();
+        this.server.setLatency(this.latencyMs);
+        this.server.setBandwidth(this.bandwidthMBps * Constants.MEGABYTE);
+
+        this.objectSize = Integer.getInteger("benchmark.objectSize", DEFAULT_OBJECT_SIZE);
+        byte[] content = new byte[this.objectSize];
+        new Random(42).nextBytes(content);
+        this.server.putObject(BUCKET, RANDOM_OBJECT_KEY, content);
+
+        this.netcdfKeys = new ArrayList<String>();
+        for (File file : findNetcdfFiles(getDataDirectory())) {
+            this.server.putFile(BUCKET, file.getName(), file);
+            this.netcdfKeys.add(file.getName());
+        }
+
+        this.server.start();
+
+        // Must be set before the plugin classes create their S3 client
+        System.setProperty(Constants.SYSTEM_PROPERTY_PREFIX + "endpoint", this.server.getEndpoint());
+        // Benchmark the memory cache, not the local disk
+        if (System.getProperty(Constants.SYSTEM_PROPERTY_PREFIX + "diskCache.maxSize") == null) {
+            System.setProperty(Constants.SYSTEM_PROPERTY_PREFIX + "diskCache.maxSize", "0");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        LOGGER.info(String.format("Local S3 server: %d requests, %d GET, %d bytes sent",
+                this.server.getRequestCount(), this.server.getGetCount(), this.server.getBytesSent()));
+        this.server.stop();
+    }
+
+    /**
+     * @return the directory of the NetCDF sample files, from the "benchmark.dataDirectory" system property.
+     */
+    public static File getDataDirectory() {
+        return new File(System.getProperty("benchmark.dataDirectory", DEFAULT_DATA_DIRECTORY));
+    }
+
+    /**
+     * @return the NetCDF files of a directory, sorted by name. Empty if the directory doesn't exist.
+     */
+    public static List<File> findNetcdfFiles(File dataDirectory) {
+        List<File> netcdfFiles = new ArrayList<File>();
+        File[] files = dataDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(".nc")) {
+                    netcdfFiles.add(file);
+                }
+            }
+        }
+        Collections.sort(netcdfFiles);
+        return netcdfFiles;
+    }
+
+    public LocalS3Server getServer() {
+        return this.server;
+    }
+
+    public int getObjectSize() {
+        return this.objectSize;
+    }
+
+    public String getRandomObjectUrl() {
+        return "s3://" + BUCKET + "/" + RANDOM_OBJECT_KEY;
+    }
+
+    /**
+     * @return the keys of the NetCDF files, in the {@link #BUCKET}.
+     */
+    public List<String> getNetcdfKeys() {
+        if (this.netcdfKeys.isEmpty()) {
+            // Only reached when JMH is run without BenchmarkMain
+            throw new IllegalStateException(String.format("No NetCDF sample file found in %s. " +
+                    "Set the benchmark.dataDirectory system property, or run the benchmarks with BenchmarkMain.", getDataDirectory()));
+        }
+        return this.netcdfKeys;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab.benchmark;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal servlet requests and responses, to call the plugin outside of a servlet container.
+ * Methods which are not used by the plugin return null, 0 or false.
+ */
+public final class ServletStubs {
+    private ServletStubs() {}
+
+    /**
+     * @param method HTTP method (GET, HEAD)
+     * @param pathInfo the request path info (example: /s3://bucket/file.nc)
+     * @param headers the request headers
+     */
+    public static HttpServletRequest request(final String method, final String pathInfo, Map<String, String> headers) {
+        final Map<String, String> requestHeaders = new HashMap<String, String>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            requestHeaders.put(header.getKey().toLowerCase(), header.getValue());
+        }
+
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method proxyMethod, Object[] args) {
+                String name = proxyMethod.getName();
+                if ("getMethod".equals(name)) {
+                    return method;
+                }
+                if ("getPathInfo".equals(name)) {
+                    return pathInfo;
+                }
+                if ("getHeader".equals(name)) {
+                    return requestHeaders.get(((String) args[0]).toLowerCase());
+                }
+                if ("getDateHeader".equals(name)) {
+                    return -1L;
+                }
+                if ("getHeaders".equals(name)) {
+                    String value = requestHeaders.get(((String) args[0]).toLowerCase());
+                    return Collections.enumeration(value == null ?
+                            Collections.<String>emptyList() : Collections.singletonList(value));
+                }
+                return defaultValue(proxyMethod);
+            }
+        });
+    }
+
+    public static HttpServletRequest request(String method, String pathInfo) {
+        return request(method, pathInfo, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param outputStream stream returned by getOutputStream
+     * @param status receives the status of the response, at index 0.
+     *     The status set with sendError or setStatus, or 200.
+     */
+    public static HttpServletResponse response(final ServletOutputStream outputStream, final int[] status) {
+        status[0] = HttpServletResponse.SC_OK;
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method proxyMethod, Object[] args) {
+                String name = proxyMethod.getName();
+                if ("getOutputStream".equals(name)) {
+                    return outputStream;
+                }
+                if ("sendError".equals(name) || "setStatus".equals(name)) {
+                    status[0] = (Integer) args[0];
+                    return null;
+                }
+                return defaultValue(proxyMethod);
+            }
+        });
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == int.class) {
+            return 0;
+        }
+        if (returnType == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Servlet output stream which drops everything written to it.
+     */
+    public static class DiscardingServletOutputStream extends ServletOutputStream {
+        private long bytesWritten = 0;
+
+        @Override
+        public void write(int b) {
+            this.bytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.bytesWritten += len;
+        }
+
+        public long getBytesWritten() {
+            return this.bytesWritten;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            // Only used by async requests, which the stub requests don't support
+        }
+    }
+}
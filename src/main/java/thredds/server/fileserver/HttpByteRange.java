@@ -0,0 +1,218 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A byte range of a HTTP "Range" request header (RFC 7233).
+ * <p>
+ * Supported forms: <code>bytes=0-499</code>, <code>bytes=500-</code> (to the end of the file),
+ * <code>bytes=-500</code> (the last 500 bytes) and any comma separated list of them
+ * (answered with a <code>multipart/byteranges</code> response).
+ */
+public class HttpByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    // Requests with more ranges than this, once coalesced, are answered with the whole file
+    public static final int MAX_RANGES = 200;
+
+    private final long start;
+    private final long end;
+
+    /**
+     * @param start first byte of the range
+     * @param end last byte of the range, inclusive
+     */
+    public HttpByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return the last byte of the range, inclusive.
+     */
+    public long getEnd() {
+        return this.end;
+    }
+
+    public long getLength() {
+        return this.end - this.start + 1;
+    }
+
+    /**
+     * @return the value of the "Content-Range" header for this range.
+     */
+    public String getContentRange(long fileLength) {
+        return String.format("bytes %d-%d/%d", this.start, this.end, fileLength);
+    }
+
+    /**
+     * @return the header of this range in a <code>multipart/byteranges</code> response,
+     *     including the boundary delimiter which precedes it.
+     */
+    public String getMultipartHeader(String boundary, String contentType, long fileLength) {
+        StringBuilder header = new StringBuilder();
+        header.append("\r\n--").append(boundary).append("\r\n");
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        header.append("Content-Range: ").append(this.getContentRange(fileLength)).append("\r\n");
+        header.append("\r\n");
+        return header.toString();
+    }
+
+    /**
+     * @return the delimiter which ends a <code>multipart/byteranges</code> response.
+     */
+    public static String getMultipartTrailer(String boundary) {
+        return String.format("\r\n--%s--\r\n", boundary);
+    }
+
+    /**
+     * Parse a "Range" header.
+     *
+     * @param rangeHeader the header value, may be null
+     * @param fileLength the length of the requested file
+     * @return the ranges to send, in the requested order.
+     *     An empty list if none of the ranges can be satisfied (the response must be a 416).
+     *     null if the header must be ignored: no header, invalid header, other unit, or too many ranges
+     *     (the response must be the whole file).
+     */
+    public static List<HttpByteRange> parse(String rangeHeader, long fileLength) {
+        if (rangeHeader == null) {
+            return null;
+        }
+        String rangeStr = rangeHeader.trim();
+        if (!rangeStr.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        List<HttpByteRange> ranges = new ArrayList<HttpByteRange>();
+        boolean found = false;
+        for (String rangeSpec : rangeStr.substring(BYTES_UNIT.length()).split(",")) {
+            String spec = rangeSpec.trim();
+            // Empty list elements are allowed
+            if (spec.isEmpty()) {
+                continue;
+            }
+            found = true;
+
+            int dashIndex = spec.indexOf('-');
+            if (dashIndex < 0) {
+                return null;
+            }
+            String startStr = spec.substring(0, dashIndex).trim();
+            String endStr = spec.substring(dashIndex + 1).trim();
+
+            if (startStr.isEmpty()) {
+                // Suffix range: the last N bytes
+                long suffixLength = parseNumber(endStr);
+                if (suffixLength < 0) {
+                    return null;
+                }
+                if (suffixLength > 0 && fileLength > 0) {
+                    ranges.add(new HttpByteRange(Math.max(0, fileLength - suffixLength), fileLength - 1));
+                }
+            } else {
+                long start = parseNumber(startStr);
+                long end = endStr.isEmpty() ? Long.MAX_VALUE : parseNumber(endStr);
+                if (start < 0 || end < 0 || end < start) {
+                    return null;
+                }
+                if (start < fileLength) {
+                    ranges.add(new HttpByteRange(start, Math.min(end, fileLength - 1)));
+                }
+            }
+        }
+        if (!found) {
+            return null;
+        }
+
+        if (ranges.size() > 1) {
+            // Overlapping or contiguous ranges: send each byte once, in a single part
+            List<HttpByteRange> coalescedRanges = coalesce(ranges);
+            if (coalescedRanges.size() < ranges.size()) {
+                ranges = coalescedRanges;
+            }
+        }
+        if (ranges.size() > MAX_RANGES) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Sort the ranges, and merge the ranges which overlap or are next to each other.
+     */
+    protected static List<HttpByteRange> coalesce(List<HttpByteRange> ranges) {
+        List<HttpByteRange> sortedRanges = new ArrayList<HttpByteRange>(ranges);
+        Collections.sort(sortedRanges, new Comparator<HttpByteRange>() {
+            @Override
+            public int compare(HttpByteRange range1, HttpByteRange range2) {
+                return Long.compare(range1.start, range2.start);
+            }
+        });
+
+        List<HttpByteRange> coalescedRanges = new ArrayList<HttpByteRange>();
+        HttpByteRange current = null;
+        for (HttpByteRange range : sortedRanges) {
+            if (current != null && range.start <= current.end + 1) {
+                current = new HttpByteRange(current.start, Math.max(current.end, range.end));
+            } else {
+                if (current != null) {
+                    coalescedRanges.add(current);
+                }
+                current = range;
+            }
+        }
+        if (current != null) {
+            coalescedRanges.add(current);
+        }
+        return coalescedRanges;
+    }
+
+    /**
+     * @return the number, or -1 if the string is not a positive number.
+     */
+    private static long parseNumber(String numberStr) {
+        if (numberStr.isEmpty() || numberStr.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < numberStr.length(); i++) {
+            char digit = numberStr.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(numberStr);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d-%d", this.start, this.end);
+    }
+}
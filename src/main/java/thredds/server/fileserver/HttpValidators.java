@@ -0,0 +1,142 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTP conditional requests (RFC 7232), evaluated against the S3 ETag
+ * and last modified date of a file.
+ */
+public class HttpValidators {
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final String WEAK_PREFIX = "W/";
+
+    private HttpValidators() {}
+
+    /**
+     * @param s3ETag the ETag returned by S3, without quotes
+     * @return the value of the "ETag" header, or null if the file has no ETag.
+     */
+    public static String formatETag(String s3ETag) {
+        if (s3ETag == null || s3ETag.isEmpty()) {
+            return null;
+        }
+        if (s3ETag.startsWith("\"")) {
+            return s3ETag;
+        }
+        return String.format("\"%s\"", s3ETag);
+    }
+
+    /**
+     * Evaluate "If-None-Match" and "If-Modified-Since" for a GET or HEAD request.
+     * "If-Modified-Since" is ignored when the request has a "If-None-Match" header.
+     *
+     * @param ifNoneMatch value of the "If-None-Match" header, may be null
+     * @param ifModifiedSince value of the "If-Modified-Since" header, -1 if absent
+     * @param eTag the file ETag, as returned by {@link #formatETag(String)}, may be null
+     * @param lastModified the file last modified date, in milliseconds, -1 if unknown
+     * @return true if the response must be a 304 (Not Modified).
+     */
+    public static boolean isNotModified(String ifNoneMatch, long ifModifiedSince, String eTag, long lastModified) {
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, eTag, false);
+        }
+        if (ifModifiedSince >= 0 && lastModified > 0) {
+            // HTTP dates have a precision of a second
+            return lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate "If-Range": the "Range" header is only applied if the file
+     * the client already has a part of is still the same.
+     *
+     * @param ifRange value of the "If-Range" header, may be null
+     * @param eTag the file ETag, as returned by {@link #formatETag(String)}, may be null
+     * @param lastModified the file last modified date, in milliseconds, -1 if unknown
+     * @return true if the "Range" header must be applied,
+     *     false if the whole file must be sent.
+     */
+    public static boolean isRangeApplicable(String ifRange, String eTag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith(WEAK_PREFIX)) {
+            // Weak ETags never match: the client can't assemble parts of weakly equal files
+            return matches(validator, eTag, true);
+        }
+
+        long date = parseDate(validator);
+        // Only an exact date is a strong validator
+        return date >= 0 && lastModified > 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * @param headerValue "*", or a comma separated list of ETags
+     * @param eTag the file ETag, may be null
+     * @param strong true to use the strong comparison, false to use the weak comparison
+     * @return true if one of the ETags matches.
+     */
+    protected static boolean matches(String headerValue, String eTag, boolean strong) {
+        String value = headerValue.trim();
+        if ("*".equals(value)) {
+            // Any version of a file which exists
+            return true;
+        }
+        if (eTag == null) {
+            return false;
+        }
+
+        String opaqueETag = strong ? eTag : stripWeakPrefix(eTag);
+        for (String candidate : value.split(",")) {
+            String candidateETag = candidate.trim();
+            if (strong && candidateETag.startsWith(WEAK_PREFIX)) {
+                continue;
+            }
+            if (opaqueETag.equals(strong ? candidateETag : stripWeakPrefix(candidateETag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeakPrefix(String eTag) {
+        return eTag.startsWith(WEAK_PREFIX) ? eTag.substring(WEAK_PREFIX.length()) : eTag;
+    }
+
+    /**
+     * @return the date, in milliseconds, or -1 if the value is not a HTTP date.
+     */
+    protected static long parseDate(String value) {
+        // SimpleDateFormat is not thread safe
+        SimpleDateFormat dateFormat = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return dateFormat.parse(value).getTime();
+        } catch (ParseException ex) {
+            return -1;
+        }
+    }
+}
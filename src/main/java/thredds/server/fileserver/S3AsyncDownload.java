@@ -0,0 +1,485 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import org.apache.log4j.Logger;
+import uk.co.informaticslab.S3Block;
+import uk.co.informaticslab.S3BufferPool;
+import uk.co.informaticslab.S3IOExecutor;
+import uk.co.informaticslab.S3RandomAccessFile;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non blocking download of a S3 file (Servlet 3.1 async request processing).
+ * <p>
+ * The file is read in chunks by tasks of the S3 I/O pool (see {@link S3IOExecutor}), into pooled
+ * direct buffers, and the chunks are written to the response whenever the client can receive more data.
+ * A task reads a single chunk, and the next chunk is only fetched when a chunk buffer is free:
+ * no thread is held while waiting for the client, and a slow client pauses the S3 reads
+ * of its download (backpressure).
+ * <p>
+ * Small parts are read from the block cache. Parts large enough to bypass the cache
+ * (see {@link S3FileServerController#getPassThroughThreshold()}) are read from a single ranged GET request,
+ * kept open from one chunk to the next. When too many requests are open already
+ * (see {@link S3IOExecutor#tryAcquireStream(String)}), chunks are requested one by one until a request can be kept open.
+ * <p>
+ * The download owns the file: it's closed when the download completes or fails.
+ */
+public class S3AsyncDownload implements WriteListener, AsyncListener {
+    private static final Logger LOGGER = Logger.getLogger(S3AsyncDownload.class);
+
+    // Chunks held per download: one being sent while the next one is fetched
+    public static final int DEFAULT_MAX_CHUNKS = 2;
+
+    // The servlet output only takes arrays. Direct chunks are written through a per thread array.
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream outputStream;
+    private final S3RandomAccessFile randomAccessFile;
+    private final List<S3FileServerController.Part> parts;
+    private final Executor executor;
+    private final S3BufferPool bufferPool;
+    private final int chunkSize;
+    private final int maxChunks;
+    private final long passThroughThreshold;
+
+    // Position of the next fetch. Only used by the fetch task.
+    private int partIndex = 0;
+    private int headerPos = 0;
+    private long dataPos = 0;
+    // Ranged GET request of the current part, when it bypasses the block cache
+    private S3RandomAccessFile.RangeStream partStream = null;
+
+    // Chunks ready to be sent, and the chunk being sent
+    private final Deque<Chunk> filledChunks = new ArrayDeque<Chunk>();
+    private Chunk sendingChunk = null;
+    // Chunks taken from the buffer pool, and not released yet
+    private int acquiredChunks = 0;
+
+    private boolean fetching = false;
+    private boolean fetchDone = false;
+    private boolean writerWaiting = false;
+    private boolean finished = false;
+    private Throwable failure = null;
+
+    /**
+     * @param asyncContext the started async context of the request
+     * @param outputStream the response output stream, the write listener is not set yet
+     * @param randomAccessFile the file to send, closed when the download is over
+     * @param parts what to send, in order
+     */
+    public S3AsyncDownload(AsyncContext asyncContext, ServletOutputStream outputStream,
+            S3RandomAccessFile randomAccessFile, List<S3FileServerController.Part> parts) {
+        this(asyncContext, outputStream, randomAccessFile, parts, S3IOExecutor.getDefault().getExecutor(),
+                randomAccessFile.getBufferPool().getBufferSize(), DEFAULT_MAX_CHUNKS,
+                S3FileServerController.getPassThroughThreshold());
+    }
+
+    protected S3AsyncDownload(AsyncContext asyncContext, ServletOutputStream outputStream,
+            S3RandomAccessFile randomAccessFile, List<S3FileServerController.Part> parts,
+            Executor executor, int chunkSize, int maxChunks, long passThroughThreshold) {
+        this.asyncContext = asyncContext;
+        this.outputStream = outputStream;
+        this.randomAccessFile = randomAccessFile;
+        this.parts = parts;
+        this.executor = executor;
+        this.bufferPool = randomAccessFile.getBufferPool();
+        // Chunks must fit in the pooled buffers
+        this.chunkSize = Math.min(chunkSize, this.bufferPool.getBufferSize());
+        this.maxChunks = Math.max(1, maxChunks);
+        this.passThroughThreshold = passThroughThreshold;
+    }
+
+    /**
+     * Start fetching the file, and register the download as the write listener of the response.
+     * The container calls {@link #onWritePossible()} as soon as data can be written.
+     */
+    public void start() {
+        // The chunks are fetched ahead of time, and a fetch task must not wait for a read-ahead task
+        this.randomAccessFile.disableReadAhead();
+        this.asyncContext.addListener(this);
+        Chunk chunk;
+        synchronized (this) {
+            chunk = this.nextFetch();
+        }
+        this.submitFetch(chunk);
+        this.outputStream.setWriteListener(this);
+    }
+
+    /**
+     * Write the fetched chunks for as long as the client accepts data.
+     * Called by the container, or by the fetch task when the writer is waiting for data.
+     */
+    @Override
+    public void onWritePossible() throws IOException {
+        Chunk fetchChunk = null;
+        synchronized (this) {
+            while (!this.finished && this.outputStream.isReady()) {
+                if (this.sendingChunk == null) {
+                    this.sendingChunk = this.filledChunks.pollFirst();
+                    if (this.sendingChunk == null) {
+                        if (this.failure != null) {
+                            this.fail(this.failure);
+                        } else if (this.fetchDone && !this.fetching) {
+                            this.finish();
+                        } else {
+                            // Woken up by the fetch task
+                            this.writerWaiting = true;
+                        }
+                        break;
+                    }
+                }
+
+                // One write per isReady: the container buffers what the client can't take yet,
+                // and isReady returns false until that buffer is flushed
+                ByteBuffer buffer = this.sendingChunk.buffer;
+                byte[] transferBuffer = TRANSFER_BUFFER.get();
+                int length = Math.min(transferBuffer.length, buffer.remaining());
+                buffer.get(transferBuffer, 0, length);
+                this.outputStream.write(transferBuffer, 0, length);
+
+                if (!buffer.hasRemaining()) {
+                    this.releaseChunk(this.sendingChunk);
+                    this.sendingChunk = null;
+                    if (fetchChunk == null) {
+                        fetchChunk = this.nextFetch();
+                    }
+                }
+            }
+        }
+        this.submitFetch(fetchChunk);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        // The client is gone, or the connection failed
+        LOGGER.debug(String.format("Async download of %s aborted: %s", this.randomAccessFile.getLocation(), throwable.getMessage()));
+        synchronized (this) {
+            this.fail(null);
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        this.closeFile();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        LOGGER.warn(String.format("Async download of %s timed out", this.randomAccessFile.getLocation()));
+        synchronized (this) {
+            this.fail(null);
+        }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        this.onError(event.getThrowable() == null ? new IOException("Async request error") : event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Nothing to do
+    }
+
+    public synchronized boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Reserve a chunk for the next fetch, if a fetch can start:
+     * no fetch running, something left to fetch, and a chunk available.
+     * Must be called while holding the lock. The fetch is submitted with
+     * {@link #submitFetch(Chunk)}, outside of the lock.
+     *
+     * @return the chunk to fill, or null if no fetch must start.
+     */
+    private Chunk nextFetch() {
+        if (this.fetching || this.fetchDone || this.finished) {
+            return null;
+        }
+        if (this.acquiredChunks >= this.maxChunks) {
+            // Backpressure: wait for the client to take a chunk
+            return null;
+        }
+        this.acquiredChunks++;
+        this.fetching = true;
+        return new Chunk(this.bufferPool.acquire(this.chunkSize));
+    }
+
+    /**
+     * Run a fetch task on the S3 I/O pool. When the pool is saturated, the fetch
+     * is run by this thread, which slows down the downloads instead of queuing more work.
+     */
+    private void submitFetch(final Chunk chunk) {
+        if (chunk == null) {
+            return;
+        }
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    S3AsyncDownload.this.fetch(chunk);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            synchronized (this) {
+                this.fetching = false;
+                this.releaseChunk(chunk);
+                this.failure = ex;
+                this.fetchDone = true;
+            }
+            this.wakeUpWriter();
+        }
+    }
+
+    /**
+     * Fill a chunk, outside of the lock, then hand it to the writer.
+     */
+    private void fetch(Chunk chunk) {
+        Throwable fetchFailure = null;
+        boolean partsDone = false;
+        ByteBuffer buffer = chunk.buffer;
+        try {
+            partsDone = this.fill(buffer);
+            buffer.flip();
+        } catch (Throwable ex) {
+            fetchFailure = ex;
+        }
+
+        Chunk nextChunk = null;
+        synchronized (this) {
+            this.fetching = false;
+            if (this.finished) {
+                // Failed or aborted while this chunk was fetched
+                this.releaseChunk(chunk);
+                this.closePartStream();
+                return;
+            }
+
+            if (fetchFailure != null) {
+                this.releaseChunk(chunk);
+                this.closePartStream();
+                this.failure = fetchFailure;
+                this.fetchDone = true;
+            } else {
+                if (buffer.hasRemaining()) {
+                    this.filledChunks.addLast(chunk);
+                } else {
+                    this.releaseChunk(chunk);
+                }
+                this.fetchDone = partsDone;
+                nextChunk = this.nextFetch();
+            }
+        }
+
+        this.submitFetch(nextChunk);
+        this.wakeUpWriter();
+    }
+
+    private void wakeUpWriter() {
+        boolean writerWaiting;
+        synchronized (this) {
+            writerWaiting = this.writerWaiting;
+            this.writerWaiting = false;
+        }
+
+        if (writerWaiting) {
+            try {
+                this.onWritePossible();
+            } catch (Throwable ex) {
+                this.onError(ex);
+            }
+        }
+    }
+
+    /**
+     * Fill a chunk with the next bytes of the response: part headers, and file data.
+     *
+     * @return true if every part has been fetched.
+     */
+    private boolean fill(ByteBuffer chunk) throws IOException {
+        ChunkChannel channel = new ChunkChannel(chunk);
+        while (chunk.hasRemaining() && this.partIndex < this.parts.size()) {
+            S3FileServerController.Part part = this.parts.get(this.partIndex);
+
+            byte[] header = part.getHeader();
+            if (header != null && this.headerPos < header.length) {
+                int length = Math.min(chunk.remaining(), header.length - this.headerPos);
+                chunk.put(header, this.headerPos, length);
+                this.headerPos += length;
+                continue;
+            }
+
+            long length = Math.min(chunk.remaining(), part.getLength() - this.dataPos);
+            if (length > 0) {
+                long start = part.getStart() + this.dataPos;
+                long bytes;
+                if (this.passThroughThreshold >= 0 && part.getLength() >= this.passThroughThreshold) {
+                    if (this.partStream == null) {
+                        this.partStream = this.randomAccessFile.openRange(start, part.getLength() - this.dataPos);
+                    }
+                    if (this.partStream != null) {
+                        bytes = Math.max(0, this.partStream.read(chunk));
+                    } else {
+                        // Too many requests kept open: get this chunk with a request of its own, try again for the next one
+                        bytes = this.randomAccessFile.streamToByteChannel(channel, start, length);
+                    }
+                } else {
+                    bytes = this.randomAccessFile.readToByteChannel(channel, start, length);
+                }
+                if (bytes < length) {
+                    throw new EOFException(String.format("Unexpected end of file %s: %d bytes read out of %d, from offset %d",
+                            this.randomAccessFile.getLocation(), bytes, length, start));
+                }
+                this.dataPos += length;
+            }
+
+            if (this.dataPos >= part.getLength()) {
+                this.closePartStream();
+                this.partIndex++;
+                this.headerPos = 0;
+                this.dataPos = 0;
+            }
+        }
+        return this.partIndex >= this.parts.size();
+    }
+
+    private void closePartStream() {
+        if (this.partStream != null) {
+            this.partStream.close();
+            this.partStream = null;
+        }
+    }
+
+    private void releaseChunk(Chunk chunk) {
+        chunk.block.release();
+        this.acquiredChunks--;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void finish() {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+
+        // The chunk being fetched, and the part stream, are released by the fetch task
+        if (this.sendingChunk != null) {
+            this.releaseChunk(this.sendingChunk);
+            this.sendingChunk = null;
+        }
+        while (!this.filledChunks.isEmpty()) {
+            this.releaseChunk(this.filledChunks.pollFirst());
+        }
+        if (!this.fetching) {
+            this.closePartStream();
+        }
+        this.asyncContext.complete();
+    }
+
+    /**
+     * Abort the download. The response is left incomplete:
+     * the client sees less data than the announced Content-Length.
+     * Must be called while holding the lock.
+     *
+     * @param cause the error to log, or null if it's already reported
+     */
+    private void fail(Throwable cause) {
+        if (this.finished) {
+            return;
+        }
+        if (cause != null) {
+            LOGGER.error(String.format("Error occurred while sending the file %s", this.randomAccessFile.getLocation()), cause);
+        }
+        this.finish();
+    }
+
+    private void closeFile() {
+        try {
+            this.randomAccessFile.close();
+        } catch (IOException ex) {
+            LOGGER.warn(String.format("Error occurred while closing the file %s", this.randomAccessFile.getLocation()), ex);
+        }
+    }
+
+    /**
+     * A pooled block, and the buffer used to fill it, then to send it.
+     */
+    private static class Chunk {
+        private final S3Block block;
+        private final ByteBuffer buffer;
+
+        public Chunk(S3Block block) {
+            this.block = block;
+            this.buffer = block.getBuffer();
+        }
+    }
+
+    /**
+     * Channel which writes into a chunk buffer.
+     */
+    private static class ChunkChannel implements WritableByteChannel {
+        private final ByteBuffer chunk;
+
+        public ChunkChannel(ByteBuffer chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            this.chunk.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
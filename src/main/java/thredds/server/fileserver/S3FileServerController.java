@@ -19,6 +19,8 @@
 package thredds.server.fileserver;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,19 +28,25 @@ import org.springframework.web.servlet.mvc.LastModified;
 import thredds.servlet.DatasetHandler;
 import thredds.servlet.Debug;
 import thredds.util.TdsPathUtils;
-import ucar.nc2.util.IO;
 import uk.co.informaticslab.Constants;
+import uk.co.informaticslab.S3BlockCache;
 import uk.co.informaticslab.S3DatasetSource;
+import uk.co.informaticslab.S3MetadataCache;
 import uk.co.informaticslab.S3RandomAccessFile;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * HTTP File Serving for S3 files
@@ -50,12 +58,26 @@ import java.util.Map;
 public class S3FileServerController implements LastModified {
     private static final Logger LOGGER = Logger.getLogger(S3FileServerController.class);
 
+    public static final long DEFAULT_PASS_THROUGH_THRESHOLD = 64L * Constants.MEGABYTE;
+
+    // Ranges this large, or larger, are streamed straight from S3 instead of going through the block cache
+    private static final long PASS_THROUGH_THRESHOLD =
+            Constants.getSystemProperty("fileServer.passThroughThreshold", DEFAULT_PASS_THROUGH_THRESHOLD);
+
+    // Send files with non blocking downloads, when the servlet container supports it
+    private static final boolean ASYNC_ENABLED =
+            Boolean.parseBoolean(Constants.getSystemProperty("fileServer.async", "true"));
+
     private final AmazonS3 s3Client = Constants.getS3Client();
 
-    private Map<String, byte[]> cache = new HashMap<String, byte[]>();
-    private LinkedList<String> index = new LinkedList<String>();
+    private final S3BlockCache cache = S3BlockCache.getDefault();
 
+    private final S3MetadataCache metadataCache = S3MetadataCache.getDefault();
 
+
+    /**
+     * Answered from the metadata cache, without opening the file.
+     */
     @Override
     public long getLastModified(HttpServletRequest request) {
         String reqPath = TdsPathUtils.extractPath(request, "s3FileServer/");
@@ -63,11 +85,18 @@ public class S3FileServerController implements LastModified {
             return -1;
         }
 
-        try (S3RandomAccessFile file = this.getS3RandomAccessFile(reqPath)) {
-            if (file != null) {
-                return file.getLastModified();
+        String s3Url = S3DatasetSource.createS3UrlFromPath(reqPath);
+        if (s3Url == null || s3Url.isEmpty()) {
+            return -1;
+        }
+
+        try {
+            AmazonS3URI s3Uri = new AmazonS3URI(s3Url);
+            ObjectMetadata metadata = this.metadataCache.getObjectMetadata(this.s3Client, s3Uri.getBucket(), s3Uri.getKey());
+            if (metadata != null && metadata.getLastModified() != null) {
+                return metadata.getLastModified().getTime();
             }
-        } catch(IOException ex) {
+        } catch(RuntimeException ex) {
             LOGGER.error(String.format("Error occurred while accessing the file %s", reqPath), ex);
         }
 
@@ -85,9 +114,21 @@ public class S3FileServerController implements LastModified {
             return;
         }
 
-        try (S3RandomAccessFile file = this.getS3RandomAccessFile(reqPath)) {
-            if (file != null) {
-                S3FileServerController.returnS3RandomAccessFile(request, response, file, null);
+        S3RandomAccessFile file = this.getS3RandomAccessFile(reqPath);
+        if (file == null) {
+            return;
+        }
+        boolean async = false;
+        try {
+            if (!file.exists()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("S3 file not found: %s", reqPath));
+                return;
+            }
+            async = S3FileServerController.returnS3RandomAccessFile(request, response, file, null, ASYNC_ENABLED);
+        } finally {
+            // An async download closes the file when it's done
+            if (!async) {
+                file.close();
             }
         }
     }
@@ -101,7 +142,7 @@ public class S3FileServerController implements LastModified {
         }
 
         try {
-            return new S3RandomAccessFile(this.index, this.cache, this.s3Client, s3Url);
+            return new S3RandomAccessFile(this.cache, this.metadataCache, this.s3Client, s3Url);
         } catch (Throwable ex) {
             LOGGER.error("Error occurred while initialising the S3RandomAccessFile", ex);
             throw ex;
@@ -110,7 +151,9 @@ public class S3FileServerController implements LastModified {
 
 
     /**
-     * Write a S3RandomAccessFile to the response stream. Handles Range requests.
+     * Write a S3RandomAccessFile to the response stream. Handles Range requests (RFC 7233),
+     * including suffix ranges and multiple ranges, sent as multipart/byteranges,
+     * and conditional requests (If-None-Match, If-Modified-Since and If-Range).
      * Inspired from
      *     thredds.servlet.ServletUtil.returnFile(HttpServletRequest req, HttpServletResponse res, File file, String contentType)
      *
@@ -121,6 +164,23 @@ public class S3FileServerController implements LastModified {
      * @throws IOException or error
      */
     public static void returnS3RandomAccessFile(HttpServletRequest request, HttpServletResponse response, S3RandomAccessFile randomAccessFile, String contentType) throws IOException {
+        S3FileServerController.returnS3RandomAccessFile(request, response, randomAccessFile, contentType, false);
+    }
+
+    /**
+     * Write a S3RandomAccessFile to the response stream, asynchronously if allowed
+     * and if the servlet container supports it (see {@link S3AsyncDownload}).
+     *
+     * @param request request
+     * @param response response
+     * @param randomAccessFile must exist
+     * @param contentType must not be null
+     * @param allowAsync true to send the file with a non blocking download
+     * @return true if the file is sent asynchronously. The download owns the file,
+     *     it must not be closed by the caller.
+     * @throws IOException or error
+     */
+    public static boolean returnS3RandomAccessFile(HttpServletRequest request, HttpServletResponse response, S3RandomAccessFile randomAccessFile, String contentType, boolean allowAsync) throws IOException {
         response.setContentType(contentType);
 
         String filePath = randomAccessFile.getLocation();
@@ -128,31 +188,63 @@ public class S3FileServerController implements LastModified {
 
         response.setHeader("Content-Disposition", String.format("attachment; filename=\"%s\"", filename));
 
-        // see if its a Range Request
-        boolean isRangeRequest = false;
-        long startPos = 0, endPos = Long.MAX_VALUE;
-        String rangeRequest = request.getHeader("Range");
-        if (rangeRequest != null) { // bytes=12-34 or bytes=12-
-            int pos = rangeRequest.indexOf("=");
-            if (pos > 0) {
-                int pos2 = rangeRequest.indexOf("-");
-                if (pos2 > 0) {
-                    String startString = rangeRequest.substring(pos + 1, pos2);
-                    String endString = rangeRequest.substring(pos2 + 1);
-                    startPos = Long.parseLong(startString);
-                    if (endString.length() > 0)
-                        endPos = Long.parseLong(endString) + 1;
-                    isRangeRequest = true;
+        long fileSize = randomAccessFile.length();
+
+        // indicate we allow Range Requests
+        response.addHeader("Accept-Ranges", "bytes");
+
+        // validators, used by clients and proxies to revalidate their copy of the file
+        String eTag = HttpValidators.formatETag(randomAccessFile.getETag());
+        long lastModified = randomAccessFile.getLastModified();
+        if (eTag != null) {
+            response.setHeader("ETag", eTag);
+        }
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+
+        if (HttpValidators.isNotModified(request.getHeader("If-None-Match"), getDateHeader(request, "If-Modified-Since"), eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        // see if its a Range Request: bytes=12-34, bytes=12-, bytes=-34 or a list of them
+        // If-Range: only send the ranges if the file didn't change, otherwise send the whole file
+        List<HttpByteRange> ranges = null;
+        if (HttpValidators.isRangeApplicable(request.getHeader("If-Range"), eTag, lastModified)) {
+            ranges = HttpByteRange.parse(request.getHeader("Range"), fileSize);
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            response.setHeader("Content-Range", String.format("bytes */%d", fileSize));
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return false;
+        }
+
+        // what to send: the whole file, a single range, or the parts of a multipart/byteranges response
+        List<Part> parts = new ArrayList<Part>();
+        if (ranges == null) {
+            parts.add(new Part(null, 0, fileSize));
+        } else {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            if (ranges.size() == 1) {
+                HttpByteRange range = ranges.get(0);
+                response.setHeader("Content-Range", range.getContentRange(fileSize));
+                parts.add(new Part(null, range.getStart(), range.getLength()));
+            } else {
+                String boundary = UUID.randomUUID().toString().replace("-", "");
+                response.setContentType(String.format("multipart/byteranges; boundary=%s", boundary));
+                for (HttpByteRange range : ranges) {
+                    byte[] partHeader = range.getMultipartHeader(boundary, contentType, fileSize).getBytes(StandardCharsets.US_ASCII);
+                    parts.add(new Part(partHeader, range.getStart(), range.getLength()));
                 }
+                parts.add(new Part(HttpByteRange.getMultipartTrailer(boundary).getBytes(StandardCharsets.US_ASCII), 0, 0));
             }
         }
 
         // set content length
-        long fileSize = randomAccessFile.length();
-        long contentLength = fileSize;
-        if (isRangeRequest) {
-            endPos = Math.min(endPos, fileSize);
-            contentLength = endPos - startPos;
+        long contentLength = 0;
+        for (Part part : parts) {
+            contentLength += part.getHeaderLength() + part.getLength();
         }
 
         // when compression is turned on, ContentLength has to be overridden
@@ -169,11 +261,17 @@ public class S3FileServerController implements LastModified {
                     filename, contentType, contentLength));
         }
 
-        // indicate we allow Range Requests
-        response.addHeader("Accept-Ranges", "bytes");
-
         if (request.getMethod().equals("HEAD")) {
-            return;
+            return false;
+        }
+
+        // Non blocking download: the request thread is released, the file is sent by S3AsyncDownload
+        if (allowAsync && contentLength > 0 && request.isAsyncSupported()) {
+            AsyncContext asyncContext = request.startAsync();
+            // Large downloads to slow clients can take hours. Dead connections are closed by the connector.
+            asyncContext.setTimeout(0);
+            new S3AsyncDownload(asyncContext, response.getOutputStream(), randomAccessFile, parts).start();
+            return true;
         }
 
         // @todo Split up this exception handling: those from file access vs those from dealing with response
@@ -182,7 +280,15 @@ public class S3FileServerController implements LastModified {
         try {
 
             try (ServletOutputStream outputStream = response.getOutputStream()) {
-                IO.copyRafB(randomAccessFile, startPos, contentLength, outputStream, new byte[60000]);
+                // Stream from the block cache, or straight from S3 for large ranges,
+                // without copying through the file read buffer
+                WritableByteChannel channel = Channels.newChannel(outputStream);
+                for (Part part : parts) {
+                    if (part.getHeader() != null) {
+                        outputStream.write(part.getHeader());
+                    }
+                    copyRange(randomAccessFile, channel, part.getStart(), part.getLength());
+                }
             }
 
             if (debugRequest) {
@@ -202,12 +308,12 @@ public class S3FileServerController implements LastModified {
             String eName = e.getClass().getName(); // dont want compile time dependency on ClientAbortException
             if (eName.equals("org.apache.catalina.connector.ClientAbortException")) {
                 LOGGER.debug(String.format("returnFile(): ClientAbortException while sending file: %s %s", filename, e.getMessage()));
-                return;
+                return false;
             }
 
             if (e.getMessage().startsWith("File transfer not complete")) { // coming from FileTransfer.transferTo()
                 LOGGER.debug(String.format("returnFile() %s", e.getMessage()));
-                return;
+                return false;
             }
 
             LOGGER.error(String.format("returnFile(): IOException (%s) sending file", e.getClass().getName()), e);
@@ -215,5 +321,78 @@ public class S3FileServerController implements LastModified {
                 response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("Problem sending file: %s", e.getMessage()));
             }
         }
+        return false;
+    }
+
+    /**
+     * @return the date, or -1 if the header is absent or invalid.
+     */
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+
+    private static void copyRange(S3RandomAccessFile randomAccessFile, WritableByteChannel channel, long start, long length) throws IOException {
+        long bytes = readRange(randomAccessFile, channel, start, length, length);
+        if (bytes < length) {
+            throw new EOFException(String.format("Unexpected end of file %s: %d bytes sent out of %d, from offset %d",
+                    randomAccessFile.getLocation(), bytes, length, start));
+        }
+    }
+
+    /**
+     * Write a range of the file to a channel: from the block cache,
+     * or straight from S3 if it's part of a large range.
+     *
+     * @param rangeLength length of the whole range, which decides if the block cache is bypassed
+     * @return actual number of bytes written
+     */
+    static long readRange(S3RandomAccessFile randomAccessFile, WritableByteChannel channel, long start, long length, long rangeLength) throws IOException {
+        if (PASS_THROUGH_THRESHOLD >= 0 && rangeLength >= PASS_THROUGH_THRESHOLD) {
+            return randomAccessFile.streamToByteChannel(channel, start, length);
+        }
+        return randomAccessFile.readToByteChannel(channel, start, length);
+    }
+
+    /**
+     * @return the length from which a range of a response is streamed straight from S3,
+     *     bypassing the block cache, or -1 if the block cache is always used.
+     */
+    static long getPassThroughThreshold() {
+        return PASS_THROUGH_THRESHOLD;
+    }
+
+    /**
+     * Part of a response: an optional header (multipart/byteranges), followed by a range of the file.
+     */
+    public static class Part {
+        private final byte[] header;
+        private final long start;
+        private final long length;
+
+        public Part(byte[] header, long start, long length) {
+            this.header = header;
+            this.start = start;
+            this.length = length;
+        }
+
+        public byte[] getHeader() {
+            return this.header;
+        }
+
+        public int getHeaderLength() {
+            return this.header == null ? 0 : this.header.length;
+        }
+
+        public long getStart() {
+            return this.start;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
     }
 }
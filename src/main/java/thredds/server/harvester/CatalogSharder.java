@@ -0,0 +1,213 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Split the files of a large directory into several catalogues.
+ * <p>
+ * THREDDS parses and keeps every catalogue in memory, and renders a catalogue page with all
+ * its datasets. When a directory has more files than the configured maximum, its catalogue
+ * only references smaller catalogues ("shards"), written next to it, which list the files.
+ * <p>
+ * With the date strategy, the files are grouped by year, then by month, found in their names
+ * (for example <code>gbr4_v2-daily-monthly-2010-09.nc</code>). Files without a date are grouped together.
+ * Groups which are still too large, and every directory with the fan-out strategy,
+ * are split into consecutive groups of files.
+ * Shards are nested until no catalogue lists more than the maximum number of entries.
+ */
+public class CatalogSharder {
+    public static final String SHARD_FILENAME_PREFIX = "catalog_";
+    public static final String SHARD_FILENAME_SUFFIX = ".xml";
+
+    private static final String UNDATED_KEY = "undated";
+    private static final String UNDATED_NAME = "other";
+
+    // A year from 1900 to 2099, optionally followed by a month: 2010, 2010-09, 2010_09, 201009
+    private static final Pattern DATE_PATTERN = Pattern.compile("(?<![0-9])((?:19|20)[0-9]{2})(?:[-_]?(0[1-9]|1[0-2]))?");
+
+    private enum Level {
+        YEAR, MONTH, FAN_OUT
+    }
+
+    private final S3HarvesterConfiguration.S3HarvesterShardingConfiguration config;
+    private final Level[] levels;
+
+    public CatalogSharder(S3HarvesterConfiguration.S3HarvesterShardingConfiguration config) {
+        this.config = config;
+        this.levels = config.getStrategy() == S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy.DATE ?
+                new Level[]{ Level.YEAR, Level.MONTH, Level.FAN_OUT } :
+                new Level[]{ Level.FAN_OUT };
+    }
+
+    public static boolean isShardFilename(String filename) {
+        return filename.startsWith(SHARD_FILENAME_PREFIX) && filename.endsWith(SHARD_FILENAME_SUFFIX);
+    }
+
+    /**
+     * @return true if the files of a directory need to be split into several catalogues.
+     */
+    public boolean needsSharding(int fileCount) {
+        return fileCount > this.config.getMaxEntries();
+    }
+
+    /**
+     * Split the files of a directory.
+     *
+     * @param files the files of the directory, sorted by name
+     * @return the directory catalogue: its shards, or its files if there are not too many.
+     */
+    public Shard shard(List<S3HarvesterController.S3File> files) {
+        Shard root = new Shard(null, null);
+        this.split(root, files, 0);
+        return root;
+    }
+
+    private void split(Shard shard, List<S3HarvesterController.S3File> files, int levelIndex) {
+        if (!this.needsSharding(files.size()) || levelIndex >= this.levels.length) {
+            shard.files = files;
+            return;
+        }
+
+        Level level = this.levels[levelIndex];
+        if (level == Level.FAN_OUT) {
+            this.fanOut(shard, files, levelIndex);
+            return;
+        }
+
+        Map<String, List<S3HarvesterController.S3File>> groups = new LinkedHashMap<String, List<S3HarvesterController.S3File>>();
+        List<S3HarvesterController.S3File> undatedFiles = new ArrayList<S3HarvesterController.S3File>();
+        for (S3HarvesterController.S3File file : files) {
+            String key = getDateKey(file.getFilename(), level);
+            if (key == null) {
+                undatedFiles.add(file);
+            } else {
+                List<S3HarvesterController.S3File> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<S3HarvesterController.S3File>();
+                    groups.put(key, group);
+                }
+                group.add(file);
+            }
+        }
+
+        // A single group doesn't help, try the next level
+        if (groups.size() + (undatedFiles.isEmpty() ? 0 : 1) <= 1) {
+            this.split(shard, files, levelIndex + 1);
+            return;
+        }
+
+        // File names are sorted, but the dates may not be in the same order (e.g. different prefixes)
+        List<String> keys = new ArrayList<String>(groups.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            Shard child = shard.addShard(key, shard.name == null ? key : shard.name + "-" + key);
+            this.split(child, groups.get(key), levelIndex + 1);
+        }
+        if (!undatedFiles.isEmpty()) {
+            Shard child = shard.addShard(UNDATED_KEY, shard.name == null ? UNDATED_NAME : shard.name + " " + UNDATED_NAME);
+            this.split(child, undatedFiles, levelIndex + 1);
+        }
+    }
+
+    /**
+     * Split the files into consecutive groups, as large as needed to have no more than the maximum number of groups.
+     */
+    private void fanOut(Shard shard, List<S3HarvesterController.S3File> files, int levelIndex) {
+        int maxEntries = this.config.getMaxEntries();
+        long groupSize = maxEntries;
+        while ((files.size() + groupSize - 1) / groupSize > maxEntries) {
+            groupSize *= maxEntries;
+        }
+
+        int index = 0;
+        for (int start = 0; start < files.size(); start += groupSize) {
+            List<S3HarvesterController.S3File> group = files.subList(start, (int) Math.min(files.size(), start + groupSize));
+            index++;
+            String name = String.format("%s .. %s", group.get(0).getFilename(), group.get(group.size() - 1).getFilename());
+            Shard child = shard.addShard("part" + index, name);
+            this.split(child, group, levelIndex);
+        }
+    }
+
+    /**
+     * @return the year, or the month, found in the file name, or null if the file name contains no date.
+     */
+    private static String getDateKey(String filename, Level level) {
+        Matcher matcher = DATE_PATTERN.matcher(filename);
+        if (!matcher.find()) {
+            return null;
+        }
+        return level == Level.YEAR ? matcher.group(1) : matcher.group(2);
+    }
+
+    /**
+     * A catalogue of a directory: the directory catalogue itself, or one of its shards.
+     * A shard lists either files, or other shards.
+     */
+    public static class Shard {
+        // Identifies the shard in the directory, null for the directory catalogue
+        private final String id;
+        private final String name;
+        private List<S3HarvesterController.S3File> files;
+        private final List<Shard> shards;
+
+        private Shard(String id, String name) {
+            this.id = id;
+            this.name = name;
+            this.files = null;
+            this.shards = new ArrayList<Shard>();
+        }
+
+        private Shard addShard(String key, String shardName) {
+            Shard shard = new Shard(this.id == null ? key : this.id + "_" + key, shardName);
+            this.shards.add(shard);
+            return shard;
+        }
+
+        /**
+         * @return the catalogue file name, "catalog_&lt;id&gt;.xml", or null for the directory catalogue.
+         */
+        public String getFilename() {
+            return this.id == null ? null : SHARD_FILENAME_PREFIX + this.id + SHARD_FILENAME_SUFFIX;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the files listed in the catalogue, or null if the catalogue lists shards.
+         */
+        public List<S3HarvesterController.S3File> getFiles() {
+            return this.files;
+        }
+
+        public List<Shard> getShards() {
+            return this.shards;
+        }
+    }
+}
@@ -19,71 +19,90 @@
 package thredds.server.harvester;
 
 import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapperBuilder;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 import freemarker.template.TemplateExceptionHandler;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 /**
- * Generate a single catalog.xml file using FreeMarker
+ * Generate catalog.xml files using FreeMarker
+ * <p>
+ * The template is loaded and compiled once, then shared by every catalogue of every harvest.
+ * A compiled FreeMarker template is thread safe, so catalogues can be generated in parallel.
+ * The datasets and catalogue references are given as iterables, which can be views over
+ * the harvested directory: they are rendered one at a time, straight into the catalog.xml file.
  */
 public class CatalogTemplate {
-    private Template template;
+    private static final String TEMPLATE_NAME = "catalog.ftl";
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private List<Dataset> datasets;
-    private List<CatalogRef> catalogRefs;
+    private static Template template = null;
 
-    public CatalogTemplate() throws IOException {
-        Configuration cfg = new Configuration(Configuration.VERSION_2_3_29);
+    private CatalogTemplate() {}
 
-        // This is used to do something similar to:
-        //   CatalogTemplate.class.getClassLoader().getResource("/templates");
-        cfg.setClassForTemplateLoading(CatalogTemplate.class, "/templates");
+    /**
+     * @return the compiled catalogue template, loaded on first use.
+     */
+    public static synchronized Template getTemplate() throws IOException {
+        if (template == null) {
+            Configuration cfg = new Configuration(Configuration.VERSION_2_3_29);
 
-        cfg.setDefaultEncoding("UTF-8");
-        cfg.setLocale(Locale.UK);
-        cfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+            // This is used to do something similar to:
+            //   CatalogTemplate.class.getClassLoader().getResource("/templates");
+            cfg.setClassForTemplateLoading(CatalogTemplate.class, "/templates");
 
-        this.template = cfg.getTemplate("catalog.ftl");
-        this.datasets = new ArrayList<Dataset>();
-        this.catalogRefs = new ArrayList<CatalogRef>();
-    }
+            cfg.setDefaultEncoding("UTF-8");
+            cfg.setLocale(Locale.UK);
+            cfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
 
-    public void addDataset(String name, String id, String urlPath, String metadataXmlStr) {
-        this.datasets.add(new Dataset(name, id, urlPath, metadataXmlStr));
-    }
+            // Let the template list the datasets without copying them into a list
+            DefaultObjectWrapperBuilder objectWrapperBuilder = new DefaultObjectWrapperBuilder(Configuration.VERSION_2_3_29);
+            objectWrapperBuilder.setIterableSupport(true);
+            cfg.setObjectWrapper(objectWrapperBuilder.build());
 
-    public void addCatalogRef(String name, String href) {
-        this.catalogRefs.add(new CatalogRef(name, href));
+            template = cfg.getTemplate(TEMPLATE_NAME);
+        }
+        return template;
     }
 
-    public void process(File catalogFile) throws IOException, TemplateException {
-        Map<String, Object> input = new HashMap<String, Object>();
-        input.put("datasets", this.datasets);
-        input.put("catalogRefs", this.catalogRefs);
-
-        // Debug - write to the console
-        //Writer consoleWriter = new OutputStreamWriter(System.out);
-        //this.template.process(input, consoleWriter);
+    /**
+     * Write a catalogue file. Each iterable is only iterated once.
+     */
+    public static void process(File catalogFile, Iterable<Dataset> datasets, Iterable<CatalogRef> catalogRefs)
+            throws IOException, TemplateException {
 
         File catalogDir = catalogFile.getParentFile();
         catalogDir.mkdirs();
 
         // Save into the file
-        try (Writer fileWriter = new FileWriter(catalogFile)) {
-            this.template.process(input, fileWriter);
+        try (Writer fileWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(catalogFile), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            process(fileWriter, datasets, catalogRefs);
         }
     }
 
+    public static void process(Writer writer, Iterable<Dataset> datasets, Iterable<CatalogRef> catalogRefs)
+            throws IOException, TemplateException {
+
+        Map<String, Object> input = new HashMap<String, Object>();
+        input.put("hasDatasets", datasets.iterator().hasNext());
+        input.put("datasets", datasets);
+        input.put("catalogRefs", catalogRefs);
+
+        getTemplate().process(input, writer);
+    }
+
     public static class Dataset {
         private String name;
         private String id;
@@ -0,0 +1,797 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import freemarker.template.TemplateException;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import uk.co.informaticslab.S3DatasetSource;
+
+import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The catalog.xml files generated by the harvester, in the catalogue directory.
+ * <p>
+ * The first harvest (or the first harvest after a configuration change) generates every
+ * catalogue in a temporary directory, then replaces the content of the catalogue directory.
+ * The following harvests compare the files found in the buckets with the snapshot of the
+ * previous harvest, and only rewrite the catalogues of the directories which gained or lost
+ * a file or a sub-directory. The catalogues of directories which no longer exist are deleted.
+ * <p>
+ * A catalogue is only replaced when its content changes, and a full generation
+ * only replaces the catalogue directory when the content hash of one of its files changes.
+ * The result tells if anything changed, so THREDDS is only reloaded when needed.
+ * <p>
+ * The catalogue of a directory doesn't depend on the catalogues of its sub-directories,
+ * so the catalogues to write are collected first, then written in parallel.
+ * <p>
+ * When sharding is configured, the files of large directories are split into several
+ * catalogues, written next to the directory catalogue (see {@link CatalogSharder}).
+ */
+public class S3HarvesterCatalogue {
+    private static final Logger LOGGER = Logger.getLogger(S3HarvesterCatalogue.class);
+
+    public static final String CATALOG_FILENAME = "catalog.xml";
+    public static final int DEFAULT_NB_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final File catalogueDirectory;
+    private final File snapshotFile;
+    private final S3HarvesterJob job;
+    private final int nbThreads;
+    private CatalogSharder sharder = null;
+
+    /**
+     * @param catalogueDirectory directory where the catalog.xml files are generated
+     * @param snapshotFile file where the snapshot of the last harvest is saved
+     */
+    public S3HarvesterCatalogue(File catalogueDirectory, File snapshotFile) {
+        this(catalogueDirectory, snapshotFile, null);
+    }
+
+    /**
+     * @param catalogueDirectory directory where the catalog.xml files are generated
+     * @param snapshotFile file where the snapshot of the last harvest is saved
+     * @param job receives the number of generated catalogues, or null
+     */
+    public S3HarvesterCatalogue(File catalogueDirectory, File snapshotFile, S3HarvesterJob job) {
+        this(catalogueDirectory, snapshotFile, job, DEFAULT_NB_THREADS);
+    }
+
+    /**
+     * @param catalogueDirectory directory where the catalog.xml files are generated
+     * @param snapshotFile file where the snapshot of the last harvest is saved
+     * @param job receives the number of generated catalogues, or null
+     * @param nbThreads maximum number of catalogues written at the same time
+     */
+    public S3HarvesterCatalogue(File catalogueDirectory, File snapshotFile, S3HarvesterJob job, int nbThreads) {
+        this.catalogueDirectory = catalogueDirectory;
+        this.snapshotFile = snapshotFile;
+        this.job = job;
+        this.nbThreads = Math.max(1, nbThreads);
+    }
+
+    /**
+     * @return the snapshot file used for a catalogue directory: a file next to it,
+     *     so it is not removed with the catalogues and not seen by THREDDS.
+     */
+    public static File getDefaultSnapshotFile(File catalogueDirectory) {
+        File absoluteDirectory = catalogueDirectory.getAbsoluteFile();
+        return new File(absoluteDirectory.getParentFile(), absoluteDirectory.getName() + ".snapshot");
+    }
+
+    /**
+     * @param shardingConfig how to split large directories, or null to write a single catalogue per directory
+     */
+    public void setSharding(S3HarvesterConfiguration.S3HarvesterShardingConfiguration shardingConfig) {
+        this.sharder = shardingConfig == null ? null : new CatalogSharder(shardingConfig);
+    }
+
+    public File getCatalogueDirectory() {
+        return this.catalogueDirectory;
+    }
+
+    public File getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+    /**
+     * Update the catalogues with the result of a harvest, then save the harvest snapshot.
+     *
+     * @param netCDFFilePathsByBucket the NetCDF files found, by bucket
+     * @param snapshot the snapshot of the files found, by bucket, with the current configuration fingerprint
+     * @param unavailableBuckets buckets which could not be harvested. Their catalogues are left as they are.
+     *     The catalogues of other buckets missing from the harvest are deleted.
+     * @return what was changed
+     */
+    public UpdateResult update(
+            Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> netCDFFilePathsByBucket,
+            S3HarvesterSnapshot snapshot,
+            Set<String> unavailableBuckets) throws IOException {
+
+        S3HarvesterSnapshot previousSnapshot = null;
+        try {
+            previousSnapshot = S3HarvesterSnapshot.load(this.snapshotFile);
+        } catch (Exception ex) {
+            LOGGER.warn(String.format("Exception occurred while loading the S3 harvester snapshot: %s. Every catalogue will be generated.", this.snapshotFile), ex);
+        }
+
+        UpdateResult result;
+        if (previousSnapshot == null || !this.catalogueDirectory.isDirectory()) {
+            LOGGER.info("No previous harvest found, generating every catalogue");
+            result = this.rebuild(netCDFFilePathsByBucket, snapshot, unavailableBuckets);
+        } else if (!previousSnapshot.getConfigFingerprint().equals(snapshot.getConfigFingerprint())) {
+            LOGGER.info("The S3 harvester configuration has changed, generating every catalogue");
+            result = this.rebuild(netCDFFilePathsByBucket, snapshot, unavailableBuckets);
+        } else {
+            result = this.update(netCDFFilePathsByBucket, snapshot, previousSnapshot, unavailableBuckets);
+        }
+
+        snapshot.save(this.snapshotFile);
+        return result;
+    }
+
+    /**
+     * Generate every catalogue in a temporary directory, then replace the content of the catalogue directory.
+     * The temporary directory prevents breaking the system if the generation fails, and takes care of
+     * the removed S3 files: some "catalog.xml" files may represent S3 directories that no longer exist.
+     * The current catalogues of the buckets which could not be harvested are copied to the temporary directory,
+     * so they are kept.
+     */
+    private UpdateResult rebuild(
+            Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> netCDFFilePathsByBucket,
+            S3HarvesterSnapshot snapshot,
+            Set<String> unavailableBuckets) throws IOException {
+
+        UpdateResult result = new UpdateResult(true);
+        Set<String> keptBuckets = new HashSet<String>();
+        if (unavailableBuckets != null) {
+            keptBuckets.addAll(unavailableBuckets);
+        }
+        File temporaryConfigDirectory = Files.createTempDirectory("s3harvester_").toFile();
+        try {
+            for (Map.Entry<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> bucketFiles : netCDFFilePathsByBucket.entrySet()) {
+                String bucket = bucketFiles.getKey();
+                try {
+                    S3HarvesterController.S3File netCDFFileTree = S3HarvesterController.parseFilePaths(bucket, bucketFiles.getValue());
+                    List<S3HarvesterController.S3File> directories = new ArrayList<S3HarvesterController.S3File>();
+                    collectDirectories(netCDFFileTree, directories);
+                    this.writeCatalogs(temporaryConfigDirectory, directories, result);
+                    result.addedFiles += bucketFiles.getValue().size();
+                } catch (Exception ex) {
+                    LOGGER.error(String.format("Exception occurred while harvesting the S3 bucket: %s", bucket), ex);
+                    // Not in the snapshot, so it will be generated again by the next harvest
+                    snapshot.removeBucket(bucket);
+                    keptBuckets.add(bucket);
+                }
+            }
+
+            for (String bucket : keptBuckets) {
+                File bucketDirectory = new File(this.catalogueDirectory, bucket);
+                File temporaryBucketDirectory = new File(temporaryConfigDirectory, bucket);
+                // Discard what was partially generated for the bucket
+                FileUtils.deleteDirectory(temporaryBucketDirectory);
+                if (bucketDirectory.isDirectory()) {
+                    LOGGER.warn(String.format("Keeping the previous catalogue of the S3 bucket: %s", bucket));
+                    FileUtils.copyDirectory(bucketDirectory, temporaryBucketDirectory);
+                }
+            }
+
+            // Compare the content of every file, to leave the catalogue directory alone if nothing changed
+            Map<String, String> generatedCatalogs = fingerprint(temporaryConfigDirectory);
+            Map<String, String> currentCatalogs = fingerprint(this.catalogueDirectory);
+            result.catalogsWritten = 0;
+            for (Map.Entry<String, String> generatedCatalog : generatedCatalogs.entrySet()) {
+                if (generatedCatalog.getValue().equals(currentCatalogs.get(generatedCatalog.getKey()))) {
+                    result.catalogsUnchanged++;
+                } else {
+                    result.catalogsWritten++;
+                }
+            }
+            for (String currentCatalog : currentCatalogs.keySet()) {
+                if (!generatedCatalogs.containsKey(currentCatalog)) {
+                    result.catalogsDeleted++;
+                }
+            }
+            if (!result.isChanged()) {
+                LOGGER.info(String.format("The generated catalogues are identical to the content of %s", this.catalogueDirectory));
+                return result;
+            }
+
+            // Try to empty current THREDDS catalogue configuration
+            // NOTE: If the operation fail, at least let the "Files.move" attempt to replace existing files.
+            LOGGER.info(String.format("Emptying current catalogue directory %s", this.catalogueDirectory));
+            try {
+                FileUtils.cleanDirectory(this.catalogueDirectory);
+            } catch (Exception ex) {
+                LOGGER.error(String.format("Exception occurred while emptying current catalogue directory: %s", this.catalogueDirectory), ex);
+            }
+
+            // Move the new catalogue configuration to where THREDDS expect it to be
+            LOGGER.info(String.format("Moving new catalogue directory content from %s to %s", temporaryConfigDirectory, this.catalogueDirectory));
+            File[] temporaryConfigDirectoryContent = temporaryConfigDirectory.listFiles();
+            if (temporaryConfigDirectoryContent != null && temporaryConfigDirectoryContent.length > 0) {
+                for (File temporaryConfigDirectoryFile : temporaryConfigDirectoryContent) {
+                    LOGGER.debug(String.format("Moving new catalogue file from %s to %s", temporaryConfigDirectoryFile, this.catalogueDirectory));
+                    FileUtils.moveToDirectory(temporaryConfigDirectoryFile, this.catalogueDirectory, true);
+                }
+            }
+        } finally {
+            // Clean-up - Delete temporary config directory.
+            try {
+                FileUtils.deleteDirectory(temporaryConfigDirectory);
+            } catch (Exception ex) {
+                LOGGER.error(String.format("Exception occurred while deleting temporary directory: %s", temporaryConfigDirectory), ex);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Update the catalogue directory in place, bucket by bucket.
+     */
+    private UpdateResult update(
+            Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> netCDFFilePathsByBucket,
+            S3HarvesterSnapshot snapshot,
+            S3HarvesterSnapshot previousSnapshot,
+            Set<String> unavailableBuckets) throws IOException {
+
+        UpdateResult result = new UpdateResult(false);
+
+        // Keep the catalogues of the buckets which could not be listed, and forget the others
+        for (String bucket : previousSnapshot.getBuckets()) {
+            if (snapshot.getBucketFiles(bucket) == null) {
+                if (unavailableBuckets != null && unavailableBuckets.contains(bucket)) {
+                    LOGGER.warn(String.format("Keeping the previous catalogue of the S3 bucket: %s", bucket));
+                    snapshot.putBucketFiles(bucket, previousSnapshot.getBucketFiles(bucket));
+                } else {
+                    LOGGER.info(String.format("Deleting the catalogue of the S3 bucket: %s", bucket));
+                    result.removedFiles += previousSnapshot.getBucketFiles(bucket).size();
+                    this.deleteDirectory(new File(this.catalogueDirectory, bucket), result);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> bucketFiles : netCDFFilePathsByBucket.entrySet()) {
+            String bucket = bucketFiles.getKey();
+            try {
+                this.updateBucket(bucket, bucketFiles.getValue(),
+                        previousSnapshot.getBucketFiles(bucket), snapshot.getBucketFiles(bucket), result);
+            } catch (Exception ex) {
+                LOGGER.error(String.format("Exception occurred while harvesting the S3 bucket: %s", bucket), ex);
+                // Not in the snapshot, so it will be generated again by the next harvest
+                snapshot.removeBucket(bucket);
+            }
+        }
+
+        return result;
+    }
+
+    private void updateBucket(
+            String bucket,
+            Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> netCDFFilePaths,
+            SortedMap<String, S3HarvesterSnapshot.FileEntry> previousFiles,
+            SortedMap<String, S3HarvesterSnapshot.FileEntry> currentFiles,
+            UpdateResult result) throws IOException, TemplateException, TransformerException {
+
+        S3HarvesterSnapshot.Diff diff = S3HarvesterSnapshot.diff(previousFiles, currentFiles);
+        result.addedFiles += diff.getAdded().size();
+        result.removedFiles += diff.getRemoved().size();
+        result.modifiedFiles += diff.getModified().size();
+
+        File bucketDirectory = new File(this.catalogueDirectory, bucket);
+        // The catalogue was deleted since the last harvest
+        boolean catalogueMissing = previousFiles != null && !previousFiles.isEmpty()
+                && !new File(bucketDirectory, CATALOG_FILENAME).isFile();
+
+        if (!diff.changesCatalogue() && !catalogueMissing) {
+            LOGGER.debug(String.format("No file added or removed in the S3 bucket: %s", bucket));
+            return;
+        }
+        LOGGER.info(String.format("S3 bucket %s: %d file(s) added, %d file(s) removed",
+                bucket, diff.getAdded().size(), diff.getRemoved().size()));
+
+        S3HarvesterController.S3File netCDFFileTree = S3HarvesterController.parseFilePaths(bucket, netCDFFilePaths);
+        List<S3HarvesterController.S3File> changedDirectories = new ArrayList<S3HarvesterController.S3File>();
+        if (previousFiles == null || catalogueMissing) {
+            // Nothing to compare with, generate the bucket again
+            this.deleteDirectory(bucketDirectory, result);
+            collectDirectories(netCDFFileTree, changedDirectories);
+        } else {
+            Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> previousFilePaths =
+                    new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+            for (String key : previousFiles.keySet()) {
+                previousFilePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(key, null));
+            }
+            S3HarvesterController.S3File previousFileTree = S3HarvesterController.parseFilePaths(bucket, previousFilePaths);
+
+            this.updateCatalogs(netCDFFileTree, previousFileTree, changedDirectories, result);
+        }
+        this.writeCatalogs(this.catalogueDirectory, changedDirectories, result);
+    }
+
+    /**
+     * Find the directories whose files or sub-directories have changed, and the same for their sub-directories.
+     * Delete the catalogues of the sub-directories which no longer exist.
+     *
+     * @param directory the directory, as found by this harvest
+     * @param previousDirectory the same directory, as found by the previous harvest, or null if it's new
+     * @param changedDirectories receives the directories whose catalogue must be written
+     */
+    private void updateCatalogs(S3HarvesterController.S3File directory, S3HarvesterController.S3File previousDirectory,
+            List<S3HarvesterController.S3File> changedDirectories, UpdateResult result) throws IOException {
+
+        boolean isDirectory = directory.isDirectory();
+        boolean wasDirectory = previousDirectory != null && previousDirectory.isDirectory();
+        if (!isDirectory) {
+            // Empty bucket
+            if (wasDirectory) {
+                this.deleteDirectory(new File(this.catalogueDirectory, directory.getPath()), result);
+            }
+            return;
+        }
+        if (!wasDirectory) {
+            collectDirectories(directory, changedDirectories);
+            return;
+        }
+
+        Map<String, S3HarvesterController.S3File> previousChildren = new HashMap<String, S3HarvesterController.S3File>();
+        for (S3HarvesterController.S3File previousChild : previousDirectory.listFiles()) {
+            previousChildren.put(previousChild.getFilename(), previousChild);
+        }
+
+        boolean changed = directory.listFiles().size() != previousChildren.size();
+        Set<String> childDirectoryNames = new HashSet<String>();
+        for (S3HarvesterController.S3File child : directory.listFiles()) {
+            S3HarvesterController.S3File previousChild = previousChildren.get(child.getFilename());
+            if (previousChild == null || previousChild.isDirectory() != child.isDirectory()) {
+                changed = true;
+            }
+            if (child.isDirectory()) {
+                childDirectoryNames.add(child.getFilename());
+                this.updateCatalogs(child, previousChild, changedDirectories, result);
+            }
+        }
+
+        for (S3HarvesterController.S3File previousChild : previousDirectory.listFiles()) {
+            if (previousChild.isDirectory() && !childDirectoryNames.contains(previousChild.getFilename())) {
+                this.deleteDirectory(new File(this.catalogueDirectory, previousChild.getPath()), result);
+            }
+        }
+
+        if (changed) {
+            changedDirectories.add(directory);
+        }
+    }
+
+    /**
+     * Add a directory and all its sub-directories to the list.
+     */
+    private static void collectDirectories(S3HarvesterController.S3File netCDFFile, List<S3HarvesterController.S3File> directories) {
+        if (netCDFFile == null || !netCDFFile.isDirectory()) {
+            return;
+        }
+
+        directories.add(netCDFFile);
+        for (S3HarvesterController.S3File child : netCDFFile.listFiles()) {
+            if (child.isDirectory()) {
+                collectDirectories(child, directories);
+            }
+        }
+    }
+
+    /**
+     * Write the catalogues of the directories, in parallel.
+     * If a catalogue can't be written, the catalogues which are not written yet are abandoned.
+     */
+    private void writeCatalogs(final File directory, List<S3HarvesterController.S3File> directories, UpdateResult result)
+            throws IOException, TemplateException {
+
+        if (directories.size() <= 1 || this.nbThreads <= 1) {
+            for (S3HarvesterController.S3File netCDFFile : directories) {
+                result.addCatalogs(this.writeCatalog(directory, netCDFFile));
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.nbThreads, directories.size()), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-harvester-catalogue-" + this.threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<UpdateResult>> futures = new ArrayList<Future<UpdateResult>>(directories.size());
+            for (final S3HarvesterController.S3File netCDFFile : directories) {
+                futures.add(executor.submit(new Callable<UpdateResult>() {
+                    @Override
+                    public UpdateResult call() throws Exception {
+                        return S3HarvesterCatalogue.this.writeCatalog(directory, netCDFFile);
+                    }
+                }));
+            }
+
+            for (Future<UpdateResult> future : futures) {
+                result.addCatalogs(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the catalogues");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof TemplateException) {
+                throw (TemplateException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Write the catalogue of a directory: its NetCDF files, and a reference to the catalogue of its sub-directories.
+     * If the directory has too many files, the files are listed in shards referenced by the directory catalogue.
+     * The shards which are no longer used are deleted.
+     *
+     * @return the number of catalogues written, unchanged and deleted.
+     */
+    private UpdateResult writeCatalog(File directory, S3HarvesterController.S3File netCDFFile) throws IOException, TemplateException {
+        UpdateResult result = new UpdateResult(false);
+        File catalogDir = new File(directory, netCDFFile.getPath());
+        File catalogFile = new File(catalogDir, CATALOG_FILENAME);
+        List<S3HarvesterController.S3File> children = netCDFFile.listFiles();
+
+        CatalogSharder.Shard rootShard = null;
+        if (this.sharder != null) {
+            List<S3HarvesterController.S3File> files = new ArrayList<S3HarvesterController.S3File>();
+            for (S3HarvesterController.S3File child : children) {
+                if (!child.isDirectory()) {
+                    files.add(child);
+                }
+            }
+            if (this.sharder.needsSharding(files.size())) {
+                rootShard = this.sharder.shard(files);
+            }
+        }
+
+        Set<String> shardFilenames = new HashSet<String>();
+        if (rootShard == null) {
+            this.writeCatalogFile(catalogFile, datasets(children), catalogRefs(children), result);
+        } else {
+            List<CatalogTemplate.CatalogRef> catalogRefs = new ArrayList<CatalogTemplate.CatalogRef>();
+            for (CatalogTemplate.CatalogRef catalogRef : catalogRefs(children)) {
+                catalogRefs.add(catalogRef);
+            }
+            for (CatalogSharder.Shard shard : rootShard.getShards()) {
+                catalogRefs.add(new CatalogTemplate.CatalogRef(shard.getName(), shard.getFilename()));
+            }
+            this.writeCatalogFile(catalogFile, Collections.<CatalogTemplate.Dataset>emptyList(), catalogRefs, result);
+            this.writeShards(catalogDir, rootShard, shardFilenames, result);
+        }
+
+        // Shards of a previous harvest
+        File[] catalogDirFiles = catalogDir.listFiles();
+        if (catalogDirFiles != null) {
+            for (File catalogDirFile : catalogDirFiles) {
+                String filename = catalogDirFile.getName();
+                if (catalogDirFile.isFile() && CatalogSharder.isShardFilename(filename) && !shardFilenames.contains(filename)) {
+                    LOGGER.debug(String.format("Deleting catalogue shard: %s", catalogDirFile));
+                    Files.delete(catalogDirFile.toPath());
+                    result.catalogsDeleted++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void writeShards(File catalogDir, CatalogSharder.Shard parentShard, Set<String> shardFilenames, UpdateResult result)
+            throws IOException, TemplateException {
+
+        for (CatalogSharder.Shard shard : parentShard.getShards()) {
+            shardFilenames.add(shard.getFilename());
+            File shardFile = new File(catalogDir, shard.getFilename());
+            if (shard.getFiles() != null) {
+                this.writeCatalogFile(shardFile, datasets(shard.getFiles()),
+                        Collections.<CatalogTemplate.CatalogRef>emptyList(), result);
+            } else {
+                List<CatalogTemplate.CatalogRef> catalogRefs = new ArrayList<CatalogTemplate.CatalogRef>();
+                for (CatalogSharder.Shard childShard : shard.getShards()) {
+                    catalogRefs.add(new CatalogTemplate.CatalogRef(childShard.getName(), childShard.getFilename()));
+                }
+                this.writeCatalogFile(shardFile, Collections.<CatalogTemplate.Dataset>emptyList(), catalogRefs, result);
+                this.writeShards(catalogDir, shard, shardFilenames, result);
+            }
+        }
+    }
+
+    /**
+     * Write a catalogue file.
+     * The catalogue is written next to its final location, then moved, so THREDDS never reads a partial catalogue.
+     * An existing catalogue with the same content is not replaced.
+     */
+    private void writeCatalogFile(File catalogFile,
+            Iterable<CatalogTemplate.Dataset> datasets, Iterable<CatalogTemplate.CatalogRef> catalogRefs,
+            UpdateResult result) throws IOException, TemplateException {
+
+        try {
+            File temporaryCatalogFile = new File(catalogFile.getParentFile(), catalogFile.getName() + ".tmp");
+            CatalogTemplate.process(temporaryCatalogFile, datasets, catalogRefs);
+            if (this.job != null) {
+                this.job.catalogGenerated();
+            }
+            if (catalogFile.isFile() && FileUtils.contentEquals(temporaryCatalogFile, catalogFile)) {
+                Files.delete(temporaryCatalogFile.toPath());
+                result.catalogsUnchanged++;
+                return;
+            }
+            try {
+                Files.move(temporaryCatalogFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporaryCatalogFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            result.catalogsWritten++;
+        } catch(Exception ex) {
+            LOGGER.error(String.format("Error occurred while generating the catalogue: %s", catalogFile), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * @return a view of the NetCDF files of a list of files, as catalogue datasets.
+     *     The datasets are created while the catalogue is written.
+     */
+    private static Iterable<CatalogTemplate.Dataset> datasets(final List<S3HarvesterController.S3File> files) {
+        return new Iterable<CatalogTemplate.Dataset>() {
+            @Override
+            public Iterator<CatalogTemplate.Dataset> iterator() {
+                return new ChildIterator<CatalogTemplate.Dataset>(files, false) {
+                    @Override
+                    protected CatalogTemplate.Dataset toEntry(S3HarvesterController.S3File child) {
+                        return new CatalogTemplate.Dataset(
+                                child.getFilename(),
+                                child.getFilename(),
+                                S3DatasetSource.S3_PREFIX + child.getPath(),
+                                child.getMetadataXmlStr());
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return a view of the directories of a list of files, as references to their catalogue.
+     */
+    private static Iterable<CatalogTemplate.CatalogRef> catalogRefs(final List<S3HarvesterController.S3File> files) {
+        return new Iterable<CatalogTemplate.CatalogRef>() {
+            @Override
+            public Iterator<CatalogTemplate.CatalogRef> iterator() {
+                return new ChildIterator<CatalogTemplate.CatalogRef>(files, true) {
+                    @Override
+                    protected CatalogTemplate.CatalogRef toEntry(S3HarvesterController.S3File child) {
+                        String directoryName = child.getFilename();
+                        return new CatalogTemplate.CatalogRef(
+                                directoryName,
+                                directoryName + "/" + CATALOG_FILENAME);
+                    }
+                };
+            }
+        };
+    }
+
+    private void deleteDirectory(File directory, UpdateResult result) throws IOException {
+        if (directory.exists()) {
+            LOGGER.debug(String.format("Deleting catalogue directory: %s", directory));
+            result.catalogsDeleted += FileUtils.listFiles(directory, null, true).size();
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Hash the content of every file of a directory.
+     *
+     * @return the SHA-256 of every file, by path relative to the directory.
+     */
+    protected static Map<String, String> fingerprint(File directory) throws IOException {
+        Map<String, String> fingerprint = new HashMap<String, String>();
+        if (!directory.isDirectory()) {
+            return fingerprint;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(ex);
+        }
+
+        Path directoryPath = directory.toPath();
+        for (File file : FileUtils.listFiles(directory, null, true)) {
+            byte[] hash = digest.digest(Files.readAllBytes(file.toPath()));
+            fingerprint.put(directoryPath.relativize(file.toPath()).toString(), String.format("%064x", new BigInteger(1, hash)));
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Iterate over the files, or the sub-directories, of a directory.
+     */
+    private abstract static class ChildIterator<T> implements Iterator<T> {
+        private final Iterator<S3HarvesterController.S3File> children;
+        private final boolean directories;
+        private S3HarvesterController.S3File next;
+
+        public ChildIterator(List<S3HarvesterController.S3File> children, boolean directories) {
+            this.children = children.iterator();
+            this.directories = directories;
+            this.next = this.findNext();
+        }
+
+        protected abstract T toEntry(S3HarvesterController.S3File child);
+
+        private S3HarvesterController.S3File findNext() {
+            while (this.children.hasNext()) {
+                S3HarvesterController.S3File child = this.children.next();
+                if (child.isDirectory() == this.directories) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public T next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            S3HarvesterController.S3File child = this.next;
+            this.next = this.findNext();
+            return this.toEntry(child);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * What a harvest has changed in the catalogue directory.
+     */
+    public static class UpdateResult {
+        private final boolean rebuilt;
+        private int addedFiles = 0;
+        private int removedFiles = 0;
+        private int modifiedFiles = 0;
+        private int catalogsWritten = 0;
+        private int catalogsUnchanged = 0;
+        private int catalogsDeleted = 0;
+
+        public UpdateResult(boolean rebuilt) {
+            this.rebuilt = rebuilt;
+        }
+
+        /**
+         * @return true if every catalogue was generated again, false if the catalogue directory was updated in place.
+         */
+        public boolean isRebuilt() {
+            return this.rebuilt;
+        }
+
+        public int getAddedFiles() {
+            return this.addedFiles;
+        }
+
+        public int getRemovedFiles() {
+            return this.removedFiles;
+        }
+
+        public int getModifiedFiles() {
+            return this.modifiedFiles;
+        }
+
+        /**
+         * @return the number of catalogues created or replaced with a different content.
+         */
+        public int getCatalogsWritten() {
+            return this.catalogsWritten;
+        }
+
+        /**
+         * @return the number of catalogues generated again, with the same content as the existing catalogue.
+         */
+        public int getCatalogsUnchanged() {
+            return this.catalogsUnchanged;
+        }
+
+        public int getCatalogsDeleted() {
+            return this.catalogsDeleted;
+        }
+
+        private void addCatalogs(UpdateResult other) {
+            this.catalogsWritten += other.catalogsWritten;
+            this.catalogsUnchanged += other.catalogsUnchanged;
+            this.catalogsDeleted += other.catalogsDeleted;
+        }
+
+        /**
+         * @return true if a catalogue was created, modified or deleted. THREDDS needs to reload its catalogue.
+         */
+        public boolean isChanged() {
+            return this.catalogsWritten > 0 || this.catalogsDeleted > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d file(s) added, %d removed, %d modified; catalogue %s: %d catalogue(s) written, %d unchanged, %d deleted",
+                    this.rebuilt ? "Full harvest" : "Incremental harvest",
+                    this.addedFiles, this.removedFiles, this.modifiedFiles,
+                    this.isChanged() ? "changed" : "unchanged",
+                    this.catalogsWritten, this.catalogsUnchanged, this.catalogsDeleted);
+        }
+    }
+}
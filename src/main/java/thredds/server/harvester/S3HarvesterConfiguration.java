@@ -37,6 +37,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,6 +54,12 @@ public class S3HarvesterConfiguration {
 
     private List<S3HarvesterBucketConfiguration> bucketConfigs;
 
+    // Built-in harvest scheduling, null if the harvest is only triggered by requests
+    private S3HarvesterScheduleConfiguration scheduleConfig;
+
+    // Splitting of large directories into several catalogues, null if every directory has a single catalogue
+    private S3HarvesterShardingConfiguration shardingConfig;
+
     public S3HarvesterConfiguration(File configFile) {
         this.configFile = configFile;
     }
@@ -57,6 +67,8 @@ public class S3HarvesterConfiguration {
     public void init() throws Exception {
         this.bucketConfigs = new ArrayList<S3HarvesterBucketConfiguration>();
         this.s3CatalogueDirectory = DEFAULT_S3_CATALOGUE_DIRECTORY;
+        this.scheduleConfig = null;
+        this.shardingConfig = null;
 
         if (this.configFile == null) {
             throw new Exception("Invalid S3Harvester configuration file. The configuration file is null.");
@@ -80,6 +92,8 @@ public class S3HarvesterConfiguration {
             Document doc = parser.parse(configFileInputStream);
 
             this.parseCatalogueDirectory(doc);
+            this.parseSchedule(doc);
+            this.parseSharding(doc);
             this.parseBuckets(doc);
         }
     }
@@ -101,6 +115,90 @@ public class S3HarvesterConfiguration {
         }
     }
 
+    private void parseSchedule(Document doc) throws Exception {
+        NodeList scheduleNodes = doc.getElementsByTagName("schedule");
+        int nbScheduleNodes = scheduleNodes == null ? 0 : scheduleNodes.getLength();
+        if (scheduleNodes != null && nbScheduleNodes > 0) {
+            if (nbScheduleNodes > 1) {
+                throw new Exception(String.format("Invalid S3Harvester configuration file: %s. More than one \"s3HarvesterConfig.schedule\" element found.", this.configFile));
+            }
+
+            Element scheduleElement = (Element)scheduleNodes.item(0);
+            String eventFeed = scheduleElement.getAttribute("eventFeed");
+            this.scheduleConfig = new S3HarvesterScheduleConfiguration(
+                    parseInterval(scheduleElement, "checkInterval", this.configFile),
+                    parseInterval(scheduleElement, "fullHarvestInterval", this.configFile),
+                    eventFeed == null || eventFeed.isEmpty() ? null : new File(eventFeed));
+        }
+    }
+
+    private void parseSharding(Document doc) throws Exception {
+        NodeList shardingNodes = doc.getElementsByTagName("sharding");
+        int nbShardingNodes = shardingNodes == null ? 0 : shardingNodes.getLength();
+        if (shardingNodes != null && nbShardingNodes > 0) {
+            if (nbShardingNodes > 1) {
+                throw new Exception(String.format("Invalid S3Harvester configuration file: %s. More than one \"s3HarvesterConfig.sharding\" element found.", this.configFile));
+            }
+
+            Element shardingElement = (Element)shardingNodes.item(0);
+
+            S3HarvesterShardingConfiguration.Strategy strategy = S3HarvesterShardingConfiguration.Strategy.DATE;
+            String strategyStr = shardingElement.getAttribute("strategy");
+            if (strategyStr != null && !strategyStr.isEmpty()) {
+                if ("date".equals(strategyStr)) {
+                    strategy = S3HarvesterShardingConfiguration.Strategy.DATE;
+                } else if ("fanOut".equals(strategyStr)) {
+                    strategy = S3HarvesterShardingConfiguration.Strategy.FAN_OUT;
+                } else {
+                    throw new Exception(String.format("Invalid S3Harvester configuration file: %s. Invalid \"strategy\" attribute value for element \"sharding\": %s. Expected \"date\" or \"fanOut\".",
+                            this.configFile, strategyStr));
+                }
+            }
+
+            int maxEntries = S3HarvesterShardingConfiguration.DEFAULT_MAX_ENTRIES;
+            String maxEntriesStr = shardingElement.getAttribute("maxEntries");
+            if (maxEntriesStr != null && !maxEntriesStr.isEmpty()) {
+                try {
+                    maxEntries = Integer.parseInt(maxEntriesStr.trim());
+                } catch (NumberFormatException ex) {
+                    throw new Exception(String.format("Invalid S3Harvester configuration file: %s. Invalid \"maxEntries\" attribute value for element \"sharding\": %s",
+                            this.configFile, maxEntriesStr), ex);
+                }
+                if (maxEntries < 2) {
+                    throw new Exception(String.format("Invalid S3Harvester configuration file: %s. The \"maxEntries\" attribute of element \"sharding\" must be at least 2: %s",
+                            this.configFile, maxEntriesStr));
+                }
+            }
+
+            this.shardingConfig = new S3HarvesterShardingConfiguration(strategy, maxEntries);
+        }
+    }
+
+    /**
+     * Parse an interval attribute, in minutes.
+     *
+     * @return the interval in milliseconds, or null if the attribute is not set.
+     */
+    private static Long parseInterval(Element element, String attributeName, File configFile) throws Exception {
+        String intervalStr = element.getAttribute(attributeName);
+        if (intervalStr == null || intervalStr.isEmpty()) {
+            return null;
+        }
+
+        long minutes;
+        try {
+            minutes = Long.parseLong(intervalStr.trim());
+        } catch (NumberFormatException ex) {
+            throw new Exception(String.format("Invalid S3Harvester configuration file: %s. Invalid \"%s\" attribute value for element \"%s\": %s",
+                    configFile, attributeName, element.getTagName(), intervalStr), ex);
+        }
+        if (minutes <= 0) {
+            throw new Exception(String.format("Invalid S3Harvester configuration file: %s. The \"%s\" attribute of element \"%s\" must be a positive number of minutes: %s",
+                    configFile, attributeName, element.getTagName(), intervalStr));
+        }
+        return minutes * 60 * 1000L;
+    }
+
     private void parseBuckets(Document doc) throws Exception {
         NodeList bucketsNodes = doc.getElementsByTagName("buckets");
         int nbBucketsNodes = bucketsNodes == null ? 0 : bucketsNodes.getLength();
@@ -130,6 +228,7 @@ public class S3HarvesterConfiguration {
         String bucketName = nameNode.getTextContent();
 
         S3HarvesterBucketConfiguration bucketConfig = new S3HarvesterBucketConfiguration(bucketName, this.configFile);
+        bucketConfig.checkInterval = parseInterval(bucketElement, "checkInterval", this.configFile);
 
         NodeList bucketPaths = bucketElement.getElementsByTagName("paths");
         int nbBucketPaths = bucketPaths == null ? 0 : bucketPaths.getLength();
@@ -171,10 +270,74 @@ public class S3HarvesterConfiguration {
         return this.bucketConfigs;
     }
 
+    /**
+     * @return the harvest schedule, or null if the harvest is only triggered by requests.
+     */
+    public S3HarvesterScheduleConfiguration getScheduleConfiguration() {
+        return this.scheduleConfig;
+    }
+
+    /**
+     * @return how large directories are split, or null if every directory has a single catalogue.
+     */
+    public S3HarvesterShardingConfiguration getShardingConfiguration() {
+        return this.shardingConfig;
+    }
+
+    /**
+     * Hash of the configuration elements used to generate the catalogues:
+     * catalogue directory, sharding, buckets, paths and metadata.
+     * Catalogues generated with a different fingerprint need to be generated again.
+     */
+    public String getFingerprint() throws TransformerException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(ex);
+        }
+
+        updateDigest(digest, this.s3CatalogueDirectory == null ? null : this.s3CatalogueDirectory.getAbsolutePath());
+        if (this.shardingConfig != null) {
+            updateDigest(digest, "sharding");
+            updateDigest(digest, this.shardingConfig.getStrategy().name());
+            updateDigest(digest, Integer.toString(this.shardingConfig.getMaxEntries()));
+        }
+        if (this.bucketConfigs != null) {
+            for (S3HarvesterBucketConfiguration bucketConfig : this.bucketConfigs) {
+                updateDigest(digest, "bucket");
+                updateDigest(digest, bucketConfig.getBucket());
+                if (bucketConfig.getPaths() != null) {
+                    for (S3HarvesterPathConfiguration pathConfig : bucketConfig.getPaths()) {
+                        updateDigest(digest, "path");
+                        updateDigest(digest, pathConfig.getPath());
+                        updateDigest(digest, pathConfig.getMetadataStr());
+                    }
+                }
+            }
+        }
+
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    private static void updateDigest(MessageDigest digest, String value) {
+        if (value == null) {
+            digest.update((byte) 0);
+        } else {
+            digest.update((byte) 1);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            digest.update(new byte[] {
+                    (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length });
+            digest.update(bytes);
+        }
+    }
+
     public static class S3HarvesterBucketConfiguration {
         private File configFile;
         private String bucket;
         private List<S3HarvesterPathConfiguration> paths;
+        private Long checkInterval;
 
         public S3HarvesterBucketConfiguration(String bucket, File configFile) {
             this.bucket = bucket;
@@ -195,6 +358,76 @@ public class S3HarvesterConfiguration {
         public List<S3HarvesterPathConfiguration> getPaths() {
             return this.paths;
         }
+
+        /**
+         * @return the time, in milliseconds, between 2 checks for new files in the bucket, or null if not set.
+         */
+        public Long getCheckInterval() {
+            return this.checkInterval;
+        }
+    }
+
+    public static class S3HarvesterShardingConfiguration {
+        public static final int DEFAULT_MAX_ENTRIES = 500;
+
+        public enum Strategy {
+            // By year, then by month, found in the file names
+            DATE,
+            // By consecutive groups of files
+            FAN_OUT
+        }
+
+        private Strategy strategy;
+        private int maxEntries;
+
+        public S3HarvesterShardingConfiguration(Strategy strategy, int maxEntries) {
+            this.strategy = strategy;
+            this.maxEntries = maxEntries;
+        }
+
+        public Strategy getStrategy() {
+            return this.strategy;
+        }
+
+        /**
+         * @return the maximum number of files listed in a catalogue, before the files are split into several catalogues.
+         */
+        public int getMaxEntries() {
+            return this.maxEntries;
+        }
+    }
+
+    public static class S3HarvesterScheduleConfiguration {
+        private Long checkInterval;
+        private Long fullHarvestInterval;
+        private File eventFeed;
+
+        public S3HarvesterScheduleConfiguration(Long checkInterval, Long fullHarvestInterval, File eventFeed) {
+            this.checkInterval = checkInterval;
+            this.fullHarvestInterval = fullHarvestInterval;
+            this.eventFeed = eventFeed;
+        }
+
+        /**
+         * @return the default time, in milliseconds, between 2 checks for new files, or null if not set.
+         */
+        public Long getCheckInterval() {
+            return this.checkInterval;
+        }
+
+        /**
+         * @return the maximum time, in milliseconds, between 2 harvests, or null if not set.
+         */
+        public Long getFullHarvestInterval() {
+            return this.fullHarvestInterval;
+        }
+
+        /**
+         * @return the local file where S3 events are appended, or null if not set.
+         */
+        public File getEventFeed() {
+            return this.eventFeed;
+        }
     }
 
     public static class S3HarvesterPathConfiguration implements Comparable<S3HarvesterPathConfiguration> {
@@ -204,12 +437,14 @@ public class S3HarvesterConfiguration {
         private String bucket;
         private String path;
         private Element metadata;
+        private Long checkInterval;
 
         public S3HarvesterPathConfiguration(Element pathEl, String bucket, File configFile) throws Exception {
             this.bucket = bucket;
             this.configFile = configFile;
 
             this.path = pathEl.getAttribute("value");
+            this.checkInterval = parseInterval(pathEl, "checkInterval", configFile);
 
             NodeList metadataNodes = pathEl.getElementsByTagName("metadata");
             if (metadataNodes != null) {
@@ -238,6 +473,13 @@ public class S3HarvesterConfiguration {
             return this.metadata;
         }
 
+        /**
+         * @return the time, in milliseconds, between 2 checks for new files in the path, or null if not set.
+         */
+        public Long getCheckInterval() {
+            return this.checkInterval;
+        }
+
         public String getMetadataStr() throws TransformerException {
             if (this.metadata == null) {
                 return null;
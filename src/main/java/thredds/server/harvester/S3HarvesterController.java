@@ -19,11 +19,6 @@
 package thredds.server.harvester;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ListObjectsV2Request;
-import com.amazonaws.services.s3.model.ListObjectsV2Result;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import freemarker.template.TemplateException;
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
@@ -31,9 +26,12 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.support.AbstractApplicationContext;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.w3c.dom.Element;
 import thredds.servlet.DataRootHandler;
 import uk.co.informaticslab.Constants;
-import uk.co.informaticslab.S3DatasetSource;
+import uk.co.informaticslab.S3MetadataCache;
+import uk.co.informaticslab.S3IOExecutor;
+import uk.co.informaticslab.S3Metrics;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -41,13 +39,15 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.TransformerException;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.SortedSet;
 
 /**
  * Generate THREDDS catalog.xml configuration for given S3 buckets
@@ -62,12 +62,38 @@ public class S3HarvesterController implements ApplicationContextAware {
     private static final File CONFIG_ROOT_DIR = new File("/usr/local/tomcat/content/thredds");
     private static final File S3_HARVESTER_CONFIG_FILE = new File(CONFIG_ROOT_DIR, "s3harvester.xml");
 
+    // Shared by the controller instances, see S3HarvesterJobManager
+    private static final Object HARVEST_LOCK = new Object();
+
     private ApplicationContext applicationContext;
 
     private final AmazonS3 s3Client = Constants.getS3Client();
 
+    private final S3MetadataCache metadataCache = S3MetadataCache.getDefault();
+
+    private final S3Metrics metrics = S3Metrics.getDefault();
+    private final S3IOExecutor ioExecutor = S3IOExecutor.getDefault();
+
+    private final S3HarvesterJobManager jobManager = S3HarvesterJobManager.getDefault();
+
+    // Maximum number of S3 listing requests sent at the same time
+    private final int listingThreads = (int) Constants.getSystemProperty("harvester.listingThreads", S3HarvesterLister.DEFAULT_NB_THREADS);
+
+    // Maximum number of catalogues written at the same time
+    private final int catalogueThreads = (int) Constants.getSystemProperty("harvester.catalogueThreads", S3HarvesterCatalogue.DEFAULT_NB_THREADS);
+
     private S3HarvesterConfiguration config;
 
+    // Set when the catalogue has changed, until THREDDS has reloaded it.
+    //   Shared by the controller instances, the reload creates a new controller.
+    private static volatile boolean reloadNeeded = false;
+
+    // Starts the harvests automatically, when the configuration has a schedule.
+    //   Shared by the controller instances, each new controller replaces it with the scheduler of its configuration.
+    private static S3HarvesterScheduler scheduler = null;
+
+    private static final long SCHEDULER_TICK = Constants.getSystemProperty("harvester.schedulerTick", S3HarvesterScheduler.DEFAULT_TICK);
+
     public S3HarvesterController() {
         this.config = new S3HarvesterConfiguration(S3_HARVESTER_CONFIG_FILE);
         try {
@@ -76,6 +102,9 @@ public class S3HarvesterController implements ApplicationContextAware {
             LOGGER.error(String.format("Exception occurred while parsing the S3 harvester configuration file: %s", S3_HARVESTER_CONFIG_FILE), ex);
             this.config = null;
         }
+
+        startScheduler(this.config == null || this.config.getScheduleConfiguration() == null ? null :
+                new S3HarvesterScheduler(this.config, this.s3Client, this.metrics, this.jobManager, this.newHarvest()));
     }
 
     @Override
@@ -83,6 +112,10 @@ public class S3HarvesterController implements ApplicationContextAware {
         this.applicationContext = applicationContext;
     }
 
+    /**
+     * Start a harvest in the background, and return its job ID straight away.
+     * If a harvest is already running, its job is returned instead.
+     */
     @RequestMapping("**")
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws Exception {
         if (this.config == null) {
@@ -90,162 +123,191 @@ public class S3HarvesterController implements ApplicationContextAware {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "The S3 harvesting was not configured");
 
         } else {
-            this.harvest();
+            S3HarvesterJobManager.Submission submission = this.submitHarvest();
+            S3HarvesterJob job = submission.getJob();
 
-            // Send a "Harvesting done" message as a response text
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setContentType("text/plain");
+            response.setHeader("Cache-Control", "no-cache");
             try (ServletOutputStream outputStream = response.getOutputStream()) {
-                outputStream.println("Harvesting done");
+                outputStream.println(submission.isCreated() ? "Harvesting started" : "Harvesting already running");
+                outputStream.print(job.toString());
+                outputStream.println(String.format("status: %s/status?id=%s", request.getRequestURI().replaceAll("/+$", ""), job.getId()));
                 outputStream.flush();
             }
         }
     }
 
-    public void harvest() throws IOException {
+    /**
+     * Status of a harvest job.
+     *
+     * handles /s3harvester/status
+     *   Optional parameter "id": the job ID returned when the harvest was started. Default: the last harvest.
+     */
+    @RequestMapping("/status")
+    public void doStatus(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String id = request.getParameter("id");
+        S3HarvesterJob job = (id == null || id.isEmpty()) ? this.jobManager.getLastJob() : this.jobManager.getJob(id);
+        if (job == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    id == null || id.isEmpty() ? "No harvest was requested" : String.format("Unknown harvest: %s", id));
+            return;
+        }
+
+        response.setContentType("text/plain");
+        response.setHeader("Cache-Control", "no-cache");
+        try (ServletOutputStream outputStream = response.getOutputStream()) {
+            outputStream.print(job.toString());
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Start a harvest in the background, unless one is already queued or running.
+     *
+     * @return the harvest job, and whether it was started by this call
+     */
+    public S3HarvesterJobManager.Submission submitHarvest() {
         if (this.config == null) {
             throw new IllegalStateException("The S3 harvesting was not configured");
+        }
 
-        } else {
+        return this.jobManager.submitJob(this.newHarvest());
+    }
 
-            File temporaryConfigDirectory = Files.createTempDirectory("s3harvester_").toFile();
-            File currentConfigDirectory = this.config.getS3CatalogueDirectory();
+    private S3HarvesterJobManager.Harvest newHarvest() {
+        return new S3HarvesterJobManager.Harvest() {
+            @Override
+            public S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws Exception {
+                return S3HarvesterController.this.harvest(job);
+            }
+        };
+    }
 
-            try {
-                // TODO Security?
-                // http://localhost:8888/thredds/s3harvester/
-
-                // Generate new catalogue config in a temporary directory, to prevent breaking the system and allow removal of S3 files:
-                //   Some "catalog.xml" files may represent S3 directories that no longer exists. They need to be deleted.
-                for (S3HarvesterConfiguration.S3HarvesterBucketConfiguration bucketConfig : this.config.getBucketConfigurations()) {
-                    String bucket = bucketConfig.getBucket();
-                    List<S3HarvesterConfiguration.S3HarvesterPathConfiguration> paths = bucketConfig.getPaths();
-
-                    // If the bucket is configured with no path, add a "null" path,
-                    // to indicate that we want to harvest the whole bucket
-                    if (paths == null || paths.size() <= 0) {
-                        paths = new ArrayList<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
-                        paths.add(null);
-                    }
+    /**
+     * Start the scheduler of the harvester configuration, replacing the scheduler of the previous controller.
+     * The scheduler is stopped if the configuration has no schedule.
+     */
+    private static synchronized void startScheduler(S3HarvesterScheduler newScheduler) {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        scheduler = newScheduler != null && newScheduler.isScheduled() ? newScheduler : null;
+        if (scheduler != null) {
+            scheduler.start(SCHEDULER_TICK);
+        }
+    }
 
-                    try {
-                        if (!this.s3Client.doesBucketExist(bucket)) {
-                            LOGGER.error(String.format("Bucket %s does not exist", bucket));
-                        } else {
-                            Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> netCDFFilePaths =
-                                    new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
-                            for (S3HarvesterConfiguration.S3HarvesterPathConfiguration path : paths) {
-                                netCDFFilePaths.addAll(this.getNetCDFFilePaths(bucket, path));
-                            }
+    /**
+     * Harvest the configured buckets, in the calling thread.
+     */
+    public S3HarvesterCatalogue.UpdateResult harvest() throws IOException, TransformerException {
+        return this.harvest(null);
+    }
 
-                            S3File netCDFFileTree = S3HarvesterController.parseFilePaths(bucket, netCDFFilePaths);
-                            this.createCatalogs(temporaryConfigDirectory, netCDFFileTree);
-                        }
-                    } catch (Exception ex) {
-                        LOGGER.error(String.format("Exception occurred while harvesting the S3 bucket: %s", bucket), ex);
-                    }
-                }
+    private S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws IOException, TransformerException {
+        if (this.config == null) {
+            throw new IllegalStateException("The S3 harvesting was not configured");
 
-                // Try to empty current THREDDS catalogue configuration
-                // NOTE: If the operation fail, at least let the "Files.move" attempt to replace existing files.
-                LOGGER.info(String.format("Emptying current catalogue directory %s", currentConfigDirectory));
-                try {
-                    FileUtils.cleanDirectory(currentConfigDirectory);
-                } catch (Exception ex) {
-                    LOGGER.error(String.format("Exception occurred while emptying current catalogue directory: %s", currentConfigDirectory), ex);
-                }
+        } else {
 
-                // Move the new catalogue configuration to where THREDDS expect it to be
-                LOGGER.info(String.format("Moving new catalogue directory content from %s to %s", temporaryConfigDirectory, currentConfigDirectory));
-                File[] temporaryConfigDirectoryContent = temporaryConfigDirectory.listFiles();
-                if (temporaryConfigDirectoryContent != null && temporaryConfigDirectoryContent.length > 0) {
-                    for (File temporaryConfigDirectoryFile : temporaryConfigDirectoryContent) {
-                        LOGGER.debug(String.format("Moving new catalogue file from %s to %s", temporaryConfigDirectoryFile, currentConfigDirectory));
-                        FileUtils.moveToDirectory(temporaryConfigDirectoryFile, currentConfigDirectory, true);
-                    }
+            // Harvests started without the job manager must not overlap either
+            synchronized (HARVEST_LOCK) {
+                return this.harvestBuckets(job);
+            }
+        }
+    }
+
+    private S3HarvesterCatalogue.UpdateResult harvestBuckets(S3HarvesterJob job) throws IOException, TransformerException {
+        try {
+            // TODO Security?
+            // http://localhost:8888/thredds/s3harvester/
+
+            Map<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathsByBucket =
+                    new LinkedHashMap<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+            // Buckets which could not be harvested, their current catalogue is kept
+            Set<String> unavailableBuckets = new HashSet<String>();
+            for (S3HarvesterConfiguration.S3HarvesterBucketConfiguration bucketConfig : this.config.getBucketConfigurations()) {
+                String bucket = bucketConfig.getBucket();
+                List<S3HarvesterConfiguration.S3HarvesterPathConfiguration> paths = bucketConfig.getPaths();
+
+                // If the bucket is configured with no path, add a "null" path,
+                // to indicate that we want to harvest the whole bucket
+                if (paths == null || paths.size() <= 0) {
+                    paths = new ArrayList<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+                    paths.add(null);
                 }
 
-                // Reload THREDDS configuration
-                this.reloadThreddsCatalogue();
-            } catch (Exception ex) {
-                LOGGER.error("Exception occurred while harvesting the S3 buckets", ex);
-                throw ex;
-            } finally {
-                // Clean-up - Delete temporary config directory.
                 try {
-                    FileUtils.deleteDirectory(temporaryConfigDirectory);
-                } catch (Exception ex2) {
-                    LOGGER.error(String.format("Exception occurred while deleting temporary directory: %s", temporaryConfigDirectory), ex2);
+                    if (!this.doesBucketExist(bucket)) {
+                        LOGGER.error(String.format("Bucket %s does not exist", bucket));
+                    } else {
+                        pathsByBucket.put(bucket, paths);
+                    }
+                } catch (Exception ex) {
+                    LOGGER.error(String.format("Exception occurred while harvesting the S3 bucket: %s", bucket), ex);
+                    unavailableBuckets.add(bucket);
                 }
             }
-        }
-    }
-
-    private File createCatalogs(File directory, S3File netCDFFile) throws IOException, TemplateException {
-        if (netCDFFile == null || !netCDFFile.isDirectory()) {
-            return null;
-        }
 
-        File catalogDir = new File(directory, netCDFFile.path);
-        File catalogFile = new File(catalogDir, "catalog.xml");
+            // List every bucket at the same time
+            S3HarvesterSnapshot snapshot = new S3HarvesterSnapshot(this.config.getFingerprint());
+            S3HarvesterLister lister = new S3HarvesterLister(this.s3Client, this.metadataCache, this.metrics, this.listingThreads, job);
+            Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> netCDFFilePathsByBucket =
+                    lister.list(pathsByBucket, snapshot);
+            for (String bucket : pathsByBucket.keySet()) {
+                if (!netCDFFilePathsByBucket.containsKey(bucket)) {
+                    unavailableBuckets.add(bucket);
+                }
+            }
 
-        try {
-            CatalogTemplate catalogTemplate = new CatalogTemplate();
+            // Only rewrite the catalogues of the directories which have changed since the last harvest
+            File catalogueDirectory = this.config.getS3CatalogueDirectory();
+            S3HarvesterCatalogue catalogue = new S3HarvesterCatalogue(catalogueDirectory,
+                    S3HarvesterCatalogue.getDefaultSnapshotFile(catalogueDirectory), job, this.catalogueThreads);
+            catalogue.setSharding(this.config.getShardingConfiguration());
+            S3HarvesterCatalogue.UpdateResult result = catalogue.update(netCDFFilePathsByBucket, snapshot, unavailableBuckets);
+            LOGGER.info(result.toString());
 
-            for (S3File child : netCDFFile.listFiles()) {
-                if (child.isDirectory()) {
-                    this.createCatalogs(directory, child);
-                    String directoryName = child.getFilename();
+            // The scheduler checks for new files after the greatest key of each path
+            try {
+                S3HarvesterScheduler.saveLastKeys(this.config, snapshot);
+            } catch (Exception ex) {
+                LOGGER.error(String.format("Exception occurred while saving the S3 harvester last keys: %s",
+                        S3HarvesterScheduler.getDefaultLastKeysFile(catalogueDirectory)), ex);
+            }
 
-                    catalogTemplate.addCatalogRef(
-                            directoryName,
-                            directoryName + "/catalog.xml");
-                } else {
-                    catalogTemplate.addDataset(
-                            child.getFilename(),
-                            child.getFilename(),
-                            S3DatasetSource.S3_PREFIX + child.getPath(),
-                            child.getMetadataXmlStr());
-                }
+            // Reload THREDDS configuration, only if a catalogue has changed:
+            //   the reload is slow, and interrupts the services while the Spring context is refreshed.
+            if (result.isChanged()) {
+                reloadNeeded = true;
+            }
+            if (reloadNeeded) {
+                this.reloadThreddsCatalogue();
+                reloadNeeded = false;
+            } else {
+                LOGGER.info("The catalogue has not changed, THREDDS is not reloaded");
             }
 
-            catalogTemplate.process(catalogFile);
-        } catch(Exception ex) {
-            LOGGER.error(String.format("Error occurred while generating the catalogue: %s", catalogFile), ex);
+            return result;
+        } catch (Exception ex) {
+            LOGGER.error("Exception occurred while harvesting the S3 buckets", ex);
             throw ex;
         }
-
-        return catalogFile;
     }
 
-    private Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> getNetCDFFilePaths(String bucket, S3HarvesterConfiguration.S3HarvesterPathConfiguration path) {
-        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> netCDFFilePaths =
-                new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
-        String pathStr = path.getPath();
-
-        // Inspired from:
-        //     https://docs.aws.amazon.com/AmazonS3/latest/dev/ListingObjectKeysUsingJava.html
-        ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withMaxKeys(1000);
-        if (pathStr != null && !pathStr.isEmpty()) {
-            req.withPrefix(pathStr);
+    private boolean doesBucketExist(String bucket) {
+        this.ioExecutor.acquire(bucket);
+        long startTime = this.metrics.requestStarted(S3Metrics.RequestType.HEAD, bucket, null);
+        boolean failed = true;
+        try {
+            boolean exists = this.s3Client.doesBucketExist(bucket);
+            failed = false;
+            return exists;
+        } finally {
+            this.metrics.requestCompleted(S3Metrics.RequestType.HEAD, bucket, null, startTime, 0, failed);
+            this.ioExecutor.release(bucket);
         }
-
-        ListObjectsV2Result result;
-        do {
-            result = this.s3Client.listObjectsV2(req);
-
-            for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
-                String filename = objectSummary.getKey();
-                if (".nc".equalsIgnoreCase(filename.substring(filename.length() - 3))) {
-                    netCDFFilePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(
-                            filename, path.getMetadata()));
-                }
-            }
-            // If there are more than maxKeys keys in the bucket, get a continuation token
-            // and list the next objects.
-            String token = result.getNextContinuationToken();
-            req.setContinuationToken(token);
-        } while (result.isTruncated());
-
-        return netCDFFilePaths;
     }
 
     /**
@@ -270,26 +332,32 @@ public class S3HarvesterController implements ApplicationContextAware {
      * @return
      */
     protected static S3File parseFilePaths(String bucket, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> filePaths) throws TransformerException {
-        Map<String, S3File> directories = new HashMap<String, S3File>();
-        S3File root = new S3File(bucket, bucket, null);
+        S3File root = new S3File(null, bucket, bucket, null);
+
+        // Paths sorted in natural order: the files of a directory are added one after the other
+        boolean sorted = filePaths instanceof SortedSet
+                && ((SortedSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>) filePaths).comparator() == null;
+
+        // Directory names, shared by the directories of the same name
+        Map<String, String> segments = new HashMap<String, String>();
+        // Metadata XML, serialised once for each configured path
+        Map<Element, String> metadataStrs = new IdentityHashMap<Element, String>();
 
         for (S3HarvesterConfiguration.S3HarvesterPathConfiguration filePath : filePaths) {
-            S3File parent = root;
-            String filePathValue = filePath.getPath();
-            String[] filePathParts = filePathValue.split("/");
-
-            for (String filePart : filePathParts) {
-                String path = parent.getPath() + "/" + filePart;
-                S3File dir = directories.get(path);
-                if (dir == null) {
-                    dir = new S3File(bucket, path, filePath.getMetadataStr());
-                    directories.put(path, dir);
-                    parent.addChild(dir);
+            String metadataStr = null;
+            Element metadata = filePath.getMetadata();
+            if (metadata != null) {
+                metadataStr = metadataStrs.get(metadata);
+                if (metadataStr == null) {
+                    metadataStr = filePath.getMetadataStr();
+                    metadataStrs.put(metadata, metadataStr);
                 }
-                parent = dir;
             }
+
+            root.addFile(filePath.getPath(), metadataStr, segments, sorted);
         }
 
+        root.trimToSize();
         return root;
     }
 
@@ -407,24 +475,107 @@ public class S3HarvesterController implements ApplicationContextAware {
         ((AbstractApplicationContext)this.applicationContext).refresh();
     }
 
+    /**
+     * A directory or a file of the harvested file tree.
+     * <p>
+     * Buckets can contain millions of files, so the nodes are kept small: a node holds its name
+     * and its parent, and its path is built when needed. Directory names are shared by the
+     * directories of the same name, and the metadata XML string is shared by every file
+     * of the same configured path.
+     */
     protected static class S3File {
-        private List<S3File> children;
-        private String bucket;
-        private String path;
-        private String metadataXmlStr;
-
-        public S3File(String bucket, String path, String metadataXmlStr) {
+        // Directories with more children get an index, to find their children by name
+        private static final int CHILD_INDEX_THRESHOLD = 16;
+
+        private final S3File parent;
+        private final String bucket;
+        private final String name;
+        private final String metadataXmlStr;
+        private ArrayList<S3File> children;
+        private Map<String, S3File> childIndex;
+
+        private S3File(S3File parent, String bucket, String name, String metadataXmlStr) {
+            this.parent = parent;
             this.bucket = bucket;
-            this.path = path;
+            this.name = name;
             this.metadataXmlStr = metadataXmlStr;
             this.children = null;
+            this.childIndex = null;
+        }
 
-            while (this.path.endsWith("/")) {
-                this.path = this.path.substring(0, this.path.length() - 2);
+        /**
+         * Add a file, and the directories which contain it.
+         *
+         * @param key the file S3 key, relative to this directory
+         * @param metadataXmlStr the metadata of the file
+         * @param segments directory names already used in the tree, to share them
+         * @param sorted true if the files are added in the order of their key
+         */
+        private void addFile(String key, String metadataXmlStr, Map<String, String> segments, boolean sorted) {
+            // Like String.split, ignore the trailing slashes
+            int end = key.length();
+            while (end > 0 && key.charAt(end - 1) == '/') {
+                end--;
             }
+            if (end == 0 && !key.isEmpty()) {
+                return;
+            }
+
+            S3File directory = this;
+            int start = 0;
+            int slashIndex = key.indexOf('/');
+            while (slashIndex >= 0 && slashIndex < end) {
+                String segment = key.substring(start, slashIndex);
+                String sharedSegment = segments.get(segment);
+                if (sharedSegment == null) {
+                    segments.put(segment, segment);
+                    sharedSegment = segment;
+                }
+                directory = directory.getOrAddChild(sharedSegment, metadataXmlStr, sorted);
+
+                start = slashIndex + 1;
+                slashIndex = key.indexOf('/', start);
+            }
+            directory.getOrAddChild(key.substring(start, end), metadataXmlStr, sorted);
+        }
+
+        private S3File getOrAddChild(String childName, String childMetadataXmlStr, boolean sorted) {
+            if (this.children != null) {
+                if (this.childIndex != null) {
+                    S3File child = this.childIndex.get(childName);
+                    if (child != null) {
+                        return child;
+                    }
+                } else {
+                    // When the files are sorted, the children of a directory are added one after the other
+                    S3File lastChild = this.children.get(this.children.size() - 1);
+                    if (lastChild.name.equals(childName)) {
+                        return lastChild;
+                    }
+                    if (!sorted) {
+                        for (S3File child : this.children) {
+                            if (child.name.equals(childName)) {
+                                return child;
+                            }
+                        }
+                    }
+                }
+            }
+
+            S3File child = new S3File(this, this.bucket, childName, childMetadataXmlStr);
+            this.addChild(child);
+            if (this.childIndex != null) {
+                this.childIndex.put(childName, child);
+            } else if (!sorted && this.children.size() > CHILD_INDEX_THRESHOLD) {
+                this.childIndex = new HashMap<String, S3File>();
+                for (S3File indexedChild : this.children) {
+                    this.childIndex.put(indexedChild.name, indexedChild);
+                }
+            }
+            return child;
         }
 
-        public void addChild(S3File child) {
+        private void addChild(S3File child) {
             if (this.children == null) {
                 this.children = new ArrayList<S3File>();
             }
@@ -432,6 +583,19 @@ public class S3HarvesterController implements ApplicationContextAware {
             this.children.add(child);
         }
 
+        /**
+         * Release the memory reserved to add children.
+         */
+        private void trimToSize() {
+            this.childIndex = null;
+            if (this.children != null) {
+                this.children.trimToSize();
+                for (S3File child : this.children) {
+                    child.trimToSize();
+                }
+            }
+        }
+
         public boolean isDirectory() {
             return this.children != null && !this.children.isEmpty();
         }
@@ -445,11 +609,32 @@ public class S3HarvesterController implements ApplicationContextAware {
         }
 
         public String getFilename() {
-            return this.path.substring(this.path.lastIndexOf("/") + 1);
+            return this.name;
         }
 
+        /**
+         * @return the path of the file, starting with the bucket name.
+         */
         public String getPath() {
-            return this.path;
+            if (this.parent == null) {
+                return this.name;
+            }
+
+            int length = this.name.length();
+            for (S3File ancestor = this.parent; ancestor != null; ancestor = ancestor.parent) {
+                length += ancestor.name.length() + 1;
+            }
+            char[] path = new char[length];
+            int end = length;
+            for (S3File node = this; node != null; node = node.parent) {
+                int start = end - node.name.length();
+                node.name.getChars(0, node.name.length(), path, start);
+                if (start > 0) {
+                    path[start - 1] = '/';
+                }
+                end = start - 1;
+            }
+            return new String(path);
         }
 
         public String getMetadataXmlStr() {
@@ -475,7 +660,7 @@ public class S3HarvesterController implements ApplicationContextAware {
             StringBuilder sb = new StringBuilder();
             sb.append(indentStr).append("{").append(nl);
             sb.append(indentStr).append(tab).append("bucket: ").append(this.bucket).append(nl);
-            sb.append(indentStr).append(tab).append("path: ").append(this.path).append(nl);
+            sb.append(indentStr).append(tab).append("path: ").append(this.getPath()).append(nl);
             sb.append(indentStr).append(tab).append("filename: ").append(this.getFilename()).append(nl);
             if (this.isDirectory()) {
                 sb.append(indentStr).append(tab).append("children: [").append(nl);
@@ -0,0 +1,170 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A harvest run in the background, and its progress.
+ * <p>
+ * The progress counters are updated by the harvest thread, and read by the status requests.
+ */
+public class S3HarvesterJob {
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final long submitTime;
+
+    private volatile State state;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    private final AtomicInteger bucketsToList = new AtomicInteger(0);
+    private final AtomicInteger bucketsListed = new AtomicInteger(0);
+    private final AtomicLong keysSeen = new AtomicLong(0);
+    private final AtomicInteger catalogsGenerated = new AtomicInteger(0);
+
+    private volatile S3HarvesterCatalogue.UpdateResult result;
+    private volatile String error;
+
+    public S3HarvesterJob() {
+        this.id = UUID.randomUUID().toString();
+        this.submitTime = System.currentTimeMillis();
+        this.state = State.QUEUED;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public boolean isFinished() {
+        return this.state == State.DONE || this.state == State.FAILED;
+    }
+
+    public long getSubmitTime() {
+        return this.submitTime;
+    }
+
+    /**
+     * @return the time, in milliseconds, the harvest has been running, or took to complete.
+     */
+    public long getElapsedTime() {
+        if (this.state == State.QUEUED) {
+            return 0;
+        }
+        long end = this.isFinished() ? this.endTime : System.currentTimeMillis();
+        return end - this.startTime;
+    }
+
+    public int getBucketsToList() {
+        return this.bucketsToList.get();
+    }
+
+    public int getBucketsListed() {
+        return this.bucketsListed.get();
+    }
+
+    public long getKeysSeen() {
+        return this.keysSeen.get();
+    }
+
+    public int getCatalogsGenerated() {
+        return this.catalogsGenerated.get();
+    }
+
+    /**
+     * @return what the harvest has changed, or null if the harvest is not done.
+     */
+    public S3HarvesterCatalogue.UpdateResult getResult() {
+        return this.result;
+    }
+
+    /**
+     * @return the error message, if the harvest failed.
+     */
+    public String getError() {
+        return this.error;
+    }
+
+    protected void started() {
+        this.startTime = System.currentTimeMillis();
+        this.state = State.RUNNING;
+    }
+
+    protected void done(S3HarvesterCatalogue.UpdateResult result) {
+        this.result = result;
+        this.endTime = System.currentTimeMillis();
+        this.state = State.DONE;
+    }
+
+    protected void failed(Throwable error) {
+        this.error = error.getMessage() == null ? error.getClass().getName() : error.getMessage();
+        this.endTime = System.currentTimeMillis();
+        this.state = State.FAILED;
+    }
+
+    public void addBucketsToList(int count) {
+        this.bucketsToList.addAndGet(count);
+    }
+
+    public void bucketListed() {
+        this.bucketsListed.incrementAndGet();
+    }
+
+    public void addKeysSeen(int count) {
+        this.keysSeen.addAndGet(count);
+    }
+
+    public void catalogGenerated() {
+        this.catalogsGenerated.incrementAndGet();
+    }
+
+    /**
+     * @return the job status, one "name: value" per line.
+     */
+    @Override
+    public String toString() {
+        String nl = System.lineSeparator();
+        StringBuilder sb = new StringBuilder();
+        sb.append("id: ").append(this.id).append(nl);
+        sb.append("state: ").append(this.state).append(nl);
+        sb.append("bucketsListed: ").append(this.getBucketsListed()).append("/").append(this.getBucketsToList()).append(nl);
+        sb.append("keysSeen: ").append(this.getKeysSeen()).append(nl);
+        sb.append("cataloguesGenerated: ").append(this.getCatalogsGenerated()).append(nl);
+        sb.append("elapsedTimeMs: ").append(this.getElapsedTime()).append(nl);
+        S3HarvesterCatalogue.UpdateResult result = this.result;
+        if (result != null) {
+            sb.append("catalogue: ").append(result.isChanged() ? "changed" : "unchanged").append(nl);
+            sb.append("result: ").append(result).append(nl);
+        }
+        String error = this.error;
+        if (error != null) {
+            sb.append("error: ").append(error).append(nl);
+        }
+        return sb.toString();
+    }
+}
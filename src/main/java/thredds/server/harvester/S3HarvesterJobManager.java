@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import org.apache.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the harvests in the background, one at a time.
+ * <p>
+ * A harvest requested while another one is queued or running joins it instead
+ * of starting a new one (single flight), so overlapping triggers never fight
+ * over the catalogue directory.
+ * <p>
+ * The jobs outlive the harvester controller: reloading THREDDS refreshes the Spring
+ * context, which creates a new controller while the harvest job is still finishing.
+ * The last jobs are kept, so their status can be requested once they are finished.
+ */
+public class S3HarvesterJobManager {
+    private static final Logger LOGGER = Logger.getLogger(S3HarvesterJobManager.class);
+
+    public static final int DEFAULT_MAX_JOBS = 20;
+
+    private static final S3HarvesterJobManager DEFAULT_INSTANCE = new S3HarvesterJobManager(DEFAULT_MAX_JOBS);
+
+    private final ExecutorService executor;
+
+    // Last jobs, by ID, oldest first
+    private final Map<String, S3HarvesterJob> jobs;
+    private S3HarvesterJob lastJob;
+
+    /**
+     * @param maxJobs number of jobs kept for status requests
+     */
+    public S3HarvesterJobManager(final int maxJobs) {
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-harvester-job");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.jobs = new LinkedHashMap<String, S3HarvesterJob>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, S3HarvesterJob> eldest) {
+                return this.size() > maxJobs;
+            }
+        };
+    }
+
+    /**
+     * @return the job manager shared by every harvester controller instance.
+     */
+    public static S3HarvesterJobManager getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Start a harvest in the background, unless a harvest is already queued or running.
+     *
+     * @param harvest the harvest to run
+     * @return the new job, or the job which is already queued or running.
+     */
+    public S3HarvesterJob submit(Harvest harvest) {
+        return this.submitJob(harvest).getJob();
+    }
+
+    /**
+     * Start a harvest in the background, unless a harvest is already queued or running,
+     * and tell which one happened. The job state can't tell: a new job may already be running,
+     * or even finished, by the time the caller looks at it.
+     *
+     * @param harvest the harvest to run
+     * @return the new job, or the job which is already queued or running.
+     */
+    public synchronized Submission submitJob(final Harvest harvest) {
+        if (this.lastJob != null && !this.lastJob.isFinished()) {
+            LOGGER.info(String.format("S3 harvest %s is already %s", this.lastJob.getId(), this.lastJob.getState()));
+            return new Submission(this.lastJob, false);
+        }
+
+        final S3HarvesterJob job = new S3HarvesterJob();
+        this.jobs.put(job.getId(), job);
+        this.lastJob = job;
+
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                LOGGER.info(String.format("S3 harvest %s started", job.getId()));
+                job.started();
+                try {
+                    job.done(harvest.harvest(job));
+                    LOGGER.info(String.format("S3 harvest %s done in %d ms", job.getId(), job.getElapsedTime()));
+                } catch (Throwable ex) {
+                    LOGGER.error(String.format("S3 harvest %s failed", job.getId()), ex);
+                    job.failed(ex);
+                }
+            }
+        });
+
+        return new Submission(job, true);
+    }
+
+    /**
+     * @return the job, or null if it's unknown (or too old).
+     */
+    public synchronized S3HarvesterJob getJob(String id) {
+        return this.jobs.get(id);
+    }
+
+    /**
+     * @return the last submitted job, or null if no harvest was requested.
+     */
+    public synchronized S3HarvesterJob getLastJob() {
+        return this.lastJob;
+    }
+
+    /**
+     * A job returned by {@link #submitJob(Harvest)}.
+     */
+    public static class Submission {
+        private final S3HarvesterJob job;
+        private final boolean created;
+
+        public Submission(S3HarvesterJob job, boolean created) {
+            this.job = job;
+            this.created = created;
+        }
+
+        public S3HarvesterJob getJob() {
+            return this.job;
+        }
+
+        /**
+         * @return true if the job was created by the submission, false if it joined the job already queued or running.
+         */
+        public boolean isCreated() {
+            return this.created;
+        }
+    }
+
+    public interface Harvest {
+        S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws Exception;
+    }
+}
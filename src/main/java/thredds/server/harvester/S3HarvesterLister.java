@@ -0,0 +1,343 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.log4j.Logger;
+import uk.co.informaticslab.S3MetadataCache;
+import uk.co.informaticslab.S3IOExecutor;
+import uk.co.informaticslab.S3Metrics;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Lists the NetCDF files of the harvested buckets, in parallel.
+ * <p>
+ * Listing a bucket with ListObjectsV2 returns 1000 keys per request, and each page
+ * needs the continuation token of the previous one. Listing a large bucket page by page
+ * takes minutes. Instead, each configured path is listed with the "/" delimiter:
+ * the listing returns the files of the directory and its sub-directories (common prefixes),
+ * which are then listed at the same time, on the shared S3 I/O pool (see {@link S3IOExecutor}).
+ * Only the pages of a single directory are requested one after the other.
+ * <p>
+ * Every configured path of every bucket is listed at the same time.
+ */
+public class S3HarvesterLister {
+    private static final Logger LOGGER = Logger.getLogger(S3HarvesterLister.class);
+
+    public static final int DEFAULT_NB_THREADS = 16;
+
+    private static final String DELIMITER = "/";
+    private static final int MAX_KEYS = 1000;
+
+    private final AmazonS3 s3Client;
+    private final S3MetadataCache metadataCache;
+    private final S3Metrics metrics;
+    private final S3IOExecutor ioExecutor = S3IOExecutor.getDefault();
+    private final int nbThreads;
+    private final S3HarvesterJob job;
+
+    /**
+     * @param s3Client S3 client used to list the buckets
+     * @param metadataCache filled with the metadata of the listed files, or null
+     * @param metrics records the listing requests
+     * @param nbThreads maximum number of listing requests sent at the same time
+     */
+    public S3HarvesterLister(AmazonS3 s3Client, S3MetadataCache metadataCache, S3Metrics metrics, int nbThreads) {
+        this(s3Client, metadataCache, metrics, nbThreads, null);
+    }
+
+    /**
+     * @param s3Client S3 client used to list the buckets
+     * @param metadataCache filled with the metadata of the listed files, or null
+     * @param metrics records the listing requests
+     * @param nbThreads maximum number of listing requests sent at the same time
+     * @param job receives the listing progress, or null
+     */
+    public S3HarvesterLister(AmazonS3 s3Client, S3MetadataCache metadataCache, S3Metrics metrics, int nbThreads, S3HarvesterJob job) {
+        this.s3Client = s3Client;
+        this.metadataCache = metadataCache;
+        this.metrics = metrics;
+        this.nbThreads = Math.max(1, nbThreads);
+        this.job = job;
+    }
+
+    /**
+     * List the NetCDF files found under the configured paths.
+     * A file found under several paths gets the metadata of the first path, in configuration order.
+     *
+     * @param pathsByBucket the paths to list, by bucket. A null path lists the whole bucket.
+     * @return the NetCDF files found, by bucket, sorted by path.
+     *     Buckets which could not be listed are missing from the result; the errors are logged.
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the listings
+     */
+    public Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> list(
+            Map<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathsByBucket) throws InterruptedIOException {
+        return this.list(pathsByBucket, null);
+    }
+
+    /**
+     * List the NetCDF files found under the configured paths, and record them in a snapshot.
+     *
+     * @param pathsByBucket the paths to list, by bucket. A null path lists the whole bucket.
+     * @param snapshot receives the key, ETag, size and date of the files of each bucket which was listed, or null
+     * @return the NetCDF files found, by bucket, sorted by path.
+     *     Buckets which could not be listed are missing from the result; the errors are logged.
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the listings
+     */
+    public Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> list(
+            Map<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathsByBucket,
+            S3HarvesterSnapshot snapshot) throws InterruptedIOException {
+
+        // Files found under each path, by bucket
+        Map<String, List<Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>> filesByBucket =
+                new LinkedHashMap<String, List<Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>>();
+        Map<String, SortedMap<String, S3HarvesterSnapshot.FileEntry>> snapshotFilesByBucket =
+                new LinkedHashMap<String, SortedMap<String, S3HarvesterSnapshot.FileEntry>>();
+        Set<String> failedBuckets = new HashSet<String>();
+        // Pages requested and not received yet, by bucket
+        Map<String, Integer> pendingPagesByBucket = new HashMap<String, Integer>();
+        if (this.job != null) {
+            this.job.addBucketsToList(pathsByBucket.size());
+        }
+
+        // Listing requests run on the shared S3 I/O pool, no more than nbThreads at the same time
+        CompletionService<ListingPage> completionService = new ExecutorCompletionService<ListingPage>(this.ioExecutor.getExecutor());
+        Deque<ListingTask> waitingTasks = new ArrayDeque<ListingTask>();
+        Set<Future<ListingPage>> runningTasks = new HashSet<Future<ListingPage>>();
+        int pendingPages = 0;
+
+        try {
+            for (Map.Entry<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> bucketPaths : pathsByBucket.entrySet()) {
+                String bucket = bucketPaths.getKey();
+                List<Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathFiles =
+                        new ArrayList<Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+                filesByBucket.put(bucket, pathFiles);
+                snapshotFilesByBucket.put(bucket, new TreeMap<String, S3HarvesterSnapshot.FileEntry>());
+
+                for (S3HarvesterConfiguration.S3HarvesterPathConfiguration path : bucketPaths.getValue()) {
+                    pathFiles.add(new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>());
+                    String prefix = path == null ? null : path.getPath();
+
+                    ListObjectsV2Request request = new ListObjectsV2Request()
+                            .withBucketName(bucket)
+                            .withDelimiter(DELIMITER)
+                            .withMaxKeys(MAX_KEYS);
+                    if (prefix != null && !prefix.isEmpty()) {
+                        request.withPrefix(prefix);
+                    }
+                    waitingTasks.addLast(new ListingTask(pathFiles.size() - 1, path, request));
+                    pendingPages++;
+                    addPendingPages(pendingPagesByBucket, bucket, 1);
+                }
+            }
+
+            // Merge the pages as they arrive, and list the sub-directories they contain
+            while (pendingPages > 0) {
+                while (runningTasks.size() < this.nbThreads && !waitingTasks.isEmpty()) {
+                    runningTasks.add(completionService.submit(waitingTasks.pollFirst()));
+                }
+                Future<ListingPage> pageFuture = completionService.take();
+                runningTasks.remove(pageFuture);
+                ListingPage page = pageFuture.get();
+                pendingPages--;
+
+                String bucket = page.request.getBucketName();
+                int bucketPendingPages = addPendingPages(pendingPagesByBucket, bucket, -1);
+                if (failedBuckets.contains(bucket)) {
+                    continue;
+                }
+                if (page.error != null) {
+                    LOGGER.error(String.format("Exception occurred while listing the S3 bucket: %s", bucket), page.error);
+                    failedBuckets.add(bucket);
+                    if (this.job != null) {
+                        this.job.bucketListed();
+                    }
+                    continue;
+                }
+                if (this.job != null) {
+                    this.job.addKeysSeen(page.result.getObjectSummaries().size());
+                }
+
+                Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> files = filesByBucket.get(bucket).get(page.pathIndex);
+                SortedMap<String, S3HarvesterSnapshot.FileEntry> snapshotFiles = snapshotFilesByBucket.get(bucket);
+                for (S3ObjectSummary objectSummary : page.result.getObjectSummaries()) {
+                    String filename = objectSummary.getKey();
+                    if (isNetCDFFile(filename)) {
+                        // The listing contains the file metadata, save it so opening the file doesn't need a HEAD request
+                        if (this.metadataCache != null) {
+                            this.metadataCache.put(bucket, objectSummary);
+                        }
+                        files.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(
+                                filename, page.path == null ? null : page.path.getMetadata()));
+                        snapshotFiles.put(filename, new S3HarvesterSnapshot.FileEntry(objectSummary));
+                    }
+                }
+
+                for (String commonPrefix : page.result.getCommonPrefixes()) {
+                    ListObjectsV2Request request = new ListObjectsV2Request()
+                            .withBucketName(bucket)
+                            .withDelimiter(DELIMITER)
+                            .withMaxKeys(MAX_KEYS)
+                            .withPrefix(commonPrefix);
+                    waitingTasks.addLast(new ListingTask(page.pathIndex, page.path, request));
+                    pendingPages++;
+                    bucketPendingPages = addPendingPages(pendingPagesByBucket, bucket, 1);
+                }
+
+                // More than MAX_KEYS entries in the directory, get the next page
+                if (page.result.isTruncated()) {
+                    ListObjectsV2Request request = new ListObjectsV2Request()
+                            .withBucketName(bucket)
+                            .withDelimiter(DELIMITER)
+                            .withMaxKeys(MAX_KEYS)
+                            .withPrefix(page.request.getPrefix())
+                            .withContinuationToken(page.result.getNextContinuationToken());
+                    waitingTasks.addLast(new ListingTask(page.pathIndex, page.path, request));
+                    pendingPages++;
+                    bucketPendingPages = addPendingPages(pendingPagesByBucket, bucket, 1);
+                }
+
+                if (bucketPendingPages == 0 && this.job != null) {
+                    this.job.bucketListed();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing the S3 buckets");
+        } catch (ExecutionException ex) {
+            // The listing tasks catch their exceptions, see ListingTask
+            throw new IllegalStateException(ex);
+        } finally {
+            // Do not leave listings running in the background if the harvest was interrupted
+            for (Future<ListingPage> runningTask : runningTasks) {
+                runningTask.cancel(true);
+            }
+        }
+
+        // Merge the files found under each path, in configuration order
+        Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> netCDFFilePathsByBucket =
+                new LinkedHashMap<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+        for (Map.Entry<String, List<Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>> bucketFiles : filesByBucket.entrySet()) {
+            if (!failedBuckets.contains(bucketFiles.getKey())) {
+                Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> netCDFFilePaths =
+                        new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+                for (Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> pathFiles : bucketFiles.getValue()) {
+                    netCDFFilePaths.addAll(pathFiles);
+                }
+                netCDFFilePathsByBucket.put(bucketFiles.getKey(), netCDFFilePaths);
+                if (snapshot != null) {
+                    snapshot.putBucketFiles(bucketFiles.getKey(), snapshotFilesByBucket.get(bucketFiles.getKey()));
+                }
+            }
+        }
+        return netCDFFilePathsByBucket;
+    }
+
+    private static int addPendingPages(Map<String, Integer> pendingPagesByBucket, String bucket, int count) {
+        Integer pendingPages = pendingPagesByBucket.get(bucket);
+        int newPendingPages = (pendingPages == null ? 0 : pendingPages) + count;
+        pendingPagesByBucket.put(bucket, newPendingPages);
+        return newPendingPages;
+    }
+
+    static boolean isNetCDFFile(String key) {
+        return key.length() >= 3 && key.regionMatches(true, key.length() - 3, ".nc", 0, 3);
+    }
+
+    private ListObjectsV2Result listObjects(ListObjectsV2Request request) {
+        String bucket = request.getBucketName();
+        this.ioExecutor.acquire(bucket);
+        long startTime = this.metrics.requestStarted(S3Metrics.RequestType.LIST, bucket, null);
+        boolean failed = true;
+        try {
+            ListObjectsV2Result result = this.s3Client.listObjectsV2(request);
+            failed = false;
+            return result;
+        } finally {
+            this.metrics.requestCompleted(S3Metrics.RequestType.LIST, bucket, null, startTime, 0, failed);
+            this.ioExecutor.release(bucket);
+        }
+    }
+
+    /**
+     * Request one page of a directory listing.
+     * Errors are returned with the page, so the bucket they belong to is known.
+     */
+    private class ListingTask implements Callable<ListingPage> {
+        private final int pathIndex;
+        private final S3HarvesterConfiguration.S3HarvesterPathConfiguration path;
+        private final ListObjectsV2Request request;
+
+        public ListingTask(int pathIndex, S3HarvesterConfiguration.S3HarvesterPathConfiguration path, ListObjectsV2Request request) {
+            this.pathIndex = pathIndex;
+            this.path = path;
+            this.request = request;
+        }
+
+        @Override
+        public ListingPage call() {
+            LOGGER.debug(String.format("Listing S3 directory: %s:%s", this.request.getBucketName(), this.request.getPrefix()));
+            try {
+                return new ListingPage(this.pathIndex, this.path, this.request,
+                        S3HarvesterLister.this.listObjects(this.request), null);
+            } catch (Exception ex) {
+                return new ListingPage(this.pathIndex, this.path, this.request, null, ex);
+            }
+        }
+    }
+
+    private static class ListingPage {
+        // Index of the configured path, in the bucket configuration
+        private final int pathIndex;
+        private final S3HarvesterConfiguration.S3HarvesterPathConfiguration path;
+        private final ListObjectsV2Request request;
+        private final ListObjectsV2Result result;
+        private final Exception error;
+
+        public ListingPage(int pathIndex, S3HarvesterConfiguration.S3HarvesterPathConfiguration path,
+                ListObjectsV2Request request, ListObjectsV2Result result, Exception error) {
+            this.pathIndex = pathIndex;
+            this.path = path;
+            this.request = request;
+            this.result = result;
+            this.error = error;
+        }
+    }
+}
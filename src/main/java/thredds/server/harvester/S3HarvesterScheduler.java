@@ -0,0 +1,527 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.log4j.Logger;
+import uk.co.informaticslab.S3IOExecutor;
+import uk.co.informaticslab.S3Metrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts harvests on its own, when new files are found in the harvested buckets.
+ * <p>
+ * A full harvest lists every directory of every configured path. To find out cheaply if a harvest
+ * is needed, each configured path is checked at its own interval with a listing request,
+ * for NetCDF files whose key comes after the greatest key found by the last harvest (S3 "StartAfter").
+ * This finds the new files of paths where files are named after their date, like model outputs.
+ * The greatest key of each path is saved after each harvest, see {@link #saveLastKeys(S3HarvesterConfiguration, S3HarvesterSnapshot)}.
+ * <p>
+ * Other keys which come after the last NetCDF file are skipped: the listing follows its continuation token,
+ * for a few pages, and the next check starts after the last key listed.
+ * Files removed, or added with a key which sorts before the last known key (in any directory
+ * but the last one), are only found by the optional full harvest interval, or by the event feed.
+ * <p>
+ * The optional event feed is a local file where S3 events are appended, one per line,
+ * by an external process (for example, a consumer of the S3 event notifications queue).
+ * The last word of each line is the S3 URL of the file (<code>s3://bucket/key</code>).
+ * A harvest is started when an event concerns a NetCDF file under a configured path.
+ * Events written before the scheduler started are ignored.
+ * <p>
+ * The harvests are submitted to the {@link S3HarvesterJobManager}, so they never overlap
+ * with the harvests requested to the harvester controller.
+ */
+public class S3HarvesterScheduler {
+    private static final Logger LOGGER = Logger.getLogger(S3HarvesterScheduler.class);
+
+    // Time between 2 checks of the schedule
+    public static final long DEFAULT_TICK = 30 * 1000L;
+
+    // Time before starting a harvest again, after a harvest failed
+    public static final long DEFAULT_RETRY_DELAY = 5 * 60 * 1000L;
+
+    private static final int CHECK_MAX_KEYS = 100;
+    // Listing requests sent by a check, at most. The next check starts where this one stopped.
+    private static final int CHECK_MAX_PAGES = 10;
+    private static final int MAX_EVENT_FEED_READ = 1024 * 1024;
+    private static final String S3_URL_PREFIX = "s3://";
+
+    private final AmazonS3 s3Client;
+    private final S3Metrics metrics;
+    private final S3IOExecutor ioExecutor = S3IOExecutor.getDefault();
+    private final S3HarvesterJobManager jobManager;
+    private final S3HarvesterJobManager.Harvest harvest;
+    private final File lastKeysFile;
+
+    private final List<Target> targets;
+    private final Long fullHarvestInterval;
+    private final File eventFeed;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private ScheduledExecutorService executor;
+
+    // Last modified date of the last keys file when the targets last key were loaded, 0 if there was no harvest
+    private long lastKeysLastModified = -1;
+    // Position of the next event to read in the event feed, -1 before the first read
+    private long eventFeedOffset = -1;
+
+    private boolean harvestNeeded = false;
+    private S3HarvesterJob submittedJob = null;
+    private long retryTime = 0;
+
+    /**
+     * @param config the harvester configuration, with its schedule
+     * @param s3Client S3 client used to check for new files
+     * @param metrics records the listing requests
+     * @param jobManager runs the harvests
+     * @param harvest the harvest to run
+     */
+    public S3HarvesterScheduler(S3HarvesterConfiguration config, AmazonS3 s3Client, S3Metrics metrics,
+            S3HarvesterJobManager jobManager, S3HarvesterJobManager.Harvest harvest) {
+        this.s3Client = s3Client;
+        this.metrics = metrics;
+        this.jobManager = jobManager;
+        this.harvest = harvest;
+        this.lastKeysFile = getDefaultLastKeysFile(config.getS3CatalogueDirectory());
+
+        S3HarvesterConfiguration.S3HarvesterScheduleConfiguration scheduleConfig = config.getScheduleConfiguration();
+        this.fullHarvestInterval = scheduleConfig == null ? null : scheduleConfig.getFullHarvestInterval();
+        this.eventFeed = scheduleConfig == null ? null : scheduleConfig.getEventFeed();
+        this.targets = newTargets(config);
+    }
+
+    /**
+     * @return the configured paths. The interval of a path defaults to the interval of its bucket,
+     *     then to the interval of the schedule.
+     */
+    private static List<Target> newTargets(S3HarvesterConfiguration config) {
+        S3HarvesterConfiguration.S3HarvesterScheduleConfiguration scheduleConfig = config.getScheduleConfiguration();
+        Long defaultCheckInterval = scheduleConfig == null ? null : scheduleConfig.getCheckInterval();
+
+        List<Target> targets = new ArrayList<Target>();
+        for (S3HarvesterConfiguration.S3HarvesterBucketConfiguration bucketConfig : config.getBucketConfigurations()) {
+            Long bucketCheckInterval = bucketConfig.getCheckInterval() == null ? defaultCheckInterval : bucketConfig.getCheckInterval();
+            List<S3HarvesterConfiguration.S3HarvesterPathConfiguration> paths = bucketConfig.getPaths();
+            if (paths == null || paths.isEmpty()) {
+                targets.add(new Target(bucketConfig.getBucket(), null, bucketCheckInterval));
+            } else {
+                for (S3HarvesterConfiguration.S3HarvesterPathConfiguration path : paths) {
+                    targets.add(new Target(bucketConfig.getBucket(), path.getPath(),
+                            path.getCheckInterval() == null ? bucketCheckInterval : path.getCheckInterval()));
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * @return the file where the greatest key of each path is saved after a harvest: a file next to the catalogue directory,
+     *     named after it (for example "/usr/local/tomcat/content/thredds/s3catalogue.lastkeys").
+     */
+    public static File getDefaultLastKeysFile(File catalogueDirectory) {
+        File absoluteDirectory = catalogueDirectory.getAbsoluteFile();
+        return new File(absoluteDirectory.getParentFile(), absoluteDirectory.getName() + ".lastkeys");
+    }
+
+    /**
+     * Save the greatest key of each configured path, found by a harvest, for the scheduler checks.
+     * Called after each harvest, so the scheduler doesn't need to load the whole snapshot.
+     *
+     * @param config the harvester configuration
+     * @param snapshot the snapshot saved by the harvest
+     * @throws IOException if the file can not be written
+     */
+    public static void saveLastKeys(S3HarvesterConfiguration config, S3HarvesterSnapshot snapshot) throws IOException {
+        Properties lastKeys = new Properties();
+        for (Target target : newTargets(config)) {
+            SortedMap<String, S3HarvesterSnapshot.FileEntry> files = snapshot.getBucketFiles(target.bucket);
+            if (files != null) {
+                if (target.prefix != null) {
+                    files = files.subMap(target.prefix, target.prefix + Character.MAX_VALUE);
+                }
+                if (!files.isEmpty()) {
+                    lastKeys.setProperty(target.toString(), files.lastKey());
+                }
+            }
+        }
+
+        // Written next to its final location, then moved, so the scheduler never reads a truncated file
+        File lastKeysFile = getDefaultLastKeysFile(config.getS3CatalogueDirectory());
+        File directory = lastKeysFile.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temporaryFile = File.createTempFile(lastKeysFile.getName(), ".tmp", directory);
+        try {
+            try (OutputStream output = new FileOutputStream(temporaryFile)) {
+                lastKeys.store(output, "Greatest key of each path, found by the last S3 harvest");
+            }
+            try {
+                Files.move(temporaryFile.toPath(), lastKeysFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporaryFile.toPath(), lastKeysFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+    }
+
+    /**
+     * @return true if the configuration asks for harvests to be started automatically.
+     */
+    public boolean isScheduled() {
+        if (this.fullHarvestInterval != null || this.eventFeed != null) {
+            return true;
+        }
+        for (Target target : this.targets) {
+            if (target.checkInterval != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Check the schedule periodically, on a background thread.
+     *
+     * @param tick time, in milliseconds, between 2 checks of the schedule
+     */
+    public synchronized void start(long tick) {
+        if (this.executor != null) {
+            return;
+        }
+
+        LOGGER.info(String.format("Starting the S3 harvester scheduler, for %d path(s)", this.targets.size()));
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-harvester-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    S3HarvesterScheduler.this.check(System.currentTimeMillis());
+                } catch (Throwable ex) {
+                    // An exception would cancel the next checks
+                    LOGGER.error("Exception occurred while checking the S3 harvester schedule", ex);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.executor != null) {
+            LOGGER.info("Stopping the S3 harvester scheduler");
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Check if a harvest is needed, and start it.
+     *
+     * @param now the current time, in milliseconds
+     * @return the harvest job started, or null if no harvest was started.
+     */
+    protected synchronized S3HarvesterJob check(long now) {
+        if (this.submittedJob != null && this.submittedJob.isFinished()) {
+            if (this.submittedJob.getState() == S3HarvesterJob.State.FAILED) {
+                LOGGER.warn(String.format("The scheduled S3 harvest %s failed, it will be started again in %d ms",
+                        this.submittedJob.getId(), this.retryDelay));
+                this.harvestNeeded = true;
+                this.retryTime = now + this.retryDelay;
+            }
+            this.submittedJob = null;
+        }
+
+        this.loadLastKeys();
+        this.readEventFeed();
+
+        // A harvest is running, it will find the new files (apart from the new events)
+        S3HarvesterJob lastJob = this.jobManager.getLastJob();
+        if (lastJob != null && !lastJob.isFinished()) {
+            return null;
+        }
+
+        if (this.lastKeysLastModified == 0) {
+            if (!this.harvestNeeded) {
+                LOGGER.info("No previous S3 harvest found");
+            }
+            this.harvestNeeded = true;
+        } else if (this.fullHarvestInterval != null && now - this.lastKeysLastModified >= this.fullHarvestInterval) {
+            if (!this.harvestNeeded) {
+                LOGGER.info("Last S3 harvest is older than the full harvest interval");
+            }
+            this.harvestNeeded = true;
+        }
+
+        for (Target target : this.targets) {
+            if (target.checkInterval != null && now >= target.nextCheck) {
+                target.nextCheck = now + target.checkInterval;
+                if (!this.harvestNeeded) {
+                    try {
+                        if (this.hasNewFiles(target)) {
+                            LOGGER.info(String.format("New files found in %s", target));
+                            this.harvestNeeded = true;
+                        }
+                    } catch (Exception ex) {
+                        LOGGER.error(String.format("Exception occurred while checking for new files in %s", target), ex);
+                    }
+                }
+            }
+        }
+
+        if (this.harvestNeeded && now >= this.retryTime) {
+            this.harvestNeeded = false;
+            this.submittedJob = this.jobManager.submit(this.harvest);
+            LOGGER.info(String.format("Scheduled S3 harvest %s submitted", this.submittedJob.getId()));
+            return this.submittedJob;
+        }
+        return null;
+    }
+
+    /**
+     * Load the greatest key of each path saved by the last harvest, when the file has changed.
+     */
+    private void loadLastKeys() {
+        long lastModified = this.lastKeysFile.lastModified();
+        if (lastModified == this.lastKeysLastModified) {
+            return;
+        }
+        this.lastKeysLastModified = lastModified;
+
+        Properties lastKeys = new Properties();
+        if (lastModified != 0) {
+            try (InputStream input = new FileInputStream(this.lastKeysFile)) {
+                lastKeys.load(input);
+            } catch (Exception ex) {
+                LOGGER.error(String.format("Exception occurred while loading the S3 harvester last keys: %s", this.lastKeysFile), ex);
+            }
+        }
+
+        for (Target target : this.targets) {
+            target.lastKey = lastKeys.getProperty(target.toString());
+            // Keys checked since the harvest are not listed again
+            if (target.checkedKey != null && target.lastKey != null && target.checkedKey.compareTo(target.lastKey) <= 0) {
+                target.checkedKey = null;
+            }
+        }
+    }
+
+    /**
+     * List the keys which come after the last known key of the path, skipping the keys which are not NetCDF files.
+     * When there are too many keys to list in one check, the next check continues after the last key listed.
+     *
+     * @return true if a NetCDF file was found.
+     */
+    private boolean hasNewFiles(Target target) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(target.bucket)
+                .withMaxKeys(CHECK_MAX_KEYS);
+        if (target.prefix != null && !target.prefix.isEmpty()) {
+            request.withPrefix(target.prefix);
+        }
+        String startAfter = target.checkedKey != null ? target.checkedKey : target.lastKey;
+        if (startAfter != null) {
+            request.withStartAfter(startAfter);
+        }
+
+        for (int page = 0; page < CHECK_MAX_PAGES; page++) {
+            ListObjectsV2Result result;
+            this.ioExecutor.acquire(target.bucket);
+            long startTime = this.metrics.requestStarted(S3Metrics.RequestType.LIST, target.bucket, null);
+            boolean failed = true;
+            try {
+                result = this.s3Client.listObjectsV2(request);
+                failed = false;
+            } finally {
+                this.metrics.requestCompleted(S3Metrics.RequestType.LIST, target.bucket, null, startTime, 0, failed);
+                this.ioExecutor.release(target.bucket);
+            }
+
+            for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
+                if (S3HarvesterLister.isNetCDFFile(objectSummary.getKey())) {
+                    return true;
+                }
+                target.checkedKey = objectSummary.getKey();
+            }
+            if (!result.isTruncated()) {
+                return false;
+            }
+            request.withContinuationToken(result.getNextContinuationToken());
+        }
+
+        LOGGER.debug(String.format("Too many keys to check in %s, the next check starts after %s", target, target.checkedKey));
+        return false;
+    }
+
+    /**
+     * Read the events appended to the event feed since the last check.
+     */
+    private void readEventFeed() {
+        if (this.eventFeed == null) {
+            return;
+        }
+
+        long length = this.eventFeed.length();
+        if (this.eventFeedOffset < 0 || length < this.eventFeedOffset) {
+            // First read, or the file was truncated or replaced
+            this.eventFeedOffset = this.eventFeedOffset < 0 ? length : 0;
+            if (length == 0 || this.eventFeedOffset == length) {
+                return;
+            }
+        }
+        if (length == this.eventFeedOffset) {
+            return;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(this.eventFeed, "r")) {
+            byte[] events = new byte[(int) Math.min(length - this.eventFeedOffset, MAX_EVENT_FEED_READ)];
+            file.seek(this.eventFeedOffset);
+            file.readFully(events);
+
+            // Only read complete lines, the last one may still be written
+            int end = events.length;
+            while (end > 0 && events[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                if (events.length == MAX_EVENT_FEED_READ) {
+                    LOGGER.warn(String.format("Line too long in the S3 event feed: %s", this.eventFeed));
+                    this.eventFeedOffset += events.length;
+                }
+                return;
+            }
+            this.eventFeedOffset += end;
+
+            for (String line : new String(events, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                Target target = this.findTarget(line);
+                if (target != null) {
+                    if (!this.harvestNeeded) {
+                        LOGGER.info(String.format("S3 event received for %s: %s", target, line.trim()));
+                    }
+                    this.harvestNeeded = true;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error(String.format("Exception occurred while reading the S3 event feed: %s", this.eventFeed), ex);
+        }
+    }
+
+    /**
+     * @param event a line of the event feed
+     * @return the path which contains the file of the event, or null if the event doesn't concern a harvested NetCDF file.
+     */
+    private Target findTarget(String event) {
+        String trimmedEvent = event.trim();
+        if (trimmedEvent.isEmpty() || trimmedEvent.startsWith("#")) {
+            return null;
+        }
+
+        String url = trimmedEvent.substring(trimmedEvent.lastIndexOf(' ') + 1);
+        if (url.startsWith(S3_URL_PREFIX)) {
+            url = url.substring(S3_URL_PREFIX.length());
+        }
+        int slashIndex = url.indexOf('/');
+        if (slashIndex <= 0) {
+            return null;
+        }
+        String bucket = url.substring(0, slashIndex);
+        String key = url.substring(slashIndex + 1);
+        if (!S3HarvesterLister.isNetCDFFile(key)) {
+            return null;
+        }
+
+        for (Target target : this.targets) {
+            if (target.bucket.equals(bucket) && (target.prefix == null || key.startsWith(target.prefix))) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    protected List<Target> getTargets() {
+        return Collections.unmodifiableList(this.targets);
+    }
+
+    /**
+     * A configured path, and when to check it for new files.
+     */
+    protected static class Target {
+        private final String bucket;
+        // null for the whole bucket
+        private final String prefix;
+        // null if the path is not checked periodically
+        private final Long checkInterval;
+
+        private long nextCheck = 0;
+        // The greatest key found under the path by the last harvest
+        private String lastKey = null;
+        // The greatest key listed by the checks since the last harvest, not a NetCDF file
+        private String checkedKey = null;
+
+        public Target(String bucket, String prefix, Long checkInterval) {
+            this.bucket = bucket;
+            this.prefix = prefix == null || prefix.isEmpty() ? null : prefix;
+            this.checkInterval = checkInterval;
+        }
+
+        public Long getCheckInterval() {
+            return this.checkInterval;
+        }
+
+        public String getLastKey() {
+            return this.lastKey;
+        }
+
+        @Override
+        public String toString() {
+            return this.prefix == null ? this.bucket : this.bucket + ":" + this.prefix;
+        }
+    }
+}
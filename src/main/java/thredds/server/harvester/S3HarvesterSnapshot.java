@@ -0,0 +1,278 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The NetCDF files found by a harvest: key, ETag, size and last modified date, by bucket.
+ * <p>
+ * The snapshot of the last harvest is saved next to the catalogue directory.
+ * The next harvest compares its listing with it, to only rewrite the
+ * catalogues of the directories which have changed.
+ * <p>
+ * The snapshot also records a fingerprint of the harvester configuration.
+ * The catalogues generated with a different configuration (other paths or metadata)
+ * can not be updated, they are generated again.
+ */
+public class S3HarvesterSnapshot {
+    // "S3HS", followed by the format version
+    private static final int MAGIC = 0x53334853;
+    private static final int FORMAT_VERSION = 1;
+
+    private final String configFingerprint;
+
+    // Files by key, by bucket
+    private final Map<String, SortedMap<String, FileEntry>> filesByBucket;
+
+    public S3HarvesterSnapshot(String configFingerprint) {
+        this.configFingerprint = configFingerprint;
+        this.filesByBucket = new LinkedHashMap<String, SortedMap<String, FileEntry>>();
+    }
+
+    public String getConfigFingerprint() {
+        return this.configFingerprint;
+    }
+
+    public Set<String> getBuckets() {
+        return Collections.unmodifiableSet(this.filesByBucket.keySet());
+    }
+
+    /**
+     * @return the files of the bucket, by key, or null if the bucket is not in the snapshot.
+     */
+    public SortedMap<String, FileEntry> getBucketFiles(String bucket) {
+        return this.filesByBucket.get(bucket);
+    }
+
+    public void putBucketFiles(String bucket, SortedMap<String, FileEntry> files) {
+        this.filesByBucket.put(bucket, files);
+    }
+
+    public void removeBucket(String bucket) {
+        this.filesByBucket.remove(bucket);
+    }
+
+    /**
+     * Load a snapshot saved with {@link #save(File)}.
+     *
+     * @return the snapshot, or null if the file doesn't exist.
+     * @throws IOException if the file can not be read, or is not a snapshot.
+     */
+    public static S3HarvesterSnapshot load(File snapshotFile) throws IOException {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(snapshotFile))))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException(String.format("Invalid S3 harvester snapshot file: %s", snapshotFile));
+            }
+            int version = input.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(String.format("Unsupported S3 harvester snapshot file version %d: %s", version, snapshotFile));
+            }
+
+            S3HarvesterSnapshot snapshot = new S3HarvesterSnapshot(input.readUTF());
+            int nbBuckets = input.readInt();
+            for (int i = 0; i < nbBuckets; i++) {
+                String bucket = input.readUTF();
+                SortedMap<String, FileEntry> files = new TreeMap<String, FileEntry>();
+                int nbFiles = input.readInt();
+                for (int j = 0; j < nbFiles; j++) {
+                    String key = input.readUTF();
+                    String eTag = input.readUTF();
+                    long size = input.readLong();
+                    long lastModified = input.readLong();
+                    files.put(key, new FileEntry(eTag.isEmpty() ? null : eTag, size, lastModified));
+                }
+                snapshot.putBucketFiles(bucket, files);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Save the snapshot. The file is written next to its final location, then moved,
+     * so a harvest interrupted while saving doesn't leave a truncated snapshot.
+     */
+    public void save(File snapshotFile) throws IOException {
+        File directory = snapshotFile.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temporaryFile = File.createTempFile(snapshotFile.getName(), ".tmp", directory);
+
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporaryFile))))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(this.configFingerprint);
+                output.writeInt(this.filesByBucket.size());
+                for (Map.Entry<String, SortedMap<String, FileEntry>> bucketFiles : this.filesByBucket.entrySet()) {
+                    output.writeUTF(bucketFiles.getKey());
+                    output.writeInt(bucketFiles.getValue().size());
+                    for (Map.Entry<String, FileEntry> file : bucketFiles.getValue().entrySet()) {
+                        FileEntry entry = file.getValue();
+                        output.writeUTF(file.getKey());
+                        output.writeUTF(entry.eTag == null ? "" : entry.eTag);
+                        output.writeLong(entry.size);
+                        output.writeLong(entry.lastModified);
+                    }
+                }
+            }
+
+            try {
+                Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+    }
+
+    /**
+     * Compare the files of a bucket between 2 harvests.
+     *
+     * @param previousFiles the files found by the previous harvest, or null if the bucket was not harvested
+     * @param currentFiles the files found by this harvest
+     */
+    public static Diff diff(SortedMap<String, FileEntry> previousFiles, SortedMap<String, FileEntry> currentFiles) {
+        Diff diff = new Diff();
+        if (previousFiles == null) {
+            diff.added.addAll(currentFiles.keySet());
+            return diff;
+        }
+
+        for (Map.Entry<String, FileEntry> file : currentFiles.entrySet()) {
+            FileEntry previousEntry = previousFiles.get(file.getKey());
+            if (previousEntry == null) {
+                diff.added.add(file.getKey());
+            } else if (!previousEntry.equals(file.getValue())) {
+                diff.modified.add(file.getKey());
+            }
+        }
+        for (String key : previousFiles.keySet()) {
+            if (!currentFiles.containsKey(key)) {
+                diff.removed.add(key);
+            }
+        }
+        return diff;
+    }
+
+    public static class FileEntry {
+        private final String eTag;
+        private final long size;
+        private final long lastModified;
+
+        public FileEntry(String eTag, long size, long lastModified) {
+            this.eTag = eTag;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public FileEntry(S3ObjectSummary objectSummary) {
+            this(objectSummary.getETag(), objectSummary.getSize(),
+                    objectSummary.getLastModified() == null ? 0 : objectSummary.getLastModified().getTime());
+        }
+
+        public String getETag() {
+            return this.eTag;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof FileEntry)) {
+                return false;
+            }
+            FileEntry otherEntry = (FileEntry) other;
+            return this.size == otherEntry.size
+                    && this.lastModified == otherEntry.lastModified
+                    && (this.eTag == null ? otherEntry.eTag == null : this.eTag.equals(otherEntry.eTag));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = this.eTag == null ? 0 : this.eTag.hashCode();
+            hash = 31 * hash + (int) (this.size ^ (this.size >>> 32));
+            return 31 * hash + (int) (this.lastModified ^ (this.lastModified >>> 32));
+        }
+    }
+
+    /**
+     * Keys added, removed and modified (new ETag, size or date) since the previous harvest.
+     */
+    public static class Diff {
+        private final List<String> added = new ArrayList<String>();
+        private final List<String> removed = new ArrayList<String>();
+        private final List<String> modified = new ArrayList<String>();
+
+        public List<String> getAdded() {
+            return this.added;
+        }
+
+        public List<String> getRemoved() {
+            return this.removed;
+        }
+
+        public List<String> getModified() {
+            return this.modified;
+        }
+
+        /**
+         * @return true if files were added or removed. Modified files are listed
+         *     in the same catalogues, with the same attributes, so they don't change the catalogue.
+         */
+        public boolean changesCatalogue() {
+            return !this.added.isEmpty() || !this.removed.isEmpty();
+        }
+    }
+}
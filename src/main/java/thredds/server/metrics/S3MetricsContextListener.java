@@ -0,0 +1,47 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.metrics;
+
+import org.apache.log4j.Logger;
+import uk.co.informaticslab.S3Metrics;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Unregisters the S3 metrics MBeans when the webapp stops, so a redeployment
+ * doesn't leave them (and the classes of the previous deployment) in the JVM MBean server.
+ *
+ * Declared in the META-INF/web-fragment.xml of the plugin jar.
+ */
+public class S3MetricsContextListener implements ServletContextListener {
+    private static final Logger LOGGER = Logger.getLogger(S3MetricsContextListener.class);
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        // The MBeans are registered when the metrics are first used
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        S3Metrics metrics = S3Metrics.getDefault();
+        LOGGER.info(String.format("Unregistering %d S3 metrics MBean(s)", metrics.getRegisteredMBeanCount()));
+        metrics.unregisterMBeans();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.metrics;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import uk.co.informaticslab.S3BlockCache;
+import uk.co.informaticslab.S3MetadataCache;
+import uk.co.informaticslab.S3Metrics;
+import uk.co.informaticslab.S3NetcdfFileCache;
+import uk.co.informaticslab.S3Stats;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * S3 I/O statistics, as JSON (see {@link S3Metrics}).
+ * The same statistics are available through JMX.
+ *
+ * handles /s3metrics
+ *   Optional parameter "datasets": maximum number of datasets listed, the ones
+ *   which served the most bytes first (default 50).
+ */
+@Controller
+@RequestMapping("/s3metrics")
+public class S3MetricsController {
+    private static final Logger LOGGER = Logger.getLogger(S3MetricsController.class);
+
+    private static final int DEFAULT_DATASET_LIMIT = 50;
+
+    private final S3Metrics metrics = S3Metrics.getDefault();
+
+    @RequestMapping("**")
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int datasetLimit = DEFAULT_DATASET_LIMIT;
+        String datasetsParameter = request.getParameter("datasets");
+        if (datasetsParameter != null && !datasetsParameter.isEmpty()) {
+            try {
+                datasetLimit = Integer.parseInt(datasetsParameter);
+            } catch (NumberFormatException ex) {
+                LOGGER.warn(String.format("Invalid datasets parameter: %s", datasetsParameter));
+            }
+        }
+
+        String json = this.toJson(datasetLimit);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        try (ServletOutputStream outputStream = response.getOutputStream()) {
+            outputStream.print(json);
+            outputStream.flush();
+        }
+    }
+
+    protected String toJson(int datasetLimit) {
+        StringBuilder json = new StringBuilder();
+        json.append("{");
+
+        json.append("\"total\":");
+        appendStats(json, this.metrics.getTotal());
+
+        S3BlockCache blockCache = S3BlockCache.getDefault();
+        S3NetcdfFileCache fileCache = S3NetcdfFileCache.getDefault();
+        json.append(",\"caches\":{")
+                .append("\"blockCache\":{")
+                .append("\"size\":").append(blockCache.getSize())
+                .append(",\"maxSize\":").append(blockCache.getMaxSize())
+                .append(",\"blocks\":").append(blockCache.getBlockCount())
+                .append("},\"metadataCache\":{")
+                .append("\"entries\":").append(S3MetadataCache.getDefault().getEntryCount())
+                .append("},\"fileCache\":{")
+                .append("\"idleFiles\":").append(fileCache.getIdleFileCount())
+                .append(",\"inUseFiles\":").append(fileCache.getInUseFileCount())
+                .append("}}");
+
+        json.append(",\"buckets\":{");
+        boolean first = true;
+        for (Map.Entry<String, S3Stats> bucketEntry : new TreeMap<String, S3Stats>(this.metrics.getBuckets()).entrySet()) {
+            if (!first) {
+                json.append(",");
+            }
+            first = false;
+            appendString(json, bucketEntry.getKey());
+            json.append(":");
+            appendStats(json, bucketEntry.getValue());
+        }
+        json.append("}");
+
+        // The busiest datasets first
+        List<Map.Entry<String, S3Stats>> datasets = new ArrayList<Map.Entry<String, S3Stats>>(this.metrics.getDatasets().entrySet());
+        Collections.sort(datasets, new Comparator<Map.Entry<String, S3Stats>>() {
+            @Override
+            public int compare(Map.Entry<String, S3Stats> o1, Map.Entry<String, S3Stats> o2) {
+                int compare = Long.compare(o2.getValue().getBytesServed(), o1.getValue().getBytesServed());
+                if (compare == 0) {
+                    compare = Long.compare(o2.getValue().getBytesFetched(), o1.getValue().getBytesFetched());
+                }
+                return compare != 0 ? compare : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+
+        json.append(",\"trackedDatasets\":").append(datasets.size())
+                .append(",\"maxTrackedDatasets\":").append(this.metrics.getMaxDatasets())
+                .append(",\"datasets\":{");
+        for (int i = 0; i < datasets.size() && i < datasetLimit; i++) {
+            if (i > 0) {
+                json.append(",");
+            }
+            appendString(json, datasets.get(i).getKey());
+            json.append(":");
+            appendStats(json, datasets.get(i).getValue());
+        }
+        json.append("}");
+
+        json.append("}");
+        return json.toString();
+    }
+
+    private static void appendStats(StringBuilder json, S3Stats stats) {
+        json.append("{\"requests\":{");
+        boolean first = true;
+        for (S3Metrics.RequestType requestType : S3Metrics.RequestType.values()) {
+            if (!first) {
+                json.append(",");
+            }
+            first = false;
+            S3Stats.RequestStats requestStats = stats.getRequestStats(requestType);
+            S3Stats.LatencyHistogram latency = requestStats.getLatency();
+
+            json.append("\"").append(requestType.name()).append("\":{")
+                    .append("\"count\":").append(requestStats.getCount())
+                    .append(",\"errors\":").append(requestStats.getErrorCount())
+                    .append(",\"inFlight\":").append(requestStats.getInFlight())
+                    .append(",\"latencyMs\":{")
+                    .append("\"mean\":").append(String.format(Locale.ENGLISH, "%.2f", latency.getMean()))
+                    .append(",\"p50\":").append(latency.getPercentile(0.5))
+                    .append(",\"p90\":").append(latency.getPercentile(0.9))
+                    .append(",\"p99\":").append(latency.getPercentile(0.99))
+                    .append(",\"max\":").append(latency.getMax())
+                    .append(",\"histogram\":{");
+
+            long[] bounds = latency.getBucketBounds();
+            long[] counts = latency.getBucketCounts();
+            for (int i = 0; i < bounds.length; i++) {
+                if (i > 0) {
+                    json.append(",");
+                }
+                json.append("\"").append(bounds[i] == Long.MAX_VALUE ? "+Inf" : "<" + bounds[i]).append("\":").append(counts[i]);
+            }
+            json.append("}}}");
+        }
+        json.append("}");
+
+        json.append(",\"bytesFetched\":").append(stats.getBytesFetched())
+                .append(",\"bytesServed\":").append(stats.getBytesServed())
+                .append(",\"blockCache\":{")
+                .append("\"hits\":").append(stats.getCacheHits())
+                .append(",\"misses\":").append(stats.getCacheMisses())
+                .append(",\"evictions\":").append(stats.getCacheEvictions())
+                .append(",\"hitRatio\":").append(String.format(Locale.ENGLISH, "%.4f", stats.getCacheHitRatio()))
+                .append("}}");
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                // Non ASCII characters are escaped, the servlet output stream only prints ISO-8859-1
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append("\"");
+    }
+}
@@ -3,28 +3,72 @@ package uk.co.informaticslab;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.apache.log4j.Logger;
+
+import java.io.File;
 
 public final class Constants {
+    private static final Logger LOGGER = Logger.getLogger(Constants.class);
+
     public static final int MEGABYTE = 1024 * 1024;
 
+    // Size of the connection pool of the S3 client
+    public static final int S3_MAX_CONNECTIONS = 128;
+
     public static final Regions MY_S3_DATA_REGION = Regions.US_EAST_1;//Regions.EU_WEST_2;
 
+    public static final File THREDDS_CONTENT_DIRECTORY = new File("/usr/local/tomcat/content/thredds");
+
+    // Prefix of the Java system properties used to tune the plugin.
+    // Example: -Ds3datasetsource.diskCache.maxSize=10737418240
+    public static final String SYSTEM_PROPERTY_PREFIX = "s3datasetsource.";
+
     private Constants () {}
 
+    public static String getSystemProperty(String name, String defaultValue) {
+        return System.getProperty(SYSTEM_PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    public static long getSystemProperty(String name, long defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            LOGGER.error(String.format("Invalid value for system property %s%s: %s. Using default value: %d",
+                    SYSTEM_PROPERTY_PREFIX, name, value, defaultValue));
+            return defaultValue;
+        }
+    }
+
     public static AmazonS3 getS3Client() {
         ClientConfiguration config = new ClientConfiguration();
-        config.setMaxConnections(128);
+        config.setMaxConnections(S3_MAX_CONNECTIONS);
         config.setMaxErrorRetry(16);
         config.setConnectionTimeout(100000);
         config.setSocketTimeout(100000);
         config.setRetryPolicy(PredefinedRetryPolicies.getDefaultRetryPolicyWithCustomMaxRetries(32));
-        return AmazonS3ClientBuilder.standard()
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
             .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
-            .withRegion(MY_S3_DATA_REGION)
-            .withClientConfiguration(config).build();
+            .withClientConfiguration(config);
+
+        // S3 compatible server, used for benchmarks and local testing.
+        // Example: -Ds3datasetsource.endpoint=http://localhost:9000
+        String endpoint = Constants.getSystemProperty("endpoint", (String) null);
+        if (endpoint != null && !endpoint.trim().isEmpty()) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint.trim(), MY_S3_DATA_REGION.getName()))
+                .withPathStyleAccessEnabled(true);
+        } else {
+            builder.withRegion(MY_S3_DATA_REGION);
+        }
+        return builder.build();
     }
 }
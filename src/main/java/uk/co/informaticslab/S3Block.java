@@ -0,0 +1,82 @@
+package uk.co.informaticslab;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Block of a S3 file, stored in a (usually direct) {@link ByteBuffer}.
+ * <p>
+ * Blocks are reference counted: the buffer is returned to its {@link S3BufferPool}
+ * when the last reference is released. A new block has one reference, owned by
+ * its creator. Every call to {@link #retain()} which returns true must be followed
+ * by a call to {@link #release()}.
+ */
+public class S3Block {
+    private final ByteBuffer buffer;
+    private final S3BufferPool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param buffer the block content, from position 0 to the buffer limit
+     * @param pool the pool the buffer is returned to when the block is released, or null
+     */
+    public S3Block(ByteBuffer buffer, S3BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * @return a new buffer sharing the block content, positioned at the beginning of the block.
+     */
+    public ByteBuffer getBuffer() {
+        return this.buffer.duplicate();
+    }
+
+    public int getLength() {
+        return this.buffer.limit();
+    }
+
+    /**
+     * @return the memory held by the block, which can be larger than its length when its buffer is pooled.
+     */
+    public int getCapacity() {
+        return this.buffer.capacity();
+    }
+
+    /**
+     * Copy part of the block into a buffer.
+     *
+     * @param blockPosition position in the block
+     * @param dst destination buffer, its position is moved by the number of copied bytes
+     * @param length number of bytes to copy
+     */
+    public void copyTo(int blockPosition, ByteBuffer dst, int length) {
+        ByteBuffer src = this.buffer.duplicate();
+        src.position(blockPosition);
+        src.limit(blockPosition + length);
+        dst.put(src);
+    }
+
+    /**
+     * Add a reference to the block.
+     *
+     * @return false if the block has already been released, and must not be used.
+     */
+    public boolean retain() {
+        while (true) {
+            int count = this.references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (this.references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (this.references.decrementAndGet() == 0 && this.pool != null) {
+            this.pool.release(this.buffer);
+        }
+    }
+}
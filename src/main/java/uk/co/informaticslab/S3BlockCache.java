@@ -0,0 +1,399 @@
+package uk.co.informaticslab;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, size bounded cache of S3 file blocks.
+ * <p>
+ * A single instance is shared by every {@link S3RandomAccessFile}, whatever
+ * the service that opened it (OPeNDAP, WMS, HTTP file server, etc).
+ * Lookups are lock free (backed by a {@link ConcurrentHashMap}).
+ * When the cache grows over its maximum size, the least recently used
+ * blocks are evicted until it fits again.
+ * <p>
+ * Blocks are identified by bucket, key, ETag and offset, so a file
+ * which is replaced on S3 never serves stale blocks; the blocks of the
+ * old version simply age out of the cache.
+ * <p>
+ * The cache can be backed by a {@link S3DiskBlockCache}. Blocks missing
+ * from memory are then looked up on disk before being downloaded from S3.
+ * Blocks are written to disk in the background, by the {@link S3IOExecutor} pool.
+ * <p>
+ * Blocks are held in buffers taken from the cache {@link S3BufferPool}: off-heap pooled buffers,
+ * or heap buffers for small blocks. The cache size counts the capacity of the buffers,
+ * so it's the memory actually held by the cache.
+ * The cache holds a reference to each of its blocks, released on eviction.
+ * <p>
+ * Concurrent misses on the same block are coalesced (see {@link #get(BlockKey, Callable)}):
+ * the block is downloaded once, and the other readers wait for it.
+ */
+public class S3BlockCache {
+    public static final long DEFAULT_MAX_SIZE = Constants.MEGABYTE * 55L;
+
+    private static final S3BlockCache DEFAULT_INSTANCE = new S3BlockCache(DEFAULT_MAX_SIZE, S3DiskBlockCache.createDefault());
+
+    private final long maxSize;
+    private final S3DiskBlockCache diskCache;
+    private final S3BufferPool bufferPool;
+
+    private final Map<BlockKey, Entry> entries = new ConcurrentHashMap<BlockKey, Entry>();
+    private final AtomicLong size = new AtomicLong(0);
+
+    // Logical clock used to order blocks by last access
+    private final AtomicLong clock = new AtomicLong(0);
+    private final Object evictionLock = new Object();
+
+    // Blocks being downloaded
+    private final Map<BlockKey, FutureTask<S3Block>> pendingLoads = new ConcurrentHashMap<BlockKey, FutureTask<S3Block>>();
+
+    private final S3Metrics metrics = S3Metrics.getDefault();
+
+    public S3BlockCache(long maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize maximum number of bytes held in memory
+     * @param diskCache second level cache, or null to only cache blocks in memory
+     */
+    public S3BlockCache(long maxSize, S3DiskBlockCache diskCache) {
+        this.maxSize = maxSize;
+        this.diskCache = diskCache;
+        this.bufferPool = new S3BufferPool(S3BufferPool.DEFAULT_BUFFER_SIZE, S3BufferPool.DEFAULT_MAX_IDLE_BUFFERS);
+    }
+
+    /**
+     * @return the cache shared by every S3 reader of the webapp.
+     */
+    public static S3BlockCache getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * @param blockKey the block identifier
+     * @return the cached block, or null if the block is not in the cache.
+     *     The returned block must be released by the caller (see {@link S3Block#release()}).
+     */
+    public S3Block get(BlockKey blockKey) {
+        S3Block block = this.lookup(blockKey);
+        if (block != null) {
+            this.metrics.cacheHit(blockKey.getBucket(), blockKey.getKey());
+        } else {
+            this.metrics.cacheMiss(blockKey.getBucket(), blockKey.getKey());
+        }
+        return block;
+    }
+
+    /**
+     * Look up a block in memory, then on disk, without recording a cache hit or miss.
+     */
+    private S3Block lookup(BlockKey blockKey) {
+        Entry entry = this.entries.get(blockKey);
+        // The block may have been evicted (and its buffer recycled) since it was looked up
+        if (entry != null && entry.block.retain()) {
+            entry.lastAccess = this.clock.incrementAndGet();
+            return entry.block;
+        }
+
+        if (this.diskCache != null) {
+            S3Block block = this.diskCache.get(blockKey, this.bufferPool);
+            if (block != null) {
+                this.putInMemory(blockKey, block);
+            }
+            return block;
+        }
+        return null;
+    }
+
+    /**
+     * Get a block from the cache, loading it if it's missing.
+     * If the block is already being loaded by another thread, wait for it
+     * rather than loading it again.
+     *
+     * @param blockKey the block identifier
+     * @param loader called to load the block when it's missing. It returns a new block,
+     *     which is added to the cache.
+     * @return the block, which must be released by the caller (see {@link S3Block#release()}).
+     * @throws IOException if the block could not be loaded
+     */
+    public S3Block get(BlockKey blockKey, Callable<S3Block> loader) throws IOException {
+        String description = String.format("block %d of %s:%s", blockKey.getOffset(), blockKey.getBucket(), blockKey.getKey());
+        while (true) {
+            S3Block block = this.lookup(blockKey);
+            if (block != null) {
+                this.metrics.cacheHit(blockKey.getBucket(), blockKey.getKey());
+                return block;
+            }
+
+            FutureTask<S3Block> task = new FutureTask<S3Block>(loader);
+            FutureTask<S3Block> pendingTask = this.pendingLoads.putIfAbsent(blockKey, task);
+            if (pendingTask == null) {
+                // Load the block in this thread
+                this.metrics.cacheMiss(blockKey.getBucket(), blockKey.getKey());
+                try {
+                    task.run();
+                    block = S3IOExecutor.get(task, description);
+                    this.put(blockKey, block);
+                    return block;
+                } finally {
+                    this.pendingLoads.remove(blockKey, task);
+                }
+            }
+
+            try {
+                block = S3IOExecutor.get(pendingTask, description);
+            } catch (IOException | RuntimeException ex) {
+                // The failure belongs to the thread which loaded the block (cancelled read-ahead,
+                // client disconnected while the block was streamed to it, etc).
+                // Try again, unless this thread was interrupted. If the failure persists,
+                // this thread will eventually load the block itself and get the error.
+                if (ex instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+                    throw ex;
+                }
+                continue;
+            }
+
+            // The block may have been evicted (and its buffer recycled) since it was loaded
+            if (block.retain()) {
+                // Served by another thread's download
+                this.metrics.cacheHit(blockKey.getBucket(), blockKey.getKey());
+                return block;
+            }
+        }
+    }
+
+    /**
+     * Check if a block is in the cache, without affecting its eviction order.
+     */
+    public boolean contains(BlockKey blockKey) {
+        return this.entries.containsKey(blockKey) ||
+                (this.diskCache != null && this.diskCache.contains(blockKey));
+    }
+
+    /**
+     * @return true if a block is being loaded by {@link #get(BlockKey, Callable)}.
+     */
+    public boolean isLoading(BlockKey blockKey) {
+        return this.pendingLoads.containsKey(blockKey);
+    }
+
+    /**
+     * Add a block to the cache. The cache takes its own reference of the block;
+     * the caller still has to release its reference.
+     */
+    public void put(BlockKey blockKey, S3Block block) {
+        this.putInMemory(blockKey, block);
+        if (this.diskCache != null) {
+            this.diskCache.putInBackground(blockKey, block, S3IOExecutor.getDefault());
+        }
+    }
+
+    private void putInMemory(BlockKey blockKey, S3Block block) {
+        // The cache size counts the memory held by the blocks, not only their length
+        if (block == null || block.getCapacity() > this.maxSize || !block.retain()) {
+            return;
+        }
+
+        Entry previous = this.entries.put(blockKey, new Entry(block, this.clock.incrementAndGet()));
+        this.size.addAndGet(block.getCapacity() - (previous == null ? 0 : previous.block.getCapacity()));
+        if (previous != null) {
+            previous.block.release();
+        }
+
+        if (this.size.get() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Remove every block of a S3 file from the memory cache, whatever its ETag.
+     * Blocks saved in the disk cache are left untouched; they are only
+     * found using the ETag of the file, so they can not be served stale.
+     *
+     * @param bucket the S3 bucket of the file
+     * @param key the S3 key of the file
+     */
+    public void invalidate(String bucket, String key) {
+        for (Map.Entry<BlockKey, Entry> mapEntry : this.entries.entrySet()) {
+            if (mapEntry.getKey().isBlockOf(bucket, key)) {
+                this.remove(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+    }
+
+    public void clear() {
+        for (Map.Entry<BlockKey, Entry> mapEntry : this.entries.entrySet()) {
+            this.remove(mapEntry.getKey(), mapEntry.getValue());
+        }
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public S3DiskBlockCache getDiskCache() {
+        return this.diskCache;
+    }
+
+    /**
+     * @return the pool of buffers used to create the blocks held in this cache.
+     */
+    public S3BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * @return the number of bytes currently held in the cache.
+     */
+    public long getSize() {
+        return this.size.get();
+    }
+
+    public int getBlockCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Evict the least recently used blocks until the cache fits in its maximum size.
+     * Blocks are large (several MB each), so the cache never holds more than a few
+     * hundred of them and a linear scan is cheaper than maintaining an ordered structure
+     * on every read.
+     */
+    private void evict() {
+        synchronized (this.evictionLock) {
+            while (this.size.get() > this.maxSize) {
+                BlockKey oldestKey = null;
+                Entry oldestEntry = null;
+                for (Map.Entry<BlockKey, Entry> mapEntry : this.entries.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    if (oldestEntry == null || entry.lastAccess < oldestEntry.lastAccess) {
+                        oldestKey = mapEntry.getKey();
+                        oldestEntry = entry;
+                    }
+                }
+
+                if (oldestEntry == null) {
+                    break;
+                }
+                if (this.remove(oldestKey, oldestEntry)) {
+                    this.metrics.cacheEviction(oldestKey.getBucket(), oldestKey.getKey());
+                }
+            }
+        }
+    }
+
+    private boolean remove(BlockKey blockKey, Entry entry) {
+        // Only remove the entry if it has not been replaced in the meantime,
+        // otherwise the cache size would be decremented twice.
+        if (this.entries.remove(blockKey, entry)) {
+            this.size.addAndGet(-entry.block.getCapacity());
+            entry.block.release();
+            return true;
+        }
+        return false;
+    }
+
+    private static class Entry {
+        private final S3Block block;
+        private volatile long lastAccess;
+
+        public Entry(S3Block block, long lastAccess) {
+            this.block = block;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Identify a block of a S3 file.
+     */
+    public static class BlockKey {
+        private final String bucket;
+        private final String key;
+        private final String eTag;
+        private final long offset;
+        private final int size;
+
+        /**
+         * @param bucket the S3 bucket of the file
+         * @param key the S3 key of the file
+         * @param eTag the ETag of the file, identifies its version
+         * @param offset position of the block in the file
+         * @param size nominal size of the block. Blocks of different sizes may start at the
+         *     same offset (see {@link S3RandomAccessFile#setLayoutAware(boolean)}).
+         *     The last block of a file may be shorter.
+         */
+        public BlockKey(String bucket, String key, String eTag, long offset, int size) {
+            this.bucket = bucket;
+            this.key = key;
+            this.eTag = eTag;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public String getBucket() {
+            return this.bucket;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public String getETag() {
+            return this.eTag;
+        }
+
+        public long getOffset() {
+            return this.offset;
+        }
+
+        public int getSize() {
+            return this.size;
+        }
+
+        public boolean isBlockOf(String bucket, String key) {
+            return equals(this.bucket, bucket) && equals(this.key, key);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof BlockKey)) {
+                return false;
+            }
+
+            BlockKey otherKey = (BlockKey) other;
+            return this.offset == otherKey.offset &&
+                    this.size == otherKey.size &&
+                    equals(this.key, otherKey.key) &&
+                    equals(this.bucket, otherKey.bucket) &&
+                    equals(this.eTag, otherKey.eTag);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.bucket == null ? 0 : this.bucket.hashCode();
+            result = 31 * result + (this.key == null ? 0 : this.key.hashCode());
+            result = 31 * result + (this.eTag == null ? 0 : this.eTag.hashCode());
+            result = 31 * result + (int) (this.offset ^ (this.offset >>> 32));
+            result = 31 * result + this.size;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%s[%s]@%d+%d", this.bucket, this.key, this.eTag, this.offset, this.size);
+        }
+
+        private static boolean equals(String str1, String str2) {
+            return str1 == null ? str2 == null : str1.equals(str2);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.informaticslab;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct (off-heap) {@link ByteBuffer} used to hold S3 blocks.
+ * <p>
+ * Blocks are several MB each. Allocating them on the Java heap for every
+ * S3 request generates a lot of garbage collection. Pooled direct buffers
+ * are allocated once and reused by the block cache, the S3 download loop
+ * and the transfers to the servlet output.
+ * <p>
+ * Small blocks (metadata blocks, small HDF5 chunks) would waste most of a pooled buffer.
+ * They get a heap buffer of their own size instead.
+ */
+public class S3BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 2 * S3RandomAccessFile.DEFAULT_S3_BUFFER_SIZE;
+    public static final int DEFAULT_MAX_IDLE_BUFFERS = 16;
+
+    // Blocks up to this fraction of the pooled buffers are not pooled
+    private static final int SMALL_BLOCK_RATIO = 4;
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> idleBuffers;
+
+    public S3BufferPool(int bufferSize, int maxIdleBuffers) {
+        this.bufferSize = bufferSize;
+        // ArrayBlockingQueue doesn't allocate anything when a buffer is added
+        this.idleBuffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxIdleBuffers));
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public int getIdleBufferCount() {
+        return this.idleBuffers.size();
+    }
+
+    /**
+     * Get an empty block, ready to be filled.
+     * The block buffer is positioned at 0, with its limit set to the requested length.
+     * Its capacity may be larger (see {@link S3Block#getCapacity()}).
+     *
+     * @param length the block length
+     * @return a block, owned by the caller (see {@link S3Block#release()})
+     */
+    public S3Block acquire(int length) {
+        if (length > this.bufferSize) {
+            // Larger than the pooled buffers, it's not recycled
+            return new S3Block(ByteBuffer.allocateDirect(length), null);
+        }
+        if (length <= this.bufferSize / SMALL_BLOCK_RATIO) {
+            return new S3Block(ByteBuffer.allocate(length), null);
+        }
+
+        ByteBuffer buffer = this.idleBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return new S3Block(buffer, this);
+    }
+
+    /**
+     * Return a buffer to the pool, called when the last reference of a block is released.
+     * If the pool is full, the buffer is left to the garbage collector.
+     */
+    protected void release(ByteBuffer buffer) {
+        if (buffer.capacity() == this.bufferSize) {
+            this.idleBuffers.offer(buffer);
+        }
+    }
+}
@@ -1,19 +1,17 @@
 package uk.co.informaticslab;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import org.apache.log4j.Logger;
 import thredds.servlet.DatasetSource;
 import ucar.nc2.NetcdfFile;
-import ucar.nc2.NetcdfFileSubclass;
 import ucar.nc2.iosp.IOServiceProvider;
 import ucar.nc2.iosp.hdf5.H5iosp;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
 
 /**
  * {@link DatasetSource} implementation to read directly from s3
@@ -34,8 +32,11 @@ public class S3DatasetSource implements DatasetSource {
 
     private final AmazonS3 client = Constants.getS3Client();
 
-    private Map<String, byte[]> cache = new HashMap<String, byte[]>();
-    private LinkedList<String> index = new LinkedList<String>();
+    private final S3BlockCache cache = S3BlockCache.getDefault();
+
+    private final S3MetadataCache metadataCache = S3MetadataCache.getDefault();
+
+    private final S3NetcdfFileCache fileCache = S3NetcdfFileCache.getDefault();
 
     @Override
     public boolean isMine(HttpServletRequest req) {
@@ -50,25 +51,33 @@ public class S3DatasetSource implements DatasetSource {
         String s3Url = S3DatasetSource.createS3UrlFromPath(request.getPathInfo());
         LOGGER.debug(String.format("Accessing NetCDF file in S3 on url [%s]", s3Url));
 
-        S3RandomAccessFile s3RandomAccessFile = new S3RandomAccessFile(this.index, this.cache, this.client, s3Url);
+        AmazonS3URI s3Uri = new AmazonS3URI(s3Url);
+        ObjectMetadata metadata = this.metadataCache.getObjectMetadata(this.client, s3Uri.getBucket(), s3Uri.getKey());
 
         // If file not found:
+        if (metadata == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("S3 file not found: %s", s3Url));
+            return null;
+        }
+
+        // Reuse a file opened by a previous request, to skip the header parsing
+        S3NetcdfFileCache.CachedFile cachedFile = this.fileCache.acquire(S3NetcdfFileCache.getCacheKey(s3Url, metadata.getETag()));
+        if (cachedFile != null) {
+            LOGGER.debug(String.format("Reusing opened NetCDF file [%s]", s3Url));
+            return (NetcdfFile) cachedFile;
+        }
+
+        // Small read buffer, so the HDF5 chunks are read with direct reads, fetched whole
+        S3RandomAccessFile s3RandomAccessFile = new S3RandomAccessFile(this.cache, this.metadataCache, this.client, s3Url,
+                S3RandomAccessFile.METADATA_BLOCK_SIZE);
         if (!s3RandomAccessFile.exists()) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("S3 file not found: %s", s3Url));
             return null;
         }
+        s3RandomAccessFile.setLayoutAware(true);
 
         IOServiceProvider iosp = new H5iosp();
-        NetcdfFile ncf = new NetcdfFileSubclass(iosp, s3RandomAccessFile, null, null) {
-            // Fix the getLastModified method, but that's a bit pointless
-            // since THREDDS don't even use it.
-            @Override
-            public long getLastModified() {
-                return s3RandomAccessFile.getLastModified();
-            }
-        };
-
-        return ncf;
+        return new S3NetcdfFile(this.fileCache, iosp, s3RandomAccessFile);
     }
 
     public static boolean isS3Path(String path) {
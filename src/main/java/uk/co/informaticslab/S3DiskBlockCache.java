@@ -0,0 +1,327 @@
+package uk.co.informaticslab;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Second level cache of S3 file blocks, stored on the local disk.
+ * <p>
+ * Blocks which are evicted from the memory cache (or lost when Tomcat restarts)
+ * can be read from the disk instead of being downloaded from S3 again.
+ * Each block is stored in its own file, named after the bucket, key and ETag
+ * of the S3 file and the offset of the block.
+ * <p>
+ * Blocks are written in the background (see {@link #putInBackground(S3BlockCache.BlockKey, S3Block, S3IOExecutor)}),
+ * so a slow disk never delays the S3 readers.
+ * <p>
+ * The cache is bounded in size; the least recently used blocks are deleted
+ * when the cache grows over its maximum size. The last access time of a block is
+ * kept in the last modified date of its file, so the eviction order survives restarts.
+ */
+public class S3DiskBlockCache {
+    private static final Logger LOGGER = Logger.getLogger(S3DiskBlockCache.class);
+
+    public static final File DEFAULT_DIRECTORY = new File(Constants.THREDDS_CONTENT_DIRECTORY, "s3cache");
+    // The disk cache is opt-in: it's only enabled when its maximum size is set
+    public static final long DEFAULT_MAX_SIZE = 0;
+
+    private static final String BLOCK_FILE_EXTENSION = ".block";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+    // Do not update the file last modified date more often than that, it's only used to order evictions
+    private static final long LAST_ACCESS_PRECISION = 60 * 1000L;
+
+    private final File directory;
+    private final long maxSize;
+
+    private final Map<File, Entry> entries = new ConcurrentHashMap<File, Entry>();
+    private final AtomicLong size = new AtomicLong(0);
+    private final Object evictionLock = new Object();
+
+    // Blocks waiting to be written by the I/O pool
+    private final Set<File> pendingWrites = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    public S3DiskBlockCache(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException(String.format("Can not create the S3 disk cache directory: %s", this.directory));
+        }
+        if (!this.directory.canWrite()) {
+            throw new IOException(String.format("The S3 disk cache directory is not writable: %s", this.directory));
+        }
+
+        this.load(this.directory);
+        LOGGER.info(String.format("S3 disk cache enabled in %s, maximum size %d bytes, contains %d blocks, %d bytes",
+                this.directory, this.maxSize, this.entries.size(), this.size.get()));
+        if (this.size.get() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Create the disk cache, as defined in the system properties
+     * (see {@link Constants#getSystemProperty(String, long)}).
+     *
+     * @return the disk cache, or null if it's disabled or if the cache directory is not usable.
+     */
+    public static S3DiskBlockCache createDefault() {
+        File directory = new File(Constants.getSystemProperty("diskCache.directory", DEFAULT_DIRECTORY.getPath()));
+        long maxSize = Constants.getSystemProperty("diskCache.maxSize", DEFAULT_MAX_SIZE);
+        if (maxSize <= 0) {
+            LOGGER.info(String.format("S3 disk cache disabled, set the system property %sdiskCache.maxSize to enable it",
+                    Constants.SYSTEM_PROPERTY_PREFIX));
+            return null;
+        }
+
+        try {
+            return new S3DiskBlockCache(directory, maxSize);
+        } catch (Exception ex) {
+            LOGGER.warn(String.format("S3 disk cache disabled: %s", ex.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * @param blockKey the block identifier
+     * @param bufferPool the pool used to allocate the returned block
+     * @return the cached block, or null if the block is not in the cache or can not be read.
+     *     The returned block must be released by the caller (see {@link S3Block#release()}).
+     */
+    public S3Block get(S3BlockCache.BlockKey blockKey, S3BufferPool bufferPool) {
+        File blockFile = this.getBlockFile(blockKey);
+        Entry entry = this.entries.get(blockFile);
+        if (entry == null) {
+            return null;
+        }
+
+        S3Block block = null;
+        try (FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.READ)) {
+            block = bufferPool.acquire((int) channel.size());
+            ByteBuffer blockBuffer = block.getBuffer();
+            while (blockBuffer.hasRemaining()) {
+                if (channel.read(blockBuffer) < 0) {
+                    throw new IOException(String.format("Unexpected end of file, %d bytes missing", blockBuffer.remaining()));
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - entry.lastAccess > LAST_ACCESS_PRECISION) {
+                entry.lastAccess = now;
+                blockFile.setLastModified(now);
+            }
+            return block;
+        } catch (IOException ex) {
+            LOGGER.warn(String.format("Error occurred while reading the S3 disk cache block: %s", blockFile), ex);
+            if (block != null) {
+                block.release();
+            }
+            this.remove(blockFile, entry);
+            return null;
+        }
+    }
+
+    public boolean contains(S3BlockCache.BlockKey blockKey) {
+        return this.entries.containsKey(this.getBlockFile(blockKey));
+    }
+
+    /**
+     * Save a block on disk, using a thread of the I/O pool. The block is retained
+     * until it's written. The block is not saved if the pool is saturated;
+     * it will be saved the next time it's downloaded.
+     */
+    public void putInBackground(final S3BlockCache.BlockKey blockKey, final S3Block block, S3IOExecutor ioExecutor) {
+        if (block == null || block.getLength() > this.maxSize) {
+            return;
+        }
+
+        final File blockFile = this.getBlockFile(blockKey);
+        if (this.entries.containsKey(blockFile) || !this.pendingWrites.add(blockFile)) {
+            return;
+        }
+        if (!block.retain()) {
+            this.pendingWrites.remove(blockFile);
+            return;
+        }
+
+        boolean submitted = ioExecutor.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    S3DiskBlockCache.this.put(blockKey, block);
+                } finally {
+                    S3DiskBlockCache.this.pendingWrites.remove(blockFile);
+                    block.release();
+                }
+            }
+        });
+        if (!submitted) {
+            LOGGER.debug(String.format("I/O pool saturated, S3 disk cache block not saved: %s", blockFile));
+            this.pendingWrites.remove(blockFile);
+            block.release();
+        }
+    }
+
+    /**
+     * Save a block on disk, in the calling thread. Errors are logged, not thrown: the disk cache
+     * must never prevent a block from being served.
+     */
+    public void put(S3BlockCache.BlockKey blockKey, S3Block block) {
+        if (block == null || block.getLength() > this.maxSize) {
+            return;
+        }
+
+        File blockFile = this.getBlockFile(blockKey);
+        if (this.entries.containsKey(blockFile)) {
+            return;
+        }
+
+        // Write in a temporary file, then move it, so a partially written block is never read
+        File blockDirectory = blockFile.getParentFile();
+        File temporaryFile = new File(blockDirectory, UUID.randomUUID().toString() + TEMPORARY_FILE_EXTENSION);
+        try {
+            if (!blockDirectory.isDirectory() && !blockDirectory.mkdirs()) {
+                throw new IOException(String.format("Can not create directory: %s", blockDirectory));
+            }
+            try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = block.getBuffer();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temporaryFile.toPath(), blockFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.warn(String.format("Error occurred while writing the S3 disk cache block: %s", blockFile), ex);
+            temporaryFile.delete();
+            return;
+        }
+
+        Entry previous = this.entries.put(blockFile, new Entry(block.getLength(), System.currentTimeMillis()));
+        this.size.addAndGet(block.getLength() - (previous == null ? 0 : previous.size));
+
+        if (this.size.get() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public long getSize() {
+        return this.size.get();
+    }
+
+    public int getBlockCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Load the list of blocks saved on disk by a previous run.
+     */
+    private void load(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String filename = file.getName();
+            if (file.isDirectory()) {
+                this.load(file);
+            } else if (filename.endsWith(BLOCK_FILE_EXTENSION)) {
+                this.entries.put(file, new Entry(file.length(), file.lastModified()));
+                this.size.addAndGet(file.length());
+            } else if (filename.endsWith(TEMPORARY_FILE_EXTENSION)) {
+                // Left over from an interrupted write
+                file.delete();
+            }
+        }
+    }
+
+    private void evict() {
+        synchronized (this.evictionLock) {
+            while (this.size.get() > this.maxSize) {
+                File oldestFile = null;
+                Entry oldestEntry = null;
+                for (Map.Entry<File, Entry> mapEntry : this.entries.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    if (oldestEntry == null || entry.lastAccess < oldestEntry.lastAccess) {
+                        oldestFile = mapEntry.getKey();
+                        oldestEntry = entry;
+                    }
+                }
+
+                if (oldestEntry == null) {
+                    break;
+                }
+                this.remove(oldestFile, oldestEntry);
+            }
+        }
+    }
+
+    private void remove(File blockFile, Entry entry) {
+        if (this.entries.remove(blockFile, entry)) {
+            this.size.addAndGet(-entry.size);
+            if (!blockFile.delete() && blockFile.exists()) {
+                LOGGER.warn(String.format("Can not delete the S3 disk cache block: %s", blockFile));
+            }
+        }
+    }
+
+    /**
+     * Blocks are stored in: [directory]/[2 first characters of the file hash]/[file hash]-[block offset]-[block size].block
+     * The file hash is computed from the bucket, key and ETag of the S3 file.
+     */
+    private File getBlockFile(S3BlockCache.BlockKey blockKey) {
+        String fileHash = hash(String.format("%s/%s@%s", blockKey.getBucket(), blockKey.getKey(), blockKey.getETag()));
+        File hashDirectory = new File(this.directory, fileHash.substring(0, 2));
+        return new File(hashDirectory, fileHash + "-" + blockKey.getOffset() + "-" + blockKey.getSize() + BLOCK_FILE_EXTENSION);
+    }
+
+    private static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-1 is available in every JVM
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private volatile long lastAccess;
+
+        public Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package uk.co.informaticslab;
+
+import com.amazonaws.AmazonClientException;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * S3 I/O layer: the thread pool used to run S3 requests in the background
+ * (read-ahead, parallel range requests, harvester listings), and the limits
+ * on the number of S3 requests sent at the same time.
+ * <p>
+ * Every S3 request, from a background task or from a request thread, must hold a permit
+ * (see {@link #acquire(String)}). The number of permits is capped globally, to not exceed
+ * the connection pool of the S3 client, and per bucket, so a single busy bucket
+ * can't take every connection.
+ * <p>
+ * The pool has a bounded queue. When it's full, the task is run by the caller,
+ * which slows down the producers instead of queuing an unbounded amount of work.
+ * Optional work, like read-ahead, is dropped instead (see {@link #tryExecute(Runnable)}).
+ * On Java 21 or later, the pool can use virtual threads.
+ */
+public class S3IOExecutor {
+    private static final Logger LOGGER = Logger.getLogger(S3IOExecutor.class);
+
+    // Leave half of the S3 client connections to the request threads
+    public static final int DEFAULT_NB_THREADS = Constants.S3_MAX_CONNECTIONS / 2;
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final S3IOExecutor DEFAULT_INSTANCE = new S3IOExecutor(
+            (int) Constants.getSystemProperty("io.threads", DEFAULT_NB_THREADS),
+            (int) Constants.getSystemProperty("io.queueSize", DEFAULT_QUEUE_SIZE),
+            (int) Constants.getSystemProperty("io.maxRequests", Constants.S3_MAX_CONNECTIONS),
+            (int) Constants.getSystemProperty("io.maxRequestsPerBucket", Constants.S3_MAX_CONNECTIONS),
+            Boolean.parseBoolean(Constants.getSystemProperty("io.virtualThreads", "false")));
+
+    // Set while tryExecute submits a task, so the saturation policy drops it instead of running it
+    private static final ThreadLocal<Boolean> OPTIONAL_TASK = new ThreadLocal<Boolean>();
+
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Runnable> queue;
+
+    private final Semaphore requestPermits;
+    private final int maxRequestsPerBucket;
+    private final ConcurrentMap<String, Semaphore> bucketRequestPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    // Requests kept open while a client consumes their data, see tryAcquireStream
+    private final Semaphore streamPermits;
+    private final int maxStreamsPerBucket;
+    private final ConcurrentMap<String, Semaphore> bucketStreamPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * @param nbThreads number of threads running background S3 requests
+     * @param queueSize maximum number of background tasks waiting for a thread
+     * @param maxRequests maximum number of S3 requests sent at the same time
+     * @param maxRequestsPerBucket maximum number of S3 requests sent to a bucket at the same time
+     * @param virtualThreads true to run the background tasks on virtual threads, if the JVM supports them
+     */
+    public S3IOExecutor(int nbThreads, int queueSize, int maxRequests, int maxRequestsPerBucket, boolean virtualThreads) {
+        this.queue = new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize));
+        this.executor = new ThreadPoolExecutor(Math.max(1, nbThreads), Math.max(1, nbThreads), 60, TimeUnit.SECONDS,
+                this.queue, getThreadFactory(virtualThreads), new SaturationPolicy());
+        // Idle threads are stopped, the pool is mostly used in bursts
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.requestPermits = new Semaphore(Math.max(1, maxRequests));
+        this.maxRequestsPerBucket = Math.max(1, maxRequestsPerBucket);
+        this.streamPermits = new Semaphore(Math.max(1, maxRequests) / 2);
+        this.maxStreamsPerBucket = this.maxRequestsPerBucket / 2;
+    }
+
+    /**
+     * @return the S3 I/O layer shared by the dataset source, the file server and the harvester.
+     */
+    public static S3IOExecutor getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Run optional work in the background, if the pool is not saturated.
+     *
+     * @return false if the task was dropped because the queue is full.
+     */
+    public boolean tryExecute(Runnable task) {
+        OPTIONAL_TASK.set(Boolean.TRUE);
+        try {
+            this.executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        } finally {
+            OPTIONAL_TASK.remove();
+        }
+    }
+
+    /**
+     * Wait until a S3 request can be sent to a bucket.
+     * Must be followed by {@link #release(String)}, in a finally block.
+     * A thread must not request a second permit while it holds one.
+     *
+     * @param bucket the bucket of the request
+     * @throws AmazonClientException if the thread was interrupted while waiting
+     */
+    public void acquire(String bucket) {
+        Semaphore bucketPermits = getBucketPermits(this.bucketRequestPermits, bucket, this.maxRequestsPerBucket);
+        try {
+            bucketPermits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException(String.format("Interrupted while waiting to send a S3 request to the bucket %s", bucket), ex);
+        }
+        try {
+            this.requestPermits.acquire();
+        } catch (InterruptedException ex) {
+            bucketPermits.release();
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException(String.format("Interrupted while waiting to send a S3 request to the bucket %s", bucket), ex);
+        }
+    }
+
+    public void release(String bucket) {
+        this.requestPermits.release();
+        getBucketPermits(this.bucketRequestPermits, bucket, this.maxRequestsPerBucket).release();
+    }
+
+    /**
+     * Try to reserve a S3 request which stays open while its data is consumed at the pace of a client,
+     * without waiting. Must be followed by {@link #releaseStream(String)}.
+     * <p>
+     * The progress of such a request depends on background tasks, so it must not hold
+     * the permits background tasks wait for: open requests are limited to half of the permits,
+     * globally and per bucket. The other half is left to requests which complete on their own.
+     *
+     * @param bucket the bucket of the request
+     * @return false if too many requests are already open, or if no permit is available right now.
+     */
+    public boolean tryAcquireStream(String bucket) {
+        Semaphore bucketStreams = getBucketPermits(this.bucketStreamPermits, bucket, this.maxStreamsPerBucket);
+        if (!this.streamPermits.tryAcquire()) {
+            return false;
+        }
+        if (!bucketStreams.tryAcquire()) {
+            this.streamPermits.release();
+            return false;
+        }
+        Semaphore bucketPermits = getBucketPermits(this.bucketRequestPermits, bucket, this.maxRequestsPerBucket);
+        if (!bucketPermits.tryAcquire()) {
+            bucketStreams.release();
+            this.streamPermits.release();
+            return false;
+        }
+        if (!this.requestPermits.tryAcquire()) {
+            bucketPermits.release();
+            bucketStreams.release();
+            this.streamPermits.release();
+            return false;
+        }
+        return true;
+    }
+
+    public void releaseStream(String bucket) {
+        this.release(bucket);
+        getBucketPermits(this.bucketStreamPermits, bucket, this.maxStreamsPerBucket).release();
+        this.streamPermits.release();
+    }
+
+    /**
+     * @return the number of S3 requests which can be sent right now.
+     */
+    public int getAvailableRequests() {
+        return this.requestPermits.availablePermits();
+    }
+
+    /**
+     * @return the number of S3 requests which can be sent to a bucket right now.
+     */
+    public int getAvailableRequests(String bucket) {
+        return Math.min(this.getAvailableRequests(),
+                getBucketPermits(this.bucketRequestPermits, bucket, this.maxRequestsPerBucket).availablePermits());
+    }
+
+    public int getQueuedTaskCount() {
+        return this.queue.size();
+    }
+
+    private static Semaphore getBucketPermits(ConcurrentMap<String, Semaphore> bucketPermits, String bucket, int maxPermits) {
+        String bucketKey = bucket == null ? "" : bucket;
+        Semaphore permits = bucketPermits.get(bucketKey);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxPermits);
+            permits = bucketPermits.putIfAbsent(bucketKey, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Wait for a background S3 request, and unwrap its exception.
+     *
+     * @param future the background task
+     * @param description description of the task, used in error messages
+     * @return the result of the task
+     * @throws CancellationException if the task was cancelled
+     * @throws IOException if the task failed
+     */
+    public static <T> T get(Future<T> future, String description) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while waiting for %s", description));
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(String.format("Error occurred while waiting for %s", description), cause);
+        }
+    }
+
+    private static ThreadFactory getThreadFactory(boolean virtualThreads) {
+        if (virtualThreads) {
+            ThreadFactory virtualThreadFactory = getVirtualThreadFactory();
+            if (virtualThreadFactory != null) {
+                return virtualThreadFactory;
+            }
+        }
+
+        return new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-io-" + this.threadCount.incrementAndGet());
+                // Do not prevent Tomcat from shutting down
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Thread.ofVirtual().name("s3-io-", 1).factory(), called by reflection since the plugin is built for Java 8.
+     *
+     * @return the factory, or null if the JVM doesn't support virtual threads.
+     */
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, "s3-io-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            LOGGER.warn(String.format("Virtual threads are not supported by this JVM (%s), using platform threads",
+                    System.getProperty("java.version")));
+            return null;
+        }
+    }
+
+    /**
+     * Called when every thread is busy and the queue is full: required tasks are run by the caller,
+     * optional tasks (submitted with tryExecute) are rejected. The decision is taken by the pool itself,
+     * so an optional task can never end up running on the caller thread.
+     */
+    private static class SaturationPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (OPTIONAL_TASK.get() != null || executor.isShutdown()) {
+                throw new RejectedExecutionException("S3 I/O pool saturated");
+            }
+            task.run();
+        }
+    }
+}
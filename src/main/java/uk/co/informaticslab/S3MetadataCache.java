@@ -0,0 +1,212 @@
+package uk.co.informaticslab;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe cache of S3 object metadata (size, ETag, last modified date).
+ * <p>
+ * Opening a S3 file, serving it or checking its last modified date all
+ * need the object metadata. Without a cache, each of them sends a HEAD
+ * request to S3 before the first byte of data is read.
+ * <p>
+ * Entries expire after a configurable time to live, so files replaced on S3
+ * are picked up. Missing files are cached too (negative entries), with
+ * a shorter time to live, so repeated requests for a file which doesn't
+ * exist don't all reach S3.
+ * <p>
+ * When the cache is full, the entries which expire first are evicted
+ * in batches, so the cost of an eviction is shared by many additions.
+ */
+public class S3MetadataCache {
+    private static final Logger LOGGER = Logger.getLogger(S3MetadataCache.class);
+
+    public static final long DEFAULT_TTL = 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 10 * 1000L;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // An eviction removes this fraction of the maximum number of entries
+    private static final int EVICTION_BATCH_RATIO = 10;
+
+    private static final S3MetadataCache DEFAULT_INSTANCE = new S3MetadataCache(
+            Constants.getSystemProperty("metadataCache.ttl", DEFAULT_TTL),
+            Constants.getSystemProperty("metadataCache.negativeTtl", DEFAULT_NEGATIVE_TTL),
+            (int) Constants.getSystemProperty("metadataCache.maxEntries", DEFAULT_MAX_ENTRIES));
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final S3Metrics metrics = S3Metrics.getDefault();
+    private final S3IOExecutor ioExecutor = S3IOExecutor.getDefault();
+    private final Object evictionLock = new Object();
+
+    /**
+     * @param ttl time, in milliseconds, the metadata of an existing file is kept
+     * @param negativeTtl time, in milliseconds, a missing file is remembered as missing
+     * @param maxEntries maximum number of files in the cache
+     */
+    public S3MetadataCache(long ttl, long negativeTtl, int maxEntries) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cache shared by the dataset source, the file server and the harvester.
+     */
+    public static S3MetadataCache getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Get the metadata of a S3 file, sending a HEAD request if it's not in the cache.
+     *
+     * @param client S3 client used to request the metadata
+     * @param bucket the file bucket
+     * @param key the file key
+     * @return the file metadata, or null if the file doesn't exist.
+     *     The returned metadata is shared, it must not be modified.
+     * @throws AmazonS3Exception if the metadata could not be requested, for a reason other than a missing file.
+     */
+    public ObjectMetadata getObjectMetadata(AmazonS3 client, String bucket, String key) {
+        String cacheKey = getCacheKey(bucket, key);
+        Entry entry = this.entries.get(cacheKey);
+        if (entry != null && !entry.isExpired()) {
+            return entry.metadata;
+        }
+
+        ObjectMetadata metadata;
+        this.ioExecutor.acquire(bucket);
+        long startTime = this.metrics.requestStarted(S3Metrics.RequestType.HEAD, bucket, key);
+        boolean failed = false;
+        try {
+            LOGGER.debug(String.format("Request metadata from S3: %s:%s", bucket, key));
+            metadata = client.getObjectMetadata(bucket, key); // does a head request on the data
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() != 404) {
+                failed = true;
+                throw ex;
+            }
+            metadata = null;
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        } finally {
+            this.metrics.requestCompleted(S3Metrics.RequestType.HEAD, bucket, key, startTime, 0, failed);
+            this.ioExecutor.release(bucket);
+        }
+
+        this.put(cacheKey, metadata);
+        return metadata;
+    }
+
+    /**
+     * Add the metadata of a file found by a S3 listing,
+     * to save a HEAD request when the file is opened.
+     * Listings hold many more files than the cache, so they only fill its free room;
+     * they never evict the entries of the files in use.
+     */
+    public void put(String bucket, S3ObjectSummary objectSummary) {
+        String cacheKey = getCacheKey(bucket, objectSummary.getKey());
+        if (this.entries.size() >= this.maxEntries && !this.entries.containsKey(cacheKey)) {
+            return;
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(objectSummary.getSize());
+        metadata.setLastModified(objectSummary.getLastModified());
+        metadata.setHeader(Headers.ETAG, objectSummary.getETag());
+
+        this.put(cacheKey, metadata);
+    }
+
+    public void invalidate(String bucket, String key) {
+        this.entries.remove(getCacheKey(bucket, key));
+    }
+
+    public void clear() {
+        this.entries.clear();
+    }
+
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    private void put(String cacheKey, ObjectMetadata metadata) {
+        long expiry = System.currentTimeMillis() + (metadata == null ? this.negativeTtl : this.ttl);
+        this.entries.put(cacheKey, new Entry(metadata, expiry));
+
+        if (this.entries.size() > this.maxEntries) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Remove the expired entries, then the entries which expire first
+     * until the cache is a batch under its maximum size.
+     */
+    private void evict() {
+        synchronized (this.evictionLock) {
+            // Already evicted by another thread
+            if (this.entries.size() <= this.maxEntries) {
+                return;
+            }
+
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isExpired()) {
+                    iterator.remove();
+                }
+            }
+
+            int excess = this.entries.size() - (this.maxEntries - this.maxEntries / EVICTION_BATCH_RATIO);
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<String, Entry>> sortedEntries = new ArrayList<Map.Entry<String, Entry>>(this.entries.entrySet());
+            Collections.sort(sortedEntries, new Comparator<Map.Entry<String, Entry>>() {
+                @Override
+                public int compare(Map.Entry<String, Entry> entry1, Map.Entry<String, Entry> entry2) {
+                    return Long.compare(entry1.getValue().expiry, entry2.getValue().expiry);
+                }
+            });
+            for (int i = 0; i < excess && i < sortedEntries.size(); i++) {
+                Map.Entry<String, Entry> mapEntry = sortedEntries.get(i);
+                this.entries.remove(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+    }
+
+    private static String getCacheKey(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    private static class Entry {
+        // null when the file doesn't exist
+        private final ObjectMetadata metadata;
+        private final long expiry;
+
+        public Entry(ObjectMetadata metadata, long expiry) {
+            this.metadata = metadata;
+            this.expiry = expiry;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() > this.expiry;
+        }
+    }
+}
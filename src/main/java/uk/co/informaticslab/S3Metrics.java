@@ -0,0 +1,328 @@
+package uk.co.informaticslab;
+
+import org.apache.log4j.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Instrumentation of the S3 I/O: requests sent to S3, bytes fetched and served,
+ * request latencies and block cache efficiency.
+ * <p>
+ * Statistics are kept for the whole webapp, per bucket and per dataset (S3 file).
+ * The number of datasets tracked individually is limited; once the limit is reached,
+ * the least recently updated dataset stops being tracked to make room for the new one.
+ * Datasets are always counted in their bucket and in the total.
+ * <p>
+ * Each {@link S3Stats} is registered as a JMX MBean, under the domain {@link #JMX_DOMAIN}.
+ * The MBeans are unregistered with {@link #unregisterMBeans()}, when the webapp stops
+ * (see thredds.server.metrics.S3MetricsContextListener).
+ * The statistics are also available from the /s3metrics endpoint.
+ */
+public class S3Metrics {
+    private static final Logger LOGGER = Logger.getLogger(S3Metrics.class);
+
+    public static final String JMX_DOMAIN = "uk.co.informaticslab.s3datasetsource";
+    public static final int DEFAULT_MAX_DATASETS = 500;
+
+    private static final S3Metrics DEFAULT_INSTANCE = new S3Metrics(
+            (int) Constants.getSystemProperty("metrics.maxDatasets", DEFAULT_MAX_DATASETS),
+            Boolean.parseBoolean(Constants.getSystemProperty("metrics.jmx", "true")));
+
+    public enum RequestType {
+        GET, HEAD, LIST
+    }
+
+    private final int maxDatasets;
+    private final boolean jmxEnabled;
+
+    private final S3Stats total = new S3Stats();
+    private final ConcurrentMap<String, S3Stats> buckets = new ConcurrentHashMap<String, S3Stats>();
+    private final ConcurrentMap<String, S3Stats> datasets = new ConcurrentHashMap<String, S3Stats>();
+    // Held to add or evict a dataset
+    private final Object datasetsLock = new Object();
+
+    // MBeans registered on the platform MBean server
+    private final Set<ObjectName> registeredMBeans = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+    private volatile boolean mBeansUnregistered = false;
+
+    /**
+     * @param maxDatasets maximum number of datasets tracked individually. Set to 0 to only keep per bucket statistics.
+     * @param jmxEnabled true to register the statistics as JMX MBeans
+     */
+    public S3Metrics(int maxDatasets, boolean jmxEnabled) {
+        this.maxDatasets = maxDatasets;
+        this.jmxEnabled = jmxEnabled;
+        this.registerMBean(this.total, "type=S3Metrics,name=total");
+    }
+
+    /**
+     * @return the metrics shared by every S3 reader of the webapp.
+     */
+    public static S3Metrics getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * Record the start of a S3 request. Must be followed by a call to
+     * {@link #requestCompleted(RequestType, String, String, long, long, boolean)}.
+     *
+     * @param requestType the type of request
+     * @param bucket the bucket
+     * @param key the S3 key of the dataset, or null for bucket requests
+     * @return the start time, to give to requestCompleted.
+     */
+    public long requestStarted(RequestType requestType, String bucket, String key) {
+        this.total.requestStarted(requestType);
+        this.getBucketStats(bucket).requestStarted(requestType);
+        S3Stats datasetStats = this.getDatasetStats(bucket, key);
+        if (datasetStats != null) {
+            datasetStats.requestStarted(requestType);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the end of a S3 request.
+     *
+     * @param requestType the type of request
+     * @param bucket the bucket
+     * @param key the S3 key of the dataset, or null for bucket requests
+     * @param startTime the value returned by requestStarted
+     * @param bytes number of bytes downloaded
+     * @param failed true if the request failed
+     */
+    public void requestCompleted(RequestType requestType, String bucket, String key, long startTime, long bytes, boolean failed) {
+        long latency = System.nanoTime() - startTime;
+        this.total.requestCompleted(requestType, latency, bytes, failed);
+        this.getBucketStats(bucket).requestCompleted(requestType, latency, bytes, failed);
+        S3Stats datasetStats = this.getDatasetStats(bucket, key);
+        if (datasetStats != null) {
+            datasetStats.requestCompleted(requestType, latency, bytes, failed);
+        }
+    }
+
+    /**
+     * Record bytes returned to a reader.
+     */
+    public void bytesServed(String bucket, String key, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        this.total.bytesServed(bytes);
+        this.getBucketStats(bucket).bytesServed(bytes);
+        S3Stats datasetStats = this.getDatasetStats(bucket, key);
+        if (datasetStats != null) {
+            datasetStats.bytesServed(bytes);
+        }
+    }
+
+    public void cacheHit(String bucket, String key) {
+        this.total.cacheHit();
+        this.getBucketStats(bucket).cacheHit();
+        S3Stats datasetStats = this.getDatasetStats(bucket, key);
+        if (datasetStats != null) {
+            datasetStats.cacheHit();
+        }
+    }
+
+    public void cacheMiss(String bucket, String key) {
+        this.total.cacheMiss();
+        this.getBucketStats(bucket).cacheMiss();
+        S3Stats datasetStats = this.getDatasetStats(bucket, key);
+        if (datasetStats != null) {
+            datasetStats.cacheMiss();
+        }
+    }
+
+    public void cacheEviction(String bucket, String key) {
+        this.total.cacheEviction();
+        this.getBucketStats(bucket).cacheEviction();
+        // Evictions of blocks from a dataset which is not tracked do not start tracking it
+        S3Stats datasetStats = this.datasets.get(getDatasetId(bucket, key));
+        if (datasetStats != null) {
+            datasetStats.cacheEviction();
+        }
+    }
+
+    public S3Stats getTotal() {
+        return this.total;
+    }
+
+    /**
+     * @return the statistics of each bucket, by bucket name.
+     */
+    public Map<String, S3Stats> getBuckets() {
+        return Collections.unmodifiableMap(new HashMap<String, S3Stats>(this.buckets));
+    }
+
+    /**
+     * @return the statistics of each tracked dataset, by "bucket/key".
+     */
+    public Map<String, S3Stats> getDatasets() {
+        return Collections.unmodifiableMap(new HashMap<String, S3Stats>(this.datasets));
+    }
+
+    public int getMaxDatasets() {
+        return this.maxDatasets;
+    }
+
+    /**
+     * Reset every counter.
+     */
+    public void reset() {
+        this.total.reset();
+        for (S3Stats stats : this.buckets.values()) {
+            stats.reset();
+        }
+        for (S3Stats stats : this.datasets.values()) {
+            stats.reset();
+        }
+    }
+
+    private S3Stats getBucketStats(String bucket) {
+        S3Stats stats = this.buckets.get(bucket);
+        if (stats == null) {
+            S3Stats newStats = new S3Stats();
+            stats = this.buckets.putIfAbsent(bucket, newStats);
+            if (stats == null) {
+                stats = newStats;
+                this.registerMBean(stats, String.format("type=S3Metrics,bucket=%s", ObjectName.quote(bucket)));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the statistics of a dataset, or null if the key is null or datasets are not tracked.
+     */
+    private S3Stats getDatasetStats(String bucket, String key) {
+        if (key == null || this.maxDatasets <= 0) {
+            return null;
+        }
+        String datasetId = getDatasetId(bucket, key);
+        S3Stats stats = this.datasets.get(datasetId);
+        if (stats == null) {
+            synchronized (this.datasetsLock) {
+                stats = this.datasets.get(datasetId);
+                if (stats == null) {
+                    while (this.datasets.size() >= this.maxDatasets) {
+                        this.evictLeastRecentlyUpdatedDataset();
+                    }
+                    stats = new S3Stats();
+                    this.datasets.put(datasetId, stats);
+                    this.registerMBean(stats, getDatasetMBeanProperties(bucket, key));
+                }
+            }
+        }
+        stats.updated();
+        return stats;
+    }
+
+    /**
+     * Stop tracking the dataset which was updated the longest time ago.
+     * Called while holding the datasets lock, when a dataset is added. The datasets are scanned:
+     * it's only done for new datasets, updates of the tracked datasets don't take any lock.
+     */
+    private void evictLeastRecentlyUpdatedDataset() {
+        String evictedId = null;
+        long evictedLastUpdated = 0;
+        for (Map.Entry<String, S3Stats> dataset : this.datasets.entrySet()) {
+            long lastUpdated = dataset.getValue().getLastUpdated();
+            if (evictedId == null || lastUpdated - evictedLastUpdated < 0) {
+                evictedId = dataset.getKey();
+                evictedLastUpdated = lastUpdated;
+            }
+        }
+        if (evictedId != null) {
+            this.datasets.remove(evictedId);
+            // Bucket names don't contain "/"
+            int slashIndex = evictedId.indexOf('/');
+            this.unregisterMBean(getDatasetMBeanProperties(evictedId.substring(0, slashIndex), evictedId.substring(slashIndex + 1)));
+        }
+    }
+
+    private static String getDatasetId(String bucket, String key) {
+        return bucket + "/" + key;
+    }
+
+    private static String getDatasetMBeanProperties(String bucket, String key) {
+        return String.format("type=S3Metrics,bucket=%s,dataset=%s", ObjectName.quote(bucket), ObjectName.quote(key));
+    }
+
+    /**
+     * Unregister every MBean registered by these metrics, and stop registering new ones.
+     * Called when the webapp stops: the MBean server outlives the webapp, and would keep
+     * the MBeans (and the webapp classes) after it's undeployed.
+     */
+    public void unregisterMBeans() {
+        this.mBeansUnregistered = true;
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : this.registeredMBeans) {
+            this.registeredMBeans.remove(objectName);
+            try {
+                mBeanServer.unregisterMBean(objectName);
+            } catch (InstanceNotFoundException ex) {
+                // Already unregistered
+            } catch (Exception ex) {
+                LOGGER.warn(String.format("Could not unregister the S3 metrics MBean: %s", objectName), ex);
+            }
+        }
+    }
+
+    /**
+     * @return the number of MBeans currently registered by these metrics.
+     */
+    public int getRegisteredMBeanCount() {
+        return this.registeredMBeans.size();
+    }
+
+    private void registerMBean(S3Stats stats, String properties) {
+        if (!this.jmxEnabled || this.mBeansUnregistered) {
+            return;
+        }
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":" + properties);
+            StandardMBean mBean = new StandardMBean(stats, S3StatsMBean.class);
+            try {
+                mBeanServer.registerMBean(mBean, objectName);
+            } catch (InstanceAlreadyExistsException ex) {
+                // Left behind by a deployment of the webapp which was not stopped cleanly
+                mBeanServer.unregisterMBean(objectName);
+                mBeanServer.registerMBean(mBean, objectName);
+            }
+            this.registeredMBeans.add(objectName);
+        } catch (Exception ex) {
+            LOGGER.warn(String.format("Could not register the S3 metrics MBean: %s", properties), ex);
+        }
+    }
+
+    private void unregisterMBean(String properties) {
+        if (!this.jmxEnabled) {
+            return;
+        }
+
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":" + properties);
+            if (this.registeredMBeans.remove(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+        } catch (InstanceNotFoundException ex) {
+            // Already unregistered
+        } catch (Exception ex) {
+            LOGGER.warn(String.format("Could not unregister the S3 metrics MBean: %s", properties), ex);
+        }
+    }
+}
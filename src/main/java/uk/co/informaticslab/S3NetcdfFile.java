@@ -0,0 +1,58 @@
+package uk.co.informaticslab;
+
+import ucar.nc2.NetcdfFileSubclass;
+import ucar.nc2.iosp.IOServiceProvider;
+
+import java.io.IOException;
+
+/**
+ * NetCDF file read from S3, which returns to the {@link S3NetcdfFileCache} when it's closed
+ * instead of being closed, so its parsed header can be reused by the next request.
+ */
+public class S3NetcdfFile extends NetcdfFileSubclass implements S3NetcdfFileCache.CachedFile {
+    private final S3NetcdfFileCache fileCache;
+    private final String cacheKey;
+    private final S3RandomAccessFile s3RandomAccessFile;
+
+    /**
+     * @param fileCache the cache the file returns to when closed, or null to close it normally
+     * @param iosp the service provider used to parse the file
+     * @param s3RandomAccessFile the file content
+     * @throws IOException if the file can not be parsed
+     */
+    public S3NetcdfFile(S3NetcdfFileCache fileCache, IOServiceProvider iosp, S3RandomAccessFile s3RandomAccessFile) throws IOException {
+        super(iosp, s3RandomAccessFile, null, null);
+        this.fileCache = fileCache;
+        this.cacheKey = S3NetcdfFileCache.getCacheKey(s3RandomAccessFile.getLocation(), s3RandomAccessFile.getETag());
+        this.s3RandomAccessFile = s3RandomAccessFile;
+
+        if (this.fileCache != null) {
+            this.fileCache.register(this);
+        }
+    }
+
+    // Fix the getLastModified method, but that's a bit pointless
+    // since THREDDS don't even use it.
+    @Override
+    public long getLastModified() {
+        return this.s3RandomAccessFile.getLastModified();
+    }
+
+    @Override
+    public String getCacheKey() {
+        return this.cacheKey;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.fileCache != null && this.fileCache.release(this)) {
+            return;
+        }
+        this.closeFile();
+    }
+
+    @Override
+    public void closeFile() throws IOException {
+        super.close();
+    }
+}
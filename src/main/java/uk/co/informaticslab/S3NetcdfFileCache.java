@@ -0,0 +1,248 @@
+package uk.co.informaticslab;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of opened S3 NetCDF files.
+ * <p>
+ * Opening a NetCDF file parses its header (HDF5 superblock, B-trees, variable metadata),
+ * which needs several round trips to S3. This cache keeps the files open after they are
+ * closed by THREDDS, so the next request for the same file can skip the header parsing.
+ * <p>
+ * A NetCDF file is not thread safe: each file is used by a single request at a time.
+ * Files are handed out by {@link #acquire(String)}, and returned to the cache
+ * when they are closed (see {@link #release(CachedFile)}). Concurrent requests for
+ * the same file get different instances.
+ * <p>
+ * Files are identified by S3 URL and ETag, so a file which is replaced on S3 is opened again.
+ * Idle files are closed when they have not been used for a while, or when
+ * there are too many of them.
+ */
+public class S3NetcdfFileCache {
+    private static final Logger LOGGER = Logger.getLogger(S3NetcdfFileCache.class);
+
+    public static final int DEFAULT_MAX_IDLE_FILES = 50;
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+    private static final S3NetcdfFileCache DEFAULT_INSTANCE = new S3NetcdfFileCache(
+            (int) Constants.getSystemProperty("fileCache.maxIdleFiles", DEFAULT_MAX_IDLE_FILES),
+            Constants.getSystemProperty("fileCache.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+
+    private final int maxIdleFiles;
+    private final long idleTimeout;
+
+    // Idle files, by cache key. The most recently used file is at the head of each queue.
+    private final Map<String, Deque<IdleFile>> idleFiles = new HashMap<String, Deque<IdleFile>>();
+    private int idleFileCount = 0;
+
+    // Logical clock used to order idle files by last use
+    private long clock = 0;
+
+    // Files handed out to a request
+    private final Map<CachedFile, Boolean> inUseFiles = new ConcurrentHashMap<CachedFile, Boolean>();
+
+    /**
+     * @param maxIdleFiles maximum number of files kept open while they are not used. Set to 0 to disable the cache.
+     * @param idleTimeout time, in milliseconds, after which an idle file is closed
+     */
+    public S3NetcdfFileCache(int maxIdleFiles, long idleTimeout) {
+        this.maxIdleFiles = maxIdleFiles;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the cache used by the {@link S3DatasetSource}.
+     */
+    public static S3NetcdfFileCache getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    public static String getCacheKey(String url, String eTag) {
+        return url + "@" + eTag;
+    }
+
+    /**
+     * Get an idle file from the cache. The file is reserved for the caller until it's closed.
+     *
+     * @param cacheKey the file identifier, see {@link #getCacheKey(String, String)}
+     * @return the file, or null if there is no idle file for this key.
+     */
+    public CachedFile acquire(String cacheKey) {
+        CachedFile file = null;
+        List<CachedFile> expiredFiles;
+        synchronized (this) {
+            expiredFiles = this.removeExpiredFiles();
+
+            Deque<IdleFile> idleQueue = this.idleFiles.get(cacheKey);
+            if (idleQueue != null) {
+                IdleFile idleFile = idleQueue.pollFirst();
+                if (idleQueue.isEmpty()) {
+                    this.idleFiles.remove(cacheKey);
+                }
+                if (idleFile != null) {
+                    this.idleFileCount--;
+                    file = idleFile.file;
+                    this.inUseFiles.put(file, Boolean.TRUE);
+                }
+            }
+        }
+
+        closeFiles(expiredFiles);
+        return file;
+    }
+
+    /**
+     * Register a file which was just opened. The file is reserved for the caller until it's closed.
+     */
+    public void register(CachedFile file) {
+        this.inUseFiles.put(file, Boolean.TRUE);
+    }
+
+    /**
+     * Return a file to the cache. Called when the file is closed.
+     *
+     * @param file the closed file
+     * @return true if the file was kept by the cache (or was already closed),
+     *     false if the file must really be closed.
+     */
+    public boolean release(CachedFile file) {
+        if (this.inUseFiles.remove(file) == null) {
+            // Closed twice, or evicted
+            return true;
+        }
+        if (this.maxIdleFiles <= 0) {
+            return false;
+        }
+
+        List<CachedFile> expiredFiles;
+        synchronized (this) {
+            String cacheKey = file.getCacheKey();
+            Deque<IdleFile> idleQueue = this.idleFiles.get(cacheKey);
+            if (idleQueue == null) {
+                idleQueue = new ArrayDeque<IdleFile>();
+                this.idleFiles.put(cacheKey, idleQueue);
+            }
+            idleQueue.addFirst(new IdleFile(file, System.currentTimeMillis(), ++this.clock));
+            this.idleFileCount++;
+
+            expiredFiles = this.removeExpiredFiles();
+        }
+
+        closeFiles(expiredFiles);
+        return true;
+    }
+
+    /**
+     * Close every idle file.
+     */
+    public void clear() {
+        List<CachedFile> files = new ArrayList<CachedFile>();
+        synchronized (this) {
+            for (Deque<IdleFile> idleQueue : this.idleFiles.values()) {
+                for (IdleFile idleFile : idleQueue) {
+                    files.add(idleFile.file);
+                }
+            }
+            this.idleFiles.clear();
+            this.idleFileCount = 0;
+        }
+        closeFiles(files);
+    }
+
+    public synchronized int getIdleFileCount() {
+        return this.idleFileCount;
+    }
+
+    public int getInUseFileCount() {
+        return this.inUseFiles.size();
+    }
+
+    /**
+     * Remove the files which have been idle for too long, then the least recently
+     * used files until there is no more than maxIdleFiles idle files.
+     * Must be called while holding the lock. The files are closed by the caller, outside of the lock.
+     */
+    private List<CachedFile> removeExpiredFiles() {
+        List<CachedFile> expiredFiles = new ArrayList<CachedFile>();
+        long expiry = System.currentTimeMillis() - this.idleTimeout;
+
+        Iterator<Deque<IdleFile>> queueIterator = this.idleFiles.values().iterator();
+        while (queueIterator.hasNext()) {
+            Deque<IdleFile> idleQueue = queueIterator.next();
+            while (!idleQueue.isEmpty() && idleQueue.peekLast().idleSince < expiry) {
+                expiredFiles.add(idleQueue.pollLast().file);
+                this.idleFileCount--;
+            }
+            if (idleQueue.isEmpty()) {
+                queueIterator.remove();
+            }
+        }
+
+        while (this.idleFileCount > this.maxIdleFiles) {
+            String oldestKey = null;
+            IdleFile oldestFile = null;
+            for (Map.Entry<String, Deque<IdleFile>> queueEntry : this.idleFiles.entrySet()) {
+                IdleFile idleFile = queueEntry.getValue().peekLast();
+                if (oldestFile == null || idleFile.lastUse < oldestFile.lastUse) {
+                    oldestKey = queueEntry.getKey();
+                    oldestFile = idleFile;
+                }
+            }
+
+            Deque<IdleFile> idleQueue = this.idleFiles.get(oldestKey);
+            idleQueue.pollLast();
+            if (idleQueue.isEmpty()) {
+                this.idleFiles.remove(oldestKey);
+            }
+            this.idleFileCount--;
+            expiredFiles.add(oldestFile.file);
+        }
+
+        return expiredFiles;
+    }
+
+    private static void closeFiles(List<CachedFile> files) {
+        for (CachedFile file : files) {
+            try {
+                file.closeFile();
+            } catch (Exception ex) {
+                LOGGER.warn(String.format("Error occurred while closing the cached NetCDF file: %s", file.getCacheKey()), ex);
+            }
+        }
+    }
+
+    /**
+     * A file which can be kept in the cache.
+     * Its close method must call {@link #release(CachedFile)}.
+     */
+    public interface CachedFile {
+        String getCacheKey();
+
+        /**
+         * Close the file for good, without returning it to the cache.
+         */
+        void closeFile() throws IOException;
+    }
+
+    private static class IdleFile {
+        private final CachedFile file;
+        private final long idleSince;
+        private final long lastUse;
+
+        public IdleFile(CachedFile file, long idleSince, long lastUse) {
+            this.file = file;
+            this.idleSince = idleSince;
+            this.lastUse = lastUse;
+        }
+    }
+}
@@ -2,111 +2,267 @@ package uk.co.informaticslab;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import org.apache.log4j.Logger;
 import ucar.unidata.io.RandomAccessFile;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
 
 /**
  * Provides random access to files in S3 via byte ranged requests.
  * <p>
+ * Reads are served from fixed size blocks, shared by every reader through the {@link S3BlockCache}.
+ * In layout aware mode (see {@link #setLayoutAware(boolean)}), the block boundaries follow
+ * the reads of the HDF5 parser instead:
+ * <ul>
+ *   <li>Buffered reads (header, B-trees, small chunks), which are small and scattered,
+ *     are served from small metadata blocks rather than from large blocks.</li>
+ *   <li>A HDF5 chunk larger than the read buffer is read with a seek, which fills the buffer
+ *     from the start of the chunk (served by a metadata block), followed by a direct read of the rest of the chunk.
+ *     The rest of the chunk is downloaded in a single request, and cached under its exact extent
+ *     instead of being split on fixed block boundaries. The next reads of the chunk are served
+ *     from that block. Extents larger than the pooled buffers are read from the fixed size blocks.</li>
+ * </ul>
+ * <p>
  * originally written by @jamesmcclain
  */
 public class S3RandomAccessFile extends RandomAccessFile {
     private static final Logger LOGGER = Logger.getLogger(S3RandomAccessFile.class);
 
     public static final int DEFAULT_S3_BUFFER_SIZE = Constants.MEGABYTE * 2;
-    public static final int DEFAULT_MAX_CACHE_SIZE = Constants.MEGABYTE * 55;
+
+    // Size of the metadata blocks, and of the read buffer, in layout aware mode
+    public static final int METADATA_BLOCK_SIZE = 64 * 1024;
+    // Maximum number of chunk extents remembered per file
+    private static final int MAX_CHUNKS = 10000;
+
+    // Used to copy S3 responses into direct buffers, allocated once per thread
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
 
     private final AmazonS3URI uri;
     private final AmazonS3 s3Client;
     private final String bucket;
     private final String key;
+    // null when the file doesn't exist
     private final ObjectMetadata metadata;
 
     private int cacheBlockSize = -1;
-    private int maxCacheBlocks = -1;
 
-    private Map<String, byte[]> cache;
-    private LinkedList<String> index;
+    // Shared by every S3RandomAccessFile, do not clear it when this file is closed
+    private final S3BlockCache cache;
+    private final S3BufferPool bufferPool;
+    private final S3MetadataCache metadataCache;
+    private final S3Metrics metrics = S3Metrics.getDefault();
+    private final S3IOExecutor ioExecutor = S3IOExecutor.getDefault();
+    private S3ReadAhead readAhead;
+
+    private boolean layoutAware = false;
+    // Extent of the chunks learned in layout aware mode: chunk offset => chunk length
+    private final ConcurrentNavigableMap<Long, Integer> chunks = new ConcurrentSkipListMap<Long, Integer>();
 
-    public S3RandomAccessFile(LinkedList<String> index, Map<String, byte[]> cache, AmazonS3 client, String url) throws IOException {
-        this(index, cache, client, url, DEFAULT_S3_BUFFER_SIZE);
+    public S3RandomAccessFile(S3BlockCache cache, AmazonS3 client, String url) throws IOException {
+        this(cache, null, client, url, DEFAULT_S3_BUFFER_SIZE);
     }
 
-    public S3RandomAccessFile(LinkedList<String> index, Map<String, byte[]> cache, AmazonS3 client, String url, int bufferSize) throws IOException {
-        this(index, cache, client, url, bufferSize, DEFAULT_MAX_CACHE_SIZE);
+    public S3RandomAccessFile(S3BlockCache cache, S3MetadataCache metadataCache, AmazonS3 client, String url) throws IOException {
+        this(cache, metadataCache, client, url, DEFAULT_S3_BUFFER_SIZE);
     }
 
-    public S3RandomAccessFile(LinkedList<String> index, Map<String, byte[]> cache, AmazonS3 client, String url, int bufferSize, int maxCacheSize) throws IOException {
+    /**
+     * @param cache block cache, or null to disable caching
+     * @param metadataCache metadata cache, or null to request the file metadata from S3
+     * @param client S3 client
+     * @param url S3 URL of the file
+     * @param bufferSize read buffer size
+     * @throws IOException on io error
+     */
+    public S3RandomAccessFile(S3BlockCache cache, S3MetadataCache metadataCache, AmazonS3 client, String url, int bufferSize) throws IOException {
         super(bufferSize);
+        this.metadataCache = metadataCache;
         this.cache = cache;
-        this.index = index;
+        this.bufferPool = cache == null ?
+                new S3BufferPool(S3BufferPool.DEFAULT_BUFFER_SIZE, 1) :
+                cache.getBufferPool();
         this.file = null;
         this.location = url;
 
+        // Only enable cache if it can hold at least one block.
+        // Blocks are twice the buffer size, but not smaller than the pooled buffers, to not fragment the cache.
+        int blockSize = Math.max(2 * bufferSize, S3BufferPool.DEFAULT_BUFFER_SIZE);
+        if (cache != null && cache.getMaxSize() >= blockSize) {
+            this.cacheBlockSize = blockSize;
 
-        // Only enable cache if given size is at least twice the buffer size
-        if (maxCacheSize >= 2 * bufferSize) {
-            this.cacheBlockSize = 2 * bufferSize;
-            this.maxCacheBlocks = maxCacheSize / this.cacheBlockSize;
+            // Do not read ahead more than a quarter of the cache, to leave room for the other readers
+            int maxReadAheadWindow = (int) Math.min(S3ReadAhead.DEFAULT_MAX_WINDOW, cache.getMaxSize() / (4L * this.cacheBlockSize));
+            if (maxReadAheadWindow > 0) {
+                this.readAhead = new S3ReadAhead(new ReadAheadLoader(), maxReadAheadWindow);
+            }
         } else {
-            this.cacheBlockSize = this.maxCacheBlocks = -1;
+            this.cacheBlockSize = -1;
         }
 
         this.s3Client = client;
         this.uri = new AmazonS3URI(url);
         this.bucket = this.uri.getBucket();
         this.key = this.uri.getKey();
-        this.metadata = client.getObjectMetadata(this.bucket, this.key); // does a head request on the data
+        this.metadata = this.requestMetadata();
     }
 
-    public boolean exists() {
-        if (this.bucket == null || this.key == null || this.s3Client == null) {
-            return false;
+    private ObjectMetadata requestMetadata() {
+        if (this.bucket == null || this.key == null) {
+            return null;
+        }
+        if (this.metadataCache != null) {
+            return this.metadataCache.getObjectMetadata(this.s3Client, this.bucket, this.key);
         }
 
-        LOGGER.debug(String.format("Check if file exists on S3: %s:%s", this.bucket, this.key));
-        return this.s3Client.doesObjectExist(this.bucket, this.key);
+        this.ioExecutor.acquire(this.bucket);
+        long startTime = this.metrics.requestStarted(S3Metrics.RequestType.HEAD, this.bucket, this.key);
+        boolean failed = false;
+        try {
+            return this.s3Client.getObjectMetadata(this.bucket, this.key); // does a head request on the data
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() != 404) {
+                failed = true;
+                throw ex;
+            }
+            return null;
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        } finally {
+            this.metrics.requestCompleted(S3Metrics.RequestType.HEAD, this.bucket, this.key, startTime, 0, failed);
+            this.ioExecutor.release(this.bucket);
+        }
     }
 
+    /**
+     * Enable the layout aware mode, used when the file is read by the HDF5 parser.
+     * It should be used with a small read buffer (see {@link #METADATA_BLOCK_SIZE}),
+     * so the HDF5 chunks are read with direct reads.
+     * Only used when the cache is enabled.
+     */
+    public void setLayoutAware(boolean layoutAware) {
+        this.layoutAware = layoutAware;
+    }
+
+    /**
+     * Disable the read-ahead, for readers which fetch the file ahead of time themselves.
+     * Background tasks of the S3 I/O pool must disable it: waiting for a read-ahead queued
+     * behind them in the same pool could deadlock.
+     */
+    public void disableReadAhead() {
+        if (this.readAhead != null) {
+            this.readAhead.cancel();
+            this.readAhead = null;
+        }
+    }
+
+    /**
+     * @return the pool of the buffers used by the block cache, to read the file into pooled buffers.
+     */
+    public S3BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * @return true if the file existed on S3 when it was opened.
+     *     The answer comes from the metadata requested when the file was opened, it doesn't send a request to S3.
+     */
+    public boolean exists() {
+        return this.metadata != null;
+    }
+
+    /**
+     * Cancel pending read-ahead. The blocks read from this file are left in the shared cache
+     * for the other readers; they will get evicted when they are no longer used.
+     */
+    @Override
     public void close() throws IOException {
-        this.cache.clear();
-        this.index.clear();
+        if (this.readAhead != null) {
+            this.readAhead.cancel();
+        }
+    }
+
+    /**
+     * Get a block from the cache, downloading it from S3 if needed.
+     *
+     * @return the block, which must be released by the caller (see {@link S3Block#release()})
+     */
+    private S3Block ensure(long blockIndex) throws IOException {
+        if (this.readAhead != null) {
+            this.readAhead.await(blockIndex);
+        }
+        return this.fetchBlock(blockIndex);
     }
 
     /**
-     * After execution of this function, the given block is guaranteed to
-     * be in the cache.
+     * Get a block from the cache, downloading it from S3 if needed.
+     * Concurrent readers of the same block share a single download.
+     *
+     * @return the block, which must be released by the caller (see {@link S3Block#release()})
      */
-    private void ensure(long key) throws IOException {
-        if (!this.cache.containsKey(this.getCacheKey(key))) {
-            long position = key * this.cacheBlockSize;
-            long toEOF = (this.length() - position);
-            long bytes = toEOF < this.cacheBlockSize ? toEOF : this.cacheBlockSize;
-            byte[] buffer = new byte[(int) bytes];
+    private S3Block fetchBlock(final long blockIndex) throws IOException {
+        return this.cache.get(this.getCacheKey(blockIndex), new Callable<S3Block>() {
+            @Override
+            public S3Block call() throws Exception {
+                return S3RandomAccessFile.this.downloadBlock(blockIndex);
+            }
+        });
+    }
 
-            this.read__(position, buffer, 0, this.cacheBlockSize);
-            this.cache.put(this.getCacheKey(key), buffer);
-            this.index.add(this.getCacheKey(key));
-            assert (this.cache.size() == this.index.size());
-            while (this.cache.size() > this.maxCacheBlocks) {
-                String id = this.index.removeFirst();
-                this.cache.remove(id);
+    private S3Block downloadBlock(long blockIndex) throws IOException {
+        long position = blockIndex * this.cacheBlockSize;
+        long toEOF = (this.length() - position);
+        long bytes = toEOF < this.cacheBlockSize ? toEOF : this.cacheBlockSize;
+        return this.downloadExtent(position, (int) bytes);
+    }
+
+    private S3Block downloadExtent(long position, int bytes) throws IOException {
+        S3Block block = this.bufferPool.acquire(bytes);
+        try {
+            ByteBuffer blockBuffer = block.getBuffer();
+            this.read__(position, blockBuffer);
+            if (blockBuffer.hasRemaining()) {
+                throw new EOFException(String.format("Unexpected end of S3 file %s:%s at %d",
+                        this.bucket, this.key, position + blockBuffer.position()));
             }
+        } catch (IOException | RuntimeException ex) {
+            block.release();
+            throw ex;
         }
+        return block;
+    }
+
+    private S3BlockCache.BlockKey getCacheKey(long blockIndex) {
+        return this.getCacheKey(blockIndex * this.cacheBlockSize, this.cacheBlockSize);
     }
 
-    private String getCacheKey(long oldKey) {
-        return this.key + oldKey;
+    private S3BlockCache.BlockKey getCacheKey(long offset, int size) {
+        return new S3BlockCache.BlockKey(this.bucket, this.key, this.metadata.getETag(), offset, size);
     }
 
     /**
@@ -124,76 +280,646 @@ public class S3RandomAccessFile extends RandomAccessFile {
      */
     @Override
     protected int read_(long pos, byte[] buff, int offset, int len) throws IOException {
-        if (!(this.cacheBlockSize > 0) || !(this.maxCacheBlocks > 0)) {
-            return this.read__(pos, buff, offset, len);
+        int bytes;
+        if (this.layoutAware && this.cacheBlockSize > 0) {
+            // The RandomAccessFile reads into its own buffer when it needs to fill it,
+            // otherwise the read is a direct read, larger than the buffer.
+            boolean bufferFill = buff == this.buffer;
+            bytes = this.readLayoutAware(pos, ByteBuffer.wrap(buff, offset, len), bufferFill);
+        } else {
+            bytes = this.read(pos, ByteBuffer.wrap(buff, offset, len));
+        }
+        this.metrics.bytesServed(this.bucket, this.key, bytes);
+        return bytes;
+    }
+
+    /**
+     * Read, in layout aware mode.
+     *
+     * @param pos start here in the file
+     * @param dst put data into this buffer, from its position to its limit.
+     *     Its position is moved by the number of bytes read.
+     * @param bufferFill true if the read is filling the RandomAccessFile buffer,
+     *     false if it's a direct read.
+     * @return actual number of bytes read, which may be less than requested for buffer fills
+     * @throws IOException on io error
+     */
+    private int readLayoutAware(long pos, ByteBuffer dst, boolean bufferFill) throws IOException {
+        long fileLength = this.length();
+        if (pos >= fileLength || !dst.hasRemaining()) {
+            return 0;
+        }
+        int len = (int) Math.min(dst.remaining(), fileLength - pos);
+
+        // Read from a known chunk
+        Map.Entry<Long, Integer> chunk = this.chunks.floorEntry(pos);
+        if (chunk != null && pos + (bufferFill ? 1 : len) <= chunk.getKey() + chunk.getValue()) {
+            long chunkOffset = chunk.getKey();
+            int chunkLength = chunk.getValue();
+            int length = (int) Math.min(len, chunkOffset + chunkLength - pos);
+            return this.readExtent(chunkOffset, chunkLength, chunkLength, pos, dst, length);
+        }
+
+        if (bufferFill) {
+            // Return what's left in the metadata block; the RandomAccessFile accepts partially filled buffers
+            long blockOffset = (pos / METADATA_BLOCK_SIZE) * METADATA_BLOCK_SIZE;
+            int length = (int) Math.min(len, blockOffset + METADATA_BLOCK_SIZE - pos);
+            return this.readExtent(blockOffset, (int) Math.min(METADATA_BLOCK_SIZE, fileLength - blockOffset), METADATA_BLOCK_SIZE, pos, dst, length);
         }
 
         long start = pos / this.cacheBlockSize;
         long end = (pos + len - 1) / this.cacheBlockSize;
+        if (end - start > 1) {
+            return this.readParallel(pos, dst, this.cacheBlockSize);
+        }
+
+        // The data may already be available in the fixed size blocks (sequential read, read-ahead)
+        boolean cachedInBlocks = true;
+        for (long blockIndex = start; blockIndex <= end; blockIndex++) {
+            cachedInBlocks = cachedInBlocks && this.cache.contains(this.getCacheKey(blockIndex));
+        }
+        if (cachedInBlocks) {
+            return this.read(pos, dst);
+        }
 
-        if (pos >= this.length()) { // Do not read past end of the file
+        // Only the rest of the chunk is downloaded: its start was just read by the buffer fill, from a metadata block.
+        // Larger extents would not fit in the pooled buffers, they are read from the fixed size blocks.
+        if (len > this.bufferPool.getBufferSize()) {
+            return this.read(pos, dst);
+        }
+        if (this.chunks.size() < MAX_CHUNKS) {
+            this.chunks.put(pos, len);
+        }
+        return this.readExtent(pos, len, len, pos, dst, len);
+    }
+
+    /**
+     * Read from a block of arbitrary offset and size, downloaded whole and cached under its exact extent.
+     *
+     * @param blockOffset offset of the block in the file
+     * @param blockLength length of the block
+     * @param blockSize nominal size of the block, part of its cache key
+     * @param pos start reading here in the file, must be in the block
+     * @param dst put data into this buffer
+     * @param length number of bytes to read, must not go past the end of the block
+     * @return actual number of bytes read
+     * @throws IOException on io error
+     */
+    private int readExtent(final long blockOffset, final int blockLength, int blockSize, long pos, ByteBuffer dst, int length) throws IOException {
+        S3Block block = this.cache.get(this.getCacheKey(blockOffset, blockSize), new Callable<S3Block>() {
+            @Override
+            public S3Block call() throws Exception {
+                return S3RandomAccessFile.this.downloadExtent(blockOffset, blockLength);
+            }
+        });
+        try {
+            block.copyTo((int) (pos - blockOffset), dst, length);
+            return length;
+        } finally {
+            block.release();
+        }
+    }
+
+    /**
+     * Read from the file into the remaining space of a buffer,
+     * going through the cache when it's enabled.
+     *
+     * @param pos start here in the file
+     * @param dst put data into this buffer, from its position to its limit.
+     *     Its position is moved by the number of bytes read.
+     * @return actual number of bytes read
+     * @throws IOException on io error
+     */
+    private int read(long pos, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        if (!(this.cacheBlockSize > 0)) {
+            if (len > 2 * DEFAULT_S3_BUFFER_SIZE) {
+                return this.readParallel(pos, dst, 2 * DEFAULT_S3_BUFFER_SIZE);
+            }
+            return this.read__(pos, dst);
+        }
+
+        long fileLength = this.length();
+        if (pos >= fileLength || len <= 0) { // Do not read past end of the file
             return 0;
-        } else if (end - start > 1) { // If the request touches more than two cache blocks, punt (should never happen)
-            return this.read__(pos, buff, offset, len);
-        } else if (end - start == 1) { // If the request touches two cache blocks, split it
-            int length1 = (int) ((end * this.cacheBlockSize) - pos);
-            int length2 = (int) ((pos + len) - (end * this.cacheBlockSize));
-            return this.read_(pos, buff, offset, length1) + this.read_(pos + length1, buff, offset + length1, length2);
         }
+        len = (int) Math.min(len, fileLength - pos);
 
-        // Service a request that touches only one cache block
-        long key = start;
-        this.ensure(key);
+        long start = pos / this.cacheBlockSize;
+        long end = (pos + len - 1) / this.cacheBlockSize;
 
-        byte[] src = this.cache.get(this.getCacheKey(key));
-        int srcPos = (int) (pos - (key * this.cacheBlockSize));
-        int toEOB = src.length - srcPos;
-        int length = toEOB < len ? toEOB : len;
-        System.arraycopy(src, srcPos, buff, offset, length);
+        if (end - start > 1) { // If the request touches more than two cache blocks, download the blocks in parallel
+            return this.readParallel(pos, dst, this.cacheBlockSize);
+        }
+
+        // Service a request that touches one or two cache blocks
+        int totalBytes = 0;
+        for (long blockIndex = start; blockIndex <= end; blockIndex++) {
+            if (this.readAhead != null) {
+                this.readAhead.onAccess(blockIndex);
+            }
+            S3Block block = this.ensure(blockIndex);
+            try {
+                int blockPos = (int) (pos + totalBytes - (blockIndex * this.cacheBlockSize));
+                int length = Math.min(block.getLength() - blockPos, len - totalBytes);
+                block.copyTo(blockPos, dst, length);
+                totalBytes += length;
+            } finally {
+                block.release();
+            }
+        }
+
+        return totalBytes;
+    }
+
+    /**
+     * Read a large range by splitting it into block aligned parts, downloaded
+     * in parallel directly into the given buffer.
+     * Parts found in the cache are copied from it, but the downloaded parts are not cached
+     * to prevent a single large read from evicting every other block.
+     *
+     * @param pos    start here in the file
+     * @param dst    put data into this buffer, from its position to its limit.
+     *     Its position is moved by the number of bytes read.
+     * @param partSize size of the parts, must be the cache block size if the cache is enabled
+     * @return actual number of bytes read
+     * @throws IOException on io error
+     */
+    int readParallel(long pos, ByteBuffer dst, int partSize) throws IOException {
+        long fileLength = this.length();
+        if (pos >= fileLength) {
+            return 0;
+        }
+        long readEnd = Math.min(pos + dst.remaining(), fileLength);
+        int dstStart = dst.position();
+
+        LOGGER.debug(String.format("Parallel read from %d, len %d from S3: %s:%s", pos, readEnd - pos, this.bucket, this.key));
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        int totalBytes = 0;
+        try {
+            long partPos = pos;
+            while (partPos < readEnd) {
+                long partIndex = partPos / partSize;
+                long partEnd = Math.min((partIndex + 1) * partSize, readEnd);
+                final long finalPartPos = partPos;
+                int partLength = (int) (partEnd - partPos);
+
+                // Each part is written in its own view of the destination buffer
+                final ByteBuffer partDst = dst.duplicate();
+                partDst.position(dstStart + (int) (partPos - pos));
+                partDst.limit(partDst.position() + partLength);
+
+                S3Block cachedBlock = this.cacheBlockSize > 0 ? this.cache.get(this.getCacheKey(partIndex)) : null;
+                if (cachedBlock != null) {
+                    try {
+                        cachedBlock.copyTo((int) (partPos - partIndex * partSize), partDst, partLength);
+                        totalBytes += partLength;
+                    } finally {
+                        cachedBlock.release();
+                    }
+                } else {
+                    futures.add(this.ioExecutor.getExecutor().submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return S3RandomAccessFile.this.read__(finalPartPos, partDst);
+                        }
+                    }));
+                }
+                partPos = partEnd;
+            }
 
-        return len;
+            for (Future<Integer> future : futures) {
+                totalBytes += S3IOExecutor.get(future, String.format("parallel read of %s:%s", this.bucket, this.key));
+            }
+        } finally {
+            // Do not leave downloads running in the background if one of them failed
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        dst.position(dstStart + totalBytes);
+        return totalBytes;
     }
 
-    private int read__(long pos, byte[] buff, int offset, int len) throws IOException {
+    /**
+     * Download a range of the file from S3, without going through the cache.
+     *
+     * @param pos start here in the file
+     * @param dst put data into this buffer, from its position to its limit.
+     *     Its position is moved by the number of bytes read.
+     * @return actual number of bytes read
+     * @throws IOException on io error
+     */
+    private int read__(long pos, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
         LOGGER.debug(String.format("Read chunk from %d, len %d from S3: %s:%s", pos, len, this.bucket, this.key));
+        int start = dst.position();
+        this.ioExecutor.acquire(this.bucket);
+        long startTime = this.metrics.requestStarted(S3Metrics.RequestType.GET, this.bucket, this.key);
+        boolean failed = true;
+        try {
+            S3Object objectPortion = this.getObject(pos, len);
+            try (InputStream objectData = objectPortion.getObjectContent()) {
+                int bytes = transfer(objectData, dst);
+                failed = false;
+                return bytes;
+            } finally {
+                objectPortion.close();
+            }
+        } finally {
+            this.metrics.requestCompleted(S3Metrics.RequestType.GET, this.bucket, this.key, startTime, dst.position() - start, failed);
+            this.ioExecutor.release(this.bucket);
+        }
+    }
+
+    /**
+     * Send a ranged GET request for the version of the file which was opened.
+     * The metadata may come from the cache; if the file was replaced on S3 since,
+     * the request fails rather than mixing data from two versions of the file.
+     *
+     * @param pos start here in the file
+     * @param len number of bytes to request
+     * @return the S3 object, which must be closed by the caller
+     * @throws IOException if the file changed
+     */
+    private S3Object getObject(long pos, long len) throws IOException {
         GetObjectRequest rangeObjectRequest = new GetObjectRequest(this.bucket, this.key);
         rangeObjectRequest.setRange(pos, pos + len - 1);
+        String eTag = this.getMetadata().getETag();
+        if (eTag != null) {
+            rangeObjectRequest.withMatchingETagConstraint(eTag);
+        }
 
+        // The S3 client returns null when the ETag constraint is not met
         S3Object objectPortion = this.s3Client.getObject(rangeObjectRequest);
-        InputStream objectData = objectPortion.getObjectContent();
-        int bytes = 0;
-        int totalBytes = 0;
+        if (objectPortion == null) {
+            if (this.metadataCache != null) {
+                this.metadataCache.invalidate(this.bucket, this.key);
+            }
+            throw new IOException(String.format("S3 file %s:%s changed while it was being read", this.bucket, this.key));
+        }
+        return objectPortion;
+    }
 
-        bytes = objectData.read(buff, offset + totalBytes, len - totalBytes);
-        while ((bytes > 0) && ((len - totalBytes) > 0)) {
+    /**
+     * Copy an input stream into the remaining space of a buffer.
+     */
+    private static int transfer(InputStream inputStream, ByteBuffer dst) throws IOException {
+        int totalBytes = 0;
+        while (dst.hasRemaining()) {
+            int bytes = transferChunk(inputStream, dst);
+            if (bytes < 0) {
+                break;
+            }
             totalBytes += bytes;
-            bytes = objectData.read(buff, offset + totalBytes, len - totalBytes);
         }
+        return totalBytes;
+    }
 
-        objectData.close();
-        objectPortion.close();
+    /**
+     * Copy a chunk of an input stream into the remaining space of a buffer.
+     * Heap buffers are filled directly, direct buffers through a per thread transfer array.
+     *
+     * @return the number of bytes copied, or -1 at the end of the stream.
+     */
+    private static int transferChunk(InputStream inputStream, ByteBuffer dst) throws IOException {
+        int bytes;
+        if (dst.hasArray()) {
+            bytes = inputStream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (bytes > 0) {
+                dst.position(dst.position() + bytes);
+            }
+        } else {
+            byte[] transferBuffer = TRANSFER_BUFFER.get();
+            bytes = inputStream.read(transferBuffer, 0, Math.min(transferBuffer.length, dst.remaining()));
+            if (bytes > 0) {
+                dst.put(transferBuffer, 0, bytes);
+            }
+        }
+        return bytes;
+    }
 
-        return totalBytes;
+    private static void writeFully(WritableByteChannel dest, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            dest.write(src);
+        }
     }
 
+    /**
+     * Write a range of the file to a channel, without going through the read buffer.
+     * Cached blocks are written straight from the cache. Missing blocks are
+     * downloaded into the cache first, then written to the channel: the download is
+     * shared with the other readers of the block, which must not wait for a slow channel.
+     *
+     * @param dest write to this channel
+     * @param offset start here in the file
+     * @param nbytes number of bytes to write, may be larger than 2 GB
+     * @return actual number of bytes written
+     * @throws IOException on io error
+     */
     @Override
     public long readToByteChannel(WritableByteChannel dest, long offset, long nbytes) throws IOException {
         LOGGER.debug(String.format("Reading %d bytes from offset %d to byte channel from S3: %s:%s", nbytes, offset, this.bucket, this.key));
 
-        int n = (int) nbytes;
-        byte[] buff = new byte[n];
-        int done = this.read_(offset, buff, 0, n);
-        dest.write(ByteBuffer.wrap(buff));
-        return done;
+        long fileLength = this.length();
+        if (offset >= fileLength || nbytes <= 0) {
+            return 0;
+        }
+        long end = Math.min(offset + nbytes, fileLength);
+
+        if (!(this.cacheBlockSize > 0)) {
+            long bytes = this.streamFromS3(offset, end - offset, dest);
+            this.metrics.bytesServed(this.bucket, this.key, bytes);
+            return bytes;
+        }
+
+        long totalBytes = 0;
+        for (long blockIndex = offset / this.cacheBlockSize; offset + totalBytes < end; blockIndex++) {
+            long blockStart = blockIndex * this.cacheBlockSize;
+            int blockPos = (int) (offset + totalBytes - blockStart);
+            int length = (int) Math.min(this.cacheBlockSize - blockPos, end - offset - totalBytes);
+
+            if (this.readAhead != null) {
+                this.readAhead.onAccess(blockIndex);
+            }
+
+            S3Block block = this.ensure(blockIndex);
+            try {
+                ByteBuffer slice = block.getBuffer();
+                slice.position(blockPos);
+                slice.limit(blockPos + length);
+                writeFully(dest, slice);
+            } finally {
+                block.release();
+            }
+            totalBytes += length;
+            this.metrics.bytesServed(this.bucket, this.key, length);
+        }
+
+        return totalBytes;
+    }
+
+    /**
+     * Write a range of the file to a channel, straight from S3, bypassing the block cache.
+     * The range is downloaded with a single request, and its data is piped to the channel
+     * through a transfer buffer reused by the thread.
+     * <p>
+     * Used for large sequential downloads, which would otherwise evict the cached
+     * blocks of every other file for data which is read only once.
+     *
+     * @param dest write to this channel
+     * @param offset start here in the file
+     * @param nbytes number of bytes to write, may be larger than 2 GB
+     * @return actual number of bytes written
+     * @throws IOException on io error
+     */
+    public long streamToByteChannel(WritableByteChannel dest, long offset, long nbytes) throws IOException {
+        LOGGER.debug(String.format("Streaming %d bytes from offset %d to byte channel from S3, bypassing the cache: %s:%s", nbytes, offset, this.bucket, this.key));
+
+        long fileLength = this.length();
+        if (offset >= fileLength || nbytes <= 0) {
+            return 0;
+        }
+        long bytes = this.streamFromS3(offset, Math.min(nbytes, fileLength - offset), dest);
+        this.metrics.bytesServed(this.bucket, this.key, bytes);
+        return bytes;
+    }
+
+    /**
+     * Write a range of the file to a channel, straight from the S3 response.
+     * The request stays open while the channel takes the data, so it's limited like the
+     * other open requests (see {@link S3IOExecutor#tryAcquireStream(String)}). When too many
+     * requests are open, the range is copied through a buffer instead (see {@link #copyFromS3(long, long, WritableByteChannel)}).
+     */
+    private long streamFromS3(long pos, long len, WritableByteChannel dest) throws IOException {
+        if (!this.ioExecutor.tryAcquireStream(this.bucket)) {
+            return this.copyFromS3(pos, len, dest);
+        }
+
+        LOGGER.debug(String.format("Stream from %d, len %d from S3: %s:%s", pos, len, this.bucket, this.key));
+        long totalBytes = 0;
+        long startTime = this.metrics.requestStarted(S3Metrics.RequestType.GET, this.bucket, this.key);
+        boolean failed = true;
+        try {
+            S3Object objectPortion = this.getObject(pos, len);
+            try (InputStream objectData = objectPortion.getObjectContent()) {
+                ByteBuffer transferBuffer = ByteBuffer.wrap(TRANSFER_BUFFER.get());
+                while (totalBytes < len) {
+                    transferBuffer.clear();
+                    transferBuffer.limit((int) Math.min(transferBuffer.capacity(), len - totalBytes));
+                    int bytes = transferChunk(objectData, transferBuffer);
+                    if (bytes < 0) {
+                        break;
+                    }
+                    transferBuffer.flip();
+                    writeFully(dest, transferBuffer);
+                    totalBytes += bytes;
+                }
+                failed = false;
+                return totalBytes;
+            } finally {
+                objectPortion.close();
+            }
+        } finally {
+            this.metrics.requestCompleted(S3Metrics.RequestType.GET, this.bucket, this.key, startTime, totalBytes, failed);
+            this.ioExecutor.releaseStream(this.bucket);
+        }
+    }
+
+    /**
+     * Write a range of the file to a channel, downloaded piece by piece into a pooled buffer.
+     * Each piece is downloaded before it's written, so no S3 request permit is held
+     * while the channel takes the data.
+     */
+    private long copyFromS3(long pos, long len, WritableByteChannel dest) throws IOException {
+        LOGGER.debug(String.format("Copy from %d, len %d from S3: %s:%s", pos, len, this.bucket, this.key));
+        S3Block block = this.bufferPool.acquire(this.bufferPool.getBufferSize());
+        try {
+            long totalBytes = 0;
+            while (totalBytes < len) {
+                ByteBuffer buffer = block.getBuffer();
+                buffer.limit((int) Math.min(buffer.limit(), len - totalBytes));
+                int requested = buffer.remaining();
+                int bytes = this.read__(pos + totalBytes, buffer);
+                buffer.flip();
+                writeFully(dest, buffer);
+                totalBytes += bytes;
+                if (bytes < requested) {
+                    break;
+                }
+            }
+            return totalBytes;
+        } finally {
+            block.release();
+        }
+    }
+
+    /**
+     * Send a ranged GET request for a range of the file, to read it bit by bit, bypassing the block cache.
+     * Used to stream large ranges to a client which takes them at its own pace.
+     *
+     * @param offset start here in the file
+     * @param nbytes number of bytes to request
+     * @return the opened range, which must be closed by the caller,
+     *     or null if too many requests are already kept open (see {@link S3IOExecutor#tryAcquireStream(String)}).
+     * @throws IOException on io error
+     */
+    public RangeStream openRange(long offset, long nbytes) throws IOException {
+        long length = Math.min(nbytes, this.length() - offset);
+        if (length <= 0) {
+            throw new EOFException(String.format("Range %d-%d out of S3 file %s:%s", offset, offset + nbytes, this.bucket, this.key));
+        }
+        if (!this.ioExecutor.tryAcquireStream(this.bucket)) {
+            return null;
+        }
+        LOGGER.debug(String.format("Open range from %d, len %d from S3: %s:%s", offset, length, this.bucket, this.key));
+        return new RangeStream(offset, length);
     }
 
     @Override
     public long length() throws IOException {
-        return this.metadata.getContentLength();
+        return this.getMetadata().getContentLength();
     }
 
     @Override
     public long getLastModified() {
-        return this.metadata.getLastModified().getTime();
+        return this.metadata == null ? -1 : this.metadata.getLastModified().getTime();
+    }
+
+    public String getETag() {
+        return this.metadata == null ? null : this.metadata.getETag();
+    }
+
+    private ObjectMetadata getMetadata() throws FileNotFoundException {
+        if (this.metadata == null) {
+            throw new FileNotFoundException(String.format("S3 file not found: %s", this.location));
+        }
+        return this.metadata;
+    }
+
+    private class ReadAheadLoader implements S3ReadAhead.BlockLoader {
+        @Override
+        public void load(long blockIndex) throws IOException {
+            S3RandomAccessFile.this.fetchBlock(blockIndex).release();
+        }
+
+        @Override
+        public boolean isLoaded(long blockIndex) {
+            S3BlockCache.BlockKey blockKey = S3RandomAccessFile.this.getCacheKey(blockIndex);
+            return S3RandomAccessFile.this.cache.contains(blockKey) || S3RandomAccessFile.this.cache.isLoading(blockKey);
+        }
+
+        @Override
+        public long getBlockCount() {
+            long length = S3RandomAccessFile.this.metadata.getContentLength();
+            return (length + S3RandomAccessFile.this.cacheBlockSize - 1) / S3RandomAccessFile.this.cacheBlockSize;
+        }
+    }
+
+    /**
+     * A ranged GET request, opened by {@link #openRange(long, long)}.
+     * It holds a S3 connection, and a S3 request permit (see {@link S3IOExecutor#tryAcquireStream(String)}),
+     * until it's closed.
+     */
+    public class RangeStream implements Closeable {
+        private final long length;
+        private final long startTime;
+        private final S3Object objectPortion;
+        private final S3ObjectInputStream objectData;
+        private long totalBytes = 0;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        private RangeStream(long offset, long length) throws IOException {
+            // The permit is reserved by openRange
+            this.length = length;
+            this.startTime = S3RandomAccessFile.this.metrics.requestStarted(S3Metrics.RequestType.GET,
+                    S3RandomAccessFile.this.bucket, S3RandomAccessFile.this.key);
+            boolean opened = false;
+            try {
+                this.objectPortion = S3RandomAccessFile.this.getObject(offset, length);
+                this.objectData = this.objectPortion.getObjectContent();
+                opened = true;
+            } finally {
+                if (!opened) {
+                    this.failed = true;
+                    this.completed();
+                }
+            }
+        }
+
+        /**
+         * @return the number of bytes of the range which have not been read yet.
+         */
+        public long getRemaining() {
+            return this.length - this.totalBytes;
+        }
+
+        /**
+         * Read the next bytes of the range, until the buffer is full or the range is over.
+         *
+         * @param dst put data into this buffer, from its position to its limit
+         * @return the number of bytes read, or -1 if the range is over.
+         * @throws IOException on io error
+         */
+        public int read(ByteBuffer dst) throws IOException {
+            if (this.getRemaining() <= 0) {
+                return -1;
+            }
+            ByteBuffer rangeDst = dst;
+            if (dst.remaining() > this.getRemaining()) {
+                rangeDst = dst.duplicate();
+                rangeDst.limit(rangeDst.position() + (int) this.getRemaining());
+            }
+
+            int bytes;
+            try {
+                bytes = transfer(this.objectData, rangeDst);
+            } catch (IOException | RuntimeException ex) {
+                this.failed = true;
+                throw ex;
+            }
+            if (rangeDst != dst) {
+                dst.position(rangeDst.position());
+            }
+            if (bytes == 0 && dst.hasRemaining()) {
+                this.failed = true;
+                throw new EOFException(String.format("Unexpected end of S3 file %s:%s, %d bytes missing",
+                        S3RandomAccessFile.this.bucket, S3RandomAccessFile.this.key, this.getRemaining()));
+            }
+            this.totalBytes += bytes;
+            S3RandomAccessFile.this.metrics.bytesServed(S3RandomAccessFile.this.bucket, S3RandomAccessFile.this.key, bytes);
+            return bytes;
+        }
+
+        /**
+         * Close the request. If the range was not read to the end, the connection is aborted
+         * rather than drained.
+         */
+        @Override
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            try {
+                if (this.getRemaining() > 0) {
+                    this.objectData.abort();
+                }
+                this.objectPortion.close();
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.debug(String.format("Error occurred while closing the S3 request of %s:%s: %s",
+                        S3RandomAccessFile.this.bucket, S3RandomAccessFile.this.key, ex.getMessage()));
+            } finally {
+                this.completed();
+            }
+        }
+
+        private void completed() {
+            this.closed = true;
+            S3RandomAccessFile.this.metrics.requestCompleted(S3Metrics.RequestType.GET,
+                    S3RandomAccessFile.this.bucket, S3RandomAccessFile.this.key, this.startTime, this.totalBytes, this.failed);
+            S3RandomAccessFile.this.ioExecutor.releaseStream(S3RandomAccessFile.this.bucket);
+        }
     }
 }
@@ -0,0 +1,160 @@
+package uk.co.informaticslab;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Sequential read-ahead for a {@link S3RandomAccessFile}.
+ * <p>
+ * Every block access is reported with {@link #onAccess(long)}.
+ * When the blocks are accessed sequentially, the next blocks are downloaded
+ * in the background while the current one is consumed. The read-ahead window
+ * doubles every time the sequential pattern is confirmed, up to a maximum.
+ * As soon as the access pattern turns random, the window is reset and
+ * pending downloads are cancelled.
+ */
+public class S3ReadAhead {
+    private static final Logger LOGGER = Logger.getLogger(S3ReadAhead.class);
+
+    public static final int DEFAULT_MAX_WINDOW = 4;
+
+    private final BlockLoader loader;
+    private final int maxWindow;
+
+    private final Map<Long, Future<Void>> pending = new ConcurrentHashMap<Long, Future<Void>>();
+
+    private long lastBlockIndex = -1;
+    private int window = 0;
+
+    public S3ReadAhead(BlockLoader loader) {
+        this(loader, DEFAULT_MAX_WINDOW);
+    }
+
+    public S3ReadAhead(BlockLoader loader, int maxWindow) {
+        this.loader = loader;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Report a block access, adapt the read-ahead window and schedule
+     * the download of the following blocks if the access is sequential.
+     *
+     * @param blockIndex index of the block being read
+     */
+    public synchronized void onAccess(long blockIndex) {
+        if (blockIndex == this.lastBlockIndex) {
+            return;
+        }
+
+        if (this.lastBlockIndex >= 0 && blockIndex == this.lastBlockIndex + 1) {
+            this.window = Math.min(Math.max(1, this.window * 2), this.maxWindow);
+        } else {
+            if (this.window > 0) {
+                LOGGER.debug(String.format("Random access detected at block %d, cancelling read-ahead", blockIndex));
+            }
+            this.window = 0;
+            this.cancel(blockIndex);
+        }
+        this.lastBlockIndex = blockIndex;
+
+        long blockCount = this.loader.getBlockCount();
+        for (long i = 1; i <= this.window; i++) {
+            long nextBlockIndex = blockIndex + i;
+            if (nextBlockIndex >= blockCount) {
+                break;
+            }
+            if (!this.pending.containsKey(nextBlockIndex) && !this.loader.isLoaded(nextBlockIndex)) {
+                this.schedule(nextBlockIndex);
+            }
+        }
+    }
+
+    /**
+     * Wait for a block which is being downloaded in the background.
+     * When this method returns, the block is in the cache, unless it was
+     * evicted in the meantime or if the download was cancelled.
+     *
+     * @param blockIndex index of the block
+     * @return true if the block was being read ahead.
+     * @throws IOException if the background download failed.
+     */
+    public boolean await(long blockIndex) throws IOException {
+        Future<Void> future = this.pending.get(blockIndex);
+        if (future == null) {
+            return false;
+        }
+
+        try {
+            S3IOExecutor.get(future, String.format("read-ahead of block %d", blockIndex));
+            return true;
+        } catch (CancellationException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Cancel every pending background download.
+     */
+    public void cancel() {
+        this.cancel(-1);
+    }
+
+    /**
+     * Cancel pending background downloads, except the one for the block being accessed.
+     */
+    private void cancel(long keepBlockIndex) {
+        for (Map.Entry<Long, Future<Void>> pendingEntry : this.pending.entrySet()) {
+            if (pendingEntry.getKey() != keepBlockIndex) {
+                pendingEntry.getValue().cancel(true);
+                this.pending.remove(pendingEntry.getKey(), pendingEntry.getValue());
+            }
+        }
+    }
+
+    private void schedule(final long blockIndex) {
+        LOGGER.debug(String.format("Reading ahead block %d", blockIndex));
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                S3ReadAhead.this.loader.load(blockIndex);
+                return null;
+            }
+        }) {
+            @Override
+            protected void done() {
+                // The block is in the cache by now (or cancelled), it doesn't need to be tracked anymore
+                S3ReadAhead.this.pending.remove(blockIndex, this);
+            }
+        };
+
+        if (this.pending.putIfAbsent(blockIndex, task) == null) {
+            // Read-ahead is optional, it's dropped when the S3 I/O pool is saturated
+            if (!S3IOExecutor.getDefault().tryExecute(task)) {
+                LOGGER.debug(String.format("S3 I/O pool saturated, skipping the read-ahead of block %d", blockIndex));
+                this.pending.remove(blockIndex, task);
+            }
+        }
+    }
+
+    /**
+     * Download blocks on behalf of the read-ahead.
+     */
+    public interface BlockLoader {
+        /**
+         * Download a block and put it in the cache.
+         * Called from a background thread.
+         */
+        void load(long blockIndex) throws IOException;
+
+        boolean isLoaded(long blockIndex);
+
+        long getBlockCount();
+    }
+}
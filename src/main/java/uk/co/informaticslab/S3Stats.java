@@ -0,0 +1,350 @@
+package uk.co.informaticslab;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * S3 I/O counters, for the whole webapp, a bucket or a dataset (see {@link S3Metrics}).
+ * <p>
+ * Counters are {@link LongAdder}, so recording is cheap and doesn't
+ * contend between the threads reading from S3.
+ */
+public class S3Stats implements S3StatsMBean {
+    private final RequestStats[] requestStats;
+
+    // Bytes downloaded from S3
+    private final LongAdder bytesFetched = new LongAdder();
+    // Bytes returned to the readers (NetCDF library, file server)
+    private final LongAdder bytesServed = new LongAdder();
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+
+    // System.nanoTime() of the last update, to find the least recently updated dataset (see S3Metrics)
+    private volatile long lastUpdated = System.nanoTime();
+
+    public S3Stats() {
+        S3Metrics.RequestType[] requestTypes = S3Metrics.RequestType.values();
+        this.requestStats = new RequestStats[requestTypes.length];
+        for (int i = 0; i < requestTypes.length; i++) {
+            this.requestStats[i] = new RequestStats();
+        }
+    }
+
+    long getLastUpdated() {
+        return this.lastUpdated;
+    }
+
+    void updated() {
+        this.lastUpdated = System.nanoTime();
+    }
+
+    public RequestStats getRequestStats(S3Metrics.RequestType requestType) {
+        return this.requestStats[requestType.ordinal()];
+    }
+
+    void requestStarted(S3Metrics.RequestType requestType) {
+        this.getRequestStats(requestType).inFlight.increment();
+    }
+
+    void requestCompleted(S3Metrics.RequestType requestType, long latencyNanos, long bytes, boolean failed) {
+        RequestStats stats = this.getRequestStats(requestType);
+        stats.inFlight.decrement();
+        stats.count.increment();
+        if (failed) {
+            stats.errors.increment();
+        }
+        stats.latency.record(latencyNanos);
+        if (bytes > 0) {
+            this.bytesFetched.add(bytes);
+        }
+    }
+
+    void bytesServed(long bytes) {
+        this.bytesServed.add(bytes);
+    }
+
+    void cacheHit() {
+        this.cacheHits.increment();
+    }
+
+    void cacheMiss() {
+        this.cacheMisses.increment();
+    }
+
+    void cacheEviction() {
+        this.cacheEvictions.increment();
+    }
+
+    @Override
+    public long getGetCount() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getCount();
+    }
+
+    @Override
+    public long getGetErrorCount() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getErrorCount();
+    }
+
+    @Override
+    public long getGetInFlight() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getInFlight();
+    }
+
+    @Override
+    public double getGetLatencyMean() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getLatency().getMean();
+    }
+
+    @Override
+    public long getGetLatency50thPercentile() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getLatency().getPercentile(0.5);
+    }
+
+    @Override
+    public long getGetLatency99thPercentile() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getLatency().getPercentile(0.99);
+    }
+
+    @Override
+    public long getGetLatencyMax() {
+        return this.getRequestStats(S3Metrics.RequestType.GET).getLatency().getMax();
+    }
+
+    @Override
+    public long getHeadCount() {
+        return this.getRequestStats(S3Metrics.RequestType.HEAD).getCount();
+    }
+
+    @Override
+    public long getHeadErrorCount() {
+        return this.getRequestStats(S3Metrics.RequestType.HEAD).getErrorCount();
+    }
+
+    @Override
+    public long getHeadInFlight() {
+        return this.getRequestStats(S3Metrics.RequestType.HEAD).getInFlight();
+    }
+
+    @Override
+    public double getHeadLatencyMean() {
+        return this.getRequestStats(S3Metrics.RequestType.HEAD).getLatency().getMean();
+    }
+
+    @Override
+    public long getHeadLatency99thPercentile() {
+        return this.getRequestStats(S3Metrics.RequestType.HEAD).getLatency().getPercentile(0.99);
+    }
+
+    @Override
+    public long getListCount() {
+        return this.getRequestStats(S3Metrics.RequestType.LIST).getCount();
+    }
+
+    @Override
+    public long getListErrorCount() {
+        return this.getRequestStats(S3Metrics.RequestType.LIST).getErrorCount();
+    }
+
+    @Override
+    public long getListInFlight() {
+        return this.getRequestStats(S3Metrics.RequestType.LIST).getInFlight();
+    }
+
+    @Override
+    public double getListLatencyMean() {
+        return this.getRequestStats(S3Metrics.RequestType.LIST).getLatency().getMean();
+    }
+
+    @Override
+    public long getListLatency99thPercentile() {
+        return this.getRequestStats(S3Metrics.RequestType.LIST).getLatency().getPercentile(0.99);
+    }
+
+    @Override
+    public long getBytesFetched() {
+        return this.bytesFetched.sum();
+    }
+
+    @Override
+    public long getBytesServed() {
+        return this.bytesServed.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return this.cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return this.cacheMisses.sum();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return this.cacheEvictions.sum();
+    }
+
+    /**
+     * @return the ratio of block lookups served by the cache, or 0 if there was no lookup.
+     */
+    @Override
+    public double getCacheHitRatio() {
+        long hits = this.getCacheHits();
+        long lookups = hits + this.getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Reset the counters. The in-flight gauges are left untouched.
+     */
+    @Override
+    public void reset() {
+        for (RequestStats stats : this.requestStats) {
+            stats.count.reset();
+            stats.errors.reset();
+            stats.latency.reset();
+        }
+        this.bytesFetched.reset();
+        this.bytesServed.reset();
+        this.cacheHits.reset();
+        this.cacheMisses.reset();
+        this.cacheEvictions.reset();
+    }
+
+    /**
+     * Counters of one type of S3 request.
+     */
+    public static class RequestStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public long getErrorCount() {
+            return this.errors.sum();
+        }
+
+        public long getInFlight() {
+            return this.inFlight.sum();
+        }
+
+        public LatencyHistogram getLatency() {
+            return this.latency;
+        }
+    }
+
+    /**
+     * Histogram of request latencies, with fixed buckets from 1 ms to 10 s.
+     */
+    public static class LatencyHistogram {
+        // Upper bound of each bucket, in milliseconds. The last bucket holds everything slower.
+        private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, Long.MAX_VALUE
+        };
+
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length];
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        public LatencyHistogram() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long latencyNanos) {
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+            int bucket = 0;
+            while (latencyMs >= BUCKET_BOUNDS[bucket]) {
+                bucket++;
+            }
+            this.buckets[bucket].increment();
+            this.totalNanos.add(latencyNanos);
+
+            long max = this.maxNanos.get();
+            while (latencyNanos > max && !this.maxNanos.compareAndSet(max, latencyNanos)) {
+                max = this.maxNanos.get();
+            }
+        }
+
+        /**
+         * @return the upper bound of each bucket, in milliseconds.
+         */
+        public long[] getBucketBounds() {
+            return BUCKET_BOUNDS.clone();
+        }
+
+        public long[] getBucketCounts() {
+            long[] counts = new long[this.buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets[i].sum();
+            }
+            return counts;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : this.buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * @return the mean latency, in milliseconds.
+         */
+        public double getMean() {
+            long count = this.getCount();
+            return count == 0 ? 0 : this.totalNanos.sum() / 1000000.0 / count;
+        }
+
+        /**
+         * @return the maximum latency, in milliseconds.
+         */
+        public long getMax() {
+            return TimeUnit.NANOSECONDS.toMillis(this.maxNanos.get());
+        }
+
+        /**
+         * @param percentile between 0 and 1
+         * @return the upper bound, in milliseconds, of the bucket containing the percentile.
+         *     The maximum latency for the last bucket, 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = this.getBucketCounts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank && counts[i] > 0) {
+                    return BUCKET_BOUNDS[i] == Long.MAX_VALUE ? this.getMax() : BUCKET_BOUNDS[i];
+                }
+            }
+            return this.getMax();
+        }
+
+        public void reset() {
+            for (LongAdder bucket : this.buckets) {
+                bucket.reset();
+            }
+            this.totalNanos.reset();
+            this.maxNanos.set(0);
+        }
+    }
+}
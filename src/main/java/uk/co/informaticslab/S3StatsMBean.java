@@ -0,0 +1,37 @@
+package uk.co.informaticslab;
+
+/**
+ * JMX view of {@link S3Stats}.
+ * Latencies are in milliseconds; percentiles are the upper bound of their histogram bucket.
+ */
+public interface S3StatsMBean {
+    long getGetCount();
+    long getGetErrorCount();
+    long getGetInFlight();
+    double getGetLatencyMean();
+    long getGetLatency50thPercentile();
+    long getGetLatency99thPercentile();
+    long getGetLatencyMax();
+
+    long getHeadCount();
+    long getHeadErrorCount();
+    long getHeadInFlight();
+    double getHeadLatencyMean();
+    long getHeadLatency99thPercentile();
+
+    long getListCount();
+    long getListErrorCount();
+    long getListInFlight();
+    double getListLatencyMean();
+    long getListLatency99thPercentile();
+
+    long getBytesFetched();
+    long getBytesServed();
+
+    long getCacheHits();
+    long getCacheMisses();
+    long getCacheEvictions();
+    double getCacheHitRatio();
+
+    void reset();
+}
@@ -26,7 +26,7 @@
          xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
          xsi:schemaLocation="http://www.unidata.ucar.edu/namespaces/thredds/InvCatalog/v1.0 http://www.unidata.ucar.edu/schemas/thredds/InvCatalog.1.0.6.xsd">
 
-    <#if datasets?size != 0>
+    <#if hasDatasets>
 
         <service name="all" base="" serviceType="compound">
             <service name="odap" serviceType="OpenDAP" base="/thredds/dodsC/" />
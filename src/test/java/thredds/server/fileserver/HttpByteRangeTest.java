@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class HttpByteRangeTest {
+    private static final long FILE_LENGTH = 10000;
+
+    @Test
+    public void testSingleRanges() {
+        assertRanges("bytes=0-499", "0-499");
+        assertRanges("bytes=9500-", "9500-9999");
+        assertRanges("bytes=500-20000", "500-9999");
+        assertRanges("bytes=-500", "9500-9999");
+        assertRanges("bytes=-20000", "0-9999");
+        assertRanges("Bytes=10-19", "10-19");
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        assertRanges("bytes=500-599, 0-99, -100", "500-599", "0-99", "9900-9999");
+        assertRanges("bytes=0-99,,200-299", "0-99", "200-299");
+        assertRanges("bytes=0-99,20000-30000", "0-99");
+    }
+
+    @Test
+    public void testOverlappingRangesAreCoalesced() {
+        assertRanges("bytes=500-700,0-99,600-999,100-199", "0-199", "500-999");
+        assertRanges("bytes=0-,-500", "0-9999");
+    }
+
+    @Test
+    public void testTooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= HttpByteRange.MAX_RANGES; i++) {
+            header.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        Assert.assertNull("Too many ranges should be ignored", HttpByteRange.parse(header.toString(), FILE_LENGTH));
+
+        header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= HttpByteRange.MAX_RANGES; i++) {
+            header.append(',').append(i).append('-').append(i);
+        }
+        assertRanges(header.toString(), String.format("0-%d", HttpByteRange.MAX_RANGES));
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertRanges("bytes=10000-");
+        assertRanges("bytes=20000-30000,-0");
+        Assert.assertTrue("Empty file can not satisfy a range", HttpByteRange.parse("bytes=-100", 0).isEmpty());
+    }
+
+    @Test
+    public void testIgnoredHeaders() {
+        Assert.assertNull(HttpByteRange.parse(null, FILE_LENGTH));
+        Assert.assertNull(HttpByteRange.parse("items=0-10", FILE_LENGTH));
+        Assert.assertNull(HttpByteRange.parse("bytes=", FILE_LENGTH));
+        Assert.assertNull(HttpByteRange.parse("bytes=abc", FILE_LENGTH));
+        Assert.assertNull(HttpByteRange.parse("bytes=10-5", FILE_LENGTH));
+        Assert.assertNull(HttpByteRange.parse("bytes=0-10,x-20", FILE_LENGTH));
+        Assert.assertNull(HttpByteRange.parse("bytes=0-99999999999999999999", FILE_LENGTH));
+    }
+
+    @Test
+    public void testMultipartHeaders() {
+        HttpByteRange range = new HttpByteRange(100, 199);
+        Assert.assertEquals("bytes 100-199/10000", range.getContentRange(FILE_LENGTH));
+        Assert.assertEquals("\r\n--abc\r\nContent-Type: application/x-netcdf\r\nContent-Range: bytes 100-199/10000\r\n\r\n",
+                range.getMultipartHeader("abc", "application/x-netcdf", FILE_LENGTH));
+        Assert.assertEquals("\r\n--abc\r\nContent-Range: bytes 100-199/10000\r\n\r\n",
+                range.getMultipartHeader("abc", null, FILE_LENGTH));
+        Assert.assertEquals("\r\n--abc--\r\n", HttpByteRange.getMultipartTrailer("abc"));
+    }
+
+    private static void assertRanges(String header, String ... expectedRanges) {
+        List<HttpByteRange> ranges = HttpByteRange.parse(header, FILE_LENGTH);
+        Assert.assertNotNull(String.format("Header ignored: %s", header), ranges);
+        Assert.assertEquals(String.format("Wrong number of ranges: %s", header), expectedRanges.length, ranges.size());
+        for (int i = 0; i < expectedRanges.length; i++) {
+            Assert.assertEquals(String.format("Wrong range: %s", header), expectedRanges[i], ranges.get(i).toString());
+        }
+    }
+}
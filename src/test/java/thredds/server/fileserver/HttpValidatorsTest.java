@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpValidatorsTest {
+    private static final String ETAG = "\"d41d8cd98f00b204e9800998ecf8427e\"";
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long LAST_MODIFIED = 784111777000L;
+
+    @Test
+    public void testFormatETag() {
+        Assert.assertEquals(ETAG, HttpValidators.formatETag("d41d8cd98f00b204e9800998ecf8427e"));
+        Assert.assertEquals(ETAG, HttpValidators.formatETag(ETAG));
+        Assert.assertNull(HttpValidators.formatETag(null));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        Assert.assertTrue(HttpValidators.isNotModified(ETAG, -1, ETAG, LAST_MODIFIED));
+        Assert.assertTrue(HttpValidators.isNotModified("\"other\", W/" + ETAG, -1, ETAG, LAST_MODIFIED));
+        Assert.assertTrue(HttpValidators.isNotModified("*", -1, ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isNotModified("\"other\"", -1, ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isNotModified(ETAG, -1, null, LAST_MODIFIED));
+
+        // If-Modified-Since is ignored when If-None-Match is present
+        Assert.assertFalse(HttpValidators.isNotModified("\"other\"", LAST_MODIFIED, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        Assert.assertTrue(HttpValidators.isNotModified(null, LAST_MODIFIED, ETAG, LAST_MODIFIED + 500));
+        Assert.assertTrue(HttpValidators.isNotModified(null, LAST_MODIFIED + 60000, ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isNotModified(null, LAST_MODIFIED - 1000, ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isNotModified(null, -1, ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isNotModified(null, LAST_MODIFIED, ETAG, -1));
+    }
+
+    @Test
+    public void testIfRange() {
+        Assert.assertTrue(HttpValidators.isRangeApplicable(null, ETAG, LAST_MODIFIED));
+        Assert.assertTrue(HttpValidators.isRangeApplicable(ETAG, ETAG, LAST_MODIFIED));
+        Assert.assertFalse("Weak ETag should not match", HttpValidators.isRangeApplicable("W/" + ETAG, ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isRangeApplicable("\"other\"", ETAG, LAST_MODIFIED));
+
+        Assert.assertTrue(HttpValidators.isRangeApplicable("Sun, 06 Nov 1994 08:49:37 GMT", ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isRangeApplicable("Sun, 06 Nov 1994 08:49:36 GMT", ETAG, LAST_MODIFIED));
+        Assert.assertFalse(HttpValidators.isRangeApplicable("not a date", ETAG, LAST_MODIFIED));
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.informaticslab.InMemoryS3;
+import uk.co.informaticslab.S3RandomAccessFile;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class S3AsyncDownloadTest {
+    private static final String URL = "s3://bucket/file.nc";
+    private static final int FILE_SIZE = 3000;
+
+    private byte[] data;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.data = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_SIZE; i++) {
+            this.data[i] = (byte) (i * 31);
+        }
+        this.executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testWholeFile() throws Exception {
+        List<S3FileServerController.Part> parts = new ArrayList<S3FileServerController.Part>();
+        parts.add(new S3FileServerController.Part(null, 0, FILE_SIZE));
+
+        InMemoryS3 s3 = this.newS3(false);
+        Result result = this.download(s3, parts);
+
+        Assert.assertTrue("Download not completed", result.completed);
+        Assert.assertTrue("File not closed", result.file.isClosed());
+        Assert.assertArrayEquals("Wrong data", this.data, result.output.toByteArray());
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        byte[] header1 = "--part1\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] header2 = "--part2\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] trailer = "--end\r\n".getBytes(StandardCharsets.US_ASCII);
+        List<S3FileServerController.Part> parts = new ArrayList<S3FileServerController.Part>();
+        parts.add(new S3FileServerController.Part(header1, 100, 1000));
+        parts.add(new S3FileServerController.Part(header2, 2500, 500));
+        parts.add(new S3FileServerController.Part(trailer, 0, 0));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(header1);
+        expected.write(this.data, 100, 1000);
+        expected.write(header2);
+        expected.write(this.data, 2500, 500);
+        expected.write(trailer);
+
+        Result result = this.download(this.newS3(false), parts);
+
+        Assert.assertTrue("Download not completed", result.completed);
+        Assert.assertArrayEquals("Wrong data", expected.toByteArray(), result.output.toByteArray());
+    }
+
+    @Test
+    public void testPassThroughPartsUseOneRequestEach() throws Exception {
+        byte[] header1 = "--part1\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] header2 = "--part2\r\n".getBytes(StandardCharsets.US_ASCII);
+        List<S3FileServerController.Part> parts = new ArrayList<S3FileServerController.Part>();
+        parts.add(new S3FileServerController.Part(header1, 10, 2000));
+        parts.add(new S3FileServerController.Part(header2, 2100, 900));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(header1);
+        expected.write(this.data, 10, 2000);
+        expected.write(header2);
+        expected.write(this.data, 2100, 900);
+
+        // Every part bypasses the block cache: chunks of 256 bytes are read from a single request per part
+        InMemoryS3 s3 = this.newS3(false);
+        Result result = this.download(s3, parts, 0);
+
+        Assert.assertTrue("Download not completed", result.completed);
+        Assert.assertTrue("File not closed", result.file.isClosed());
+        Assert.assertArrayEquals("Wrong data", expected.toByteArray(), result.output.toByteArray());
+        Assert.assertEquals("Wrong ranged GET requests",
+                Arrays.asList("10-2009", "2100-2999"), s3.getRequestedRanges());
+    }
+
+    @Test
+    public void testFailedFetchCompletesTheRequest() throws Exception {
+        List<S3FileServerController.Part> parts = new ArrayList<S3FileServerController.Part>();
+        parts.add(new S3FileServerController.Part(null, 0, FILE_SIZE));
+
+        Result result = this.download(this.newS3(true), parts);
+
+        Assert.assertTrue("Download not completed", result.completed);
+        Assert.assertTrue("File not closed", result.file.isClosed());
+        Assert.assertTrue("Data sent from a failed fetch", result.output.size() < FILE_SIZE);
+    }
+
+    private InMemoryS3 newS3(boolean failing) {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "file.nc", this.data);
+        s3.setFailing(failing);
+        return s3;
+    }
+
+    /**
+     * Run a download with small chunks, through a client which is only ready every other time.
+     * The test thread plays the servlet container, calling onWritePossible until the download is over.
+     */
+    private Result download(InMemoryS3 s3, List<S3FileServerController.Part> parts) throws Exception {
+        return this.download(s3, parts, -1);
+    }
+
+    private Result download(InMemoryS3 s3, List<S3FileServerController.Part> parts, long passThroughThreshold) throws Exception {
+        final Result result = new Result();
+        result.file = new ClosingS3RandomAccessFile(s3);
+        final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        final AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(S3AsyncDownloadTest.class.getClassLoader(),
+                new Class<?>[] { AsyncContext.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("addListener".equals(method.getName())) {
+                    listeners.add((AsyncListener) args[0]);
+                } else if ("complete".equals(method.getName())) {
+                    result.completed = true;
+                    for (AsyncListener listener : listeners) {
+                        listener.onComplete(new AsyncEvent((AsyncContext) proxy));
+                    }
+                }
+                return null;
+            }
+        });
+
+        HalfReadyOutputStream outputStream = new HalfReadyOutputStream(result.output);
+        S3AsyncDownload download = new S3AsyncDownload(asyncContext, outputStream, result.file, parts, this.executor, 256, 2, passThroughThreshold);
+        download.start();
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!download.isFinished() && System.currentTimeMillis() < timeout) {
+            download.onWritePossible();
+            Thread.sleep(1);
+        }
+        Assert.assertTrue("Write listener not set", outputStream.writeListener == download);
+        return result;
+    }
+
+    private static class Result {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private ClosingS3RandomAccessFile file;
+        private volatile boolean completed = false;
+    }
+
+    private static class ClosingS3RandomAccessFile extends S3RandomAccessFile {
+        private volatile boolean closed = false;
+
+        public ClosingS3RandomAccessFile(InMemoryS3 s3) throws IOException {
+            super(null, s3, URL);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.closed = true;
+            super.close();
+        }
+
+        public boolean isClosed() {
+            return this.closed;
+        }
+    }
+
+    private static class HalfReadyOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream output;
+        private WriteListener writeListener;
+        private boolean ready = false;
+
+        public HalfReadyOutputStream(ByteArrayOutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            this.ready = !this.ready;
+            return this.ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.writeListener = writeListener;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            this.output.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            this.output.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.fileserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.co.informaticslab.InMemoryS3;
+import uk.co.informaticslab.S3BlockCache;
+import uk.co.informaticslab.S3BufferPool;
+import uk.co.informaticslab.S3RandomAccessFile;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class S3FileServerControllerTest {
+
+    @Test
+    public void testPassThroughThreshold() throws Exception {
+        byte[] data = new byte[2 * S3BufferPool.DEFAULT_BUFFER_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "file.nc", data);
+        S3BlockCache cache = new S3BlockCache(4L * S3BufferPool.DEFAULT_BUFFER_SIZE);
+        S3RandomAccessFile raf = new S3RandomAccessFile(cache, s3, "s3://bucket/file.nc");
+        raf.disableReadAhead();
+        long threshold = S3FileServerController.getPassThroughThreshold();
+        Assert.assertTrue("The test needs a pass-through threshold", threshold > 0);
+
+        // Part of a large range: a single request for the exact bytes, not cached
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals("Wrong number of bytes written", 1000,
+                S3FileServerController.readRange(raf, Channels.newChannel(output), 100, 1000, threshold));
+        Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(data, 100, 1100), output.toByteArray());
+        Assert.assertEquals("Wrong ranged GET requests", Collections.singletonList("100-1099"), s3.getRequestedRanges());
+        Assert.assertEquals("Large range was cached", 0, cache.getBlockCount());
+
+        // Part of a small range: read through the block cache
+        output.reset();
+        Assert.assertEquals("Wrong number of bytes written", 1000,
+                S3FileServerController.readRange(raf, Channels.newChannel(output), 100, 1000, threshold - 1));
+        Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(data, 100, 1100), output.toByteArray());
+        Assert.assertEquals("Wrong ranged GET requests", Arrays.asList("100-1099", "0-" + (S3BufferPool.DEFAULT_BUFFER_SIZE - 1)),
+                s3.getRequestedRanges());
+        Assert.assertEquals("Small range was not cached", 1, cache.getBlockCount());
+        raf.close();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.xml.transform.TransformerException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class CatalogSharderTest {
+
+    @Test
+    public void testSmallDirectoryIsNotSharded() throws TransformerException {
+        CatalogSharder sharder = newSharder(S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy.DATE, 10);
+        List<S3HarvesterController.S3File> files = files("model-2010-01.nc", "model-2010-02.nc");
+
+        Assert.assertFalse("Small directory needs sharding", sharder.needsSharding(files.size()));
+        CatalogSharder.Shard root = sharder.shard(files);
+        Assert.assertEquals("Wrong files", files, root.getFiles());
+        Assert.assertTrue("Unexpected shards", root.getShards().isEmpty());
+    }
+
+    @Test
+    public void testShardByYearThenMonth() throws TransformerException {
+        CatalogSharder sharder = newSharder(S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy.DATE, 4);
+        List<String> filenames = new ArrayList<String>();
+        for (int day = 1; day <= 5; day++) {
+            filenames.add(String.format("model-daily-2010-01-%02d.nc", day));
+            filenames.add(String.format("model-daily-2010-02-%02d.nc", day));
+        }
+        filenames.add("model-daily-2011-01-01.nc");
+        filenames.add("model-all.nc");
+
+        CatalogSharder.Shard root = sharder.shard(files(filenames.toArray(new String[0])));
+        Assert.assertNull("Root catalogue should only list shards", root.getFiles());
+        assertShards(root, "2010", "2011", "other");
+        Assert.assertEquals("Wrong shard file name", "catalog_2010.xml", root.getShards().get(0).getFilename());
+
+        CatalogSharder.Shard year2010 = root.getShards().get(0);
+        assertShards(year2010, "2010-01", "2010-02");
+        Assert.assertEquals("Wrong shard file name", "catalog_2010_01.xml", year2010.getShards().get(0).getFilename());
+
+        // 5 files by month, more than 4: split again
+        CatalogSharder.Shard january = year2010.getShards().get(0);
+        assertShards(january, "model-daily-2010-01-01.nc .. model-daily-2010-01-04.nc", "model-daily-2010-01-05.nc .. model-daily-2010-01-05.nc");
+        Assert.assertEquals("Wrong shard file name", "catalog_2010_01_part1.xml", january.getShards().get(0).getFilename());
+        Assert.assertEquals("Wrong number of files", 4, january.getShards().get(0).getFiles().size());
+
+        Assert.assertEquals("Wrong number of files", 1, root.getShards().get(1).getFiles().size());
+        Assert.assertEquals("Wrong undated file", "model-all.nc", root.getShards().get(2).getFiles().get(0).getFilename());
+    }
+
+    @Test
+    public void testFanOutIsBounded() throws TransformerException {
+        CatalogSharder sharder = newSharder(S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy.FAN_OUT, 10);
+        List<String> filenames = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            filenames.add(String.format("file-%04d.nc", i));
+        }
+
+        CatalogSharder.Shard root = sharder.shard(files(filenames.toArray(new String[0])));
+        // 250 files, 10 by catalogue: 3 groups of up to 100 files, in groups of 10 files
+        Assert.assertEquals("Wrong number of shards", 3, root.getShards().size());
+        Assert.assertEquals("Wrong number of sub-shards", 10, root.getShards().get(0).getShards().size());
+        Assert.assertEquals("Wrong number of sub-shards", 5, root.getShards().get(2).getShards().size());
+        Assert.assertEquals("Wrong shard file name", "catalog_part3_part5.xml", root.getShards().get(2).getShards().get(4).getFilename());
+        Assert.assertEquals("Wrong number of files", 10, root.getShards().get(2).getShards().get(4).getFiles().size());
+    }
+
+    private static CatalogSharder newSharder(S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy strategy, int maxEntries) {
+        return new CatalogSharder(new S3HarvesterConfiguration.S3HarvesterShardingConfiguration(strategy, maxEntries));
+    }
+
+    private static List<S3HarvesterController.S3File> files(String ... filenames) throws TransformerException {
+        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> filePaths = new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+        for (String filename : filenames) {
+            filePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(filename, null));
+        }
+        return S3HarvesterController.parseFilePaths("bucket", filePaths).listFiles();
+    }
+
+    private static void assertShards(CatalogSharder.Shard shard, String ... names) {
+        List<String> shardNames = new ArrayList<String>();
+        for (CatalogSharder.Shard childShard : shard.getShards()) {
+            shardNames.add(childShard.getName());
+        }
+        Assert.assertEquals("Wrong shards", Arrays.asList(names), shardNames);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class S3HarvesterCatalogueTest {
+    private static final long OLD_DATE = 1000000000000L;
+
+    private File workDirectory;
+    private File catalogueDirectory;
+    private S3HarvesterCatalogue catalogue;
+
+    @Before
+    public void setUp() throws IOException {
+        this.workDirectory = Files.createTempDirectory("s3harvester_test_").toFile();
+        this.catalogueDirectory = new File(this.workDirectory, "s3catalogue");
+        this.catalogueDirectory.mkdirs();
+        this.catalogue = new S3HarvesterCatalogue(this.catalogueDirectory,
+                S3HarvesterCatalogue.getDefaultSnapshotFile(this.catalogueDirectory));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.workDirectory);
+    }
+
+    @Test
+    public void testUnchangedHarvestWritesNothing() throws IOException {
+        S3HarvesterCatalogue.UpdateResult result = this.update("config", "a/b/file1.nc", "a/b/file2.nc", "a/file3.nc");
+        Assert.assertTrue("First harvest must generate every catalogue", result.isRebuilt());
+        Assert.assertTrue("First harvest must change the catalogue", result.isChanged());
+        Assert.assertEquals("Wrong number of catalogues written", 3, result.getCatalogsWritten());
+        this.assertCatalogues("bucket", "bucket/a", "bucket/a/b");
+        Assert.assertTrue("Snapshot not saved", this.catalogue.getSnapshotFile().isFile());
+
+        this.makeCataloguesOld();
+        result = this.update("config", "a/b/file1.nc", "a/b/file2.nc", "a/file3.nc");
+        Assert.assertFalse("Second harvest must be incremental", result.isRebuilt());
+        Assert.assertEquals("Wrong number of catalogues written", 0, result.getCatalogsWritten());
+        Assert.assertFalse("Catalogue changed", result.isChanged());
+        this.assertRewritten();
+    }
+
+    @Test
+    public void testAddedFileRewritesItsDirectory() throws IOException {
+        this.update("config", "a/b/file1.nc", "a/file2.nc", "c/file3.nc");
+        this.makeCataloguesOld();
+
+        S3HarvesterCatalogue.UpdateResult result = this.update("config", "a/b/file1.nc", "a/b/file4.nc", "a/file2.nc", "c/file3.nc");
+        Assert.assertEquals("Wrong added files", 1, result.getAddedFiles());
+        Assert.assertTrue("Catalogue not changed", result.isChanged());
+        this.assertRewritten("bucket/a/b");
+
+        // New directory: its catalogue is created, and its parent references it
+        this.makeCataloguesOld();
+        result = this.update("config", "a/b/file1.nc", "a/b/file4.nc", "a/d/e/file5.nc", "a/file2.nc", "c/file3.nc");
+        Assert.assertEquals("Wrong number of catalogues written", 3, result.getCatalogsWritten());
+        this.assertCatalogues("bucket", "bucket/a", "bucket/a/b", "bucket/a/d", "bucket/a/d/e", "bucket/c");
+        this.assertRewritten("bucket/a", "bucket/a/d", "bucket/a/d/e");
+    }
+
+    @Test
+    public void testRemovedDirectoryIsDeleted() throws IOException {
+        this.update("config", "a/b/file1.nc", "a/b/c/file2.nc", "a/file3.nc");
+        this.makeCataloguesOld();
+
+        S3HarvesterCatalogue.UpdateResult result = this.update("config", "a/file3.nc");
+        Assert.assertEquals("Wrong removed files", 2, result.getRemovedFiles());
+        Assert.assertEquals("Wrong deleted catalogues", 2, result.getCatalogsDeleted());
+        Assert.assertTrue("Catalogue not changed", result.isChanged());
+        Assert.assertFalse("Directory not deleted", new File(this.catalogueDirectory, "bucket/a/b").exists());
+        this.assertCatalogues("bucket", "bucket/a");
+        this.assertRewritten("bucket/a");
+    }
+
+    @Test
+    public void testModifiedFileDoesNotChangeTheCatalogue() throws IOException {
+        this.update("config", "a/file1.nc");
+        this.makeCataloguesOld();
+
+        Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> files = listing("a/file1.nc");
+        S3HarvesterSnapshot snapshot = snapshot("config", "a/file1.nc");
+        snapshot.getBucketFiles("bucket").put("a/file1.nc", new S3HarvesterSnapshot.FileEntry("new-etag", 20, OLD_DATE));
+        S3HarvesterCatalogue.UpdateResult result = this.catalogue.update(files, snapshot, null);
+
+        Assert.assertEquals("Wrong modified files", 1, result.getModifiedFiles());
+        Assert.assertFalse("Catalogue changed", result.isChanged());
+        this.assertRewritten();
+    }
+
+    @Test
+    public void testConfigurationChangeGeneratesEveryCatalogue() throws IOException {
+        this.update("config", "a/file1.nc", "b/file2.nc");
+        File staleCatalog = new File(this.catalogueDirectory, "stale/" + S3HarvesterCatalogue.CATALOG_FILENAME);
+        staleCatalog.getParentFile().mkdirs();
+        FileUtils.writeStringToFile(staleCatalog, "<catalog />", StandardCharsets.UTF_8);
+
+        S3HarvesterCatalogue.UpdateResult result = this.update("other config", "a/file1.nc", "b/file2.nc");
+        Assert.assertTrue("A new configuration must generate every catalogue", result.isRebuilt());
+        Assert.assertTrue("Catalogue not changed", result.isChanged());
+        Assert.assertEquals("Wrong deleted catalogues", 1, result.getCatalogsDeleted());
+        Assert.assertFalse("Stale directory not deleted", new File(this.catalogueDirectory, "stale").exists());
+        this.assertCatalogues("bucket", "bucket/a", "bucket/b");
+    }
+
+    @Test
+    public void testIdenticalFullHarvestLeavesTheCatalogueAlone() throws IOException {
+        this.update("config", "a/file1.nc", "b/file2.nc");
+        this.makeCataloguesOld();
+
+        S3HarvesterCatalogue.UpdateResult result = this.update("other config", "a/file1.nc", "b/file2.nc");
+        Assert.assertTrue("A new configuration must generate every catalogue", result.isRebuilt());
+        Assert.assertFalse("Catalogue changed", result.isChanged());
+        Assert.assertEquals("Wrong unchanged catalogues", 3, result.getCatalogsUnchanged());
+        this.assertRewritten();
+    }
+
+    @Test
+    public void testUnavailableBucketIsKept() throws IOException {
+        Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> files = listing("file1.nc");
+        files.put("other", new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>(Arrays.asList(
+                new S3HarvesterConfiguration.S3HarvesterPathConfiguration("dir/file2.nc", null))));
+        S3HarvesterSnapshot snapshot = snapshot("config", "file1.nc");
+        snapshot.putBucketFiles("other", files("dir/file2.nc"));
+        this.catalogue.update(files, snapshot, null);
+        this.assertCatalogues("bucket", "other", "other/dir");
+
+        // "other" could not be listed
+        this.catalogue.update(listing("file1.nc"), snapshot("config", "file1.nc"), Collections.singleton("other"));
+        this.assertCatalogues("bucket", "other", "other/dir");
+
+        // "other" no longer exists
+        S3HarvesterCatalogue.UpdateResult result = this.catalogue.update(listing("file1.nc"), snapshot("config", "file1.nc"), new HashSet<String>());
+        Assert.assertEquals("Wrong removed files", 1, result.getRemovedFiles());
+        Assert.assertFalse("Bucket catalogue not deleted", new File(this.catalogueDirectory, "other").exists());
+    }
+
+    @Test
+    public void testUnavailableBucketIsKeptOnRebuild() throws IOException {
+        Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> files = listing("file1.nc");
+        files.put("other", new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>(Arrays.asList(
+                new S3HarvesterConfiguration.S3HarvesterPathConfiguration("dir/file2.nc", null))));
+        S3HarvesterSnapshot snapshot = snapshot("config", "file1.nc");
+        snapshot.putBucketFiles("other", files("dir/file2.nc"));
+        this.catalogue.update(files, snapshot, null);
+        this.assertCatalogues("bucket", "other", "other/dir");
+
+        // The configuration changed, and "other" could not be listed
+        S3HarvesterCatalogue.UpdateResult result = this.catalogue.update(listing("file1.nc", "file3.nc"),
+                snapshot("other config", "file1.nc", "file3.nc"), Collections.singleton("other"));
+        Assert.assertTrue("A new configuration must generate every catalogue", result.isRebuilt());
+        Assert.assertEquals("Catalogue of an unavailable bucket deleted", 0, result.getCatalogsDeleted());
+        this.assertCatalogues("bucket", "other", "other/dir");
+
+        // No previous harvest, and "other" could not be listed
+        Assert.assertTrue("Snapshot not deleted", this.catalogue.getSnapshotFile().delete());
+        result = this.catalogue.update(listing("file1.nc"), snapshot("other config", "file1.nc"), Collections.singleton("other"));
+        Assert.assertTrue("A first harvest must generate every catalogue", result.isRebuilt());
+        this.assertCatalogues("bucket", "other", "other/dir");
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        S3HarvesterSnapshot snapshot = snapshot("config", "a/file1.nc", "b/file2.nc");
+        snapshot.putBucketFiles("empty", new TreeMap<String, S3HarvesterSnapshot.FileEntry>());
+        snapshot.getBucketFiles("bucket").put("no-etag.nc", new S3HarvesterSnapshot.FileEntry(null, 0, 0));
+        File snapshotFile = new File(this.workDirectory, "test.snapshot");
+        snapshot.save(snapshotFile);
+
+        S3HarvesterSnapshot loaded = S3HarvesterSnapshot.load(snapshotFile);
+        Assert.assertEquals("Wrong fingerprint", "config", loaded.getConfigFingerprint());
+        Assert.assertEquals("Wrong buckets", snapshot.getBuckets(), loaded.getBuckets());
+        Assert.assertEquals("Wrong files", snapshot.getBucketFiles("bucket"), loaded.getBucketFiles("bucket"));
+        Assert.assertTrue("Wrong empty bucket", loaded.getBucketFiles("empty").isEmpty());
+
+        Assert.assertNull("Missing snapshot", S3HarvesterSnapshot.load(new File(this.workDirectory, "missing.snapshot")));
+    }
+
+    @Test
+    public void testParallelGenerationMatchesSequentialGeneration() throws IOException {
+        List<String> keyList = new ArrayList<String>();
+        for (int year = 2000; year < 2020; year++) {
+            for (int month = 1; month <= 12; month++) {
+                keyList.add(String.format("data/%d/%02d/file.nc", year, month));
+            }
+        }
+        String[] keys = keyList.toArray(new String[0]);
+
+        File parallelDirectory = new File(this.workDirectory, "parallel");
+        S3HarvesterCatalogue parallelCatalogue = new S3HarvesterCatalogue(parallelDirectory,
+                S3HarvesterCatalogue.getDefaultSnapshotFile(parallelDirectory), null, 8);
+        S3HarvesterCatalogue.UpdateResult parallelResult = parallelCatalogue.update(listing(keys), snapshot("config", keys), null);
+
+        File sequentialDirectory = new File(this.workDirectory, "sequential");
+        S3HarvesterCatalogue sequentialCatalogue = new S3HarvesterCatalogue(sequentialDirectory,
+                S3HarvesterCatalogue.getDefaultSnapshotFile(sequentialDirectory), null, 1);
+        sequentialCatalogue.update(listing(keys), snapshot("config", keys), null);
+
+        // bucket, data, 20 years and 240 months
+        Assert.assertEquals("Wrong number of catalogues written", 262, parallelResult.getCatalogsWritten());
+        Assert.assertEquals("Parallel generation gave different catalogues",
+                S3HarvesterCatalogue.fingerprint(sequentialDirectory), S3HarvesterCatalogue.fingerprint(parallelDirectory));
+    }
+
+    @Test
+    public void testLargeDirectoryIsSharded() throws IOException {
+        this.catalogue.setSharding(new S3HarvesterConfiguration.S3HarvesterShardingConfiguration(
+                S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy.DATE, 2));
+
+        S3HarvesterCatalogue.UpdateResult result = this.update("config",
+                "a/f-2010-01.nc", "a/f-2011-01.nc", "a/f-2011-02.nc", "a/f-2011-03.nc", "a/sub/f.nc");
+        // bucket, a, a/sub, and the shards of a: 2010, 2011, 2011-01, 2011-02 and 2011-03
+        Assert.assertEquals("Wrong number of catalogues written", 8, result.getCatalogsWritten());
+        File directory = new File(this.catalogueDirectory, "bucket/a");
+        Assert.assertTrue("Missing shard", new File(directory, "catalog_2011_02.xml").isFile());
+
+        // Small enough again: the shards are deleted
+        result = this.update("config", "a/f-2010-01.nc", "a/sub/f.nc");
+        Assert.assertEquals("Wrong number of shards deleted", 5, result.getCatalogsDeleted());
+        this.assertCatalogues("bucket", "bucket/a", "bucket/a/sub");
+    }
+
+    private S3HarvesterCatalogue.UpdateResult update(String configFingerprint, String ... keys) throws IOException {
+        return this.catalogue.update(listing(keys), snapshot(configFingerprint, keys), null);
+    }
+
+    private static Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> listing(String ... keys) {
+        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> filePaths = new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+        for (String key : keys) {
+            filePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(key, null));
+        }
+        Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> filePathsByBucket =
+                new LinkedHashMap<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+        filePathsByBucket.put("bucket", filePaths);
+        return filePathsByBucket;
+    }
+
+    private static S3HarvesterSnapshot snapshot(String configFingerprint, String ... keys) {
+        S3HarvesterSnapshot snapshot = new S3HarvesterSnapshot(configFingerprint);
+        snapshot.putBucketFiles("bucket", files(keys));
+        return snapshot;
+    }
+
+    private static SortedMap<String, S3HarvesterSnapshot.FileEntry> files(String ... keys) {
+        SortedMap<String, S3HarvesterSnapshot.FileEntry> files = new TreeMap<String, S3HarvesterSnapshot.FileEntry>();
+        for (String key : keys) {
+            files.put(key, new S3HarvesterSnapshot.FileEntry("etag", 10, OLD_DATE));
+        }
+        return files;
+    }
+
+    private void assertCatalogues(String ... directories) {
+        Set<String> expected = new TreeSet<String>(Arrays.asList(directories));
+        Set<String> found = new TreeSet<String>();
+        for (File catalogFile : FileUtils.listFiles(this.catalogueDirectory, null, true)) {
+            String path = this.catalogueDirectory.toPath().relativize(catalogFile.getParentFile().toPath()).toString();
+            Assert.assertEquals(String.format("Unexpected file in %s", path), S3HarvesterCatalogue.CATALOG_FILENAME, catalogFile.getName());
+            found.add(path.replace(File.separatorChar, '/'));
+        }
+        Assert.assertEquals("Wrong catalogues", expected, found);
+    }
+
+    private void makeCataloguesOld() {
+        for (File catalogFile : FileUtils.listFiles(this.catalogueDirectory, null, true)) {
+            catalogFile.setLastModified(OLD_DATE);
+        }
+    }
+
+    private void assertRewritten(String ... directories) {
+        List<String> expected = Arrays.asList(directories);
+        for (File catalogFile : FileUtils.listFiles(this.catalogueDirectory, null, true)) {
+            String path = this.catalogueDirectory.toPath().relativize(catalogFile.getParentFile().toPath()).toString().replace(File.separatorChar, '/');
+            Assert.assertEquals(String.format("Catalogue %s", path), expected.contains(path), catalogFile.lastModified() != OLD_DATE);
+        }
+    }
+}
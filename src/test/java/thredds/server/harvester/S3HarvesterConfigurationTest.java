@@ -62,6 +62,57 @@ public class S3HarvesterConfigurationTest {
         Assert.assertEquals("Wrong first path of first bucket", "derived/ncaggregate", firstBucketPath.getPath());
     }
 
+    @Test
+    public void testParseScheduleConfigFile() throws Exception {
+        URL configFileURL = S3HarvesterConfigurationTest.class.getClassLoader().getResource("s3harvester_schedule.xml");
+        File configFile = new File(configFileURL.toURI());
+
+        S3HarvesterConfiguration config = new S3HarvesterConfiguration(configFile);
+        config.init();
+
+        S3HarvesterConfiguration.S3HarvesterScheduleConfiguration scheduleConfig = config.getScheduleConfiguration();
+        Assert.assertNotNull("Schedule is null", scheduleConfig);
+        Assert.assertEquals("Wrong check interval", Long.valueOf(60 * 60 * 1000L), scheduleConfig.getCheckInterval());
+        Assert.assertEquals("Wrong full harvest interval", Long.valueOf(24 * 60 * 60 * 1000L), scheduleConfig.getFullHarvestInterval());
+        Assert.assertEquals("Wrong event feed", new File("/var/log/s3events.log"), scheduleConfig.getEventFeed());
+
+        List<S3HarvesterConfiguration.S3HarvesterBucketConfiguration> bucketConfigurations = config.getBucketConfigurations();
+        Assert.assertEquals("Wrong number of bucket configurations", 2, bucketConfigurations.size());
+
+        S3HarvesterConfiguration.S3HarvesterBucketConfiguration publicBucket = bucketConfigurations.get(0);
+        Assert.assertEquals("Wrong bucket check interval", Long.valueOf(15 * 60 * 1000L), publicBucket.getCheckInterval());
+        Assert.assertEquals("Wrong first path check interval", Long.valueOf(5 * 60 * 1000L), publicBucket.getPaths().get(0).getCheckInterval());
+        Assert.assertNull("Second path check interval should not be set", publicBucket.getPaths().get(1).getCheckInterval());
+
+        Assert.assertNull("Private bucket check interval should not be set", bucketConfigurations.get(1).getCheckInterval());
+    }
+
+    @Test
+    public void testNoSchedule() throws Exception {
+        URL configFileURL = S3HarvesterConfigurationTest.class.getClassLoader().getResource("s3harvester.xml");
+        S3HarvesterConfiguration config = new S3HarvesterConfiguration(new File(configFileURL.toURI()));
+        config.init();
+
+        Assert.assertNull("Schedule should not be set", config.getScheduleConfiguration());
+    }
+
+    @Test
+    public void testParseShardingConfigFile() throws Exception {
+        URL configFileURL = S3HarvesterConfigurationTest.class.getClassLoader().getResource("s3harvester_sharding.xml");
+        S3HarvesterConfiguration config = new S3HarvesterConfiguration(new File(configFileURL.toURI()));
+        config.init();
+
+        S3HarvesterConfiguration.S3HarvesterShardingConfiguration shardingConfig = config.getShardingConfiguration();
+        Assert.assertNotNull("Sharding is null", shardingConfig);
+        Assert.assertEquals("Wrong strategy", S3HarvesterConfiguration.S3HarvesterShardingConfiguration.Strategy.FAN_OUT, shardingConfig.getStrategy());
+        Assert.assertEquals("Wrong max entries", 200, shardingConfig.getMaxEntries());
+
+        URL noShardingConfigFileURL = S3HarvesterConfigurationTest.class.getClassLoader().getResource("s3harvester.xml");
+        S3HarvesterConfiguration noShardingConfig = new S3HarvesterConfiguration(new File(noShardingConfigFileURL.toURI()));
+        noShardingConfig.init();
+        Assert.assertNull("Sharding should not be set", noShardingConfig.getShardingConfiguration());
+    }
+
     @Test(expected = Exception.class)
     public void testParseEmptyConfigFile() throws Exception {
         // Find the config file in the test/resources directory
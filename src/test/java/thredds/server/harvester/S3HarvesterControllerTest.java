@@ -21,7 +21,11 @@ package thredds.server.harvester;
 import org.junit.Assert;
 import org.junit.Test;
 
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.TransformerException;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -89,6 +93,47 @@ public class S3HarvesterControllerTest {
         }
     }
 
+    @Test
+    public void testParseFilePathsSharesMetadataAndNames() throws Exception {
+        Element metadata = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument().createElement("metadata");
+        metadata.setTextContent("documentation");
+
+        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> filePaths = new TreeSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+        filePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration("model_a/ongoing/file1.nc", metadata));
+        filePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(new String("model_b/ongoing/file2.nc"), metadata));
+
+        S3HarvesterController.S3File s3FileTree = S3HarvesterController.parseFilePaths("bucket", filePaths);
+
+        S3HarvesterController.S3File file1 = s3FileTree.listFiles().get(0).listFiles().get(0).listFiles().get(0);
+        S3HarvesterController.S3File file2 = s3FileTree.listFiles().get(1).listFiles().get(0).listFiles().get(0);
+        this.assertTreeNode(file1, "bucket", "file1.nc", "bucket/model_a/ongoing/file1.nc", 0);
+        this.assertTreeNode(file2, "bucket", "file2.nc", "bucket/model_b/ongoing/file2.nc", 0);
+
+        Assert.assertNotNull("Missing metadata", file1.getMetadataXmlStr());
+        Assert.assertSame("Metadata is not shared", file1.getMetadataXmlStr(), file2.getMetadataXmlStr());
+        Assert.assertSame("Directory names are not shared",
+                s3FileTree.listFiles().get(0).listFiles().get(0).getFilename(),
+                s3FileTree.listFiles().get(1).listFiles().get(0).getFilename());
+    }
+
+    @Test
+    public void testParseUnsortedFilePaths() throws TransformerException {
+        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> filePaths = new LinkedHashSet<S3HarvesterConfiguration.S3HarvesterPathConfiguration>();
+        for (int i = 0; i < 40; i++) {
+            filePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(String.format("dir%02d/a.nc", i), null));
+        }
+        for (int i = 0; i < 40; i++) {
+            filePaths.add(new S3HarvesterConfiguration.S3HarvesterPathConfiguration(String.format("dir%02d/b.nc", i), null));
+        }
+
+        S3HarvesterController.S3File s3FileTree = S3HarvesterController.parseFilePaths("bucket", filePaths);
+
+        this.assertTreeNode(s3FileTree, "bucket", "bucket", "bucket", 40);
+        for (S3HarvesterController.S3File directory : s3FileTree.listFiles()) {
+            this.assertTreeNode(directory, "bucket", directory.getFilename(), "bucket/" + directory.getFilename(), 2);
+        }
+    }
+
     private void testGbr4BgcTree(S3HarvesterController.S3File gbr4BgcFile) {
         this.assertTreeNode(gbr4BgcFile, "bucket", "gbr4_bgc_924", "bucket/derived/ncaggregate/ereefs/gbr4_bgc_924", 1);
 
@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class S3HarvesterJobManagerTest {
+
+    @Test
+    public void testConcurrentRequestsJoinTheRunningHarvest() throws Exception {
+        S3HarvesterJobManager jobManager = new S3HarvesterJobManager(S3HarvesterJobManager.DEFAULT_MAX_JOBS);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger harvestCount = new AtomicInteger(0);
+
+        S3HarvesterJobManager.Harvest harvest = new S3HarvesterJobManager.Harvest() {
+            @Override
+            public S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws Exception {
+                harvestCount.incrementAndGet();
+                job.addBucketsToList(2);
+                job.bucketListed();
+                job.addKeysSeen(1500);
+                started.countDown();
+                release.await();
+                return new S3HarvesterCatalogue.UpdateResult(false);
+            }
+        };
+
+        S3HarvesterJob job = jobManager.submit(harvest);
+        Assert.assertTrue("Harvest not started", started.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Wrong state", S3HarvesterJob.State.RUNNING, job.getState());
+        Assert.assertEquals("Wrong buckets listed", 1, job.getBucketsListed());
+        Assert.assertEquals("Wrong buckets to list", 2, job.getBucketsToList());
+        Assert.assertEquals("Wrong keys seen", 1500, job.getKeysSeen());
+
+        // Requested while running
+        S3HarvesterJobManager.Submission submission = jobManager.submitJob(harvest);
+        Assert.assertSame("A second harvest was started", job, submission.getJob());
+        Assert.assertFalse("Running job reported as created", submission.isCreated());
+        Assert.assertSame("Wrong last job", job, jobManager.getLastJob());
+        Assert.assertSame("Wrong job", job, jobManager.getJob(job.getId()));
+
+        release.countDown();
+        waitFor(job);
+        Assert.assertEquals("Wrong state", S3HarvesterJob.State.DONE, job.getState());
+        Assert.assertNotNull("No result", job.getResult());
+        Assert.assertEquals("Wrong number of harvests", 1, harvestCount.get());
+
+        // Requested once finished
+        submission = jobManager.submitJob(harvest);
+        S3HarvesterJob nextJob = submission.getJob();
+        Assert.assertNotSame("No new harvest started", job, nextJob);
+        Assert.assertTrue("New job not reported as created", submission.isCreated());
+        waitFor(nextJob);
+        Assert.assertEquals("Wrong number of harvests", 2, harvestCount.get());
+        Assert.assertSame("Previous job forgotten", job, jobManager.getJob(job.getId()));
+    }
+
+    @Test
+    public void testFailedHarvest() throws Exception {
+        S3HarvesterJobManager jobManager = new S3HarvesterJobManager(1);
+        S3HarvesterJob job = jobManager.submit(new S3HarvesterJobManager.Harvest() {
+            @Override
+            public S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws Exception {
+                throw new IOException("Disk full");
+            }
+        });
+        waitFor(job);
+        Assert.assertEquals("Wrong state", S3HarvesterJob.State.FAILED, job.getState());
+        Assert.assertEquals("Wrong error", "Disk full", job.getError());
+        Assert.assertTrue("Error not in the status", job.toString().contains("error: Disk full"));
+
+        // Only the last job is kept
+        S3HarvesterJob nextJob = jobManager.submit(new S3HarvesterJobManager.Harvest() {
+            @Override
+            public S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws Exception {
+                return new S3HarvesterCatalogue.UpdateResult(true);
+            }
+        });
+        waitFor(nextJob);
+        Assert.assertNull("Old job kept", jobManager.getJob(job.getId()));
+        Assert.assertSame("Wrong job", nextJob, jobManager.getJob(nextJob.getId()));
+    }
+
+    private static void waitFor(S3HarvesterJob job) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!job.isFinished() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("Harvest not finished", job.isFinished());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import uk.co.informaticslab.InMemoryS3;
+import uk.co.informaticslab.S3Metrics;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class S3HarvesterListerTest {
+
+    @Test
+    public void testListingFindsEveryNetCDFFile() throws IOException {
+        InMemoryS3 s3 = new InMemoryS3();
+        // Give the other listings a chance to run at the same time
+        s3.setListingDelay(5);
+        List<String> expectedKeys = new ArrayList<String>();
+        for (int i = 0; i < 2500; i++) {
+            // Enough files in a single directory to need several pages
+            String key = String.format("data/daily/file-%04d.nc", i);
+            s3.addFile("bucket", key);
+            expectedKeys.add(key);
+        }
+        for (String dir : Arrays.asList("data/monthly/", "data/annual/nested/", "other/")) {
+            s3.addFile("bucket", dir + "file.nc");
+            s3.addFile("bucket", dir + "readme.txt");
+            expectedKeys.add(dir + "file.nc");
+        }
+        s3.addFile("bucket", "root.NC");
+        expectedKeys.add("root.NC");
+        s3.addFile("bucket", "nc");
+
+        Map<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathsByBucket =
+                new LinkedHashMap<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+        // Null path: the whole bucket
+        pathsByBucket.put("bucket", Arrays.<S3HarvesterConfiguration.S3HarvesterPathConfiguration>asList((S3HarvesterConfiguration.S3HarvesterPathConfiguration) null));
+
+        S3HarvesterJob job = new S3HarvesterJob();
+        S3HarvesterLister lister = new S3HarvesterLister(s3, null, new S3Metrics(0, false), 4, job);
+        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> files = lister.list(pathsByBucket).get("bucket");
+        Assert.assertEquals("Wrong buckets listed", 1, job.getBucketsListed());
+        Assert.assertEquals("Wrong keys seen", 2508, job.getKeysSeen());
+
+        List<String> keys = new ArrayList<String>();
+        for (S3HarvesterConfiguration.S3HarvesterPathConfiguration file : files) {
+            keys.add(file.getPath());
+        }
+        Assert.assertEquals("Wrong files", new ArrayList<String>(new TreeSet<String>(expectedKeys)), keys);
+        Assert.assertTrue("Directories were not listed in parallel", s3.getMaxConcurrentListings() > 1);
+    }
+
+    @Test
+    public void testFirstConfiguredPathGivesTheMetadata() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "data/a.nc");
+        s3.addFile("bucket", "data/sub/b.nc");
+
+        Element metadata1 = newMetadata("first");
+        Element metadata2 = newMetadata("second");
+        Map<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathsByBucket =
+                new LinkedHashMap<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+        pathsByBucket.put("bucket", Arrays.asList(
+                new S3HarvesterConfiguration.S3HarvesterPathConfiguration("data/sub", metadata1),
+                new S3HarvesterConfiguration.S3HarvesterPathConfiguration("data", metadata2)));
+
+        S3HarvesterLister lister = new S3HarvesterLister(s3, null, new S3Metrics(0, false), 4);
+        Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration> files = lister.list(pathsByBucket).get("bucket");
+
+        Assert.assertEquals("Wrong number of files", 2, files.size());
+        for (S3HarvesterConfiguration.S3HarvesterPathConfiguration file : files) {
+            if ("data/sub/b.nc".equals(file.getPath())) {
+                Assert.assertSame("Wrong metadata for data/sub/b.nc", metadata1, file.getMetadata());
+            } else {
+                Assert.assertSame("Wrong metadata for data/a.nc", metadata2, file.getMetadata());
+            }
+        }
+    }
+
+    @Test
+    public void testFailedBucketIsSkipped() throws IOException {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "a.nc");
+        s3.addFile("broken", "dir/b.nc");
+        s3.addBrokenBucket("broken");
+
+        Map<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> pathsByBucket =
+                new LinkedHashMap<String, List<S3HarvesterConfiguration.S3HarvesterPathConfiguration>>();
+        pathsByBucket.put("bucket", Arrays.<S3HarvesterConfiguration.S3HarvesterPathConfiguration>asList((S3HarvesterConfiguration.S3HarvesterPathConfiguration) null));
+        pathsByBucket.put("broken", Arrays.<S3HarvesterConfiguration.S3HarvesterPathConfiguration>asList((S3HarvesterConfiguration.S3HarvesterPathConfiguration) null));
+
+        S3HarvesterLister lister = new S3HarvesterLister(s3, null, new S3Metrics(0, false), 4);
+        Map<String, Set<S3HarvesterConfiguration.S3HarvesterPathConfiguration>> filesByBucket = lister.list(pathsByBucket);
+
+        Assert.assertEquals("Wrong file count", 1, filesByBucket.get("bucket").size());
+        Assert.assertFalse("Failed bucket returned", filesByBucket.containsKey("broken"));
+    }
+
+    private static Element newMetadata(String documentation) throws Exception {
+        Element metadata = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument().createElement("metadata");
+        metadata.setTextContent(documentation);
+        return metadata;
+    }
+}
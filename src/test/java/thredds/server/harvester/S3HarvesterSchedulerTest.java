@@ -0,0 +1,248 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package thredds.server.harvester;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.informaticslab.InMemoryS3;
+import uk.co.informaticslab.S3Metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class S3HarvesterSchedulerTest {
+    private static final long MINUTE = 60 * 1000L;
+
+    private File tempDir;
+    private File catalogueDir;
+    private File eventFeed;
+    private InMemoryS3 s3;
+    private S3HarvesterJobManager jobManager;
+    private AtomicInteger harvestCount;
+    // Snapshot of the previous harvest, or null
+    private S3HarvesterSnapshot snapshot;
+
+    @Before
+    public void setUp() throws IOException {
+        this.tempDir = Files.createTempDirectory("s3harvester-scheduler").toFile();
+        this.catalogueDir = new File(this.tempDir, "s3catalogue");
+        this.eventFeed = new File(this.tempDir, "s3events.log");
+        this.s3 = new InMemoryS3();
+        this.jobManager = new S3HarvesterJobManager(S3HarvesterJobManager.DEFAULT_MAX_JOBS);
+        this.harvestCount = new AtomicInteger(0);
+        this.snapshot = null;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.tempDir);
+    }
+
+    @Test
+    public void testFirstHarvestStartsStraightAway() throws Exception {
+        S3HarvesterScheduler scheduler = this.newScheduler("<schedule checkInterval=\"10\" />", "");
+
+        Assert.assertTrue("Scheduler should be scheduled", scheduler.isScheduled());
+        this.waitFor(scheduler.check(System.currentTimeMillis()));
+        Assert.assertEquals("No harvest was started without a snapshot", 1, this.harvestCount.get());
+    }
+
+    @Test
+    public void testNewFileStartsAHarvest() throws Exception {
+        this.s3.addFile("bucket", "data/2020-01.nc");
+        this.s3.addFile("bucket", "other/z.nc");
+        this.saveSnapshot("bucket", "data/2020-01.nc", "other/z.nc");
+        S3HarvesterScheduler scheduler = this.newScheduler("", "<bucket name=\"bucket\"><paths><path value=\"data\" checkInterval=\"5\" /></paths></bucket>");
+
+        long now = System.currentTimeMillis();
+        Assert.assertNull("Harvest started without new files", scheduler.check(now));
+        Assert.assertEquals("Wrong last key", "data/2020-01.nc", scheduler.getTargets().get(0).getLastKey());
+        Assert.assertEquals("Wrong number of listing requests", 1, this.s3.getListCount());
+
+        // Not checked again before the interval
+        this.s3.addFile("bucket", "data/2020-02.nc");
+        Assert.assertNull("Path checked before its interval", scheduler.check(now + MINUTE));
+        Assert.assertEquals("Path checked before its interval", 1, this.s3.getListCount());
+
+        this.waitFor(scheduler.check(now + 5 * MINUTE));
+        Assert.assertEquals("No harvest was started for the new file", 1, this.harvestCount.get());
+        Assert.assertEquals("Wrong number of listing requests", 2, this.s3.getListCount());
+    }
+
+    @Test
+    public void testOtherNewFilesAreIgnored() throws Exception {
+        this.s3.addFile("bucket", "data/2020-01.nc");
+        this.s3.addFile("bucket", "data/2020-01.txt");
+        this.s3.addFile("bucket", "other/z.nc");
+        this.saveSnapshot("bucket", "data/2020-01.nc");
+        S3HarvesterScheduler scheduler = this.newScheduler("", "<bucket name=\"bucket\" checkInterval=\"5\"><paths><path value=\"data\" /></paths></bucket>");
+
+        Assert.assertNull("Harvest started for files which are not harvested", scheduler.check(System.currentTimeMillis()));
+        Assert.assertEquals("Path was not checked at the bucket interval", 1, this.s3.getListCount());
+    }
+
+    @Test
+    public void testTrailingKeysAreSkipped() throws Exception {
+        this.s3.addFile("bucket", "data/2020-01.nc");
+        for (int i = 0; i < 250; i++) {
+            this.s3.addFile("bucket", String.format("data/2020-01.nc.%03d.md5", i));
+        }
+        this.saveSnapshot("bucket", "data/2020-01.nc");
+        S3HarvesterScheduler scheduler = this.newScheduler("", "<bucket name=\"bucket\"><paths><path value=\"data\" checkInterval=\"5\" /></paths></bucket>");
+
+        long now = System.currentTimeMillis();
+        Assert.assertNull("Harvest started for keys which are not NetCDF files", scheduler.check(now));
+        Assert.assertEquals("Listing did not follow the continuation token", 3, this.s3.getListCount());
+
+        // The next check starts after the keys already listed
+        Assert.assertNull("Harvest started for keys which are not NetCDF files", scheduler.check(now + 5 * MINUTE));
+        Assert.assertEquals("Keys listed again", 4, this.s3.getListCount());
+
+        this.s3.addFile("bucket", "data/2020-02.nc");
+        this.waitFor(scheduler.check(now + 10 * MINUTE));
+        Assert.assertEquals("No harvest was started for the new file", 1, this.harvestCount.get());
+    }
+
+    @Test
+    public void testPathWithoutNetCDFFile() throws Exception {
+        for (int i = 0; i < 150; i++) {
+            this.s3.addFile("bucket", String.format("data/readme-%03d.txt", i));
+        }
+        this.saveSnapshot("bucket", "other/z.nc");
+        S3HarvesterScheduler scheduler = this.newScheduler("", "<bucket name=\"bucket\"><paths><path value=\"data\" checkInterval=\"5\" /></paths></bucket>");
+
+        long now = System.currentTimeMillis();
+        Assert.assertNull("Harvest started for keys which are not NetCDF files", scheduler.check(now));
+        Assert.assertNull("Harvest started for keys which are not NetCDF files", scheduler.check(now + 5 * MINUTE));
+        Assert.assertEquals("Wrong number of listing requests", 3, this.s3.getListCount());
+    }
+
+    @Test
+    public void testFullHarvestInterval() throws Exception {
+        this.saveSnapshot("bucket", "data/2020-01.nc");
+        S3HarvesterScheduler scheduler = this.newScheduler("<schedule fullHarvestInterval=\"60\" />", "<bucket name=\"bucket\" />");
+
+        long now = System.currentTimeMillis();
+        Assert.assertNull("Full harvest started too early", scheduler.check(now));
+        this.waitFor(scheduler.check(now + 61 * MINUTE));
+        Assert.assertEquals("Full harvest was not started", 1, this.harvestCount.get());
+        Assert.assertEquals("Bucket was listed without check interval", 0, this.s3.getListCount());
+    }
+
+    @Test
+    public void testEventFeed() throws Exception {
+        this.appendEvent("ObjectCreated:Put s3://bucket/data/old.nc\n");
+        this.saveSnapshot("bucket", "data/2020-01.nc");
+        S3HarvesterScheduler scheduler = this.newScheduler(
+                String.format("<schedule eventFeed=\"%s\" />", this.eventFeed.getAbsolutePath()),
+                "<bucket name=\"bucket\"><paths><path value=\"data\" /></paths></bucket>");
+
+        long now = System.currentTimeMillis();
+        Assert.assertNull("Events written before the scheduler started were not ignored", scheduler.check(now));
+
+        this.appendEvent("ObjectCreated:Put s3://other/data/a.nc\nObjectCreated:Put s3://bucket/misc/a.nc\nObjectCreated:Put s3://bucket/data/a.txt\n");
+        Assert.assertNull("Harvest started for files which are not harvested", scheduler.check(now));
+
+        // Incomplete line
+        this.appendEvent("ObjectRemoved:Delete s3://bucket/data/2020");
+        Assert.assertNull("Harvest started for an incomplete event", scheduler.check(now));
+
+        this.appendEvent("-01.nc\n");
+        this.waitFor(scheduler.check(now));
+        Assert.assertEquals("No harvest was started for the event", 1, this.harvestCount.get());
+        Assert.assertEquals("Bucket was listed without check interval", 0, this.s3.getListCount());
+    }
+
+    @Test
+    public void testFailedHarvestIsRetried() throws Exception {
+        S3HarvesterScheduler scheduler = this.newScheduler("<schedule checkInterval=\"10\" />", "");
+        scheduler.setRetryDelay(5 * MINUTE);
+        this.harvestCount.set(-1);
+
+        long now = System.currentTimeMillis();
+        S3HarvesterJob job = scheduler.check(now);
+        this.waitFor(job);
+        Assert.assertEquals("Wrong job state", S3HarvesterJob.State.FAILED, job.getState());
+
+        Assert.assertNull("Failed harvest retried too early", scheduler.check(now + MINUTE));
+        this.waitFor(scheduler.check(now + 6 * MINUTE));
+        Assert.assertEquals("Failed harvest was not retried", 1, this.harvestCount.get());
+    }
+
+    private S3HarvesterScheduler newScheduler(String schedule, String bucket) throws Exception {
+        File configFile = new File(this.tempDir, "s3harvester.xml");
+        String config = String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n<s3HarvesterConfig>%n" +
+                "<catalogueDirectory>%s</catalogueDirectory>%n%s%n<buckets>%s</buckets>%n</s3HarvesterConfig>%n",
+                this.catalogueDir.getAbsolutePath(), schedule,
+                bucket.isEmpty() ? "<bucket name=\"bucket\" />" : bucket);
+        Files.write(configFile.toPath(), config.getBytes(StandardCharsets.UTF_8));
+
+        S3HarvesterConfiguration harvesterConfig = new S3HarvesterConfiguration(configFile);
+        harvesterConfig.init();
+        if (this.snapshot != null) {
+            // Saved by the previous harvest
+            S3HarvesterScheduler.saveLastKeys(harvesterConfig, this.snapshot);
+        }
+
+        return new S3HarvesterScheduler(harvesterConfig, this.s3, new S3Metrics(0, false), this.jobManager,
+                new S3HarvesterJobManager.Harvest() {
+                    @Override
+                    public S3HarvesterCatalogue.UpdateResult harvest(S3HarvesterJob job) throws Exception {
+                        if (S3HarvesterSchedulerTest.this.harvestCount.incrementAndGet() <= 0) {
+                            throw new IOException("Harvest failed");
+                        }
+                        return new S3HarvesterCatalogue.UpdateResult(false);
+                    }
+                });
+    }
+
+    private void saveSnapshot(String bucket, String ... keys) throws IOException {
+        SortedMap<String, S3HarvesterSnapshot.FileEntry> files = new TreeMap<String, S3HarvesterSnapshot.FileEntry>();
+        for (String key : keys) {
+            files.put(key, new S3HarvesterSnapshot.FileEntry("etag", 10, 0));
+        }
+        this.snapshot = new S3HarvesterSnapshot("fingerprint");
+        this.snapshot.putBucketFiles(bucket, files);
+    }
+
+    private void appendEvent(String event) throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(this.eventFeed, true)) {
+            outputStream.write(event.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void waitFor(S3HarvesterJob job) throws InterruptedException {
+        Assert.assertNotNull("No harvest was started", job);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!job.isFinished() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("Harvest did not finish", job.isFinished());
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory S3, shared by the tests.
+ * <p>
+ * It serves HEAD requests and ranged GET requests on its files, and listings
+ * with prefix, delimiter, "StartAfter" and pagination support.
+ * It records the requests it receives, so tests can check what was sent to S3.
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+    public static final String ETAG = "etag";
+    // Size of the files added without content, to be listed
+    public static final int DEFAULT_FILE_SIZE = 10;
+
+    private static final int MAX_KEYS = 1000;
+
+    // "bucket/key" => file
+    private final ConcurrentNavigableMap<String, InMemoryFile> files = new ConcurrentSkipListMap<String, InMemoryFile>();
+    private final Set<String> brokenBuckets = Collections.synchronizedSet(new TreeSet<String>());
+    private volatile boolean failing = false;
+    private volatile long listingDelay = 0;
+
+    private final AtomicInteger headCount = new AtomicInteger(0);
+    private final AtomicInteger listCount = new AtomicInteger(0);
+    private final AtomicInteger concurrentListings = new AtomicInteger(0);
+    private final AtomicInteger maxConcurrentListings = new AtomicInteger(0);
+    private final List<String> requestedRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    public void addFile(String bucket, String key, byte[] data) {
+        this.files.put(bucket + "/" + key, new InMemoryFile(data, new Date()));
+    }
+
+    /**
+     * Add a file of {@link #DEFAULT_FILE_SIZE} bytes, for the tests which only list files.
+     */
+    public void addFile(String bucket, String key) {
+        this.addFile(bucket, key, new byte[DEFAULT_FILE_SIZE]);
+    }
+
+    /**
+     * Every request to a broken bucket fails with an "Access Denied" error.
+     */
+    public void addBrokenBucket(String bucket) {
+        this.brokenBuckets.add(bucket);
+    }
+
+    /**
+     * @param failing true to fail every GET request, as if S3 was down
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * @param listingDelay time, in milliseconds, taken by each listing request,
+     *     to give the other listings a chance to run at the same time
+     */
+    public void setListingDelay(long listingDelay) {
+        this.listingDelay = listingDelay;
+    }
+
+    public int getHeadCount() {
+        return this.headCount.get();
+    }
+
+    public int getListCount() {
+        return this.listCount.get();
+    }
+
+    public int getMaxConcurrentListings() {
+        return this.maxConcurrentListings.get();
+    }
+
+    /**
+     * @return the ranges of the GET requests received, "first-last", in the order they were received.
+     */
+    public List<String> getRequestedRanges() {
+        return new ArrayList<String>(this.requestedRanges);
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        this.headCount.incrementAndGet();
+        InMemoryFile file = this.getFile(bucketName, key);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(file.data.length);
+        metadata.setLastModified(file.lastModified);
+        metadata.setHeader(Headers.ETAG, ETAG);
+        return metadata;
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        if (this.failing) {
+            throw new AmazonS3Exception("S3 is down");
+        }
+        InMemoryFile file = this.getFile(request.getBucketName(), request.getKey());
+        long[] range = request.getRange();
+        this.requestedRanges.add(range[0] + "-" + range[1]);
+        int end = (int) Math.min(range[1] + 1, file.data.length);
+
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(file.data, (int) range[0], end)));
+        return object;
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        this.listCount.incrementAndGet();
+        int concurrent = this.concurrentListings.incrementAndGet();
+        this.maxConcurrentListings.accumulateAndGet(concurrent, Math::max);
+        try {
+            if (this.listingDelay > 0) {
+                Thread.sleep(this.listingDelay);
+            }
+
+            String bucket = request.getBucketName();
+            this.checkBucket(bucket);
+            String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+            String delimiter = request.getDelimiter();
+            int maxKeys = request.getMaxKeys() == null ? MAX_KEYS : Math.min(request.getMaxKeys(), MAX_KEYS);
+            // The continuation token is the last key of the previous page
+            String startAfter = request.getContinuationToken() != null ? request.getContinuationToken() : request.getStartAfter();
+            String from = startAfter == null || startAfter.compareTo(prefix) < 0 ? prefix : startAfter;
+
+            ListObjectsV2Result result = new ListObjectsV2Result();
+            Set<String> commonPrefixes = new TreeSet<String>();
+            int count = 0;
+            for (Map.Entry<String, InMemoryFile> fileEntry : this.files.tailMap(bucket + "/" + from, !from.equals(startAfter)).entrySet()) {
+                String fullKey = fileEntry.getKey();
+                if (!fullKey.startsWith(bucket + "/" + prefix)) {
+                    break;
+                }
+                String key = fullKey.substring(bucket.length() + 1);
+                int delimiterIndex = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+                String commonPrefix = delimiterIndex < 0 ? null : key.substring(0, delimiterIndex + 1);
+                if (commonPrefix != null && commonPrefixes.contains(commonPrefix)) {
+                    result.setNextContinuationToken(key);
+                    continue;
+                }
+                if (count >= maxKeys) {
+                    result.setTruncated(true);
+                    break;
+                }
+
+                if (commonPrefix != null) {
+                    commonPrefixes.add(commonPrefix);
+                } else {
+                    S3ObjectSummary summary = new S3ObjectSummary();
+                    summary.setBucketName(bucket);
+                    summary.setKey(key);
+                    summary.setSize(fileEntry.getValue().data.length);
+                    summary.setETag(ETAG);
+                    summary.setLastModified(fileEntry.getValue().lastModified);
+                    result.getObjectSummaries().add(summary);
+                }
+                count++;
+                result.setNextContinuationToken(key);
+            }
+            result.getCommonPrefixes().addAll(commonPrefixes);
+            if (!result.isTruncated()) {
+                result.setNextContinuationToken(null);
+            }
+            return result;
+        } catch (InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            this.concurrentListings.decrementAndGet();
+        }
+    }
+
+    private void checkBucket(String bucket) {
+        if (this.brokenBuckets.contains(bucket)) {
+            AmazonS3Exception ex = new AmazonS3Exception("Access Denied");
+            ex.setStatusCode(403);
+            throw ex;
+        }
+    }
+
+    private InMemoryFile getFile(String bucket, String key) {
+        this.checkBucket(bucket);
+        InMemoryFile file = this.files.get(bucket + "/" + key);
+        if (file == null) {
+            AmazonS3Exception ex = new AmazonS3Exception("Not Found");
+            ex.setStatusCode(404);
+            throw ex;
+        }
+        return file;
+    }
+
+    private static class InMemoryFile {
+        private final byte[] data;
+        private final Date lastModified;
+
+        public InMemoryFile(byte[] data, Date lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class S3BlockCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        S3BlockCache cache = new S3BlockCache(300);
+
+        S3BlockCache.BlockKey block0 = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 0, 100);
+        S3BlockCache.BlockKey block1 = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 100, 100);
+        S3BlockCache.BlockKey block2 = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 200, 100);
+        S3BlockCache.BlockKey block3 = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 300, 100);
+
+        cache.put(block0, newBlock(new byte[100]));
+        cache.put(block1, newBlock(new byte[100]));
+        cache.put(block2, newBlock(new byte[100]));
+        Assert.assertEquals("Wrong cache size", 300, cache.getSize());
+
+        // Access the first block, so the second one become the least recently used
+        Assert.assertNotNull("Block 0 missing", cache.get(block0));
+
+        cache.put(block3, newBlock(new byte[100]));
+        Assert.assertEquals("Wrong cache size after eviction", 300, cache.getSize());
+        Assert.assertEquals("Wrong block count after eviction", 3, cache.getBlockCount());
+
+        Assert.assertNotNull("Recently used block 0 was evicted", cache.get(block0));
+        Assert.assertNull("Least recently used block 1 was not evicted", cache.get(block1));
+        Assert.assertNotNull("Block 2 was evicted", cache.get(block2));
+        Assert.assertNotNull("Block 3 was evicted", cache.get(block3));
+    }
+
+    @Test
+    public void testETagIsPartOfTheKey() {
+        S3BlockCache cache = new S3BlockCache(1000);
+
+        cache.put(new S3BlockCache.BlockKey("bucket", "file.nc", "etag1", 0, 10), newBlock(new byte[10]));
+        Assert.assertNull("Block of a different version of the file returned",
+                cache.get(new S3BlockCache.BlockKey("bucket", "file.nc", "etag2", 0, 10)));
+        Assert.assertNotNull("Block missing",
+                cache.get(new S3BlockCache.BlockKey("bucket", "file.nc", "etag1", 0, 10)));
+    }
+
+    @Test
+    public void testInvalidate() {
+        S3BlockCache cache = new S3BlockCache(1000);
+
+        cache.put(new S3BlockCache.BlockKey("bucket", "file1.nc", "etag", 0, 10), newBlock(new byte[10]));
+        cache.put(new S3BlockCache.BlockKey("bucket", "file1.nc", "etag", 10, 10), newBlock(new byte[10]));
+        cache.put(new S3BlockCache.BlockKey("bucket", "file2.nc", "etag", 0, 10), newBlock(new byte[10]));
+
+        cache.invalidate("bucket", "file1.nc");
+
+        Assert.assertEquals("Wrong block count after invalidation", 1, cache.getBlockCount());
+        Assert.assertEquals("Wrong cache size after invalidation", 10, cache.getSize());
+        Assert.assertNotNull("Block of an other file invalidated",
+                cache.get(new S3BlockCache.BlockKey("bucket", "file2.nc", "etag", 0, 10)));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final S3BlockCache cache = new S3BlockCache(50 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < 8; thread++) {
+                final String filename = "file" + thread + ".nc";
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) {
+                            S3BlockCache.BlockKey blockKey = new S3BlockCache.BlockKey("bucket", filename, "etag", (i % 100) * 1024, 1024);
+                            if (cache.get(blockKey) == null) {
+                                cache.put(blockKey, newBlock(new byte[1024]));
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertTrue(String.format("Cache exceeded its maximum size: %d", cache.getSize()), cache.getSize() <= cache.getMaxSize());
+        Assert.assertEquals("Cache size doesn't match its content", cache.getBlockCount() * 1024L, cache.getSize());
+    }
+
+    static S3Block newBlock(byte[] content) {
+        return new S3Block(ByteBuffer.wrap(content), null);
+    }
+
+    static byte[] toArray(S3Block block) {
+        byte[] content = new byte[block.getLength()];
+        block.getBuffer().get(content);
+        return content;
+    }
+
+    @Test
+    public void testEvictedBlockReturnedToPool() {
+        S3BlockCache cache = new S3BlockCache(100);
+        S3BufferPool pool = new S3BufferPool(100, 2);
+
+        S3BlockCache.BlockKey block0 = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 0, 100);
+        S3BlockCache.BlockKey block1 = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 100, 100);
+
+        S3Block block = pool.acquire(100);
+        cache.put(block0, block);
+        block.release();
+
+        S3Block reader = cache.get(block0);
+        Assert.assertNotNull("Block 0 missing", reader);
+
+        // Evict block 0 while it's being read
+        S3Block newBlock = pool.acquire(100);
+        cache.put(block1, newBlock);
+        newBlock.release();
+        Assert.assertEquals("Buffer of a block in use returned to the pool", 0, pool.getIdleBufferCount());
+
+        reader.release();
+        Assert.assertEquals("Buffer of the evicted block not returned to the pool", 1, pool.getIdleBufferCount());
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        final S3BlockCache cache = new S3BlockCache(1024);
+        final S3BlockCache.BlockKey blockKey = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 0, 100);
+        final AtomicInteger loadCount = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Callable<S3Block> loader = new Callable<S3Block>() {
+            @Override
+            public S3Block call() throws Exception {
+                loadCount.incrementAndGet();
+                // Simulate a slow download
+                Thread.sleep(200);
+                return newBlock(new byte[] { 42 });
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<S3Block>> futures = new ArrayList<Future<S3Block>>();
+            for (int thread = 0; thread < 8; thread++) {
+                futures.add(executor.submit(new Callable<S3Block>() {
+                    @Override
+                    public S3Block call() throws Exception {
+                        start.await();
+                        return cache.get(blockKey, loader);
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<S3Block> future : futures) {
+                S3Block block = future.get();
+                Assert.assertEquals("Wrong block content", 42, block.getBuffer().get(0));
+                block.release();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals("Block loaded more than once", 1, loadCount.get());
+        Assert.assertFalse("Load still pending", cache.isLoading(blockKey));
+    }
+
+    @Test
+    public void testFailedLoadIsRetriedByWaitingReaders() throws Exception {
+        final S3BlockCache cache = new S3BlockCache(1024);
+        final S3BlockCache.BlockKey blockKey = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 0, 100);
+        final CountDownLatch loading = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<S3Block> failedLoad = executor.submit(new Callable<S3Block>() {
+                @Override
+                public S3Block call() throws Exception {
+                    return cache.get(blockKey, new Callable<S3Block>() {
+                        @Override
+                        public S3Block call() throws Exception {
+                            loading.countDown();
+                            Thread.sleep(200);
+                            throw new IOException("Client disconnected");
+                        }
+                    });
+                }
+            });
+            loading.await();
+
+            S3Block block = cache.get(blockKey, new Callable<S3Block>() {
+                @Override
+                public S3Block call() throws Exception {
+                    return newBlock(new byte[] { 42 });
+                }
+            });
+            Assert.assertEquals("Wrong block content", 42, block.getBuffer().get(0));
+            block.release();
+
+            try {
+                failedLoad.get();
+                Assert.fail("The failed load didn't report its error");
+            } catch (ExecutionException ex) {
+                Assert.assertEquals("Wrong error", "Client disconnected", ex.getCause().getMessage());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
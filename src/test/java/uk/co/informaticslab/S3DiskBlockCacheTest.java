@@ -0,0 +1,119 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class S3DiskBlockCacheTest {
+
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        this.cacheDirectory = Files.createTempDirectory("s3diskcache_").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.cacheDirectory);
+    }
+
+    @Test
+    public void testBlocksSurviveRestart() throws Exception {
+        S3BlockCache.BlockKey blockKey = new S3BlockCache.BlockKey("bucket", "dir/file.nc", "etag", 4096, 100);
+        byte[] block = new byte[] { 1, 2, 3, 4, 5 };
+
+        S3DiskBlockCache diskCache = new S3DiskBlockCache(this.cacheDirectory, 1000);
+        S3BufferPool pool = new S3BufferPool(100, 1);
+        diskCache.put(blockKey, S3BlockCacheTest.newBlock(block));
+        Assert.assertArrayEquals("Wrong block returned", block, S3BlockCacheTest.toArray(diskCache.get(blockKey, pool)));
+
+        // Simulate a restart
+        S3DiskBlockCache reloadedDiskCache = new S3DiskBlockCache(this.cacheDirectory, 1000);
+        Assert.assertEquals("Wrong block count after restart", 1, reloadedDiskCache.getBlockCount());
+        Assert.assertEquals("Wrong cache size after restart", 5, reloadedDiskCache.getSize());
+        Assert.assertArrayEquals("Wrong block returned after restart", block, S3BlockCacheTest.toArray(reloadedDiskCache.get(blockKey, pool)));
+        Assert.assertNull("Block of a different version of the file returned",
+                reloadedDiskCache.get(new S3BlockCache.BlockKey("bucket", "dir/file.nc", "etag2", 4096, 100), pool));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        S3DiskBlockCache diskCache = new S3DiskBlockCache(this.cacheDirectory, 250);
+
+        for (int i = 0; i < 5; i++) {
+            diskCache.put(new S3BlockCache.BlockKey("bucket", "file.nc", "etag", i * 100, 100), S3BlockCacheTest.newBlock(new byte[100]));
+        }
+
+        Assert.assertEquals("Wrong block count after eviction", 2, diskCache.getBlockCount());
+        Assert.assertEquals("Wrong cache size after eviction", 200, diskCache.getSize());
+    }
+
+    @Test
+    public void testMemoryCacheFallsBackToDisk() throws Exception {
+        S3BlockCache.BlockKey blockKey = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 0, 100);
+        S3DiskBlockCache diskCache = new S3DiskBlockCache(this.cacheDirectory, 1000);
+
+        S3BlockCache cache = new S3BlockCache(1000, diskCache);
+        cache.put(blockKey, S3BlockCacheTest.newBlock(new byte[] { 42 }));
+        waitUntilSaved(diskCache, blockKey);
+        cache.clear();
+        Assert.assertEquals("Memory cache not empty", 0, cache.getBlockCount());
+
+        S3Block block = cache.get(blockKey);
+        Assert.assertNotNull("Block not found on disk", block);
+        Assert.assertEquals("Wrong block content", 42, block.getBuffer().get(0));
+        block.release();
+        Assert.assertEquals("Block not promoted to memory", 1, cache.getBlockCount());
+    }
+
+    @Test
+    public void testPutInBackground() throws Exception {
+        S3BlockCache.BlockKey blockKey = new S3BlockCache.BlockKey("bucket", "file.nc", "etag", 0, 100);
+        S3DiskBlockCache diskCache = new S3DiskBlockCache(this.cacheDirectory, 1000);
+        S3IOExecutor ioExecutor = new S3IOExecutor(1, 10, 10, 10, false);
+        S3BufferPool pool = new S3BufferPool(100, 1);
+
+        S3Block block = pool.acquire(5);
+        block.getBuffer().put(new byte[] { 1, 2, 3, 4, 5 });
+        diskCache.putInBackground(blockKey, block, ioExecutor);
+        // The write keeps its own reference, the block must stay readable once the caller released it
+        block.release();
+        waitUntilSaved(diskCache, blockKey);
+
+        Assert.assertArrayEquals("Wrong block saved", new byte[] { 1, 2, 3, 4, 5 },
+                S3BlockCacheTest.toArray(diskCache.get(blockKey, pool)));
+        ioExecutor.getExecutor().shutdown();
+    }
+
+    private static void waitUntilSaved(S3DiskBlockCache diskCache, S3BlockCache.BlockKey blockKey) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!diskCache.contains(blockKey)) {
+            Assert.assertTrue("Block not saved on disk", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
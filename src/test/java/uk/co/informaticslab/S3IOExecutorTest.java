@@ -0,0 +1,157 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class S3IOExecutorTest {
+
+    @Test
+    public void testBucketRequestLimit() throws InterruptedException {
+        final S3IOExecutor ioExecutor = new S3IOExecutor(4, 10, 10, 2, false);
+        ioExecutor.acquire("bucket1");
+        ioExecutor.acquire("bucket1");
+        Assert.assertEquals("Wrong available requests for bucket1", 0, ioExecutor.getAvailableRequests("bucket1"));
+        Assert.assertEquals("Wrong available requests for bucket2", 2, ioExecutor.getAvailableRequests("bucket2"));
+        Assert.assertEquals("Wrong available requests", 8, ioExecutor.getAvailableRequests());
+
+        // A third request to the same bucket waits for a permit
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ioExecutor.acquire("bucket1");
+                acquired.countDown();
+                ioExecutor.release("bucket1");
+            }
+        });
+        thread.start();
+        Assert.assertFalse("Bucket request limit not applied", acquired.await(200, TimeUnit.MILLISECONDS));
+
+        ioExecutor.release("bucket1");
+        Assert.assertTrue("Waiting request not sent", acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+        ioExecutor.release("bucket1");
+        Assert.assertEquals("Permits leaked", 10, ioExecutor.getAvailableRequests());
+    }
+
+    @Test
+    public void testGlobalRequestLimit() {
+        S3IOExecutor ioExecutor = new S3IOExecutor(4, 10, 3, 2, false);
+        ioExecutor.acquire("bucket1");
+        ioExecutor.acquire("bucket2");
+        ioExecutor.acquire("bucket3");
+        Assert.assertEquals("Global request limit not applied", 0, ioExecutor.getAvailableRequests("bucket4"));
+    }
+
+    @Test
+    public void testOpenRequestsLeavePermitsToOtherRequests() {
+        S3IOExecutor ioExecutor = new S3IOExecutor(4, 10, 10, 4, false);
+        Assert.assertTrue(ioExecutor.tryAcquireStream("bucket1"));
+        Assert.assertTrue(ioExecutor.tryAcquireStream("bucket1"));
+        // At most half of the bucket permits are kept open
+        Assert.assertFalse("Bucket open request limit not applied", ioExecutor.tryAcquireStream("bucket1"));
+        Assert.assertEquals("Wrong available requests for bucket1", 2, ioExecutor.getAvailableRequests("bucket1"));
+
+        Assert.assertTrue(ioExecutor.tryAcquireStream("bucket2"));
+        Assert.assertTrue(ioExecutor.tryAcquireStream("bucket3"));
+        Assert.assertTrue(ioExecutor.tryAcquireStream("bucket4"));
+        // At most half of the global permits are kept open
+        Assert.assertFalse("Global open request limit not applied", ioExecutor.tryAcquireStream("bucket5"));
+        Assert.assertEquals("Wrong available requests", 5, ioExecutor.getAvailableRequests());
+
+        ioExecutor.releaseStream("bucket1");
+        Assert.assertTrue("Open request permit not released", ioExecutor.tryAcquireStream("bucket5"));
+        for (String bucket : new String[] { "bucket1", "bucket2", "bucket3", "bucket4", "bucket5" }) {
+            ioExecutor.releaseStream(bucket);
+        }
+        Assert.assertEquals("Permits leaked", 10, ioExecutor.getAvailableRequests());
+    }
+
+    @Test
+    public void testOptionalTasksAreDroppedWhenSaturated() throws InterruptedException {
+        S3IOExecutor ioExecutor = new S3IOExecutor(1, 1, 10, 10, false);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable blockingTask = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        try {
+            // One task running, one task queued
+            Assert.assertTrue(ioExecutor.tryExecute(blockingTask));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(ioExecutor.tryExecute(blockingTask));
+            Assert.assertEquals(1, ioExecutor.getQueuedTaskCount());
+
+            final AtomicBoolean ran = new AtomicBoolean(false);
+            Assert.assertFalse("Task accepted by a saturated pool", ioExecutor.tryExecute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.set(true);
+                }
+            }));
+            Assert.assertFalse("Dropped task was run", ran.get());
+
+            // Required tasks are run by the caller
+            final Thread caller = Thread.currentThread();
+            final AtomicBoolean ranByCaller = new AtomicBoolean(false);
+            ioExecutor.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ranByCaller.set(Thread.currentThread() == caller);
+                }
+            });
+            Assert.assertTrue("Task not run by the caller", ranByCaller.get());
+        } finally {
+            release.countDown();
+            ioExecutor.getExecutor().shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        // Falls back to platform threads on JVMs without virtual threads
+        S3IOExecutor ioExecutor = new S3IOExecutor(2, 10, 10, 10, true);
+        try {
+            Assert.assertEquals("Task not run", Boolean.TRUE, ioExecutor.getExecutor().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Thread.currentThread().getName().startsWith("s3-io-");
+                }
+            }).get(5, TimeUnit.SECONDS));
+        } finally {
+            ioExecutor.getExecutor().shutdown();
+        }
+    }
+}
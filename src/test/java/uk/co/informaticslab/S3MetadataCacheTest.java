@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+
+public class S3MetadataCacheTest {
+
+    @Test
+    public void testMetadataIsCached() {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "file.nc", new byte[100]);
+        S3MetadataCache metadataCache = new S3MetadataCache(60000, 60000, 100);
+
+        Assert.assertEquals("Wrong file size", 100, metadataCache.getObjectMetadata(s3, "bucket", "file.nc").getContentLength());
+        Assert.assertEquals("Wrong file size", 100, metadataCache.getObjectMetadata(s3, "bucket", "file.nc").getContentLength());
+        Assert.assertEquals("Metadata requested more than once", 1, s3.getHeadCount());
+
+        metadataCache.invalidate("bucket", "file.nc");
+        metadataCache.getObjectMetadata(s3, "bucket", "file.nc");
+        Assert.assertEquals("Metadata not requested after invalidate", 2, s3.getHeadCount());
+    }
+
+    @Test
+    public void testMissingFileIsCached() {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MetadataCache metadataCache = new S3MetadataCache(60000, 60000, 100);
+
+        Assert.assertNull("Missing file returned metadata", metadataCache.getObjectMetadata(s3, "bucket", "missing.nc"));
+        Assert.assertNull("Missing file returned metadata", metadataCache.getObjectMetadata(s3, "bucket", "missing.nc"));
+        Assert.assertEquals("Missing file requested more than once", 1, s3.getHeadCount());
+    }
+
+    @Test
+    public void testExpiredEntriesAreRequestedAgain() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "file.nc", new byte[100]);
+        S3MetadataCache metadataCache = new S3MetadataCache(0, 0, 100);
+
+        metadataCache.getObjectMetadata(s3, "bucket", "file.nc");
+        Thread.sleep(5);
+        metadataCache.getObjectMetadata(s3, "bucket", "file.nc");
+        Assert.assertEquals("Expired metadata not requested again", 2, s3.getHeadCount());
+    }
+
+    @Test
+    public void testListingFillsTheCache() {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MetadataCache metadataCache = new S3MetadataCache(60000, 60000, 100);
+
+        S3ObjectSummary objectSummary = new S3ObjectSummary();
+        objectSummary.setKey("dir/file.nc");
+        objectSummary.setSize(42);
+        objectSummary.setETag("etag");
+        objectSummary.setLastModified(new Date(1000));
+        metadataCache.put("bucket", objectSummary);
+
+        ObjectMetadata metadata = metadataCache.getObjectMetadata(s3, "bucket", "dir/file.nc");
+        Assert.assertEquals("Wrong file size", 42, metadata.getContentLength());
+        Assert.assertEquals("Wrong ETag", "etag", metadata.getETag());
+        Assert.assertEquals("Wrong last modified date", 1000, metadata.getLastModified().getTime());
+        Assert.assertEquals("Metadata requested from S3", 0, s3.getHeadCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MetadataCache metadataCache = new S3MetadataCache(60000, 60000, 10);
+
+        for (int i = 0; i < 50; i++) {
+            metadataCache.getObjectMetadata(s3, "bucket", "file" + i + ".nc");
+        }
+        Assert.assertTrue(String.format("Cache exceeded its maximum size: %d", metadataCache.getEntryCount()),
+                metadataCache.getEntryCount() <= 10);
+    }
+
+    @Test
+    public void testListingOnlyFillsFreeRoom() {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.addFile("bucket", "used.nc", new byte[100]);
+        S3MetadataCache metadataCache = new S3MetadataCache(60000, 60000, 10);
+        metadataCache.getObjectMetadata(s3, "bucket", "used.nc");
+
+        for (int i = 0; i < 1000; i++) {
+            S3ObjectSummary objectSummary = new S3ObjectSummary();
+            objectSummary.setKey("listed" + i + ".nc");
+            objectSummary.setLastModified(new Date(1000));
+            metadataCache.put("bucket", objectSummary);
+        }
+        Assert.assertEquals("Wrong number of entries", 10, metadataCache.getEntryCount());
+
+        // The file in use was not evicted by the listing
+        metadataCache.getObjectMetadata(s3, "bucket", "used.nc");
+        Assert.assertEquals("Metadata of a file in use evicted by a listing", 1, s3.getHeadCount());
+    }
+
+    @Test
+    public void testEvictionInBatches() {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MetadataCache metadataCache = new S3MetadataCache(60000, 60000, 100);
+
+        for (int i = 0; i <= 100; i++) {
+            metadataCache.getObjectMetadata(s3, "bucket", "file" + i + ".nc");
+        }
+        Assert.assertEquals("Wrong number of entries after an eviction", 90, metadataCache.getEntryCount());
+
+        // The next files fit without evicting anything
+        for (int i = 101; i < 111; i++) {
+            metadataCache.getObjectMetadata(s3, "bucket", "file" + i + ".nc");
+        }
+        Assert.assertEquals("Wrong number of entries", 100, metadataCache.getEntryCount());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+
+public class S3MetricsTest {
+
+    @Test
+    public void testRequestsAreCountedPerBucketAndDataset() {
+        S3Metrics metrics = new S3Metrics(10, false);
+
+        long startTime = metrics.requestStarted(S3Metrics.RequestType.GET, "bucket", "file.nc");
+        Assert.assertEquals("Request not in flight", 1, metrics.getTotal().getGetInFlight());
+        metrics.requestCompleted(S3Metrics.RequestType.GET, "bucket", "file.nc", startTime, 100, false);
+
+        startTime = metrics.requestStarted(S3Metrics.RequestType.GET, "bucket", "other.nc");
+        metrics.requestCompleted(S3Metrics.RequestType.GET, "bucket", "other.nc", startTime, 50, true);
+
+        startTime = metrics.requestStarted(S3Metrics.RequestType.LIST, "bucket", null);
+        metrics.requestCompleted(S3Metrics.RequestType.LIST, "bucket", null, startTime, 0, false);
+
+        metrics.bytesServed("bucket", "file.nc", 30);
+
+        S3Stats total = metrics.getTotal();
+        Assert.assertEquals("Wrong GET count", 2, total.getGetCount());
+        Assert.assertEquals("Wrong GET error count", 1, total.getGetErrorCount());
+        Assert.assertEquals("Request still in flight", 0, total.getGetInFlight());
+        Assert.assertEquals("Wrong LIST count", 1, total.getListCount());
+        Assert.assertEquals("Wrong bytes fetched", 150, total.getBytesFetched());
+        Assert.assertEquals("Wrong bytes served", 30, total.getBytesServed());
+
+        Assert.assertEquals("Wrong bucket GET count", 2, metrics.getBuckets().get("bucket").getGetCount());
+
+        S3Stats fileStats = metrics.getDatasets().get("bucket/file.nc");
+        Assert.assertEquals("Wrong dataset GET count", 1, fileStats.getGetCount());
+        Assert.assertEquals("Wrong dataset bytes fetched", 100, fileStats.getBytesFetched());
+        Assert.assertEquals("Wrong dataset bytes served", 30, fileStats.getBytesServed());
+        Assert.assertEquals("Bucket request counted as a dataset", 2, metrics.getDatasets().size());
+    }
+
+    @Test
+    public void testTrackedDatasetsAreLimited() {
+        S3Metrics metrics = new S3Metrics(2, false);
+
+        for (int i = 0; i < 5; i++) {
+            metrics.bytesServed("bucket", "file" + i + ".nc", 10);
+        }
+
+        Assert.assertEquals("Too many datasets tracked", 2, metrics.getDatasets().size());
+        Assert.assertEquals("Untracked datasets not counted in the bucket", 50, metrics.getBuckets().get("bucket").getBytesServed());
+        Assert.assertEquals("Untracked datasets not counted in the total", 50, metrics.getTotal().getBytesServed());
+        Assert.assertTrue("Latest dataset not tracked", metrics.getDatasets().containsKey("bucket/file4.nc"));
+    }
+
+    @Test
+    public void testLeastRecentlyUpdatedDatasetIsEvicted() throws Exception {
+        S3Metrics metrics = new S3Metrics(2, true);
+        try {
+            metrics.bytesServed("metrics-lru-bucket", "file0.nc", 10);
+            Thread.sleep(1);
+            metrics.bytesServed("metrics-lru-bucket", "file1.nc", 10);
+            Thread.sleep(1);
+            metrics.bytesServed("metrics-lru-bucket", "file0.nc", 10);
+            Thread.sleep(1);
+            metrics.bytesServed("metrics-lru-bucket", "file2.nc", 10);
+
+            Assert.assertEquals("Wrong tracked datasets", new HashSet<String>(Arrays.asList("metrics-lru-bucket/file0.nc", "metrics-lru-bucket/file2.nc")),
+                    metrics.getDatasets().keySet());
+            Assert.assertEquals("Wrong dataset bytes served", 20, metrics.getDatasets().get("metrics-lru-bucket/file0.nc").getBytesServed());
+
+            // Total, bucket and 2 datasets
+            Assert.assertEquals("Wrong registered MBeans", 4, metrics.getRegisteredMBeanCount());
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertFalse("MBean of the evicted dataset still registered", mBeanServer.isRegistered(new ObjectName(String.format(
+                    "%s:type=S3Metrics,bucket=%s,dataset=%s", S3Metrics.JMX_DOMAIN, ObjectName.quote("metrics-lru-bucket"), ObjectName.quote("file1.nc")))));
+            Assert.assertTrue("MBean of a tracked dataset not registered", mBeanServer.isRegistered(new ObjectName(String.format(
+                    "%s:type=S3Metrics,bucket=%s,dataset=%s", S3Metrics.JMX_DOMAIN, ObjectName.quote("metrics-lru-bucket"), ObjectName.quote("file2.nc")))));
+        } finally {
+            metrics.unregisterMBeans();
+        }
+    }
+
+    @Test
+    public void testMBeansAreUnregistered() throws Exception {
+        S3Metrics metrics = new S3Metrics(10, true);
+        metrics.bytesServed("metrics-jmx-bucket", "file.nc", 10);
+        Assert.assertEquals("Wrong registered MBeans", 3, metrics.getRegisteredMBeanCount());
+
+        metrics.unregisterMBeans();
+        Assert.assertEquals("MBeans still registered", 0, metrics.getRegisteredMBeanCount());
+        Assert.assertTrue("Bucket MBean still registered", ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName(String.format("%s:bucket=%s,*", S3Metrics.JMX_DOMAIN, ObjectName.quote("metrics-jmx-bucket"))), null).isEmpty());
+
+        // Late requests, after the webapp stopped, don't register MBeans again
+        metrics.bytesServed("metrics-jmx-bucket", "other.nc", 10);
+        Assert.assertEquals("MBean registered after the webapp stopped", 0, metrics.getRegisteredMBeanCount());
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        S3Stats.LatencyHistogram histogram = new S3Stats.LatencyHistogram();
+        Assert.assertEquals("Percentile of an empty histogram", 0, histogram.getPercentile(0.99));
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3 * 1000000L); // 3 ms
+        }
+        histogram.record(150 * 1000000L); // 150 ms
+        histogram.record(20000 * 1000000L); // 20 s
+
+        Assert.assertEquals("Wrong count", 100, histogram.getCount());
+        Assert.assertEquals("Wrong median", 5, histogram.getPercentile(0.5));
+        Assert.assertEquals("Wrong 99th percentile", 200, histogram.getPercentile(0.99));
+        Assert.assertEquals("Wrong 100th percentile", 20000, histogram.getPercentile(1));
+        Assert.assertEquals("Wrong max", 20000, histogram.getMax());
+        Assert.assertEquals("Wrong mean", (98 * 3 + 150 + 20000) / 100.0, histogram.getMean(), 0.001);
+
+        histogram.reset();
+        Assert.assertEquals("Histogram not reset", 0, histogram.getCount());
+    }
+
+    @Test
+    public void testBlockCacheHitsAndMisses() throws IOException {
+        // The block cache reports to the default metrics; use a bucket no other test uses
+        String bucket = "metrics-test-bucket";
+        S3Stats bucketStats;
+        S3BlockCache cache = new S3BlockCache(100);
+        S3BlockCache.BlockKey block0 = new S3BlockCache.BlockKey(bucket, "file.nc", "etag", 0, 60);
+        S3BlockCache.BlockKey block1 = new S3BlockCache.BlockKey(bucket, "file.nc", "etag", 60, 60);
+
+        Callable<S3Block> loader = new Callable<S3Block>() {
+            @Override
+            public S3Block call() {
+                return S3BlockCacheTest.newBlock(new byte[60]);
+            }
+        };
+
+        cache.get(block0, loader).release(); // miss
+        cache.get(block0, loader).release(); // hit
+        cache.get(block1, loader).release(); // miss, evicts block 0
+        Assert.assertNull("Evicted block returned", cache.get(block0)); // miss
+
+        bucketStats = S3Metrics.getDefault().getBuckets().get(bucket);
+        Assert.assertEquals("Wrong cache hits", 1, bucketStats.getCacheHits());
+        Assert.assertEquals("Wrong cache misses", 3, bucketStats.getCacheMisses());
+        Assert.assertEquals("Wrong cache evictions", 1, bucketStats.getCacheEvictions());
+        Assert.assertEquals("Wrong hit ratio", 0.25, bucketStats.getCacheHitRatio(), 0.001);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class S3NetcdfFileCacheTest {
+
+    @Test
+    public void testClosedFileIsReused() throws Exception {
+        S3NetcdfFileCache fileCache = new S3NetcdfFileCache(10, 60000);
+        String cacheKey = S3NetcdfFileCache.getCacheKey("s3://bucket/file.nc", "etag");
+
+        Assert.assertNull("Unexpected file in empty cache", fileCache.acquire(cacheKey));
+        TestFile file = new TestFile(fileCache, cacheKey);
+        file.close();
+        Assert.assertFalse("File closed instead of cached", file.closed);
+        Assert.assertEquals("Wrong idle file count", 1, fileCache.getIdleFileCount());
+
+        Assert.assertSame("Cached file not reused", file, fileCache.acquire(cacheKey));
+        Assert.assertNull("File handed out twice", fileCache.acquire(cacheKey));
+        Assert.assertNull("File of a different version of the file returned",
+                fileCache.acquire(S3NetcdfFileCache.getCacheKey("s3://bucket/file.nc", "etag2")));
+    }
+
+    @Test
+    public void testConcurrentRequestsGetDifferentFiles() throws Exception {
+        S3NetcdfFileCache fileCache = new S3NetcdfFileCache(10, 60000);
+        String cacheKey = S3NetcdfFileCache.getCacheKey("s3://bucket/file.nc", "etag");
+
+        TestFile file1 = new TestFile(fileCache, cacheKey);
+        TestFile file2 = new TestFile(fileCache, cacheKey);
+        Assert.assertEquals("Wrong in use file count", 2, fileCache.getInUseFileCount());
+
+        file1.close();
+        file2.close();
+        // Closing twice must not put the file in the cache twice
+        file2.close();
+        Assert.assertEquals("Wrong idle file count", 2, fileCache.getIdleFileCount());
+
+        Assert.assertSame("Most recently used file not returned first", file2, fileCache.acquire(cacheKey));
+        Assert.assertSame("Second file not returned", file1, fileCache.acquire(cacheKey));
+    }
+
+    @Test
+    public void testIdleFilesAreClosed() throws Exception {
+        S3NetcdfFileCache fileCache = new S3NetcdfFileCache(2, 60000);
+
+        TestFile[] files = new TestFile[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new TestFile(fileCache, S3NetcdfFileCache.getCacheKey("s3://bucket/file" + i + ".nc", "etag"));
+        }
+        for (TestFile file : files) {
+            file.close();
+        }
+
+        Assert.assertEquals("Wrong idle file count", 2, fileCache.getIdleFileCount());
+        Assert.assertTrue("Least recently used file not closed", files[0].closed);
+        Assert.assertFalse("Recently used file closed", files[2].closed);
+
+        fileCache.clear();
+        Assert.assertTrue("File not closed when the cache was cleared", files[2].closed);
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        S3NetcdfFileCache fileCache = new S3NetcdfFileCache(10, 0);
+        String cacheKey = S3NetcdfFileCache.getCacheKey("s3://bucket/file.nc", "etag");
+
+        TestFile file = new TestFile(fileCache, cacheKey);
+        file.close();
+        Thread.sleep(5);
+
+        Assert.assertNull("Expired file returned", fileCache.acquire(cacheKey));
+        Assert.assertTrue("Expired file not closed", file.closed);
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        S3NetcdfFileCache fileCache = new S3NetcdfFileCache(0, 60000);
+        TestFile file = new TestFile(fileCache, S3NetcdfFileCache.getCacheKey("s3://bucket/file.nc", "etag"));
+        file.close();
+        Assert.assertTrue("File not closed when the cache is disabled", file.closed);
+    }
+
+    private static class TestFile implements S3NetcdfFileCache.CachedFile {
+        private final S3NetcdfFileCache fileCache;
+        private final String cacheKey;
+        private boolean closed = false;
+
+        public TestFile(S3NetcdfFileCache fileCache, String cacheKey) {
+            this.fileCache = fileCache;
+            this.cacheKey = cacheKey;
+            this.fileCache.register(this);
+        }
+
+        @Override
+        public String getCacheKey() {
+            return this.cacheKey;
+        }
+
+        public void close() {
+            if (!this.fileCache.release(this)) {
+                this.closeFile();
+            }
+        }
+
+        @Override
+        public void closeFile() {
+            this.closed = true;
+        }
+    }
+}
@@ -21,14 +21,27 @@ package uk.co.informaticslab;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 
@@ -36,26 +49,339 @@ public class S3RandomAccessFileTest {
 
     private static final String URL = "s3://mogreps-g/prods_op_mogreps-g_20160101_00_00_015.nc";
 
-    private AmazonS3 client;
-    private S3RandomAccessFile raf;
-    private Map<String, byte[]> cache;
-    private LinkedList<String> index;
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "file.nc";
+    private static final int BLOCK_SIZE = S3BufferPool.DEFAULT_BUFFER_SIZE;
+    private static final int MEGABYTE = Constants.MEGABYTE;
 
+    private byte[] data;
+    private InMemoryS3 s3;
+    private S3BlockCache cache;
 
     @Before
-    public void setUp() throws IOException {
-        client = AmazonS3ClientBuilder.standard().withRegion(Regions.EU_WEST_2).build();
-        cache = new HashMap<>();
-        index = new LinkedList<>();
-        raf = new S3RandomAccessFile(index, cache, client, URL);
+    public void setUp() {
+        // 4 blocks and a half
+        this.data = new byte[4 * BLOCK_SIZE + BLOCK_SIZE / 2];
+        for (int i = 0; i < this.data.length; i++) {
+            this.data[i] = (byte) (i * 31 + i / 7919);
+        }
+        this.s3 = new InMemoryS3();
+        this.s3.addFile(BUCKET, KEY, this.data);
+        this.cache = new S3BlockCache(64L * MEGABYTE);
     }
 
     // TODO FIX
     @Ignore
     @Test
     public void testLength() throws IOException {
+        AmazonS3 client = AmazonS3ClientBuilder.standard().withRegion(Regions.EU_WEST_2).build();
+        S3RandomAccessFile raf = new S3RandomAccessFile(new S3BlockCache(S3BlockCache.DEFAULT_MAX_SIZE), client, URL);
         assertEquals("file length", 35948814, raf.length());
         raf.close();
     }
 
+    @Test
+    public void testReadParallel() throws IOException {
+        S3RandomAccessFile raf = this.newFile();
+        // Blocks 1 and 3 are already cached
+        this.cacheBlock(1);
+        this.cacheBlock(3);
+
+        // Unaligned read, from the middle of block 0 to the middle of block 4
+        long pos = MEGABYTE + 123;
+        int length = 4 * BLOCK_SIZE + 45 - (int) pos;
+        ByteBuffer dst = ByteBuffer.allocate(length + 20);
+        dst.position(7);
+        dst.limit(7 + length);
+
+        Assert.assertEquals("Wrong number of bytes read", length, raf.readParallel(pos, dst, BLOCK_SIZE));
+        Assert.assertEquals("Wrong buffer position", 7 + length, dst.position());
+        Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(this.data, (int) pos, (int) pos + length),
+                Arrays.copyOfRange(dst.array(), 7, 7 + length));
+
+        // Only the parts which were not cached are downloaded
+        Assert.assertEquals("Wrong ranged GET requests", new HashSet<String>(Arrays.asList(
+                range(pos, BLOCK_SIZE), range(2 * BLOCK_SIZE, 3 * BLOCK_SIZE), range(4 * BLOCK_SIZE, pos + length))),
+                new HashSet<String>(this.s3.getRequestedRanges()));
+        // Downloaded parts are not cached
+        Assert.assertEquals("Downloaded parts were cached", 2, this.cache.getBlockCount());
+        raf.close();
+    }
+
+    @Test
+    public void testReadToByteChannel() throws IOException {
+        S3RandomAccessFile raf = this.newFile();
+        this.cacheBlock(1);
+
+        // From the middle of block 0 to the middle of block 2
+        long offset = MEGABYTE + 7;
+        long length = 2 * BLOCK_SIZE + 1000 - offset;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals("Wrong number of bytes written", length, raf.readToByteChannel(Channels.newChannel(output), offset, length));
+        Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(this.data, (int) offset, (int) (offset + length)), output.toByteArray());
+
+        // Missing blocks are downloaded whole, cached, then written to the channel
+        Assert.assertEquals("Wrong ranged GET requests", Arrays.asList(range(0, BLOCK_SIZE), range(2 * BLOCK_SIZE, 3 * BLOCK_SIZE)),
+                this.s3.getRequestedRanges());
+        Assert.assertEquals("Streamed blocks were not cached", 3, this.cache.getBlockCount());
+
+        // Read again, from the cache
+        output.reset();
+        Assert.assertEquals("Wrong number of bytes written", length, raf.readToByteChannel(Channels.newChannel(output), offset, length));
+        Assert.assertArrayEquals("Wrong data from the cache", Arrays.copyOfRange(this.data, (int) offset, (int) (offset + length)), output.toByteArray());
+        Assert.assertEquals("Cached blocks downloaded again", 2, this.s3.getRequestedRanges().size());
+
+        // Past the end of the file
+        output.reset();
+        Assert.assertEquals("Wrong number of bytes written at the end of the file", BLOCK_SIZE / 2,
+                raf.readToByteChannel(Channels.newChannel(output), 4 * BLOCK_SIZE, BLOCK_SIZE));
+        Assert.assertEquals("Wrong number of bytes written past the end of the file", 0,
+                raf.readToByteChannel(Channels.newChannel(output), this.data.length, 10));
+        raf.close();
+    }
+
+    @Test
+    public void testSlowChannelDoesNotStallOtherReaders() throws Exception {
+        final S3RandomAccessFile raf = this.newFile();
+        final StalledChannel channel = new StalledChannel(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> download = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return raf.readToByteChannel(channel, 0, 100);
+                }
+            });
+            channel.awaitWrite();
+
+            // The block downloaded for the stalled channel is available to the other readers
+            final S3RandomAccessFile otherRaf = this.newFile();
+            Future<byte[]> read = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    byte[] read = new byte[100];
+                    otherRaf.readFully(read);
+                    return read;
+                }
+            });
+            Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(this.data, 0, 100), read.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("Block downloaded twice", 1, this.s3.getRequestedRanges().size());
+            otherRaf.close();
+
+            channel.resume();
+            Assert.assertEquals("Wrong number of bytes written", 100L, (long) download.get(10, TimeUnit.SECONDS));
+        } finally {
+            channel.resume();
+            executor.shutdownNow();
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testStalledStreamsLeavePermitsToOtherRequests() throws Exception {
+        S3IOExecutor ioExecutor = S3IOExecutor.getDefault();
+        int nbStreams = ioExecutor.getAvailableRequests(BUCKET);
+        final StalledChannel channel = new StalledChannel(nbStreams);
+        ExecutorService executor = Executors.newFixedThreadPool(nbStreams + 1);
+        try {
+            // As many slow clients as there are S3 request permits
+            for (int i = 0; i < nbStreams; i++) {
+                final long offset = i * 1000L;
+                executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        S3RandomAccessFile raf = S3RandomAccessFileTest.this.newFile();
+                        try {
+                            return raf.streamToByteChannel(channel, offset, 1000);
+                        } finally {
+                            raf.close();
+                        }
+                    }
+                });
+            }
+            channel.awaitWrite();
+            Assert.assertTrue("Stalled streams hold every S3 request permit", ioExecutor.getAvailableRequests(BUCKET) > 0);
+
+            // Other requests are still sent
+            Future<byte[]> read = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    S3RandomAccessFile raf = S3RandomAccessFileTest.this.newFile();
+                    byte[] read = new byte[100];
+                    raf.readFully(read);
+                    raf.close();
+                    return read;
+                }
+            });
+            Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(this.data, 0, 100), read.get(10, TimeUnit.SECONDS));
+        } finally {
+            channel.resume();
+            executor.shutdown();
+            Assert.assertTrue("Streams not completed", executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals("S3 request permits not released", nbStreams, ioExecutor.getAvailableRequests(BUCKET));
+    }
+
+    @Test
+    public void testStreamToByteChannel() throws IOException {
+        S3RandomAccessFile raf = this.newFile();
+
+        long offset = MEGABYTE + 7;
+        long length = 3 * BLOCK_SIZE;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals("Wrong number of bytes written", length, raf.streamToByteChannel(Channels.newChannel(output), offset, length));
+        Assert.assertArrayEquals("Wrong data", Arrays.copyOfRange(this.data, (int) offset, (int) (offset + length)), output.toByteArray());
+
+        // A single request for the exact range, which bypasses the cache
+        Assert.assertEquals("Wrong ranged GET requests", Collections.singletonList(range(offset, offset + length)), this.s3.getRequestedRanges());
+        Assert.assertEquals("Streamed range was cached", 0, this.cache.getBlockCount());
+
+        // Truncated at the end of the file
+        output.reset();
+        Assert.assertEquals("Wrong number of bytes written at the end of the file", 100,
+                raf.streamToByteChannel(Channels.newChannel(output), this.data.length - 100, BLOCK_SIZE));
+        Assert.assertEquals("Wrong number of bytes written past the end of the file", 0,
+                raf.streamToByteChannel(Channels.newChannel(output), this.data.length, 10));
+        raf.close();
+    }
+
+    @Test
+    public void testLayoutAwareChunks() throws IOException {
+        S3RandomAccessFile raf = new S3RandomAccessFile(this.cache, null, this.s3, "s3://" + BUCKET + "/" + KEY,
+                S3RandomAccessFile.METADATA_BLOCK_SIZE);
+        raf.disableReadAhead();
+        raf.setLayoutAware(true);
+        int metadataBlockSize = S3RandomAccessFile.METADATA_BLOCK_SIZE;
+
+        // A chunk is read with a seek, which fills the read buffer up to the end of the metadata block,
+        // followed by a direct read of the rest of the chunk
+        long chunkStart = 3L * metadataBlockSize + 1000;
+        int chunkLength = 300 * 1024;
+        long metadataBlockEnd = 4L * metadataBlockSize;
+        byte[] chunk = new byte[chunkLength];
+        raf.seek(chunkStart);
+        raf.readFully(chunk);
+        Assert.assertArrayEquals("Wrong chunk data", Arrays.copyOfRange(this.data, (int) chunkStart, (int) chunkStart + chunkLength), chunk);
+
+        // The rest of the chunk is requested from the end of the buffer fill, not from the start of the chunk
+        Assert.assertEquals("Wrong ranged GET requests", Arrays.asList(
+                range(3L * metadataBlockSize, metadataBlockEnd), range(metadataBlockEnd, chunkStart + chunkLength)),
+                this.s3.getRequestedRanges());
+
+        // Read again, from the metadata block and from the learned chunk
+        raf.seek(0);
+        raf.readFully(new byte[10]);
+        raf.seek(chunkStart);
+        raf.readFully(chunk);
+        Assert.assertArrayEquals("Wrong chunk data from the cache", Arrays.copyOfRange(this.data, (int) chunkStart, (int) chunkStart + chunkLength), chunk);
+        Assert.assertEquals("Learned chunk downloaded again", Arrays.asList(
+                range(3L * metadataBlockSize, metadataBlockEnd), range(metadataBlockEnd, chunkStart + chunkLength), range(0, metadataBlockSize)),
+                this.s3.getRequestedRanges());
+
+        // A chunk larger than the pooled buffers is read from the fixed size blocks
+        long largeChunkStart = BLOCK_SIZE + 10L * metadataBlockSize + 1000;
+        byte[] largeChunk = new byte[BLOCK_SIZE + metadataBlockSize];
+        raf.seek(largeChunkStart);
+        raf.readFully(largeChunk);
+        Assert.assertArrayEquals("Wrong large chunk data", Arrays.copyOfRange(this.data, (int) largeChunkStart, (int) largeChunkStart + largeChunk.length), largeChunk);
+        List<String> requestedRanges = this.s3.getRequestedRanges();
+        Assert.assertEquals("Wrong ranged GET requests for a large chunk", Arrays.asList(
+                range(BLOCK_SIZE + 10L * metadataBlockSize, BLOCK_SIZE + 11L * metadataBlockSize), range(BLOCK_SIZE, 2 * BLOCK_SIZE), range(2 * BLOCK_SIZE, 3 * BLOCK_SIZE)),
+                requestedRanges.subList(3, requestedRanges.size()));
+        raf.close();
+    }
+
+    @Test
+    public void testLayoutAwareMetadataBlocksMemory() throws IOException {
+        S3RandomAccessFile raf = new S3RandomAccessFile(this.cache, null, this.s3, "s3://" + BUCKET + "/" + KEY,
+                S3RandomAccessFile.METADATA_BLOCK_SIZE);
+        raf.disableReadAhead();
+        raf.setLayoutAware(true);
+        int metadataBlockSize = S3RandomAccessFile.METADATA_BLOCK_SIZE;
+        int nbMetadataBlocks = this.data.length / metadataBlockSize;
+
+        // Scattered small reads, like the HDF5 header and B-trees
+        for (int i = 0; i < nbMetadataBlocks; i++) {
+            raf.seek((long) i * metadataBlockSize + 10);
+            Assert.assertEquals("Wrong metadata byte", this.data[i * metadataBlockSize + 10], (byte) raf.read());
+        }
+
+        // Every metadata block is cached, and holds no more memory than its size
+        Assert.assertEquals("Wrong cached block count", nbMetadataBlocks, this.cache.getBlockCount());
+        Assert.assertEquals("Wrong memory held by the cache", (long) nbMetadataBlocks * metadataBlockSize, this.cache.getSize());
+        for (int i = 0; i < nbMetadataBlocks; i++) {
+            S3Block block = this.cache.get(new S3BlockCache.BlockKey(BUCKET, KEY, InMemoryS3.ETAG, (long) i * metadataBlockSize, metadataBlockSize));
+            Assert.assertNotNull("Metadata block missing", block);
+            Assert.assertEquals("Wrong memory held by a metadata block", metadataBlockSize, block.getCapacity());
+            block.release();
+        }
+        raf.close();
+    }
+
+    private S3RandomAccessFile newFile() throws IOException {
+        S3RandomAccessFile raf = new S3RandomAccessFile(this.cache, this.s3, "s3://" + BUCKET + "/" + KEY);
+        // The tests check the requests sent by the reads alone
+        raf.disableReadAhead();
+        return raf;
+    }
+
+    private void cacheBlock(int blockIndex) {
+        int start = blockIndex * BLOCK_SIZE;
+        int end = Math.min(start + BLOCK_SIZE, this.data.length);
+        S3Block block = S3BlockCacheTest.newBlock(Arrays.copyOfRange(this.data, start, end));
+        this.cache.put(new S3BlockCache.BlockKey(BUCKET, KEY, InMemoryS3.ETAG, start, BLOCK_SIZE), block);
+        block.release();
+    }
+
+    /**
+     * @return the range of a GET request, "first-last"
+     */
+    private static String range(long start, long end) {
+        return start + "-" + (end - 1);
+    }
+
+    /**
+     * Channel which blocks its writers until it's resumed, like a slow client.
+     */
+    private static class StalledChannel implements WritableByteChannel {
+        private final CountDownLatch writing;
+        private final CountDownLatch resumed = new CountDownLatch(1);
+
+        /**
+         * @param writers number of writers expected by {@link #awaitWrite()}
+         */
+        public StalledChannel(int writers) {
+            this.writing = new CountDownLatch(writers);
+        }
+
+        public void awaitWrite() throws InterruptedException {
+            Assert.assertTrue("Writers missing on the channel", this.writing.await(30, TimeUnit.SECONDS));
+        }
+
+        public void resume() {
+            this.resumed.countDown();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            this.writing.countDown();
+            try {
+                this.resumed.await();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            int bytes = src.remaining();
+            src.position(src.limit());
+            return bytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
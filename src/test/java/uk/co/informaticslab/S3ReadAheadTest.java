@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) 2019 Australian Institute of Marine Science
+ *
+ *  Contact: Gael Lafond <g.lafond@aims.gov.au>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.informaticslab;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class S3ReadAheadTest {
+
+    @Test
+    public void testSequentialAccessReadsAhead() throws Exception {
+        RecordingLoader loader = new RecordingLoader(100);
+        S3ReadAhead readAhead = new S3ReadAhead(loader, 4);
+
+        readAhead.onAccess(0);
+        Assert.assertTrue("Read-ahead started on first access", loader.loaded.isEmpty());
+
+        // The window grows: 1, 2, 4, 4...
+        readAhead.onAccess(1);
+        readAhead.await(2);
+        Assert.assertTrue("Block 2 was not read ahead", loader.loaded.contains(2L));
+        readAhead.onAccess(2);
+        readAhead.onAccess(3);
+        for (long blockIndex = 4; blockIndex <= 7; blockIndex++) {
+            readAhead.await(blockIndex);
+            Assert.assertTrue(String.format("Block %d was not read ahead", blockIndex), loader.loaded.contains(blockIndex));
+        }
+        Assert.assertFalse("Read-ahead went past the window", loader.loaded.contains(8L));
+    }
+
+    @Test
+    public void testReadAheadStopsAtEndOfFile() throws Exception {
+        RecordingLoader loader = new RecordingLoader(3);
+        S3ReadAhead readAhead = new S3ReadAhead(loader, 4);
+
+        readAhead.onAccess(0);
+        readAhead.onAccess(1);
+        readAhead.onAccess(2);
+        Assert.assertFalse("Block past the end of the file was read ahead", readAhead.await(3));
+        Assert.assertFalse("Block past the end of the file was read ahead", loader.loaded.contains(3L));
+    }
+
+    @Test
+    public void testRandomAccessDisablesReadAhead() throws Exception {
+        RecordingLoader loader = new RecordingLoader(100);
+        S3ReadAhead readAhead = new S3ReadAhead(loader, 4);
+
+        readAhead.onAccess(10);
+        readAhead.onAccess(50);
+        readAhead.onAccess(20);
+        Assert.assertTrue("Blocks were read ahead on random access", loader.loaded.isEmpty());
+        Assert.assertFalse("Block was read ahead on random access", readAhead.await(21));
+    }
+
+    private static class RecordingLoader implements S3ReadAhead.BlockLoader {
+        private final Set<Long> loaded = new ConcurrentSkipListSet<Long>();
+        private final long blockCount;
+
+        public RecordingLoader(long blockCount) {
+            this.blockCount = blockCount;
+        }
+
+        @Override
+        public void load(long blockIndex) throws IOException {
+            this.loaded.add(blockIndex);
+        }
+
+        @Override
+        public boolean isLoaded(long blockIndex) {
+            return this.loaded.contains(blockIndex);
+        }
+
+        @Override
+        public long getBlockCount() {
+            return this.blockCount;
+        }
+    }
+}